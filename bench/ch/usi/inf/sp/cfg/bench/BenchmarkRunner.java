@@ -0,0 +1,41 @@
+package ch.usi.inf.sp.cfg.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the CFG pipeline with JMH, always with the "gc"
+ * profiler, so that every benchmark reports its allocation rate
+ * (gc.alloc.rate.norm, in bytes per operation) next to its throughput.
+ * The allocations are counted by JMH in the forked JVM of the benchmark:
+ * on Java 21 and later over the whole JVM, before over the threads alive
+ * at both ends of an iteration. jarToCfg keeps its analyzer, and so its
+ * thread pool, for the whole fork, so its workers are counted either way.
+ * <p>
+ * Usage: BenchmarkRunner [JMH options] [regex]
+ * <p>
+ * The options are the ones of org.openjdk.jmh.Main, e.g. -wi 3 -i 5
+ * -f 2 -p input=branchHeavy, or -rf csv -rff results.csv to write the
+ * results to a csv file, to be compared against the performance budget.
+ * Without a regex all the CfgBenchmarks are run.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner(){
+	}
+
+	public static void main( final String[] args ) throws Exception {
+		final CommandLineOptions commandLine = new CommandLineOptions( args );
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent( commandLine )
+				.addProfiler( GCProfiler.class );
+		if( commandLine.getIncludes().isEmpty() ){
+			options.include( CfgBenchmarks.class.getName() );
+		}
+		new Runner( options.build() ).run();
+	}
+}
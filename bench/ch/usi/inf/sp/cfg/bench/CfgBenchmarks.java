@@ -0,0 +1,243 @@
+package ch.usi.inf.sp.cfg.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.usi.inf.sp.cfg.ControlFlowGraph;
+import ch.usi.inf.sp.cfg.ControlFlowGraphExtractor;
+import ch.usi.inf.sp.cfg.CsvFileCreator;
+import ch.usi.inf.sp.cfg.DotFileCreator;
+import ch.usi.inf.sp.cfg.MethodStatistics;
+import ch.usi.inf.sp.cfg.ParallelJarAnalyzer;
+import ch.usi.inf.sp.cfg.StreamingCfgExtractor;
+
+/**
+ * The JMH benchmarks of the CFG pipeline: CFG extraction (with both
+ * engines), DOT rendering (one creator per graph, and all the graphs
+ * through a single creator) on the methods of ExampleClass and on large,
+ * branch-heavy generated methods; PEI classification and csv emission on
+ * ExampleClass; and a whole JarToCfg run over a fixed jar.
+ * <p>
+ * Every benchmark runs in a JVM of its own (a fork), so that the profile
+ * and the JIT decisions of one do not leak into the next; the input is
+ * prepared in the setup of its state, outside of the measurements. Run
+ * them through BenchmarkRunner, which adds the "gc" profiler for the
+ * allocation rates, or directly with org.openjdk.jmh.Main.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CfgBenchmarks {
+
+	/** Number of branches, cases and try/catch regions of the generated methods */
+	public static final int BRANCH_HEAVY_SIZE = 2000;
+
+	/**
+	 * A class, with the graphs of its methods
+	 */
+	@State(Scope.Thread)
+	public static class Input {
+		@Param({"exampleClass", "branchHeavy"})
+		public String input;
+
+		byte[] bytes;
+		ClassNode clazz;
+		List<MethodNode> methods;
+		List<ControlFlowGraph> graphs;
+		DotFileCreator bulkCreator;
+
+		@Setup
+		public void setUp() throws IOException {
+			bytes = input.equals("exampleClass") ? exampleClass() : branchHeavyClass();
+			clazz = classNode( bytes );
+			methods = methods( clazz );
+			graphs = new ArrayList<>();
+			for( MethodNode method : methods ){
+				graphs.add( new ControlFlowGraphExtractor().createCFG(clazz.name, method) );
+			}
+			bulkCreator = new DotFileCreator( new NullWriter() );
+		}
+	}
+
+	/**
+	 * The instructions and the statistics of ExampleClass
+	 */
+	@State(Scope.Thread)
+	public static class ExampleClassInput {
+		List<AbstractInsnNode> instructions;
+		ControlFlowGraphExtractor extractor;
+		List<MethodStatistics> statistics;
+
+		@Setup
+		public void setUp() throws IOException {
+			instructions = new ArrayList<>();
+			for( MethodNode method : methods(classNode(exampleClass())) ){
+				for( int i = 0; i < method.instructions.size(); i++ ){
+					instructions.add( method.instructions.get(i) );
+				}
+			}
+			extractor = new ControlFlowGraphExtractor();
+			statistics = ControlFlowGraphExtractor.extractStatistics( new ClassReader(exampleClass()), "bench" );
+		}
+	}
+
+	/**
+	 * A jar, and the analyzer that runs over it
+	 */
+	@State(Scope.Thread)
+	public static class JarInput {
+		@Param({"lib/asm-5.0.4.jar"})
+		public String jar;
+
+		@Param({"1"})
+		public int threads;
+
+		ParallelJarAnalyzer analyzer;
+
+		@Setup
+		public void setUp(){
+			analyzer = new ParallelJarAnalyzer( threads );
+			analyzer.setVerbose( false );
+		}
+
+		@TearDown
+		public void tearDown(){
+			analyzer.close();
+		}
+	}
+
+	@Benchmark
+	public ControlFlowGraph extract( Input in ){
+		final ControlFlowGraphExtractor extractor = ControlFlowGraphExtractor.forCurrentThread();
+		ControlFlowGraph graph = null;
+		for( int m = 0; m < in.methods.size(); m++ ){
+			graph = extractor.createCFG( in.clazz.name, in.methods.get(m) );
+		}
+		return graph;
+	}
+
+	@Benchmark
+	public List<MethodStatistics> extractStreaming( Input in ){
+		return StreamingCfgExtractor.extractStatistics( new ClassReader(in.bytes), "bench" );
+	}
+
+	@Benchmark
+	public void dot( Input in ) throws IOException {
+		for( int m = 0; m < in.methods.size(); m++ ){
+			new DotFileCreator( in.graphs.get(m), in.methods.get(m).instructions, new NullWriter() ).generate();
+		}
+	}
+
+	// All the graphs through a single creator, like JarToCfg -dot
+	@Benchmark
+	public void dotBulk( Input in ) throws IOException {
+		for( int m = 0; m < in.methods.size(); m++ ){
+			in.bulkCreator.append( in.graphs.get(m), in.methods.get(m).instructions );
+		}
+	}
+
+	@Benchmark
+	public int isPEI( ExampleClassInput in ){
+		int count = 0;
+		for( int i = 0; i < in.instructions.size(); i++ ){
+			if( in.extractor.isPEI(in.instructions.get(i)) ){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public CsvFileCreator csv( ExampleClassInput in ) throws IOException {
+		final CsvFileCreator csv = new CsvFileCreator( new NullWriter() );
+		for( int m = 0; m < in.statistics.size(); m++ ){
+			csv.writeCsvStatistics( in.statistics.get(m) );
+		}
+		csv.close();
+		return csv;
+	}
+
+	@Benchmark
+	public void jarToCfg( JarInput in ) throws IOException {
+		try( CsvFileCreator csv = new CsvFileCreator(new NullWriter()) ){
+			in.analyzer.analyze( in.jar, csv );
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<MethodNode> methods( ClassNode clazz ){
+		return clazz.methods;
+	}
+
+	private static ClassNode classNode( byte[] bytes ){
+		final ClassNode clazz = new ClassNode();
+		new ClassReader( bytes ).accept( clazz, 0 );
+		return clazz;
+	}
+
+	static byte[] exampleClass() throws IOException {
+		try( InputStream is = CfgBenchmarks.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+			if( is == null ){
+				throw new IOException( "ExampleClass.class is not in the classpath" );
+			}
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int n;
+			while( (n = is.read(buffer)) > 0 ){
+				bytes.write( buffer, 0, n );
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+	static byte[] branchHeavyClass(){
+		return SyntheticClasses.branchHeavyClass( "BranchHeavy", BRANCH_HEAVY_SIZE );
+	}
+
+	/**
+	 * A writer that discards everything
+	 */
+	static final class NullWriter extends Writer {
+		@Override
+		public void write( char[] cbuf, int off, int len ){
+		}
+
+		@Override
+		public void write( String str, int off, int len ){
+		}
+
+		@Override
+		public void flush(){
+		}
+
+		@Override
+		public void close(){
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package ch.usi.inf.sp.cfg.bench;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Generates classes with large, branch-heavy methods, like the ones
+ * produced by parser generators and other code generators.
+ * The classes are only meant to be analyzed, never loaded.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class SyntheticClasses {
+
+	private SyntheticClasses(){
+	}
+
+	/**
+	 * Generates a class with three methods:
+	 * <ul>
+	 * <li>branches(I)I: a chain of conditional jumps</li>
+	 * <li>dispatch(I)I: a table switch and a lookup switch</li>
+	 * <li>guarded(II)I: nested try/catch/finally regions around divisions</li>
+	 * </ul>
+	 *
+	 * @param name The internal name of the class
+	 * @param size The number of branches, cases and regions of each method
+	 * @return The bytes of the class file
+	 */
+	public static byte[] branchHeavyClass( String name, int size ){
+		final ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+		cw.visit( Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null );
+		branches( cw, size );
+		dispatch( cw, size );
+		guarded( cw, size );
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void branches( ClassWriter cw, int size ){
+		final MethodVisitor mv = cw.visitMethod( Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "branches", "(I)I", null, null );
+		mv.visitCode();
+		mv.visitInsn( Opcodes.ICONST_0 );
+		mv.visitVarInsn( Opcodes.ISTORE, 1 );
+		final Label loop = new Label();
+		mv.visitLabel( loop );
+		for( int k = 0; k < size; k++ ){
+			final Label next = new Label();
+			mv.visitVarInsn( Opcodes.ILOAD, 0 );
+			mv.visitLdcInsn( k );
+			mv.visitJumpInsn( k % 2 == 0 ? Opcodes.IF_ICMPNE : Opcodes.IF_ICMPGE, next );
+			mv.visitIincInsn( 1, k );
+			if( k % 7 == 0 ){
+				mv.visitVarInsn( Opcodes.ILOAD, 1 );
+				mv.visitJumpInsn( Opcodes.IFLT, loop );
+			}
+			mv.visitLabel( next );
+		}
+		mv.visitVarInsn( Opcodes.ILOAD, 1 );
+		mv.visitInsn( Opcodes.IRETURN );
+		mv.visitMaxs( 0, 0 );
+		mv.visitEnd();
+	}
+
+	private static void dispatch( ClassWriter cw, int size ){
+		final MethodVisitor mv = cw.visitMethod( Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "dispatch", "(I)I", null, null );
+		mv.visitCode();
+		final Label[] cases = new Label[size];
+		final int[] keys = new int[size];
+		for( int k = 0; k < size; k++ ){
+			cases[k] = new Label();
+			keys[k] = k * 1000;
+		}
+		final Label dflt = new Label();
+		final Label lookup = new Label();
+		mv.visitVarInsn( Opcodes.ILOAD, 0 );
+		mv.visitTableSwitchInsn( 0, size - 1, lookup, cases );
+		for( int k = 0; k < size; k++ ){
+			mv.visitLabel( cases[k] );
+			mv.visitLdcInsn( k );
+			mv.visitInsn( Opcodes.IRETURN );
+		}
+		mv.visitLabel( lookup );
+		final Label[] lookupCases = new Label[size];
+		for( int k = 0; k < size; k++ ){
+			lookupCases[k] = new Label();
+		}
+		mv.visitVarInsn( Opcodes.ILOAD, 0 );
+		mv.visitLookupSwitchInsn( dflt, keys, lookupCases );
+		for( int k = 0; k < size; k++ ){
+			mv.visitLabel( lookupCases[k] );
+			mv.visitVarInsn( Opcodes.ILOAD, 0 );
+			mv.visitLdcInsn( k + 1 );
+			mv.visitInsn( Opcodes.IDIV );
+			mv.visitInsn( Opcodes.IRETURN );
+		}
+		mv.visitLabel( dflt );
+		mv.visitInsn( Opcodes.ICONST_M1 );
+		mv.visitInsn( Opcodes.IRETURN );
+		mv.visitMaxs( 0, 0 );
+		mv.visitEnd();
+	}
+
+	private static void guarded( ClassWriter cw, int size ){
+		final MethodVisitor mv = cw.visitMethod( Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "guarded", "(II)I", null, null );
+		mv.visitCode();
+		// Every region k covers the divisions k..size-1, so regions nest
+		final Label[] starts = new Label[size];
+		final Label end = new Label();
+		final Label[] handlers = new Label[size];
+		for( int k = 0; k < size; k++ ){
+			starts[k] = new Label();
+			handlers[k] = new Label();
+			mv.visitTryCatchBlock( starts[k], end, handlers[k], k % 3 == 0 ? null : "java/lang/ArithmeticException" );
+		}
+		for( int k = 0; k < size; k++ ){
+			mv.visitLabel( starts[k] );
+			mv.visitVarInsn( Opcodes.ILOAD, 0 );
+			mv.visitVarInsn( Opcodes.ILOAD, 1 );
+			mv.visitInsn( Opcodes.IDIV );
+			mv.visitVarInsn( Opcodes.ISTORE, 0 );
+		}
+		mv.visitLabel( end );
+		mv.visitVarInsn( Opcodes.ILOAD, 0 );
+		mv.visitInsn( Opcodes.IRETURN );
+		for( int k = 0; k < size; k++ ){
+			mv.visitLabel( handlers[k] );
+			mv.visitInsn( Opcodes.POP );
+			mv.visitLdcInsn( k );
+			mv.visitInsn( Opcodes.IRETURN );
+		}
+		mv.visitMaxs( 0, 0 );
+		mv.visitEnd();
+	}
+}
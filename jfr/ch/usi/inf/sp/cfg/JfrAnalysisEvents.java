@@ -0,0 +1,105 @@
+package ch.usi.inf.sp.cfg;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events of AnalysisEvents. This source folder
+ * needs a JDK with jdk.jfr (8u262 or 11 and later) to compile, and the
+ * rest of the project never refers to it: AnalysisEvents loads this
+ * class by name, only when the runtime has JFR.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class JfrAnalysisEvents implements AnalysisEvents.Factory {
+
+	@Override
+	public AnalysisEvents.ClassAnalysis beginClass(){
+		final ClassAnalysis event = new ClassAnalysis();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public AnalysisEvents.MethodAnalysis beginMethod(){
+		final MethodAnalysis event = new MethodAnalysis();
+		event.begin();
+		return event;
+	}
+
+	@Name("ch.usi.inf.sp.cfg.ClassAnalysis")
+	@Label("Class Analysis")
+	@Description("Extraction of the Control Flow Graphs and statistics of all the methods of a class")
+	@Category({"CFG Extraction"})
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static final class ClassAnalysis extends Event implements AnalysisEvents.ClassAnalysis {
+		@Label("Class")
+		String className;
+
+		@Label("Methods")
+		int methods;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Basic Blocks")
+		int blocks;
+
+		@Label("Edges")
+		int edges;
+
+		@Override
+		public void commit( String className, int methods, int instructions, int blocks, int edges ){
+			this.className = className;
+			this.methods = methods;
+			this.instructions = instructions;
+			this.blocks = blocks;
+			this.edges = edges;
+			commit();
+		}
+	}
+
+	@Name("ch.usi.inf.sp.cfg.MethodAnalysis")
+	@Label("Method Analysis")
+	@Description("Extraction of the Control Flow Graph of a method")
+	@Category({"CFG Extraction"})
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class MethodAnalysis extends Event implements AnalysisEvents.MethodAnalysis {
+		@Label("Class")
+		String className;
+
+		@Label("Method")
+		String methodName;
+
+		@Label("Descriptor")
+		String methodDescriptor;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Basic Blocks")
+		int blocks;
+
+		@Label("Edges")
+		int edges;
+
+		@Override
+		public void commit( String className, String methodName, String methodDescriptor,
+				int instructions, int blocks, int edges ){
+			this.className = className;
+			this.methodName = methodName;
+			this.methodDescriptor = methodDescriptor;
+			this.instructions = instructions;
+			this.blocks = blocks;
+			this.edges = edges;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of the statistics of analyzed classes.
+ * <p>
+ * Every class is stored in its own file, named after a SHA-1 hash of the
+ * analyzer version, the parsing options and the bytes of the class, so a
+ * class that did not change is found again without parsing it. When the
+ * total size of the files exceeds the limit, the least recently used ones
+ * are deleted; the last modification time of a file is its last use, so
+ * the order survives between runs. The temporary files of writes that
+ * never finished (the process was killed) are deleted when the cache is
+ * opened and when it evicts, once they are older than any write can take.
+ * <p>
+ * The benchmark (jar) name is not part of the cached statistics: the same
+ * class found in another jar is a hit too.
+ * The cache can be shared by several threads.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class AnalysisCache {
+
+	/**
+	 * Version of the analysis; must be increased whenever the extractors
+	 * change the statistics they compute, to invalidate old entries.
+	 */
+	public static final int ANALYZER_VERSION = 4;
+
+	private static final int MAGIC = 0x43464743; // "CFGC"
+	private static final String SUFFIX = ".rows";
+	private static final String TMP_SUFFIX = ".tmp";
+	// Younger temporary files may belong to a write of another process sharing the directory
+	private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue(){
+			try{
+				return MessageDigest.getInstance( "SHA-1" );
+			}catch( NoSuchAlgorithmException e ){
+				throw new IllegalStateException( e );
+			}
+		}
+	};
+
+	private final File directory;
+	private final long maxBytes;
+	// Key -> file size, least recently used first
+	private final LinkedHashMap<String, Long> entries;
+	private long totalBytes;
+	private long lastTmpScan;
+	private long hits;
+	private long misses;
+
+	public AnalysisCache( File directory, long maxBytes ) throws IOException {
+		if( !directory.isDirectory() && !directory.mkdirs() ){
+			throw new IOException( "Cannot create cache directory " + directory );
+		}
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+		final File[] files = directory.listFiles();
+		Arrays.sort( files, new Comparator<File>() {
+			@Override
+			public int compare( File f1, File f2 ){
+				return Long.compare( f1.lastModified(), f2.lastModified() );
+			}
+		});
+		for( File file : files ){
+			final String name = file.getName();
+			if( name.endsWith(SUFFIX) ){
+				entries.put( name.substring(0, name.length() - SUFFIX.length()), file.length() );
+				totalBytes += file.length();
+			}
+		}
+		deleteStaleTemporaryFiles( files );
+		evict();
+	}
+
+	/**
+	 * Computes the key of a class
+	 *
+	 * @param bytes The bytes of the class file, from off to off + len
+	 * @param parsingOptions The options the class is parsed with,
+	 * analysis options like ControlFlowGraphExtractor.PRECISE_PEI included
+	 */
+	public static String key( byte[] bytes, int off, int len, int parsingOptions ){
+		final MessageDigest digest = digests.get();
+		digest.reset();
+		digest.update( (byte)(ANALYZER_VERSION >>> 8) );
+		digest.update( (byte)ANALYZER_VERSION );
+		digest.update( (byte)(parsingOptions >>> 8) );
+		digest.update( (byte)parsingOptions );
+		if( (parsingOptions >>> 16) != 0 ){
+			// Analysis options, only when set: the keys of the default analysis do not change
+			digest.update( (byte)(parsingOptions >>> 16) );
+		}
+		digest.update( bytes, off, len );
+		final byte[] hash = digest.digest();
+		final char[] hex = new char[hash.length * 2];
+		for( int i = 0; i < hash.length; i++ ){
+			hex[2*i] = Character.forDigit( (hash[i] >>> 4) & 0xF, 16 );
+			hex[2*i + 1] = Character.forDigit( hash[i] & 0xF, 16 );
+		}
+		return new String( hex );
+	}
+
+	/**
+	 * @param key The key of the class
+	 * @param benchmark The benchmark the statistics are returned for
+	 * @return The statistics of the methods of the class, null if they are not cached
+	 */
+	public List<MethodStatistics> get( String key, String benchmark ){
+		synchronized( this ){
+			if( entries.get(key) == null ){
+				misses++;
+				return null;
+			}
+		}
+		final File file = fileOf( key );
+		final List<MethodStatistics> result;
+		try( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) ){
+			if( in.readInt() != MAGIC || in.readInt() != ANALYZER_VERSION ){
+				throw new IOException( "Invalid cache entry " + file );
+			}
+			final int count = in.readInt();
+			result = new ArrayList<>( count );
+			for( int m = 0; m < count; m++ ){
+				final String packageName = in.readUTF();
+				final String className = in.readUTF();
+				final String methodName = in.readUTF();
+				final int access = in.readInt();
+				final int instructions = in.readInt();
+				final int blocks = in.readInt();
+				final int dominatorTreeHeight = in.readInt();
+				final int loops = in.readInt();
+				final int maxLoopDepth = in.readInt();
+				result.add( new MethodStatistics(benchmark, packageName, className, methodName,
+						access, instructions, blocks, dominatorTreeHeight, loops, maxLoopDepth) );
+			}
+		}catch( IOException e ){
+			// Evicted by another thread, or damaged: analyze the class again
+			synchronized( this ){
+				final Long size = entries.remove( key );
+				if( size != null ){
+					totalBytes -= size;
+					file.delete();
+				}
+				misses++;
+			}
+			return null;
+		}
+		file.setLastModified( System.currentTimeMillis() );
+		synchronized( this ){
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Stores the statistics of the methods of a class
+	 */
+	public void put( String key, List<MethodStatistics> statistics ) throws IOException {
+		final File tmp = File.createTempFile( key, TMP_SUFFIX, directory );
+		try{
+			try( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))) ){
+				out.writeInt( MAGIC );
+				out.writeInt( ANALYZER_VERSION );
+				out.writeInt( statistics.size() );
+				for( MethodStatistics stats : statistics ){
+					out.writeUTF( stats.getPackageName() );
+					out.writeUTF( stats.getClassName() );
+					out.writeUTF( stats.getMethodName() );
+					out.writeInt( stats.getAccess() );
+					out.writeInt( stats.getInstructionsCount() );
+					out.writeInt( stats.getBasicBlocksCount() );
+					out.writeInt( stats.getDominatorTreeHeight() );
+					out.writeInt( stats.getLoopCount() );
+					out.writeInt( stats.getMaxLoopDepth() );
+				}
+			}
+			Files.move( tmp.toPath(), fileOf(key).toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}finally{
+			tmp.delete();
+		}
+		synchronized( this ){
+			final Long previous = entries.put( key, fileOf(key).length() );
+			totalBytes += entries.get(key) - (previous == null ? 0 : previous);
+			evict();
+		}
+	}
+
+	// Deletes the least recently used files until the cache fits its limit
+	private synchronized void evict(){
+		if( totalBytes <= maxBytes ){
+			return;
+		}
+		final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while( totalBytes > maxBytes && it.hasNext() ){
+			final Map.Entry<String, Long> entry = it.next();
+			fileOf( entry.getKey() ).delete();
+			totalBytes -= entry.getValue();
+			it.remove();
+		}
+		// They are not counted in the size, but take space as well; a full
+		// cache evicts at every put, so the directory is listed at most once in a while
+		if( System.currentTimeMillis() - lastTmpScan > STALE_TMP_MILLIS ){
+			deleteStaleTemporaryFiles( directory.listFiles() );
+		}
+	}
+
+	// Deletes the temporary files left by writes that were interrupted
+	private void deleteStaleTemporaryFiles( File[] files ){
+		lastTmpScan = System.currentTimeMillis();
+		if( files == null ){
+			return;
+		}
+		final long stale = lastTmpScan - STALE_TMP_MILLIS;
+		for( File file : files ){
+			if( file.getName().endsWith(TMP_SUFFIX) && file.lastModified() < stale ){
+				file.delete();
+			}
+		}
+	}
+
+	private File fileOf( String key ){
+		return new File( directory, key + SUFFIX );
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getSize(){
+		return totalBytes;
+	}
+}
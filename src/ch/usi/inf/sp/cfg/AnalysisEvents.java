@@ -0,0 +1,98 @@
+package ch.usi.inf.sp.cfg;
+
+/**
+ * Java Flight Recorder events for the analysis of classes and methods,
+ * so that the slow ones can be found in a recording next to GC pauses
+ * and CPU samples.
+ * <p>
+ * The events are recorded only when they take longer than their
+ * threshold (10 ms for a class, 1 ms for a method); the threshold can
+ * be changed in the recording settings, e.g.
+ * -XX:StartFlightRecording:settings=my.jfc, or with
+ * "ch.usi.inf.sp.cfg.MethodAnalysis#threshold=0 ms" in a .jfc file.
+ * <p>
+ * JFR is available since Java 8u262 and Java 11, and jdk.jfr is not part
+ * of the Java 8 platform the project is built for. So this class only
+ * declares the hooks the extractors call: the events themselves are in
+ * JfrAnalysisEvents, in the jfr source folder, which is compiled with a
+ * JDK that has jdk.jfr, and loaded reflectively only when
+ * {@link #ENABLED} is true. Otherwise no event is ever created.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class AnalysisEvents {
+
+	static final String FACTORY_CLASS = "ch.usi.inf.sp.cfg.JfrAnalysisEvents";
+
+	/**
+	 * An event that has begun
+	 */
+	public interface Event {
+		void end();
+
+		/**
+		 * @return Whether the event is recorded, so it is worth filling it
+		 */
+		boolean shouldCommit();
+	}
+
+	/**
+	 * The analysis of all the methods of a class
+	 */
+	public interface ClassAnalysis extends Event {
+		void commit( String className, int methods, int instructions, int blocks, int edges );
+	}
+
+	/**
+	 * The extraction of the Control Flow Graph of a method
+	 */
+	public interface MethodAnalysis extends Event {
+		void commit( String className, String methodName, String methodDescriptor,
+				int instructions, int blocks, int edges );
+	}
+
+	/**
+	 * Creates the events, and begins them
+	 */
+	public interface Factory {
+		ClassAnalysis beginClass();
+
+		MethodAnalysis beginMethod();
+	}
+
+	private static final Factory FACTORY = loadFactory();
+
+	/** Whether the runtime supports JFR events, and they are on the classpath */
+	public static final boolean ENABLED = FACTORY != null;
+
+	private AnalysisEvents(){
+	}
+
+	private static Factory loadFactory(){
+		final ClassLoader loader = AnalysisEvents.class.getClassLoader();
+		try{
+			Class.forName( "jdk.jfr.Event", false, loader );
+		}catch( ClassNotFoundException | LinkageError e ){
+			return null;
+		}
+		try{
+			return (Factory)Class.forName( FACTORY_CLASS, true, loader ).newInstance();
+		}catch( ReflectiveOperationException | LinkageError | ClassCastException e ){
+			return null;
+		}
+	}
+
+	/**
+	 * @return The event of the analysis of a class, begun; null if not ENABLED
+	 */
+	public static ClassAnalysis beginClass(){
+		return FACTORY == null ? null : FACTORY.beginClass();
+	}
+
+	/**
+	 * @return The event of the extraction of a graph, begun; null if not ENABLED
+	 */
+	public static MethodAnalysis beginMethod(){
+		return FACTORY == null ? null : FACTORY.beginMethod();
+	}
+}
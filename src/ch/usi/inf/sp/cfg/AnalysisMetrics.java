@@ -0,0 +1,338 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of an analysis run: the time spent in every phase
+ * of the pipeline, the number of classes, methods, instructions, blocks
+ * and edges, and the largest methods seen.
+ * <p>
+ * The counters are LongAdders, so that worker threads can update them
+ * without contending; the time of a phase is the sum of the time spent
+ * in it by all the threads, so phases run in parallel can add up to more
+ * than the elapsed time. At the end of the run the metrics are written as
+ * a JSON summary; while the run goes on, a progress line with the
+ * throughput and the estimated time to completion can be printed
+ * periodically.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class AnalysisMetrics {
+
+	/**
+	 * The phases of the analysis of a class
+	 */
+	public enum Phase {
+		/** Inflating the class out of the jar */
+		READ,
+		/** ClassReader.accept, building the ASM tree or visiting the class */
+		PARSE,
+		/** Finding the leaders of the basic blocks */
+		LEADERS,
+		/** Creating the basic blocks and their edges */
+		BLOCKS,
+		/** Dominator tree and loops */
+		ANALYSIS,
+		/** Writing the csv, store and dot files, dot rendering included */
+		OUTPUT
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	/** Default number of largest methods kept */
+	public static final int LARGEST_METHODS = 10;
+
+	private final long startNanos = System.nanoTime();
+	private final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+	private final LongAdder classes = new LongAdder();
+	private final LongAdder cachedClasses = new LongAdder();
+	private final LongAdder duplicateClasses = new LongAdder();
+	private final LongAdder methods = new LongAdder();
+	private final LongAdder instructions = new LongAdder();
+	private final LongAdder blocks = new LongAdder();
+	private final LongAdder edges = new LongAdder();
+	private final LongAdder exceptionEdges = new LongAdder();
+	private final LongAdder expectedClasses = new LongAdder();
+
+	// The largest methods by number of instructions, smallest first
+	private final int largestCount;
+	private final PriorityQueue<MethodStatistics> largest;
+	// The smallest size in a full queue, to skip the lock for most methods
+	private volatile int largestThreshold = -1;
+
+	private Timer progressTimer;
+
+	public AnalysisMetrics(){
+		this( LARGEST_METHODS );
+	}
+
+	/**
+	 * @param largestCount The number of largest methods kept
+	 */
+	public AnalysisMetrics( int largestCount ){
+		for( int p = 0; p < phaseNanos.length; p++ ){
+			phaseNanos[p] = new LongAdder();
+		}
+		this.largestCount = largestCount;
+		largest = new PriorityQueue<>( largestCount + 1, BY_SIZE );
+	}
+
+	private static final Comparator<MethodStatistics> BY_SIZE = new Comparator<MethodStatistics>() {
+		@Override
+		public int compare( MethodStatistics m1, MethodStatistics m2 ){
+			return Integer.compare( m1.getInstructionsCount(), m2.getInstructionsCount() );
+		}
+	};
+
+	/**
+	 * Adds time to a phase.
+	 * @param startNanos The System.nanoTime() when the phase started
+	 * @return The current System.nanoTime(), the start of the next phase
+	 */
+	public long addTime( Phase phase, long startNanos ){
+		final long now = System.nanoTime();
+		phaseNanos[phase.ordinal()].add( now - startNanos );
+		return now;
+	}
+
+	/**
+	 * Counts the classes the run is expected to analyze, for the estimated time to completion
+	 */
+	public void addExpectedClasses( int count ){
+		expectedClasses.add( count );
+	}
+
+	/**
+	 * Counts an analyzed class and its methods
+	 * @param cached Whether the statistics were found in the cache
+	 */
+	public void addClass( List<MethodStatistics> statistics, boolean cached ){
+		classes.increment();
+		if( cached ){
+			cachedClasses.increment();
+		}
+		methods.add( statistics.size() );
+		for( int m = 0; m < statistics.size(); m++ ){
+			final MethodStatistics method = statistics.get(m);
+			instructions.add( method.getInstructionsCount() );
+			blocks.add( method.getBasicBlocksCount() );
+			if( method.getInstructionsCount() > largestThreshold ){
+				addLargest( method );
+			}
+		}
+	}
+
+	/**
+	 * Counts a class identical to one already analyzed; its methods
+	 * are not counted again among the largest ones
+	 */
+	public void addDuplicateClass( List<MethodStatistics> statistics ){
+		classes.increment();
+		duplicateClasses.increment();
+		methods.add( statistics.size() );
+		for( int m = 0; m < statistics.size(); m++ ){
+			instructions.add( statistics.get(m).getInstructionsCount() );
+			blocks.add( statistics.get(m).getBasicBlocksCount() );
+		}
+	}
+
+	private synchronized void addLargest( MethodStatistics method ){
+		largest.add( method );
+		if( largest.size() > largestCount ){
+			largest.poll();
+		}
+		if( largest.size() == largestCount ){
+			largestThreshold = largest.peek().getInstructionsCount();
+		}
+	}
+
+	/**
+	 * Counts the edges of a method; edges are not known for cached classes.
+	 * @param count All the edges, the one from the dummy "start" block included
+	 * @param exceptionCount The exception edges among them
+	 */
+	public void addEdges( int count, int exceptionCount ){
+		edges.add( count );
+		exceptionEdges.add( exceptionCount );
+	}
+
+	public long getPhaseNanos( Phase phase ){
+		return phaseNanos[phase.ordinal()].sum();
+	}
+
+	public long getElapsedNanos(){
+		return System.nanoTime() - startNanos;
+	}
+
+	public long getClassCount(){
+		return classes.sum();
+	}
+
+	public long getCachedClassCount(){
+		return cachedClasses.sum();
+	}
+
+	public long getDuplicateClassCount(){
+		return duplicateClasses.sum();
+	}
+
+	public long getMethodCount(){
+		return methods.sum();
+	}
+
+	public long getInstructionCount(){
+		return instructions.sum();
+	}
+
+	public long getBasicBlockCount(){
+		return blocks.sum();
+	}
+
+	public long getEdgeCount(){
+		return edges.sum();
+	}
+
+	public long getExceptionEdgeCount(){
+		return exceptionEdges.sum();
+	}
+
+	/**
+	 * @return The largest methods seen so far, largest first
+	 */
+	public synchronized List<MethodStatistics> getLargestMethods(){
+		final List<MethodStatistics> result = new ArrayList<>( largest );
+		Collections.sort( result, Collections.reverseOrder(BY_SIZE) );
+		return result;
+	}
+
+	/**
+	 * @return A line with the classes analyzed so far, the throughput
+	 * and the estimated time to completion
+	 */
+	public String getProgressLine(){
+		final double seconds = getElapsedNanos() / 1e9;
+		final long done = classes.sum();
+		final long expected = expectedClasses.sum();
+		final double classesPerSecond = done / seconds;
+		final StringBuilder line = new StringBuilder( 128 );
+		line.append( done );
+		if( expected > 0 ){
+			line.append( '/' ).append( expected ).append( " classes (" )
+				.append( done * 100 / expected ).append( "%)" );
+		}else{
+			line.append( " classes" );
+		}
+		line.append( String.format(Locale.ROOT, ", %.0f classes/s, %.0f instructions/s",
+				classesPerSecond, instructions.sum() / seconds) );
+		if( expected > done && done > 0 ){
+			line.append( ", ETA " );
+			appendDuration( line, (long)((expected - done) / classesPerSecond) );
+		}
+		return line.toString();
+	}
+
+	private static void appendDuration( StringBuilder line, long seconds ){
+		if( seconds >= 3600 ){
+			line.append( seconds / 3600 ).append( ':' );
+			seconds %= 3600;
+			if( seconds < 600 ){
+				line.append( '0' );
+			}
+		}
+		line.append( seconds / 60 ).append( ':' );
+		if( seconds % 60 < 10 ){
+			line.append( '0' );
+		}
+		line.append( seconds % 60 );
+	}
+
+	/**
+	 * Prints the progress line every period, on a daemon thread,
+	 * until stopProgress() is called.
+	 */
+	public synchronized void startProgress( final PrintStream out, long periodMillis ){
+		stopProgress();
+		progressTimer = new Timer( "progress", true );
+		progressTimer.scheduleAtFixedRate( new TimerTask() {
+			@Override
+			public void run(){
+				out.println( getProgressLine() );
+			}
+		}, periodMillis, periodMillis );
+	}
+
+	public synchronized void stopProgress(){
+		if( progressTimer != null ){
+			progressTimer.cancel();
+			progressTimer = null;
+		}
+	}
+
+	/**
+	 * Writes all the metrics as a JSON object; times are in milliseconds
+	 */
+	public void writeSummary( Writer out ) throws IOException {
+		final StringBuilder json = new StringBuilder( 1024 );
+		json.append( "{\n" );
+		json.append( "  \"elapsedMillis\": " ).append( getElapsedNanos() / 1000000 ).append( ",\n" );
+		json.append( "  \"phaseMillis\": {" );
+		for( int p = 0; p < PHASES.length; p++ ){
+			json.append( p == 0 ? " \"" : ", \"" ).append( PHASES[p].name().toLowerCase(Locale.ROOT) )
+				.append( "\": " ).append( phaseNanos[p].sum() / 1000000 );
+		}
+		json.append( " },\n" );
+		json.append( "  \"classes\": " ).append( classes.sum() ).append( ",\n" );
+		json.append( "  \"cachedClasses\": " ).append( cachedClasses.sum() ).append( ",\n" );
+		json.append( "  \"duplicateClasses\": " ).append( duplicateClasses.sum() ).append( ",\n" );
+		json.append( "  \"methods\": " ).append( methods.sum() ).append( ",\n" );
+		json.append( "  \"instructions\": " ).append( instructions.sum() ).append( ",\n" );
+		json.append( "  \"basicBlocks\": " ).append( blocks.sum() ).append( ",\n" );
+		json.append( "  \"edges\": " ).append( edges.sum() ).append( ",\n" );
+		json.append( "  \"exceptionEdges\": " ).append( exceptionEdges.sum() ).append( ",\n" );
+		json.append( "  \"largestMethods\": [" );
+		final List<MethodStatistics> largestMethods = getLargestMethods();
+		for( int m = 0; m < largestMethods.size(); m++ ){
+			final MethodStatistics method = largestMethods.get(m);
+			json.append( m == 0 ? "\n" : ",\n" );
+			json.append( "    { \"benchmark\": " );
+			appendString( json, method.getBenchmark() );
+			json.append( ", \"package\": " );
+			appendString( json, method.getPackageName() );
+			json.append( ", \"class\": " );
+			appendString( json, method.getClassName() );
+			json.append( ", \"method\": " );
+			appendString( json, method.getMethodName() );
+			json.append( ", \"instructions\": " ).append( method.getInstructionsCount() )
+				.append( ", \"basicBlocks\": " ).append( method.getBasicBlocksCount() ).append( " }" );
+		}
+		json.append( largestMethods.isEmpty() ? "]\n" : "\n  ]\n" );
+		json.append( "}\n" );
+		out.append( json );
+	}
+
+	static void appendString( StringBuilder json, String s ){
+		json.append( '"' );
+		for( int i = 0; i < s.length(); i++ ){
+			final char c = s.charAt(i);
+			if( c == '"' || c == '\\' ){
+				json.append( '\\' ).append( c );
+			}else if( c < 0x20 ){
+				json.append( String.format("\\u%04x", (int)c) );
+			}else{
+				json.append( c );
+			}
+		}
+		json.append( '"' );
+	}
+}
@@ -1,15 +1,21 @@
 package ch.usi.inf.sp.cfg;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.tree.AbstractInsnNode;
 
 /**
  * A Node of the Control Flow Graph representation
+ * <p>
+ * While the graph is being built the outgoing edges are kept in the
+ * block itself; once the block is added to a {@link ControlFlowGraph}
+ * they are moved to the compact edge arrays of the graph and the
+ * edge methods of the block become a view over them.
  * 
  * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
  */
@@ -17,50 +23,185 @@ public class BasicBlock {
 
 	private int bbAdrress;
 	private List<AbstractInsnNode> instructions;
-	private Map<BasicBlock,String> edges;
+	// Number of instructions of a block loaded without its instructions
+	private int instructionLength;
+	
+	// Position in the owning graph, -1 if not owned yet
+	private int id = -1;
+	private ControlFlowGraph cfg;
+	
+	// Edges added before the block is owned by a graph
+	private BasicBlock[] pendingTargets;
+	private byte[] pendingKinds;
+	private int[] pendingKeys;
+	private int pendingCount;
 	
 	public BasicBlock( int bbAdrress ){
 		this.bbAdrress = bbAdrress;
 		instructions = new ArrayList<>();
-		edges = new HashMap<>();
+	}
+	
+	/**
+	 * Creates a block whose instructions are not available, only
+	 * their number; e.g. a block loaded from a CfgStoreReader.
+	 * The instructions of the block are the ones from bbAdrress
+	 * to bbAdrress + instructionLength in the method.
+	 */
+	public BasicBlock( int bbAdrress, int instructionLength ){
+		this.bbAdrress = bbAdrress;
+		this.instructionLength = instructionLength;
 	}
 	
 	public BasicBlock( BasicBlock bb2 ){
 		this.bbAdrress = bb2.bbAdrress;
 		instructions = bb2.instructions;
-		edges = new HashMap<>();
 	}
 	
 	public void addInstruction( AbstractInsnNode instr ){
+		if( instructions == null ){
+			throw new IllegalStateException( "Block B" + bbAdrress + " has no instructions" );
+		}
 		instructions.add( instr );
 	}
 	
 	public AbstractInsnNode getInstruction( int idx ){
+		if( instructions == null ){
+			throw new IllegalStateException( "Block B" + bbAdrress + " has no instructions" );
+		}
 		return instructions.get(idx);
 	}
 	
 	public int getInstructionLenght(){
-		return instructions.size();
+		return instructions == null ? instructionLength : instructions.size();
 	}
 	
 	public int getBBAddress(){
 		return bbAdrress;
 	}
 	
+	/**
+	 * @return The position of this block in its graph, -1 if it
+	 * has not been added to a graph yet
+	 */
+	public int getId(){
+		return id;
+	}
+	
 	public void addEdge( BasicBlock bb, String edgeLabel ){
-		edges.put(bb, edgeLabel);
+		if( edgeLabel.startsWith("Case ") ){
+			addEdge( bb, ControlFlowGraph.EDGE_CASE, Integer.parseInt(edgeLabel.substring(5)) );
+		}else{
+			addEdge( bb, ControlFlowGraph.edgeKind(edgeLabel), 0 );
+		}
+	}
+	
+	/**
+	 * Adds an edge to another block. Adding a second edge to the same
+	 * block replaces the first one.
+	 * 
+	 * @param bb The target block
+	 * @param kind One of the ControlFlowGraph.EDGE_* constants
+	 * @param caseKey The key of a switch case, used only by EDGE_CASE
+	 */
+	public void addEdge( BasicBlock bb, byte kind, int caseKey ){
+		if( cfg != null ){
+			throw new IllegalStateException( "Block B" + bbAdrress + " is already part of a graph" );
+		}
+		if( pendingTargets == null ){
+			pendingTargets = new BasicBlock[2];
+			pendingKinds = new byte[2];
+			pendingKeys = new int[2];
+		}else if( pendingCount == pendingTargets.length ){
+			pendingTargets = Arrays.copyOf( pendingTargets, pendingCount * 2 );
+			pendingKinds = Arrays.copyOf( pendingKinds, pendingCount * 2 );
+			pendingKeys = Arrays.copyOf( pendingKeys, pendingCount * 2 );
+		}
+		pendingTargets[pendingCount] = bb;
+		pendingKinds[pendingCount] = kind;
+		pendingKeys[pendingCount] = caseKey;
+		pendingCount++;
 	}
 	
 	public String getEdge( BasicBlock bb ){
-		return edges.get(bb);
+		if( cfg != null ){
+			final int edge = bb.cfg == cfg ? cfg.findEdge( id, bb.id ) : -1;
+			return edge < 0 ? null : cfg.getEdgeLabel( edge );
+		}
+		// The last edge added to a block wins
+		for( int e = pendingCount - 1; e >= 0; e-- ){
+			if( pendingTargets[e] == bb ){
+				return ControlFlowGraph.edgeLabel( pendingKinds[e], pendingKeys[e] );
+			}
+		}
+		return null;
 	}
 	
 	public int getEdgesLenght(){
-		return edges.size();
+		if( cfg != null ){
+			return cfg.getEdgeEnd( id ) - cfg.getEdgeStart( id );
+		}
+		return pendingTargetSet().size();
 	}
 	
 	public Iterator<BasicBlock> getEdges(){
-		return edges.keySet().iterator();
+		if( cfg == null ){
+			return pendingTargetSet().iterator();
+		}
+		final int start = cfg.getEdgeStart( id );
+		final int end = cfg.getEdgeEnd( id );
+		return new Iterator<BasicBlock>() {
+			private int edge = start;
+			
+			@Override
+			public boolean hasNext(){
+				return edge < end;
+			}
+			
+			@Override
+			public BasicBlock next(){
+				return cfg.getBasicBlock( cfg.getEdgeTarget(edge++) );
+			}
+		};
+	}
+	
+	private Set<BasicBlock> pendingTargetSet(){
+		final Set<BasicBlock> targets = new LinkedHashSet<>();
+		for( int e = 0; e < pendingCount; e++ ){
+			targets.add( pendingTargets[e] );
+		}
+		return targets;
+	}
+	
+	// Called by ControlFlowGraph when it takes ownership of the block
+	void attach( ControlFlowGraph cfg, int id ){
+		if( this.cfg != null ){
+			throw new IllegalStateException( "Block B" + bbAdrress + " is already part of a graph" );
+		}
+		this.cfg = cfg;
+		this.id = id;
+	}
+	
+	int getPendingCount(){
+		return pendingCount;
+	}
+	
+	BasicBlock getPendingTarget( int e ){
+		return pendingTargets[e];
+	}
+	
+	byte getPendingKind( int e ){
+		return pendingKinds[e];
+	}
+	
+	int getPendingKey( int e ){
+		return pendingKeys[e];
+	}
+	
+	void releasePendingEdges(){
+		pendingTargets = null;
+		pendingKinds = null;
+		pendingKeys = null;
+		pendingCount = 0;
 	}
 	
 }
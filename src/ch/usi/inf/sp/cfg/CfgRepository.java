@@ -0,0 +1,525 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps the Control Flow Graphs and the statistics of all the methods
+ * of a corpus in memory, so that they can be queried without analyzing
+ * the jars again, e.g. for the methods with more than 500 blocks and
+ * more than 10 exception edges.
+ * <p>
+ * Methods are numbered from 0, in the order they are added. Their
+ * statistics are kept column by column, in int arrays, with the names as
+ * ids of the shared {@link SymbolTable}; their graphs are kept encoded by
+ * CfgStoreWriter.encode, all in a single byte array, and decoded only
+ * when loaded. The columns are those of StatsStoreWriter, plus the
+ * number of exception edges and the descriptor of the method.
+ * <p>
+ * The instructions, blocks, exception edges and package columns are
+ * indexed, by the methods sorted on their value, and so are the access
+ * flags, by a set of the methods with each flag. A query scans only the
+ * methods in the narrowest of its indexed ranges (or with all its
+ * required flags), checking the other conditions on the columns. The
+ * indexes are built by the first query after methods are added.
+ * <p>
+ * A repository can be saved to a snapshot and loaded back; the snapshot
+ * holds the columns, the graphs and the names used, all big endian.
+ * <pre>
+ * header:  int MAGIC, int VERSION, int methods
+ * names:   int strings, strings x string
+ * columns: COLUMNS x (methods x int)
+ * graphs:  (methods + 1) x int record offset, records
+ * </pre>
+ * Strings are an int length followed by the UTF-8 bytes, and the name
+ * columns hold their positions; a null descriptor is -1. The methods of
+ * a repository can be added and queried by several threads.
+ * <p>
+ * Usage: CfgRepository snapshot [-range column MIN:MAX]... [-package NAME]
+ *                      [-access FLAGS] [-noaccess FLAGS] [-limit N]
+ * <br>
+ * Prints the methods of a snapshot that match all the conditions. A
+ * column is named as in the csv header, or exceptionedges; either bound
+ * of a range can be omitted. Flags are an int, e.g. 0x0020 for the
+ * synchronized methods.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class CfgRepository {
+
+	static final int MAGIC = 0x43464752; // "CFGR"
+	static final int VERSION = 1;
+
+	/** The number of exception edges, after the columns of StatsStoreWriter */
+	public static final int EXCEPTION_EDGES = StatsStoreWriter.COLUMNS;
+	/** The descriptor of the method */
+	public static final int METHOD_DESCRIPTOR = StatsStoreWriter.COLUMNS + 1;
+	public static final int COLUMNS = StatsStoreWriter.COLUMNS + 2;
+
+	private static final int[] INDEXED_COLUMNS = { StatsStoreWriter.INSTRUCTIONS, StatsStoreWriter.BLOCKS,
+		EXCEPTION_EDGES, StatsStoreWriter.PACKAGE };
+	private static final int ACCESS_FLAGS = 16;
+
+	private int[][] columns = new int[COLUMNS][1024];
+	private int methods;
+	private byte[] records = new byte[1 << 16];
+	private int[] recordOffsets = new int[1025];
+
+	// Built by the first query after methods are added, null until then
+	private int[][] sortedMethods; // For every indexed column, the methods sorted by value
+	private BitSet[] accessIndex;  // For every access flag, the methods with it
+
+	/**
+	 * Adds a method
+	 *
+	 * @param graph The graph of the method
+	 * @param statistics The statistics of the method
+	 */
+	public void add( ControlFlowGraph graph, MethodStatistics statistics ){
+		add( statistics, graph.getMethodDescriptorId(), graph.getExceptionEdgeCount(), CfgStoreWriter.encode(graph) );
+	}
+
+	/**
+	 * Adds a method whose graph has already been encoded with CfgStoreWriter.encode,
+	 * e.g. by the thread that created it
+	 */
+	synchronized void add( MethodStatistics statistics, int methodDescriptorId, int exceptionEdges, byte[] record ){
+		if( methods == columns[0].length ){
+			final int capacity = Math.max( 16, methods * 2 );
+			for( int c = 0; c < COLUMNS; c++ ){
+				columns[c] = Arrays.copyOf( columns[c], capacity );
+			}
+			recordOffsets = Arrays.copyOf( recordOffsets, capacity + 1 );
+		}
+		final int start = recordOffsets[methods];
+		if( record.length > Integer.MAX_VALUE - 8 - start ){
+			throw new IllegalStateException( "The graphs do not fit in the repository" );
+		}
+		if( start + record.length > records.length ){
+			records = Arrays.copyOf( records, (int)Math.min(Integer.MAX_VALUE - 8,
+					Math.max(start + record.length, records.length * 2L)) );
+		}
+		System.arraycopy( record, 0, records, start, record.length );
+		recordOffsets[methods + 1] = start + record.length;
+
+		columns[StatsStoreWriter.BENCHMARK][methods] = statistics.getBenchmarkId();
+		columns[StatsStoreWriter.PACKAGE][methods] = statistics.getPackageId();
+		columns[StatsStoreWriter.CLASS][methods] = statistics.getClassId();
+		columns[StatsStoreWriter.METHOD][methods] = statistics.getMethodId();
+		columns[StatsStoreWriter.ACCESS][methods] = statistics.getAccess();
+		columns[StatsStoreWriter.INSTRUCTIONS][methods] = statistics.getInstructionsCount();
+		columns[StatsStoreWriter.BLOCKS][methods] = statistics.getBasicBlocksCount();
+		columns[StatsStoreWriter.DOMINATOR_TREE_HEIGHT][methods] = statistics.getDominatorTreeHeight();
+		columns[StatsStoreWriter.LOOPS][methods] = statistics.getLoopCount();
+		columns[StatsStoreWriter.MAX_LOOP_DEPTH][methods] = statistics.getMaxLoopDepth();
+		columns[EXCEPTION_EDGES][methods] = exceptionEdges;
+		columns[METHOD_DESCRIPTOR][methods] = methodDescriptorId;
+		methods++;
+		sortedMethods = null;
+		accessIndex = null;
+	}
+
+	public synchronized int getMethodCount(){
+		return methods;
+	}
+
+	/**
+	 * @return The value of a column for a method; name columns hold ids
+	 * of the shared SymbolTable
+	 */
+	public synchronized int get( int method, int column ){
+		checkMethod( method );
+		return columns[column][method];
+	}
+
+	private void checkMethod( int method ){
+		if( method < 0 || method >= methods ){
+			throw new IndexOutOfBoundsException( "Invalid method: " + method );
+		}
+	}
+
+	/**
+	 * @return The internal name of the class of a method
+	 */
+	public String getClassName( int method ){
+		final SymbolTable symbols = SymbolTable.getShared();
+		final String packageName = symbols.get( get(method, StatsStoreWriter.PACKAGE) );
+		final String className = symbols.get( get(method, StatsStoreWriter.CLASS) );
+		return packageName.isEmpty() ? className : packageName + "/" + className;
+	}
+
+	public String getMethodName( int method ){
+		return SymbolTable.getShared().get( get(method, StatsStoreWriter.METHOD) );
+	}
+
+	public String getMethodDescriptor( int method ){
+		return SymbolTable.getShared().get( get(method, METHOD_DESCRIPTOR) );
+	}
+
+	public synchronized MethodStatistics getStatistics( int method ){
+		checkMethod( method );
+		return new MethodStatistics( columns[StatsStoreWriter.BENCHMARK][method],
+				columns[StatsStoreWriter.PACKAGE][method], columns[StatsStoreWriter.CLASS][method],
+				columns[StatsStoreWriter.METHOD][method], columns[StatsStoreWriter.ACCESS][method],
+				columns[StatsStoreWriter.INSTRUCTIONS][method], columns[StatsStoreWriter.BLOCKS][method],
+				columns[StatsStoreWriter.DOMINATOR_TREE_HEIGHT][method], columns[StatsStoreWriter.LOOPS][method],
+				columns[StatsStoreWriter.MAX_LOOP_DEPTH][method] );
+	}
+
+	/**
+	 * Decodes the graph of a method; its names are not interned in the
+	 * shared SymbolTable unless their ids are asked for
+	 */
+	public ControlFlowGraph load( int method ){
+		final ByteBuffer record;
+		final int offset;
+		synchronized( this ){
+			checkMethod( method );
+			record = ByteBuffer.wrap( records, 0, recordOffsets[methods] );
+			offset = recordOffsets[method];
+		}
+		return CfgStoreReader.decode( record, offset, getClassName(method),
+				getMethodName(method), getMethodDescriptor(method) );
+	}
+
+	/**
+	 * @return A query matching all the methods, to be narrowed down
+	 */
+	public Query query(){
+		return new Query();
+	}
+
+	/**
+	 * The conditions the methods must match, all of them
+	 */
+	public final class Query {
+		private final int[] min = new int[COLUMNS];
+		private final int[] max = new int[COLUMNS];
+		private int requiredAccess;
+		private int excludedAccess;
+
+		private Query(){
+			Arrays.fill( min, Integer.MIN_VALUE );
+			Arrays.fill( max, Integer.MAX_VALUE );
+		}
+
+		/**
+		 * Only the methods with a value of a column between min and max, both included
+		 */
+		public Query range( int column, int min, int max ){
+			this.min[column] = Math.max( this.min[column], min );
+			this.max[column] = Math.min( this.max[column], max );
+			return this;
+		}
+
+		public Query equal( int column, int value ){
+			return range( column, value, value );
+		}
+
+		/**
+		 * Only the methods of a package, given as in the package column (e.g. java/util)
+		 */
+		public Query inPackage( String packageName ){
+			final int id = SymbolTable.getShared().find( packageName );
+			// A package never seen matches nothing
+			return id < 0 ? range( StatsStoreWriter.PACKAGE, 0, -1 ) : equal( StatsStoreWriter.PACKAGE, id );
+		}
+
+		/**
+		 * Only the methods with all the given access flags
+		 */
+		public Query withAccess( int flags ){
+			requiredAccess |= flags;
+			return this;
+		}
+
+		/**
+		 * Only the methods with none of the given access flags
+		 */
+		public Query withoutAccess( int flags ){
+			excludedAccess |= flags;
+			return this;
+		}
+
+		/**
+		 * @return The matching methods, in increasing order
+		 */
+		public int[] run(){
+			return CfgRepository.this.run( this );
+		}
+
+		boolean matches( int[][] columns, int method ){
+			for( int c = 0; c < COLUMNS; c++ ){
+				final int value = columns[c][method];
+				if( value < min[c] || value > max[c] ){
+					return false;
+				}
+			}
+			final int access = columns[StatsStoreWriter.ACCESS][method];
+			return (access & requiredAccess) == requiredAccess && (access & excludedAccess) == 0;
+		}
+	}
+
+	private synchronized int[] run( Query query ){
+		buildIndexes();
+		// The narrowest indexed range, if any
+		int best = -1;
+		int bestFrom = 0;
+		int bestTo = methods;
+		for( int i = 0; i < INDEXED_COLUMNS.length; i++ ){
+			final int column = INDEXED_COLUMNS[i];
+			if( query.min[column] == Integer.MIN_VALUE && query.max[column] == Integer.MAX_VALUE ){
+				continue;
+			}
+			final int from = firstAtLeast( i, query.min[column] );
+			final int to = query.max[column] == Integer.MAX_VALUE ? methods : firstAtLeast( i, query.max[column] + 1 );
+			if( best < 0 || to - from < bestTo - bestFrom ){
+				best = i;
+				bestFrom = from;
+				bestTo = Math.max( from, to );
+			}
+		}
+
+		int[] result = new int[16];
+		int count = 0;
+		if( best >= 0 ){
+			final int[] sorted = sortedMethods[best];
+			for( int s = bestFrom; s < bestTo; s++ ){
+				if( query.matches(columns, sorted[s]) ){
+					if( count == result.length ){
+						result = Arrays.copyOf( result, count * 2 );
+					}
+					result[count++] = sorted[s];
+				}
+			}
+			result = Arrays.copyOf( result, count );
+			Arrays.sort( result );
+			return result;
+		}
+		BitSet candidates = null;
+		for( int f = 0; f < ACCESS_FLAGS; f++ ){
+			if( (query.requiredAccess & (1 << f)) != 0 ){
+				if( candidates == null ){
+					candidates = (BitSet)accessIndex[f].clone();
+				}else{
+					candidates.and( accessIndex[f] );
+				}
+			}
+		}
+		for( int m = candidates == null ? 0 : candidates.nextSetBit(0); m >= 0 && m < methods;
+				m = candidates == null ? m + 1 : candidates.nextSetBit(m + 1) ){
+			if( query.matches(columns, m) ){
+				if( count == result.length ){
+					result = Arrays.copyOf( result, count * 2 );
+				}
+				result[count++] = m;
+			}
+		}
+		return Arrays.copyOf( result, count );
+	}
+
+	/**
+	 * @return The position of the first method with a value of an
+	 * indexed column not smaller than the given one
+	 */
+	private int firstAtLeast( int index, long value ){
+		final int[] sorted = sortedMethods[index];
+		final int[] column = columns[INDEXED_COLUMNS[index]];
+		int low = 0;
+		int high = methods;
+		while( low < high ){
+			final int middle = (low + high) >>> 1;
+			if( column[sorted[middle]] < value ){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private void buildIndexes(){
+		if( sortedMethods != null ){
+			return;
+		}
+		final int[][] sorted = new int[INDEXED_COLUMNS.length][];
+		final long[] keys = new long[methods];
+		for( int i = 0; i < INDEXED_COLUMNS.length; i++ ){
+			final int[] column = columns[INDEXED_COLUMNS[i]];
+			// The value in the high half, so that ties are kept in method order
+			for( int m = 0; m < methods; m++ ){
+				keys[m] = (long)column[m] << 32 | m;
+			}
+			Arrays.sort( keys );
+			sorted[i] = new int[methods];
+			for( int m = 0; m < methods; m++ ){
+				sorted[i][m] = (int)keys[m];
+			}
+		}
+		final BitSet[] access = new BitSet[ACCESS_FLAGS];
+		for( int f = 0; f < ACCESS_FLAGS; f++ ){
+			access[f] = new BitSet( methods );
+		}
+		final int[] flags = columns[StatsStoreWriter.ACCESS];
+		for( int m = 0; m < methods; m++ ){
+			for( int f = 0; f < ACCESS_FLAGS; f++ ){
+				if( (flags[m] & (1 << f)) != 0 ){
+					access[f].set( m );
+				}
+			}
+		}
+		sortedMethods = sorted;
+		accessIndex = access;
+	}
+
+	private static boolean isNameColumn( int column ){
+		return StatsStoreWriter.isStringColumn( column ) || column == METHOD_DESCRIPTOR;
+	}
+
+	/**
+	 * @return The number of a column, given its name in the csv header
+	 * or exceptionedges; -1 if there is none
+	 */
+	public static int findColumn( String name ){
+		return name.equals("exceptionedges") ? EXCEPTION_EDGES : StatsStoreWriter.findColumn( name );
+	}
+
+	/**
+	 * Writes a snapshot of the repository
+	 */
+	public synchronized void save( String filename ) throws IOException {
+		// The names used, numbered in the snapshot
+		final SymbolTable symbols = SymbolTable.getShared();
+		final int[] local = new int[symbols.size()];
+		final String[] strings = new String[local.length];
+		int count = 0;
+		for( int c = 0; c < COLUMNS; c++ ){
+			if( isNameColumn(c) ){
+				for( int m = 0; m < methods; m++ ){
+					final int id = columns[c][m];
+					if( id >= 0 && local[id] == 0 ){
+						strings[count++] = symbols.get( id );
+						local[id] = count;
+					}
+				}
+			}
+		}
+		try( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) ){
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( methods );
+			out.writeInt( count );
+			for( int s = 0; s < count; s++ ){
+				final byte[] bytes = strings[s].getBytes( StandardCharsets.UTF_8 );
+				out.writeInt( bytes.length );
+				out.write( bytes );
+			}
+			for( int c = 0; c < COLUMNS; c++ ){
+				final boolean names = isNameColumn( c );
+				for( int m = 0; m < methods; m++ ){
+					final int value = columns[c][m];
+					out.writeInt( names && value >= 0 ? local[value] - 1 : value );
+				}
+			}
+			for( int m = 0; m <= methods; m++ ){
+				out.writeInt( recordOffsets[m] );
+			}
+			out.write( records, 0, recordOffsets[methods] );
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by save()
+	 */
+	public static CfgRepository load( String filename ) throws IOException {
+		try( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16)) ){
+			if( in.readInt() != MAGIC ){
+				throw new IOException( filename + ": not a CFG repository snapshot" );
+			}
+			final int version = in.readInt();
+			if( version != VERSION ){
+				throw new IOException( filename + ": unsupported version " + version );
+			}
+			final CfgRepository repository = new CfgRepository();
+			final int methods = in.readInt();
+			final int[] symbols = new int[in.readInt()];
+			for( int s = 0; s < symbols.length; s++ ){
+				final byte[] bytes = new byte[in.readInt()];
+				in.readFully( bytes );
+				symbols[s] = SymbolTable.getShared().intern( new String(bytes, StandardCharsets.UTF_8) );
+			}
+			for( int c = 0; c < COLUMNS; c++ ){
+				final boolean names = isNameColumn( c );
+				final int[] column = new int[methods];
+				for( int m = 0; m < methods; m++ ){
+					final int value = in.readInt();
+					column[m] = names && value >= 0 ? symbols[value] : value;
+				}
+				repository.columns[c] = column;
+			}
+			// One more than the columns, as add() expects
+			repository.recordOffsets = new int[methods + 1];
+			for( int m = 0; m <= methods; m++ ){
+				repository.recordOffsets[m] = in.readInt();
+			}
+			repository.records = new byte[Math.max(repository.recordOffsets[methods], 1)];
+			in.readFully( repository.records, 0, repository.recordOffsets[methods] );
+			repository.methods = methods;
+			return repository;
+		}
+	}
+
+	public static void main( String[] args ) throws IOException {
+		long time = System.nanoTime();
+		final CfgRepository repository = load( args[0] );
+		System.out.printf( "Loaded %d methods in %.1fms%n", repository.getMethodCount(), (System.nanoTime() - time) / 1e6 );
+		final Query query = repository.query();
+		int limit = 20;
+		for( int a = 1; a < args.length; a += 2 ){
+			if( args[a].equals("-range") ){
+				final int column = findColumn( args[a+1] );
+				if( column < 0 || isNameColumn(column) ){
+					throw new IllegalArgumentException( "Not an int column: " + args[a+1] );
+				}
+				final String[] bounds = args[a+2].split( ":", -1 );
+				query.range( column, bounds[0].isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(bounds[0]),
+						bounds.length < 2 || bounds[1].isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(bounds[1]) );
+				a++;
+			}else if( args[a].equals("-package") ){
+				query.inPackage( args[a+1] );
+			}else if( args[a].equals("-access") ){
+				query.withAccess( Integer.decode(args[a+1]) );
+			}else if( args[a].equals("-noaccess") ){
+				query.withoutAccess( Integer.decode(args[a+1]) );
+			}else if( args[a].equals("-limit") ){
+				limit = Integer.parseInt( args[a+1] );
+			}else{
+				throw new IllegalArgumentException( "Unknown option: " + args[a] );
+			}
+		}
+		// The first query also builds the indexes
+		for( int run = 0; run < 2; run++ ){
+			time = System.nanoTime();
+			final int[] found = query.run();
+			System.out.printf( "%d methods found in %.2fms%n", found.length, (System.nanoTime() - time) / 1e6 );
+			if( run == 1 ){
+				for( int f = 0; f < Math.min(limit, found.length); f++ ){
+					final int m = found[f];
+					System.out.println( repository.getClassName(m) + "." + repository.getMethodName(m) +
+							repository.getMethodDescriptor(m) + " instructions=" + repository.get(m, StatsStoreWriter.INSTRUCTIONS) +
+							" blocks=" + repository.get(m, StatsStoreWriter.BLOCKS) +
+							" exceptionedges=" + repository.get(m, EXCEPTION_EDGES) );
+				}
+			}
+		}
+	}
+}
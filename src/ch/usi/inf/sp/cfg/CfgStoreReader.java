@@ -0,0 +1,202 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the Control Flow Graphs written by a {@link CfgStoreWriter}.
+ * <p>
+ * The file is memory-mapped; opening it reads only the index, and the
+ * graph of a method is decoded when it is asked for, without touching
+ * the records of the other methods, nor interning its names in the
+ * shared SymbolTable. The blocks of a loaded graph have
+ * their address and number of instructions, but not the instructions
+ * themselves. Methods are found by their benchmark (jar) and names; if
+ * a jar holds two classes with the same name (e.g. a multi-release jar),
+ * the first one written is found. The reader can be used by several
+ * threads.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class CfgStoreReader implements Closeable {
+
+	private final String name;
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+
+	private final String[] benchmarks;
+	private final String[] classNames;
+	private final String[] methodNames;
+	private final String[] methodDescriptors;
+	private final int[] offsets;
+	// "benchmark class.method descriptor" -> method
+	private final Map<String, Integer> index;
+
+	public CfgStoreReader( String filename ) throws IOException {
+		name = filename;
+		channel = FileChannel.open( Paths.get(filename), StandardOpenOption.READ );
+		try{
+			final long length = channel.size();
+			if( length > Integer.MAX_VALUE ){
+				throw new IOException( filename + ": files larger than 2GB cannot be mapped" );
+			}
+			if( length < CfgStoreWriter.HEADER_SIZE + CfgStoreWriter.TRAILER_SIZE ){
+				throw new IOException( filename + ": not a CFG store" );
+			}
+			map = channel.map( FileChannel.MapMode.READ_ONLY, 0, length );
+			if( map.getInt(0) != CfgStoreWriter.MAGIC || map.getInt((int)length - 4) != CfgStoreWriter.MAGIC ){
+				throw new IOException( filename + ": not a CFG store" );
+			}
+			if( map.getInt(4) != CfgStoreWriter.VERSION ){
+				throw new IOException( filename + ": unsupported version " + map.getInt(4) );
+			}
+
+			int pos = (int)map.getLong( (int)length - CfgStoreWriter.TRAILER_SIZE );
+			final int count = map.getInt( pos );
+			pos += 4;
+			benchmarks = new String[count];
+			classNames = new String[count];
+			methodNames = new String[count];
+			methodDescriptors = new String[count];
+			offsets = new int[count];
+			index = new HashMap<>( count * 2 );
+			final int[] cursor = { pos };
+			for( int m = 0; m < count; m++ ){
+				benchmarks[m] = readString( cursor );
+				classNames[m] = readString( cursor );
+				methodNames[m] = readString( cursor );
+				methodDescriptors[m] = readString( cursor );
+				offsets[m] = (int)map.getLong( cursor[0] );
+				cursor[0] += 8;
+				index.putIfAbsent( key(benchmarks[m], classNames[m], methodNames[m], methodDescriptors[m]), m );
+			}
+		}catch( IOException | RuntimeException e ){
+			channel.close();
+			throw e;
+		}
+	}
+
+	private String readString( int[] cursor ){
+		final int length = map.getInt( cursor[0] );
+		cursor[0] += 4;
+		if( length < 0 ){
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		for( int i = 0; i < length; i++ ){
+			bytes[i] = map.get( cursor[0] + i );
+		}
+		cursor[0] += length;
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static String key( String benchmark, String className, String methodName, String methodDescriptor ){
+		return benchmark + " " + className + "." + methodName + " " + methodDescriptor;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public int getMethodCount(){
+		return offsets.length;
+	}
+
+	/**
+	 * @return The jar the class of a method is found in
+	 */
+	public String getBenchmark( int method ){
+		return benchmarks[method];
+	}
+
+	public String getClassName( int method ){
+		return classNames[method];
+	}
+
+	public String getMethodName( int method ){
+		return methodNames[method];
+	}
+
+	public String getMethodDescriptor( int method ){
+		return methodDescriptors[method];
+	}
+
+	/**
+	 * @return The number of the method, -1 if it is not in the store
+	 */
+	public int find( String benchmark, String className, String methodName, String methodDescriptor ){
+		final Integer method = index.get( key(benchmark, className, methodName, methodDescriptor) );
+		return method == null ? -1 : method;
+	}
+
+	/**
+	 * Loads the graph of a method
+	 *
+	 * @param benchmark The jar the class is found in
+	 * @param className The internal name of the class
+	 * @param methodName The name of the method
+	 * @param methodDescriptor The descriptor of the method
+	 * @return The graph, null if the method is not in the store
+	 */
+	public ControlFlowGraph load( String benchmark, String className, String methodName, String methodDescriptor ){
+		final int method = find( benchmark, className, methodName, methodDescriptor );
+		return method < 0 ? null : load( method );
+	}
+
+	public ControlFlowGraph load( int method ){
+		return decode( map, offsets[method], classNames[method], methodNames[method], methodDescriptors[method] );
+	}
+
+	/**
+	 * Decodes a graph record written by CfgStoreWriter.encode
+	 *
+	 * @param buffer Where the record is
+	 * @param pos The position of the record in the buffer
+	 */
+	static ControlFlowGraph decode( ByteBuffer buffer, int pos, String className, String methodName,
+			String methodDescriptor ){
+		final int blocks = buffer.getInt( pos );
+		final int edges = buffer.getInt( pos + 4 );
+		pos += 8;
+		final List<BasicBlock> bbList = new ArrayList<>( blocks );
+		for( int b = 0; b < blocks; b++ ){
+			bbList.add( new BasicBlock(buffer.getInt(pos), buffer.getInt(pos + 4)) );
+			pos += 8;
+		}
+		final int[] edgeOffsets = new int[blocks + 1];
+		for( int b = 0; b <= blocks; b++ ){
+			edgeOffsets[b] = buffer.getInt( pos );
+			pos += 4;
+		}
+		final int[] targets = new int[edges];
+		for( int e = 0; e < edges; e++ ){
+			targets[e] = buffer.getInt( pos );
+			pos += 4;
+		}
+		final byte[] kinds = new byte[edges];
+		for( int e = 0; e < edges; e++ ){
+			kinds[e] = buffer.get( pos++ );
+		}
+		final int[] keys = new int[edges];
+		for( int e = 0; e < edges; e++ ){
+			keys[e] = buffer.getInt( pos );
+			pos += 4;
+		}
+		return ControlFlowGraph.loaded( className, methodName, methodDescriptor, bbList, edgeOffsets, targets, kinds, keys );
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
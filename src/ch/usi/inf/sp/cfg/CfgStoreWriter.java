@@ -0,0 +1,180 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the Control Flow Graphs of many methods (e.g. of a whole jar)
+ * to a single binary file, that can be read back one method at a time
+ * by a {@link CfgStoreReader}.
+ * <p>
+ * The file is made of a header, one record per graph, the index and
+ * a trailer. All numbers are big endian.
+ * <pre>
+ * header:  int MAGIC, int VERSION
+ * record:  int blocks, int edges,
+ *          blocks x (int address, int instructions),
+ *          (blocks + 1) x int edge offset,
+ *          edges x int target, edges x byte kind, edges x int case key
+ * index:   int methods,
+ *          methods x (string benchmark, string class, string method, string descriptor,
+ *                     long record offset)
+ * trailer: long index offset, int MAGIC
+ * </pre>
+ * Strings are an int length followed by the UTF-8 bytes; a null
+ * descriptor has length -1. The edges are the compressed sparse row
+ * arrays of {@link ControlFlowGraph}. The benchmark is the jar the class
+ * is found in, so that two classes with the same name but different
+ * contents (e.g. two versions of a library) are told apart.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class CfgStoreWriter implements Closeable {
+
+	static final int MAGIC = 0x43464753; // "CFGS"
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 8;
+	static final int TRAILER_SIZE = 12;
+
+	private final DataOutputStream out;
+	// Ids of the shared SymbolTable, resolved when the index is written
+	private int[] benchmarkIds;
+	private int[] classIds;
+	private int[] methodIds;
+	private int[] methodDescriptorIds;
+	private final List<Long> offsets;
+	private long position;
+
+	public CfgStoreWriter( String filename ) throws IOException {
+		out = new DataOutputStream( new BufferedOutputStream(new FileOutputStream(filename), 1 << 16) );
+		benchmarkIds = new int[256];
+		classIds = new int[256];
+		methodIds = new int[256];
+		methodDescriptorIds = new int[256];
+		offsets = new ArrayList<>();
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		position = HEADER_SIZE;
+	}
+
+	/**
+	 * Encodes the record of a graph. This can be done by the thread that
+	 * created the graph, so that only the write is serialized.
+	 */
+	public static byte[] encode( ControlFlowGraph cfg ){
+		final int blocks = cfg.getBasicBlockCount();
+		final int edges = cfg.getEdgeCount();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 8 + blocks * 12 + 4 + edges * 9 );
+		final DataOutputStream record = new DataOutputStream( bytes );
+		try{
+			record.writeInt( blocks );
+			record.writeInt( edges );
+			for( int b = 0; b < blocks; b++ ){
+				final BasicBlock bb = cfg.getBasicBlock(b);
+				record.writeInt( bb.getBBAddress() );
+				record.writeInt( bb.getInstructionLenght() );
+			}
+			for( int b = 0; b <= blocks; b++ ){
+				record.writeInt( b < blocks ? cfg.getEdgeStart(b) : edges );
+			}
+			for( int e = 0; e < edges; e++ ){
+				record.writeInt( cfg.getEdgeTarget(e) );
+			}
+			for( int e = 0; e < edges; e++ ){
+				record.writeByte( cfg.getEdgeKind(e) );
+			}
+			for( int e = 0; e < edges; e++ ){
+				record.writeInt( cfg.getEdgeKey(e) );
+			}
+		}catch( IOException e ){
+			throw new UncheckedIOException( e ); // Cannot happen writing to memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param benchmark The jar the class of the graph is found in
+	 */
+	public void write( String benchmark, ControlFlowGraph cfg ) throws IOException {
+		write( SymbolTable.getShared().intern(benchmark), cfg.getClassId(), cfg.getMethodId(),
+				cfg.getMethodDescriptorId(), encode(cfg) );
+	}
+
+	/**
+	 * Writes a graph encoded with {@link #encode(ControlFlowGraph)}
+	 */
+	public void write( String benchmark, String className, String methodName, String methodDescriptor,
+			byte[] record ) throws IOException {
+		final SymbolTable symbols = SymbolTable.getShared();
+		write( symbols.intern(benchmark), symbols.intern(className), symbols.intern(methodName),
+				symbols.intern(methodDescriptor), record );
+	}
+
+	/**
+	 * Like the previous method, with the names given by their ids in the
+	 * shared SymbolTable; a null descriptor is -1
+	 */
+	public synchronized void write( int benchmarkId, int classId, int methodId, int methodDescriptorId,
+			byte[] record ) throws IOException {
+		final int m = offsets.size();
+		if( m == classIds.length ){
+			benchmarkIds = Arrays.copyOf( benchmarkIds, m * 2 );
+			classIds = Arrays.copyOf( classIds, m * 2 );
+			methodIds = Arrays.copyOf( methodIds, m * 2 );
+			methodDescriptorIds = Arrays.copyOf( methodDescriptorIds, m * 2 );
+		}
+		benchmarkIds[m] = benchmarkId;
+		classIds[m] = classId;
+		methodIds[m] = methodId;
+		methodDescriptorIds[m] = methodDescriptorId;
+		offsets.add( position );
+		out.write( record );
+		position += record.length;
+	}
+
+	public synchronized int getMethodCount(){
+		return offsets.size();
+	}
+
+	/**
+	 * Writes the index and closes the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try{
+			final long indexOffset = position;
+			final SymbolTable symbols = SymbolTable.getShared();
+			out.writeInt( offsets.size() );
+			for( int m = 0; m < offsets.size(); m++ ){
+				writeString( symbols.get(benchmarkIds[m]) );
+				writeString( symbols.get(classIds[m]) );
+				writeString( symbols.get(methodIds[m]) );
+				writeString( symbols.get(methodDescriptorIds[m]) );
+				out.writeLong( offsets.get(m) );
+			}
+			out.writeLong( indexOffset );
+			out.writeInt( MAGIC );
+		}finally{
+			out.close();
+		}
+	}
+
+	private void writeString( String s ) throws IOException {
+		if( s == null ){
+			out.writeInt( -1 );
+			return;
+		}
+		final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+}
@@ -1,38 +1,319 @@
 package ch.usi.inf.sp.cfg;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 /**
- * This class can represent a Control Flow Graph of a java method
- * as well as the Dominance Tree of it.
- * 
+ * This class can represent a Control Flow Graph of a java method;
+ * its Dominance Tree is computed by {@link DominatorTree}.
+ * <p>
+ * The edges are stored in compressed sparse row form: the outgoing
+ * edges of the block with id b are the entries from getEdgeStart(b)
+ * (inclusive) to getEdgeEnd(b) (exclusive) of the edge arrays, each
+ * one made of the id of the target block, the kind of the edge and,
+ * for switch cases, the case key. The id of a block is its position
+ * in the list the graph has been built from.
+ * <p>
+ * The names of the class and of the method and the descriptor of the
+ * method are kept as ids of the shared {@link SymbolTable}. A graph
+ * loaded from a store or a repository keeps them as strings instead,
+ * and interns them only if their ids are asked for (e.g. to write the
+ * graph again), so that reading graphs does not grow the table.
+ *
  * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
  */
 public class ControlFlowGraph {
-	private String className;
-	private String methodName;
+
+	/** Unconditional flow: fall through, goto, return to the "end" block */
+	public static final byte EDGE_UNCONDITIONAL = 0;
+	/** Taken branch of a jump instruction */
+	public static final byte EDGE_TRUE = 1;
+	/** Not taken branch of a conditional jump instruction */
+	public static final byte EDGE_FALSE = 2;
+	/** Case of a switch instruction, the case key is stored with the edge */
+	public static final byte EDGE_CASE = 3;
+	/** Default case of a switch instruction */
+	public static final byte EDGE_DEFAULT = 4;
+	/** Exception thrown by a PEI */
+	public static final byte EDGE_EXCEPTION = 5;
+
+	private static final String[] EDGE_LABELS = { "", "T", "F", null, "default", "ex" };
+
+	private static final int NOT_INTERNED = -2;
+
+	private int classId;
+	private int methodId;
+	private int methodDescriptorId;
+	// The names of a loaded graph, until they are interned; null for the other graphs
+	private final String className;
+	private final String methodName;
+	private final String methodDescriptor;
 	private List<BasicBlock> bbList;
-	
+
+	private int[] edgeOffsets;
+	private int[] edgeTargets;
+	private byte[] edgeKinds;
+	private int[] edgeKeys;
+
 	public ControlFlowGraph( String className, String methodName, List<BasicBlock> bbList ){
-		this.methodName = methodName;
+		this( className, methodName, null, bbList );
+	}
+
+	public ControlFlowGraph( String className, String methodName, String methodDescriptor, List<BasicBlock> bbList ){
+		final SymbolTable symbols = SymbolTable.getShared();
+		this.classId = symbols.intern( className );
+		this.methodId = symbols.intern( methodName );
+		this.methodDescriptorId = symbols.intern( methodDescriptor );
+		this.className = null;
+		this.methodName = null;
+		this.methodDescriptor = null;
+		this.bbList = bbList;
+		compactEdges();
+	}
+
+	/**
+	 * Creates a graph out of blocks without edges and already
+	 * compacted edge arrays.
+	 */
+	ControlFlowGraph( String className, String methodName, String methodDescriptor, List<BasicBlock> bbList,
+			int[] edgeOffsets, int[] edgeTargets, byte[] edgeKinds, int[] edgeKeys ){
+		this( SymbolTable.getShared().intern(className), SymbolTable.getShared().intern(methodName),
+				SymbolTable.getShared().intern(methodDescriptor), bbList, edgeOffsets, edgeTargets, edgeKinds, edgeKeys );
+	}
+
+	/**
+	 * Like the previous constructor, with the names already interned
+	 * in the shared SymbolTable
+	 */
+	ControlFlowGraph( int classId, int methodId, int methodDescriptorId, List<BasicBlock> bbList,
+			int[] edgeOffsets, int[] edgeTargets, byte[] edgeKinds, int[] edgeKeys ){
+		this( classId, methodId, methodDescriptorId, null, null, null, bbList, edgeOffsets, edgeTargets, edgeKinds, edgeKeys );
+	}
+
+	/**
+	 * Creates a graph loaded from a store or a repository, whose names
+	 * are not interned until their ids are asked for
+	 */
+	static ControlFlowGraph loaded( String className, String methodName, String methodDescriptor, List<BasicBlock> bbList,
+			int[] edgeOffsets, int[] edgeTargets, byte[] edgeKinds, int[] edgeKeys ){
+		return new ControlFlowGraph( NOT_INTERNED, NOT_INTERNED, NOT_INTERNED, className, methodName, methodDescriptor,
+				bbList, edgeOffsets, edgeTargets, edgeKinds, edgeKeys );
+	}
+
+	private ControlFlowGraph( int classId, int methodId, int methodDescriptorId, String className, String methodName,
+			String methodDescriptor, List<BasicBlock> bbList, int[] edgeOffsets, int[] edgeTargets, byte[] edgeKinds,
+			int[] edgeKeys ){
+		this.classId = classId;
+		this.methodId = methodId;
+		this.methodDescriptorId = methodDescriptorId;
 		this.className = className;
+		this.methodName = methodName;
+		this.methodDescriptor = methodDescriptor;
 		this.bbList = bbList;
+		for( int b = 0; b < bbList.size(); b++ ){
+			bbList.get(b).attach( this, b );
+		}
+		this.edgeOffsets = edgeOffsets;
+		this.edgeTargets = edgeTargets;
+		this.edgeKinds = edgeKinds;
+		this.edgeKeys = edgeKeys;
+	}
+
+	/**
+	 * Moves the edges collected by the blocks into the edge arrays.
+	 * As in a map, only the last edge added between two blocks is kept.
+	 */
+	private void compactEdges(){
+		final int n = bbList.size();
+		int pending = 0;
+		for( int b = 0; b < n; b++ ){
+			final BasicBlock bb = bbList.get(b);
+			bb.attach( this, b );
+			pending += bb.getPendingCount();
+		}
+
+		edgeOffsets = new int[n + 1];
+		int[] targets = new int[pending];
+		byte[] kinds = new byte[pending];
+		int[] keys = new int[pending];
+		final int[] slot = new int[n]; // Position of the edge to a target, -1 if none
+		Arrays.fill( slot, -1 );
+		int count = 0;
+		for( int b = 0; b < n; b++ ){
+			final BasicBlock bb = bbList.get(b);
+			final int start = count;
+			for( int e = 0; e < bb.getPendingCount(); e++ ){
+				final BasicBlock target = bb.getPendingTarget(e);
+				if( target == null || target.getId() < 0 || bbList.get(target.getId()) != target ){
+					throw new IllegalArgumentException( "Edge from B" + bb.getBBAddress() +
+							" to a block that is not part of the graph" );
+				}
+				final int t = target.getId();
+				int edge = slot[t];
+				if( edge < 0 ){
+					edge = count++;
+					slot[t] = edge;
+					targets[edge] = t;
+				}
+				kinds[edge] = bb.getPendingKind(e);
+				keys[edge] = bb.getPendingKey(e);
+			}
+			for( int edge = start; edge < count; edge++ ){
+				slot[targets[edge]] = -1;
+			}
+			edgeOffsets[b + 1] = count;
+			bb.releasePendingEdges();
+		}
+
+		if( count < pending ){
+			targets = Arrays.copyOf( targets, count );
+			kinds = Arrays.copyOf( kinds, count );
+			keys = Arrays.copyOf( keys, count );
+		}
+		edgeTargets = targets;
+		edgeKinds = kinds;
+		edgeKeys = keys;
 	}
-	
+
 	public String getClassName(){
-		return className;
+		return classId == NOT_INTERNED ? className : SymbolTable.getShared().get( classId );
 	}
-	
+
 	public String getMethodName(){
-		return methodName;
+		return methodId == NOT_INTERNED ? methodName : SymbolTable.getShared().get( methodId );
+	}
+
+	/**
+	 * @return The descriptor of the method, null if unknown
+	 */
+	public String getMethodDescriptor(){
+		return methodDescriptorId == NOT_INTERNED ? methodDescriptor : SymbolTable.getShared().get( methodDescriptorId );
+	}
+
+	/**
+	 * @return The id of the class name in the shared SymbolTable,
+	 * interned by the first call for a loaded graph
+	 */
+	public int getClassId(){
+		if( classId == NOT_INTERNED ){
+			classId = SymbolTable.getShared().intern( className );
+		}
+		return classId;
+	}
+
+	/**
+	 * @return The id of the method name in the shared SymbolTable,
+	 * interned by the first call for a loaded graph
+	 */
+	public int getMethodId(){
+		if( methodId == NOT_INTERNED ){
+			methodId = SymbolTable.getShared().intern( methodName );
+		}
+		return methodId;
 	}
-	
+
+	/**
+	 * @return The id of the descriptor in the shared SymbolTable, -1 if
+	 * unknown; interned by the first call for a loaded graph
+	 */
+	public int getMethodDescriptorId(){
+		if( methodDescriptorId == NOT_INTERNED ){
+			methodDescriptorId = SymbolTable.getShared().intern( methodDescriptor );
+		}
+		return methodDescriptorId;
+	}
+
 	public Iterator<BasicBlock> getBasicBlocks(){
 		return bbList.iterator();
 	}
-	
+
 	public int getBasicBlockCount(){
 		return bbList.size();
 	}
+
+	public BasicBlock getBasicBlock( int id ){
+		return bbList.get(id);
+	}
+
+	public int getEdgeCount(){
+		return edgeTargets.length;
+	}
+
+	public int getExceptionEdgeCount(){
+		int count = 0;
+		for( int e = 0; e < edgeKinds.length; e++ ){
+			if( edgeKinds[e] == EDGE_EXCEPTION ){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The index of the first outgoing edge of a block
+	 */
+	public int getEdgeStart( int block ){
+		return edgeOffsets[block];
+	}
+
+	/**
+	 * @return The index after the last outgoing edge of a block
+	 */
+	public int getEdgeEnd( int block ){
+		return edgeOffsets[block + 1];
+	}
+
+	// The edge arrays themselves, for the analyses of the graph; not to be modified
+	int[] getEdgeOffsets(){
+		return edgeOffsets;
+	}
+
+	int[] getEdgeTargets(){
+		return edgeTargets;
+	}
+
+	public int getEdgeTarget( int edge ){
+		return edgeTargets[edge];
+	}
+
+	public byte getEdgeKind( int edge ){
+		return edgeKinds[edge];
+	}
+
+	public int getEdgeKey( int edge ){
+		return edgeKeys[edge];
+	}
+
+	public String getEdgeLabel( int edge ){
+		return edgeLabel( edgeKinds[edge], edgeKeys[edge] );
+	}
+
+	/**
+	 * @return The index of the edge between two blocks, -1 if there is none
+	 */
+	public int findEdge( int source, int target ){
+		for( int edge = edgeOffsets[source]; edge < edgeOffsets[source + 1]; edge++ ){
+			if( edgeTargets[edge] == target ){
+				return edge;
+			}
+		}
+		return -1;
+	}
+
+	static String edgeLabel( byte kind, int caseKey ){
+		if( kind == EDGE_CASE ){
+			return "Case " + caseKey;
+		}
+		return EDGE_LABELS[kind];
+	}
+
+	static byte edgeKind( String label ){
+		for( byte kind = 0; kind < EDGE_LABELS.length; kind++ ){
+			if( label.equals(EDGE_LABELS[kind]) ){
+				return kind;
+			}
+		}
+		throw new IllegalArgumentException( "Unknown edge label: " + label );
+	}
 }
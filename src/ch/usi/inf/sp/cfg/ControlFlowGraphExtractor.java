@@ -3,15 +3,12 @@ package ch.usi.inf.sp.cfg;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.function.Consumer;
 
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InsnList;
@@ -26,17 +23,107 @@ import org.objectweb.asm.util.Printer;
 /**
  * This class extracts a control flow graph in .dot format
  * from the byte code of a Java method.
+ * <p>
+ * An extractor can be used for any number of methods, one at a time:
+ * its scratch arrays grow to the largest method seen and are reused, so
+ * that, once they are large enough, only the graph itself is allocated.
+ * forCurrentThread() gives every thread an extractor of its own.
+ * <p>
+ * By default every return is a PEI, as in the original model. In the
+ * precise model (setPrecisePEI, or PRECISE_PEI among the options of
+ * extractStatistics) returns are PEIs only in synchronized methods, and
+ * a block also ends after every instruction that does not fall through,
+ * switches included; the graphs have fewer exception edges.
  * 
  * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
  */
 public final class ControlFlowGraphExtractor {
 	
-	private SortedSet<Integer> bbBoundAdrresses;
-	private Map<Integer, BasicBlock> bbMap;
+	/**
+	 * Analysis option selecting the precise PEI model; it can be combined
+	 * with the ClassReader options passed to extractStatistics, and is
+	 * removed from them before parsing.
+	 */
+	public static final int PRECISE_PEI = 1 << 16;
+	
+	private static final int INITIAL_SIZE = 64;
+	
+	private static final ThreadLocal<ControlFlowGraphExtractor> extractors = new ThreadLocal<ControlFlowGraphExtractor>() {
+		@Override
+		protected ControlFlowGraphExtractor initialValue(){
+			return new ControlFlowGraphExtractor();
+		}
+	};
+	
+	// Instruction indices where a basic block starts
+	private final BitSet leaders;
+	// Id of the block starting at each leader, the "end" block at instructions.size()
+	private int[] blockIds;
+	// Edges of the method being extracted, grouped by source block
+	private int[] edgeTargets;
+	private byte[] edgeKinds;
+	private int[] edgeKeys;
+	private int edgeCount;
+	// Block id -> its edge from the block being populated, -1 if none
+	private int[] edgeSlots;
+	private int sourceStart; // First edge of the block being populated
+	private final ExceptionHandlerIndex handlerIndex;
+	// Where the time of the phases goes, null not to measure it
+	private AnalysisMetrics metrics;
+	private boolean precisePEI;
+	// OpcodeTable flags that make an instruction a PEI, or end its block, in the current method
+	private int peiMask = OpcodeTable.PEI | OpcodeTable.PEI_IF_SYNCHRONIZED;
+	private int blockEndMask = peiMask;
 	
 	public ControlFlowGraphExtractor(){
-		bbBoundAdrresses = new TreeSet<>();
-		bbMap = new HashMap<Integer, BasicBlock>();
+		this( null );
+	}
+	
+	/**
+	 * @param metrics Where the time spent finding leaders and
+	 * building blocks is added; may be null
+	 */
+	public ControlFlowGraphExtractor( AnalysisMetrics metrics ){
+		leaders = new BitSet();
+		handlerIndex = new ExceptionHandlerIndex();
+		this.metrics = metrics;
+		reset();
+	}
+	
+	/**
+	 * @return The extractor of the calling thread
+	 */
+	public static ControlFlowGraphExtractor forCurrentThread(){
+		return extractors.get();
+	}
+	
+	/**
+	 * @param metrics Where the time spent finding leaders and
+	 * building blocks is added; may be null
+	 */
+	public void setMetrics( AnalysisMetrics metrics ){
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Selects the PEI model: the precise one if true, where returns are
+	 * PEIs only in synchronized methods, the original one otherwise
+	 */
+	public void setPrecisePEI( boolean precisePEI ){
+		this.precisePEI = precisePEI;
+	}
+	
+	/**
+	 * Shrinks the scratch arrays back to their initial size, e.g. after
+	 * an unusually large method; they grow again when needed.
+	 */
+	public void reset(){
+		blockIds = new int[INITIAL_SIZE];
+		edgeTargets = new int[INITIAL_SIZE];
+		edgeKinds = new byte[INITIAL_SIZE];
+		edgeKeys = new int[INITIAL_SIZE];
+		edgeSlots = new int[INITIAL_SIZE];
+		Arrays.fill( edgeSlots, -1 );
 	}
 	
 	/**
@@ -50,36 +137,121 @@ public final class ControlFlowGraphExtractor {
 		//final JavaClassDisassembler dumper = new JavaClassDisassembler();
 		//dumper.disassembleMethod(method);
 		
-		// Get basic blocks bounds and create BasicBlock objects
-		bbMap.put( -1, new BasicBlock(-1) ); // Dummy "start" basic block 
-		bbBoundAdrresses.add( 0 );           // Start of the first basic block
-		bbMap.put( 0, new BasicBlock(0) );   // First basic block
+		final AnalysisEvents.MethodAnalysis event = AnalysisEvents.beginMethod();
+		
+		// Find the basic blocks bounds
+		long time = metrics == null ? 0 : System.nanoTime();
 		final InsnList instructions = method.instructions;
-		bbMap.put( instructions.size(), new BasicBlock(-2) ); // Dummy "end" basic block
-		bbBoundAdrresses.add( instructions.size() );          // End of the last basic block + 1
-		for( int i=0; i<instructions.size(); i++ ){
+		final int size = instructions.size();
+		if( precisePEI ){
+			peiMask = OpcodeTable.getPEIMask( method.access );
+			blockEndMask = peiMask | OpcodeTable.TERMINATOR;
+		}else{
+			peiMask = OpcodeTable.PEI | OpcodeTable.PEI_IF_SYNCHRONIZED;
+			blockEndMask = peiMask;
+		}
+		leaders.clear();
+		leaders.set( 0 );    // Start of the first basic block
+		leaders.set( size ); // End of the last basic block + 1
+		for( int i=0; i<size; i++ ){
 			final AbstractInsnNode instruction = instructions.get(i);
 			extractAdrresses( instruction, i, instructions );
 		}
+		// A handler starts a block, whatever precedes it
+		for( int h = 0; h < method.tryCatchBlocks.size(); h++ ){
+			leaders.set( instructions.indexOf(((TryCatchBlockNode)method.tryCatchBlocks.get(h)).handler) );
+		}
+		if( metrics != null ){
+			time = metrics.addTime( AnalysisMetrics.Phase.LEADERS, time );
+		}
 		
-		// Fill BasicBlocks with instructions and add edges
-		Iterator<Integer> it = bbBoundAdrresses.iterator();
-		int startOfBlock = it.next(); 
-		while( it.hasNext() ){
-			BasicBlock bb = bbMap.get(startOfBlock);
-			int endOfBlock = it.next() - 1;
-			populateBasicBlock( bb, startOfBlock, endOfBlock, instructions, method.tryCatchBlocks);
-			startOfBlock = endOfBlock + 1;
+		// Create the BasicBlock objects, once per leader: "start" is 0,
+		// then the blocks in address order, then "end"
+		final int blockCount = leaders.cardinality() + 1;
+		if( blockIds.length < size + 1 ){
+			blockIds = new int[Math.max( size + 1, blockIds.length * 2 )];
+		}
+		if( edgeSlots.length < blockCount ){
+			edgeSlots = new int[Math.max( blockCount, edgeSlots.length * 2 )];
+			Arrays.fill( edgeSlots, -1 );
 		}
+		final List<BasicBlock> bbList = new ArrayList<>( blockCount );
+		bbList.add( new BasicBlock(-1) ); // Dummy "start" basic block
+		for( int l = leaders.nextSetBit(0); l < size; l = leaders.nextSetBit(l + 1) ){
+			blockIds[l] = bbList.size();
+			bbList.add( new BasicBlock(l) );
+		}
+		blockIds[size] = bbList.size();
+		bbList.add( new BasicBlock(-2) ); // Dummy "end" basic block
 		
 		// Connect the dummy "start" basic block to the first basic block
-		bbMap.get( -1 ).addEdge( bbMap.get( 0 ), "" );
+		final int[] edgeOffsets = new int[blockCount + 1];
+		endSource(); // In case the previous method failed half-way
+		edgeCount = 0;
+		sourceStart = 0;
+		addEdge( 0, ControlFlowGraph.EDGE_UNCONDITIONAL, 0 );
+		edgeOffsets[1] = endSource();
+		
+		// Fill BasicBlocks with instructions and add edges
+		handlerIndex.reset( instructions, method.tryCatchBlocks );
+		for( int l = leaders.nextSetBit(0); l < size; ){
+			final int next = leaders.nextSetBit(l + 1);
+			final int id = blockIds[l];
+			populateBasicBlock( bbList.get(id), l, next - 1, instructions, handlerIndex );
+			edgeOffsets[id + 1] = endSource();
+			l = next;
+		}
+		edgeOffsets[blockCount] = edgeCount; // "end"
 		
-		ControlFlowGraph cfg = new ControlFlowGraph( className, method.name,
-				new ArrayList<BasicBlock>( bbMap.values()) );
+		ControlFlowGraph cfg = new ControlFlowGraph( className, method.name, method.desc, bbList, edgeOffsets,
+				Arrays.copyOf(edgeTargets, edgeCount), Arrays.copyOf(edgeKinds, edgeCount), Arrays.copyOf(edgeKeys, edgeCount) );
+		if( metrics != null ){
+			metrics.addTime( AnalysisMetrics.Phase.BLOCKS, time );
+			metrics.addEdges( cfg.getEdgeCount(), cfg.getExceptionEdgeCount() );
+		}
+		if( event != null ){
+			event.end();
+			if( event.shouldCommit() ){
+				event.commit( className, method.name, method.desc, size, cfg.getBasicBlockCount() - 2, cfg.getEdgeCount() );
+			}
+		}
 		return cfg;
 	}
 	
+	/**
+	 * Adds an edge from the block being populated to the block starting
+	 * at an instruction ("end" at instructions.size()). As in a map, only
+	 * the last edge added between two blocks is kept.
+	 */
+	private void addEdge( int leader, byte kind, int key ){
+		final int target = blockIds[leader];
+		int edge = edgeSlots[target];
+		if( edge < 0 ){
+			if( edgeCount == edgeTargets.length ){
+				edgeTargets = Arrays.copyOf( edgeTargets, edgeCount * 2 );
+				edgeKinds = Arrays.copyOf( edgeKinds, edgeCount * 2 );
+				edgeKeys = Arrays.copyOf( edgeKeys, edgeCount * 2 );
+			}
+			edge = edgeCount++;
+			edgeSlots[target] = edge;
+			edgeTargets[edge] = target;
+		}
+		edgeKinds[edge] = kind;
+		edgeKeys[edge] = key;
+	}
+	
+	/**
+	 * Ends the edges of the block being populated
+	 * @return The index after its last edge
+	 */
+	private int endSource(){
+		for( int edge = sourceStart; edge < edgeCount; edge++ ){
+			edgeSlots[edgeTargets[edge]] = -1;
+		}
+		sourceStart = edgeCount;
+		return edgeCount;
+	}
+	
 	/**
 	 * This method extracts addresses from instructions that are used as
 	 * starting and ending points of the basics blocks.
@@ -90,10 +262,11 @@ public final class ControlFlowGraphExtractor {
 	 */
 	public void extractAdrresses( AbstractInsnNode instruction, int i, InsnList instructions){
 		
-		if (isPEI(instruction)){
-			bbBoundAdrresses.add( i+1 );
-			bbMap.put( i+1, new BasicBlock(i+1) );
-		}else{
+		final int flags = OpcodeTable.getFlags( instruction.getOpcode() );
+		if( (flags & blockEndMask) != 0 ){
+			leaders.set( i+1 );
+		}
+		if( (flags & OpcodeTable.BRANCH) != 0 ){
 			switch (instruction.getType()) {
 	
 				case AbstractInsnNode.JUMP_INSN:
@@ -102,11 +275,8 @@ public final class ControlFlowGraphExtractor {
 				    // IF_ACMPNE, GOTO, JSR, IFNULL or IFNONNULL.
 				{
 					final LabelNode targetInstruction = ((JumpInsnNode)instruction).label;
-					final int targetId = instructions.indexOf(targetInstruction);
-					bbBoundAdrresses.add( targetId );
-					bbMap.put( targetId, new BasicBlock(targetId) );
-					bbBoundAdrresses.add( i+1 );
-					bbMap.put( i+1, new BasicBlock(i+1) );
+					leaders.set( instructions.indexOf(targetInstruction) );
+					leaders.set( i+1 );
 					break;
 				}
 				case AbstractInsnNode.LOOKUPSWITCH_INSN:
@@ -115,15 +285,10 @@ public final class ControlFlowGraphExtractor {
 					final List<?> labels = ((LookupSwitchInsnNode)instruction).labels;
 					for (int t=0; t<labels.size(); t++) {
 						final LabelNode targetInstruction = (LabelNode)labels.get(t);
-						final int targetId = instructions.indexOf(targetInstruction);
-						bbBoundAdrresses.add( targetId );
-						bbMap.put( targetId, new BasicBlock(targetId) );
+						leaders.set( instructions.indexOf(targetInstruction) );
 					}
 					final LabelNode defaultTargetInstruction = ((LookupSwitchInsnNode)instruction).dflt;
-					final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-					bbBoundAdrresses.add( defaultTargetId );
-					bbMap.put( defaultTargetId, new BasicBlock(defaultTargetId) );
-					// bbBoundAdrresses.add( i+1 );
+					leaders.set( instructions.indexOf(defaultTargetInstruction) );
 					break;
 				}
 				case AbstractInsnNode.TABLESWITCH_INSN:
@@ -132,14 +297,10 @@ public final class ControlFlowGraphExtractor {
 					final List<?> labels = ((TableSwitchInsnNode)instruction).labels;
 					for( int t=0; t<labels.size(); t++ ){
 						final LabelNode targetInstruction = (LabelNode)labels.get(t);
-						final int targetId = instructions.indexOf(targetInstruction);
-						bbBoundAdrresses.add( targetId );
-						bbMap.put( targetId, new BasicBlock(targetId) );
+						leaders.set( instructions.indexOf(targetInstruction) );
 					}
 					final LabelNode defaultTargetInstruction = ((TableSwitchInsnNode)instruction).dflt;
-					final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-					bbBoundAdrresses.add( defaultTargetId );
-					bbMap.put( defaultTargetId, new BasicBlock(defaultTargetId) );
+					leaders.set( instructions.indexOf(defaultTargetInstruction) );
 					break;
 				}
 			}
@@ -147,7 +308,7 @@ public final class ControlFlowGraphExtractor {
 	}
 	
 	void populateBasicBlock( BasicBlock bb, int startOfBlock, 
-			int endOfBlock, InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks){
+			int endOfBlock, InsnList instructions, ExceptionHandlerIndex handlerIndex){
 		AbstractInsnNode lastSignificantInstruction = null;
 		
 		// Add mnemonic instructions
@@ -166,20 +327,15 @@ public final class ControlFlowGraphExtractor {
 		if (isPEI(lastSignificantInstruction)){
 			boolean isFinally = false;
 			final int instNumber = instructions.indexOf(lastSignificantInstruction);
-			for(TryCatchBlockNode block: tryCatchBlocks){
-				final int start = instructions.indexOf(block.start); 
-				final int end = instructions.indexOf(block.end);
-				final int handler = instructions.indexOf(block.handler);
-				if(instNumber>=start && instNumber<end){
-					bb.addEdge( bbMap.get(handler), "ex" );
-					if(block.type == null){
-						isFinally=true;
-						break;
-					}
+			final int segment = handlerIndex.findSegment(instNumber);
+			if( segment >= 0 ){
+				for( int h = handlerIndex.getHandlerStart(segment); h < handlerIndex.getHandlerEnd(segment); h++ ){
+					addEdge( handlerIndex.getHandler(h), ControlFlowGraph.EDGE_EXCEPTION, 0 );
+					isFinally = handlerIndex.isCatchAll(h);
 				}
 			}
 			if(!isFinally){
-				bb.addEdge( bbMap.get(instructions.size()), "ex" );
+				addEdge( instructions.size(), ControlFlowGraph.EDGE_EXCEPTION, 0 );
 			}
 		}
 		
@@ -193,10 +349,10 @@ public final class ControlFlowGraphExtractor {
 		{
 			final LabelNode targetInstruction = ((JumpInsnNode)lastSignificantInstruction).label;
 			final int targetId = instructions.indexOf(targetInstruction);
-			bb.addEdge( bbMap.get(targetId), "T" );
+			addEdge( targetId, ControlFlowGraph.EDGE_TRUE, 0 );
 			
-			if( lastSignificantInstruction.getOpcode() != Opcodes.GOTO ){
-				bb.addEdge( bbMap.get(endOfBlock + 1), "F" );
+			if( !OpcodeTable.isTerminator(lastSignificantInstruction.getOpcode()) ){
+				addEdge( endOfBlock + 1, ControlFlowGraph.EDGE_FALSE, 0 );
 			}
 			break;
 		}
@@ -209,11 +365,11 @@ public final class ControlFlowGraphExtractor {
 				final int key = (Integer)keys.get(t);
 				final LabelNode targetInstruction = (LabelNode)labels.get(t);
 				final int targetId = instructions.indexOf(targetInstruction);
-				bb.addEdge( bbMap.get(targetId), "Case " + key );
+				addEdge( targetId, ControlFlowGraph.EDGE_CASE, key );
 			}
 			final LabelNode defaultTargetInstruction = ((LookupSwitchInsnNode)lastSignificantInstruction).dflt;
 			final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-			bb.addEdge( bbMap.get(defaultTargetId), "default" );
+			addEdge( defaultTargetId, ControlFlowGraph.EDGE_DEFAULT, 0 );
 			break;
 		}
 		case AbstractInsnNode.TABLESWITCH_INSN:
@@ -225,27 +381,22 @@ public final class ControlFlowGraphExtractor {
 				final int key = minKey+t;
 				final LabelNode targetInstruction = (LabelNode)labels.get(t);
 				final int targetId = instructions.indexOf(targetInstruction);
-				bb.addEdge( bbMap.get(targetId), "Case " + key );
+				addEdge( targetId, ControlFlowGraph.EDGE_CASE, key );
 			}
 			final LabelNode defaultTargetInstruction = ((TableSwitchInsnNode)lastSignificantInstruction).dflt;
 			final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-			bb.addEdge( bbMap.get(defaultTargetId), "default" );
+			addEdge( defaultTargetId, ControlFlowGraph.EDGE_DEFAULT, 0 );
 			break;
 		}
 		case AbstractInsnNode.INSN:
 		{
-			if( lastSignificantInstruction.getOpcode() == Opcodes.IRETURN ||
-				lastSignificantInstruction.getOpcode() == Opcodes.LRETURN ||
-				lastSignificantInstruction.getOpcode() == Opcodes.FRETURN ||
-				lastSignificantInstruction.getOpcode() == Opcodes.DRETURN ||
-				lastSignificantInstruction.getOpcode() == Opcodes.ARETURN ||
-				lastSignificantInstruction.getOpcode() == Opcodes.RETURN) {
+			if( OpcodeTable.isReturn(lastSignificantInstruction.getOpcode()) ){
 				// Chain the return blocks with the "end" dummy basic block
-				bb.addEdge( bbMap.get( instructions.size() ), "" );
+				addEdge( instructions.size(), ControlFlowGraph.EDGE_UNCONDITIONAL, 0 );
 			} else {
 				if( endOfBlock != instructions.size() -1 && // Don't chain last line
-					lastSignificantInstruction.getOpcode() != Opcodes.ATHROW ) // Exception 
-					bb.addEdge( bbMap.get(endOfBlock + 1), "" );
+					!OpcodeTable.isTerminator(lastSignificantInstruction.getOpcode()) ) // ATHROW
+					addEdge( endOfBlock + 1, ControlFlowGraph.EDGE_UNCONDITIONAL, 0 );
 			}
 			break;
 		}
@@ -253,61 +404,26 @@ public final class ControlFlowGraphExtractor {
 		default:
 			if( endOfBlock != instructions.size() -1 ){
 				// Don't chain last line
-				bb.addEdge( bbMap.get(endOfBlock + 1), "" );
+				addEdge( endOfBlock + 1, ControlFlowGraph.EDGE_UNCONDITIONAL, 0 );
 			}	
 		}		
 	}
 	
+	/**
+	 * @return Whether the instruction can throw an exception, in the
+	 * model and method of the last createCFG
+	 */
 	public boolean isPEI( AbstractInsnNode instruction ){
-		switch (instruction.getOpcode()) {
-		  case Opcodes.AALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.AASTORE: // NullPointerException, ArrayIndexOutOfBoundsException, ArrayStoreException
-		  case Opcodes.ANEWARRAY: // NegativeArraySizeException, (linking)
-		  case Opcodes.ARETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.ARRAYLENGTH: // NullPointerException
-		  case Opcodes.ATHROW: // NullPointerException, IllegalMonitorStateException (if synchronized), 
-		  case Opcodes.BALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.BASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.CALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.CASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.CHECKCAST: // ClassCastException, (linking)
-		  case Opcodes.DALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.DASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.DRETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.FALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.FASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.FRETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.GETFIELD: // NullPointerException, (linking)
-		  case Opcodes.GETSTATIC: // Error*, (linking)
-		  case Opcodes.IALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.IASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.IDIV: // ArithmeticException
-		  case Opcodes.INSTANCEOF: // (linking)
-		  case Opcodes.INVOKEDYNAMIC: // what's this??
-		  case Opcodes.INVOKEINTERFACE: // NullPointerException, IncompatibleClassChangeError, AbstractMethodError, IllegalAccessError, AbstractMethodError, UnsatisfiedLinkError, (linking)
-		  case Opcodes.INVOKESPECIAL: // NullPointerException, UnsatisfiedLinkError, (linking)
-		  case Opcodes.INVOKESTATIC: // UnsatisfiedLinkError, Error*, (linking)
-		  case Opcodes.INVOKEVIRTUAL: // NullPointerException, AbstractMethodError, UnsatisfiedLinkError, (linking)
-		  case Opcodes.IREM: // ArithmeticException
-		  case Opcodes.IRETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.LALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.LASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.LDIV: // ArithmeticException
-		  case Opcodes.LREM: // ArithmeticException
-		  case Opcodes.LRETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.MONITORENTER: // NullPointerException
-		  case Opcodes.MONITOREXIT: // NullPointerException, IllegalMonitorStateException
-		  case Opcodes.MULTIANEWARRAY: // NegativeArraySizeException, (linking)
-		  case Opcodes.NEW: // Error*, (linking)
-		  case Opcodes.NEWARRAY: // NegativeArraySizeException
-		  case Opcodes.PUTFIELD: // NullPointerException, (linking)
-		  case Opcodes.PUTSTATIC: // Error*, (linking)
-		  case Opcodes.RETURN: // IllegalMonitorStateException (if synchronized)
-		  case Opcodes.SALOAD: // NullPointerException, ArrayIndexOutOfBoundsException
-		  case Opcodes.SASTORE: // NullPointerException, ArrayIndexOutOfBoundsException
-		    return true;
-		}
-		return false;
+		return (OpcodeTable.getFlags(instruction.getOpcode()) & peiMask) != 0;
+	}
+	
+	/**
+	 * The original model, where every return is a PEI; see OpcodeTable
+	 * @param opcode An opcode, or -1 for pseudo instructions
+	 * @return Whether an instruction with this opcode can throw an exception
+	 */
+	public static boolean isPEI( int opcode ){
+		return OpcodeTable.isPEI( opcode );
 	}
 
 	public static void main(final String[] args) throws IOException {
@@ -318,6 +434,14 @@ public final class ControlFlowGraphExtractor {
 		final ClassNode clazz = new ClassNode();
 		cr.accept(clazz, 0);
 		
+		if( methodNameAndDescriptor.equals("-all") ){
+			// All the methods, in a single file
+			try( DotFileCreator dotCreator = DotFileCreator.open(clazz.name + ".gv") ){
+				dotCreator.appendClass( clazz );
+			}
+			return;
+		}
+		
 		@SuppressWarnings("unchecked")
 		MethodNode method = findMethod( clazz.methods, methodNameAndDescriptor );
 		ControlFlowGraphExtractor cfgExt = new ControlFlowGraphExtractor();
@@ -326,22 +450,108 @@ public final class ControlFlowGraphExtractor {
 		DotFileCreator dotCreator = new DotFileCreator( graph, 
 				method.instructions, clazz.name + "_" + method.name );
 		dotCreator.generate();
+		
+		if( args.length > 2 && args[2].equals("-dominators") ){
+			// Also write the Dominance Tree
+			new DotFileCreator( graph, method.instructions, clazz.name + "_" + method.name + "_dom" )
+				.generateDominatorTree( new DominatorTree(graph) );
+		}
 	}
 
-	public static void analyzeClassReader(ClassReader cr, String jarfile) throws IOException {
+	public static void analyzeClassReader(ClassReader cr, String jarfile, CsvFileCreator csv) throws IOException {
+		csv.writeCsvStatistics( extractStatistics(cr, jarfile) );
+	}
+
+	/**
+	 * Extracts the Control Flow Graph of every method of a class and
+	 * collects the statistics, without writing them anywhere.
+	 * It can be called concurrently for different classes: the graphs are
+	 * built by the extractor of the calling thread (forCurrentThread()),
+	 * and the names are interned into the process-wide SymbolTable, which
+	 * is thread-safe. The consumers of the options are called on the
+	 * calling thread.
+	 * 
+	 * @param cr The class to analyze
+	 * @param jarfile The name of the jar the class belongs to
+	 * @return The statistics of the methods, in declaration order
+	 */
+	public static List<MethodStatistics> extractStatistics(ClassReader cr, String jarfile) {
+		return extractStatistics(cr, jarfile, new ExtractionOptions());
+	}
+
+	/**
+	 * Same as {@link #extractStatistics(ClassReader, String)}, with the
+	 * given parsing options, graph and instruction consumers and metrics.
+	 */
+	public static List<MethodStatistics> extractStatistics(ClassReader cr, String jarfile, ExtractionOptions options) {
+		final int parsingOptions = options.getParsingOptions();
+		final Consumer<ControlFlowGraph> graphs = options.getGraphConsumer();
+		final Consumer<InsnList> instructions = options.getInstructionConsumer();
+		final AnalysisMetrics metrics = options.getMetrics();
+		final AnalysisEvents.ClassAnalysis event = AnalysisEvents.beginClass();
+		int edges = 0;
+		long time = metrics == null ? 0 : System.nanoTime();
 		final ClassNode clazz = new ClassNode();
-		cr.accept(clazz, 0);
+		cr.accept(clazz, parsingOptions & ~PRECISE_PEI);
+		if( metrics != null ){
+			metrics.addTime( AnalysisMetrics.Phase.PARSE, time );
+		}
 
+		final int slash = clazz.name.lastIndexOf('/');
+		final String packageName = slash < 0 ? "" : clazz.name.substring(0, slash);
+		final String className = clazz.name.substring(slash + 1);
+		// Interned once for all the methods
+		final SymbolTable symbols = SymbolTable.getShared();
+		final int benchmarkId = symbols.intern( jarfile );
+		final int packageId = symbols.intern( packageName );
+		final int classId = symbols.intern( className );
+		final List<MethodStatistics> result = new ArrayList<>(clazz.methods.size());
+		final ControlFlowGraphExtractor cfgExt = forCurrentThread();
+		cfgExt.setMetrics( metrics );
+		cfgExt.setPrecisePEI( (parsingOptions & PRECISE_PEI) != 0 );
 		for( int m = 0; m < clazz.methods.size(); m++ ){
 			@SuppressWarnings("unchecked")
 			final MethodNode method = ((List<MethodNode>)clazz.methods).get(m);
-            ControlFlowGraphExtractor cfgExt = new ControlFlowGraphExtractor();
-            ControlFlowGraph graph = cfgExt.createCFG( clazz.name, method );
+			ControlFlowGraph graph = cfgExt.createCFG( clazz.name, method );
+			time = metrics == null ? 0 : System.nanoTime();
+			LoopAnalysis loops = new LoopAnalysis( graph );
+			final int dominatorTreeHeight = new DominatorTree(graph).getHeight();
+			if( metrics != null ){
+				metrics.addTime( AnalysisMetrics.Phase.ANALYSIS, time );
+			}
+
+			result.add( new MethodStatistics(benchmarkId, packageId, classId, graph.getMethodId(),
+					method.access, method.instructions.size(), graph.getBasicBlockCount() - 2,
+					dominatorTreeHeight, loops.getLoopCount(), loops.getMaxDepth()) );
+			edges += graph.getEdgeCount();
+			if( graphs != null ){
+				graphs.accept( graph );
+			}
+			if( instructions != null ){
+				instructions.accept( method.instructions );
+			}
+		}
+		if( event != null ){
+			event.end();
+			if( event.shouldCommit() ){
+				commitClassEvent( event, clazz.name, result, edges );
+			}
+		}
+		return result;
+	}
 
-            String packageName = clazz.name.substring(0, clazz.name.lastIndexOf('/'));
-            CsvFileCreator.writeCsvStatistics(jarfile, packageName, graph, 
-            	 	method.access, method.instructions.size());
+	/**
+	 * Fills and commits the event of the analysis of a class
+	 */
+	static void commitClassEvent( AnalysisEvents.ClassAnalysis event, String className,
+			List<MethodStatistics> statistics, int edges ){
+		int instructions = 0;
+		int blocks = 0;
+		for( int m = 0; m < statistics.size(); m++ ){
+			instructions += statistics.get(m).getInstructionsCount();
+			blocks += statistics.get(m).getBasicBlocksCount();
 		}
+		event.commit( className, statistics.size(), instructions, blocks, edges );
 	}
 
 	public static MethodNode findMethod( List<MethodNode> methodList, String name ){
@@ -1,47 +1,116 @@
 package ch.usi.inf.sp.cfg;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 
 import org.objectweb.asm.Opcodes;
 
+/**
+ * Writes the statistics of the analyzed methods to a csv file.
+ * The file is opened once, when the creator is built, and
+ * flushed when it is closed. All the writing methods are
+ * synchronized, so the same creator can be shared by several threads.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class CsvFileCreator implements Closeable {
 
-public class CsvFileCreator {
-	
 	public static final String outfname = "bbsizes.csv";
-	
-	public static HashMap<Integer, String> accessTable;
-	
-	private static boolean inited = false;
-	
-	public static void writeCsvStatistics( String benchmark, String packageName, 
-			ControlFlowGraph cfg, int access, int instructionsCount ) throws IOException{
-		if (!inited) {
-			FileWriter fstream = new FileWriter( outfname, false );
-			fstream.write("benckmark,package,class,methodName,access,instructions,bblocks\n");
-			fstream.close();
-			accessTable = new HashMap<>();
-			accessTable.put(Opcodes.ACC_PUBLIC, "public");
-			accessTable.put(Opcodes.ACC_PRIVATE, "private");
-			accessTable.put(Opcodes.ACC_PROTECTED, "protected");
-			inited = true;
+
+	public static final String header = "benckmark,package,class,methodName,access,instructions,bblocks,domheight,loops,maxloopdepth\n";
+
+	public static final HashMap<Integer, String> accessTable;
+
+	static {
+		accessTable = new HashMap<>();
+		accessTable.put(Opcodes.ACC_PUBLIC, "public");
+		accessTable.put(Opcodes.ACC_PRIVATE, "private");
+		accessTable.put(Opcodes.ACC_PROTECTED, "protected");
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out;
+	private final StringBuilder row;
+
+	public CsvFileCreator() throws IOException{
+		this( outfname );
+	}
+
+	public CsvFileCreator( String filename ) throws IOException{
+		this( new BufferedWriter( new FileWriter( filename, false ), BUFFER_SIZE ) );
+	}
+
+	/**
+	 * Creates a csv file creator that writes to the given writer,
+	 * which is closed by close()
+	 */
+	public CsvFileCreator( Writer out ) throws IOException{
+		this.out = out;
+		row = new StringBuilder( 128 );
+		out.write( header );
+	}
+
+	public synchronized void writeCsvStatistics( MethodStatistics stats ) throws IOException{
+		appendRow( stats );
+	}
+
+	/**
+	 * Writes the statistics of several methods (e.g. all the methods
+	 * of a class) as a single batch, so that rows written concurrently
+	 * by other threads are not interleaved with them.
+	 */
+	public synchronized void writeCsvStatistics( List<MethodStatistics> batch ) throws IOException{
+		for( int i = 0; i < batch.size(); i++ ){
+			appendRow( batch.get(i) );
+		}
+	}
+
+	private void appendRow( MethodStatistics stats ) throws IOException{
+		row.setLength( 0 );
+		row.append( stats.getBenchmark() ).append( ',' )
+			.append( stats.getPackageName() ).append( ',' )
+			.append( stats.getClassName() ).append( ',' )
+			.append( stats.getMethodName() ).append( ',' )
+			.append( accessTable.getOrDefault(stats.getAccess(), "other") ).append( ',' )
+			.append( stats.getInstructionsCount() ).append( ',' )
+			.append( stats.getBasicBlocksCount() ).append( ',' )
+			.append( stats.getDominatorTreeHeight() ).append( ',' )
+			.append( stats.getLoopCount() ).append( ',' )
+			.append( stats.getMaxLoopDepth() ).append( '\n' );
+		out.append( row );
+	}
+
+	/**
+	 * Copies the rows of a csv file written by another creator, e.g. by
+	 * another process, without its header
+	 */
+	public synchronized void appendRows( String filename ) throws IOException{
+		try( BufferedReader in = new BufferedReader( new FileReader(filename), BUFFER_SIZE ) ){
+			if( !header.equals(in.readLine() + "\n") ){
+				throw new IOException( filename + ": not a statistics csv file" );
+			}
+			final char[] buffer = new char[BUFFER_SIZE];
+			for( int read = in.read(buffer); read >= 0; read = in.read(buffer) ){
+				out.write( buffer, 0, read );
+			}
 		}
-		
-		FileWriter fstream = new FileWriter( outfname, true );
-		BufferedWriter out = new BufferedWriter(fstream);
-		
-		String className = cfg.getClassName().substring(cfg.getClassName().lastIndexOf('/') + 1);
-		out.write(benchmark + ",");
-		out.write(packageName + ",");
-		out.write(className + ",");
-		out.write(cfg.getMethodName() + ",");
-		out.write(accessTable.getOrDefault(access, "other") + ",");
-		out.write(instructionsCount+ ","); 
-		out.write(cfg.getBasicBlockCount() - 2 + "\n");
-		
+	}
+
+	public synchronized void flush() throws IOException{
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException{
 		out.close();
 	}
-	
+
 }
@@ -0,0 +1,293 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.Arrays;
+
+/**
+ * The Dominance Tree of a Control Flow Graph, rooted at the dummy "start"
+ * block; the dummy "end" block is part of the tree like any other block.
+ * <p>
+ * Immediate dominators are computed with the algorithm of Lengauer and
+ * Tarjan (semidominators and path compression, O(m log n)), working on
+ * int arrays indexed by depth first search number; the iterative
+ * algorithm of Cooper, Harvey and Kennedy is simpler, but becomes
+ * quadratic on methods with tens of thousands of blocks and many back
+ * edges. Blocks that cannot be reached from the root (e.g. the empty
+ * blocks after a return) have no dominator and are not part of the tree.
+ * <p>
+ * The reachable blocks are also listed in reverse postorder, for the
+ * analyses built on top of the tree, and the tree is numbered in preorder,
+ * so that dominates() answers in constant time.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class DominatorTree {
+
+	private final int root;
+	// Reachable blocks in reverse postorder
+	private final int[] reversePostorder;
+	// Block -> immediate dominator, -1 for the root and unreachable blocks
+	private final int[] idom;
+	// Block -> depth in the tree, -1 for unreachable blocks
+	private final int[] depth;
+	// Block -> preorder interval of its subtree, [preorder, lastDescendant]
+	private final int[] preorder;
+	private final int[] lastDescendant;
+	private int height;
+
+	/**
+	 * Computes the Dominance Tree of a graph, rooted at its "start" block
+	 */
+	public DominatorTree( ControlFlowGraph cfg ){
+		this( cfg.getBasicBlockCount(), cfg.getEdgeOffsets(), cfg.getEdgeTargets(), 0 );
+	}
+
+	/**
+	 * Computes the Dominance Tree of a graph given in compressed sparse
+	 * row form: the successors of block b are the targets from
+	 * edgeOffsets[b] (inclusive) to edgeOffsets[b+1] (exclusive).
+	 *
+	 * @param blockCount The number of blocks
+	 * @param edgeOffsets The first edge of every block, blockCount + 1 entries
+	 * @param edgeTargets The target block of every edge
+	 * @param root The entry block
+	 */
+	public DominatorTree( int blockCount, int[] edgeOffsets, int[] edgeTargets, int root ){
+		this.root = root;
+		idom = new int[blockCount];
+		depth = new int[blockCount];
+		preorder = new int[blockCount];
+		lastDescendant = new int[blockCount];
+		Arrays.fill( idom, -1 );
+		Arrays.fill( depth, -1 );
+		Arrays.fill( preorder, -1 );
+		Arrays.fill( lastDescendant, -1 );
+
+		// Depth first search: number -> block, block -> number (-1 if unreachable)
+		final int[] vertex = new int[blockCount];
+		final int[] number = new int[blockCount];
+		final int[] parent = new int[blockCount];
+		final int[] postorder = new int[blockCount];
+		final int reachable = search( blockCount, edgeOffsets, edgeTargets, vertex, number, parent, postorder );
+		reversePostorder = new int[reachable];
+		for( int i = 0; i < reachable; i++ ){
+			reversePostorder[i] = postorder[reachable - 1 - i];
+		}
+
+		// Predecessors of the reachable blocks, by number
+		final int[] predOffsets = new int[reachable + 1];
+		for( int v = 0; v < reachable; v++ ){
+			final int b = vertex[v];
+			for( int e = edgeOffsets[b]; e < edgeOffsets[b + 1]; e++ ){
+				predOffsets[number[edgeTargets[e]] + 1]++;
+			}
+		}
+		for( int v = 0; v < reachable; v++ ){
+			predOffsets[v + 1] += predOffsets[v];
+		}
+		final int[] preds = new int[predOffsets[reachable]];
+		final int[] fill = Arrays.copyOf( predOffsets, reachable );
+		for( int v = 0; v < reachable; v++ ){
+			final int b = vertex[v];
+			for( int e = edgeOffsets[b]; e < edgeOffsets[b + 1]; e++ ){
+				preds[fill[number[edgeTargets[e]]]++] = v;
+			}
+		}
+
+		// Semidominators, then immediate dominators, by number
+		final int[] semi = new int[reachable];
+		final int[] label = new int[reachable];
+		final int[] ancestor = new int[reachable];
+		final int[] doms = new int[reachable];
+		final int[] bucketHead = new int[reachable];
+		final int[] bucketNext = new int[reachable];
+		final int[] path = new int[reachable];
+		for( int v = 0; v < reachable; v++ ){
+			semi[v] = v;
+			label[v] = v;
+		}
+		Arrays.fill( ancestor, -1 );
+		Arrays.fill( bucketHead, -1 );
+		for( int w = reachable - 1; w > 0; w-- ){
+			for( int p = predOffsets[w]; p < predOffsets[w + 1]; p++ ){
+				final int u = eval( preds[p], ancestor, label, semi, path );
+				if( semi[u] < semi[w] ){
+					semi[w] = semi[u];
+				}
+			}
+			bucketNext[w] = bucketHead[semi[w]];
+			bucketHead[semi[w]] = w;
+			final int pw = parent[w];
+			ancestor[w] = pw;
+			for( int v = bucketHead[pw]; v >= 0; v = bucketNext[v] ){
+				final int u = eval( v, ancestor, label, semi, path );
+				doms[v] = semi[u] < semi[v] ? u : pw;
+			}
+			bucketHead[pw] = -1;
+		}
+		for( int w = 1; w < reachable; w++ ){
+			if( doms[w] != semi[w] ){
+				doms[w] = doms[doms[w]];
+			}
+		}
+
+		// Dominators have smaller numbers than the blocks they dominate
+		depth[root] = 0;
+		for( int w = 1; w < reachable; w++ ){
+			final int b = vertex[w];
+			idom[b] = vertex[doms[w]];
+			depth[b] = depth[idom[b]] + 1;
+			height = Math.max( height, depth[b] );
+		}
+		numberTree( reachable, doms, vertex );
+	}
+
+	/**
+	 * Depth first search from the root, without recursion (methods can
+	 * have tens of thousands of blocks, too many for a recursive one).
+	 *
+	 * @return The number of reachable blocks
+	 */
+	private int search( int blockCount, int[] edgeOffsets, int[] edgeTargets,
+			int[] vertex, int[] number, int[] parent, int[] postorder ){
+		final int[] stack = new int[blockCount];
+		final int[] next = new int[blockCount]; // Next edge to follow, for the blocks on the stack
+		Arrays.fill( number, -1 );
+		int count = 0;
+		int finished = 0;
+		int top = 0;
+		stack[top++] = root;
+		next[root] = edgeOffsets[root];
+		number[root] = count;
+		vertex[count++] = root;
+		while( top > 0 ){
+			final int b = stack[top - 1];
+			if( next[b] < edgeOffsets[b + 1] ){
+				final int target = edgeTargets[next[b]++];
+				if( number[target] < 0 ){
+					parent[count] = number[b];
+					number[target] = count;
+					vertex[count++] = target;
+					next[target] = edgeOffsets[target];
+					stack[top++] = target;
+				}
+			}else{
+				postorder[finished++] = b;
+				top--;
+			}
+		}
+		return count;
+	}
+
+	// The vertex with the smallest semidominator on the compressed path from v
+	private static int eval( int v, int[] ancestor, int[] label, int[] semi, int[] path ){
+		if( ancestor[v] < 0 ){
+			return v;
+		}
+		// Collect the path up to the child of the forest root, then compress it top down
+		int length = 0;
+		for( int x = v; ancestor[ancestor[x]] >= 0; x = ancestor[x] ){
+			path[length++] = x;
+		}
+		for( int i = length - 1; i >= 0; i-- ){
+			final int x = path[i];
+			final int a = ancestor[x];
+			if( semi[label[a]] < semi[label[x]] ){
+				label[x] = label[a];
+			}
+			ancestor[x] = ancestor[a];
+		}
+		return label[v];
+	}
+
+	// Numbers the tree in preorder, again without recursion
+	private void numberTree( int reachable, int[] doms, int[] vertex ){
+		final int[] childOffsets = new int[reachable + 1];
+		for( int w = 1; w < reachable; w++ ){
+			childOffsets[doms[w] + 1]++;
+		}
+		for( int w = 0; w < reachable; w++ ){
+			childOffsets[w + 1] += childOffsets[w];
+		}
+		final int[] children = new int[reachable];
+		final int[] fill = Arrays.copyOf( childOffsets, reachable );
+		for( int w = 1; w < reachable; w++ ){
+			children[fill[doms[w]]++] = w;
+		}
+
+		final int[] stack = new int[reachable];
+		final int[] next = Arrays.copyOf( childOffsets, reachable );
+		int counter = 0;
+		int top = 0;
+		stack[top++] = 0;
+		preorder[root] = counter++;
+		while( top > 0 ){
+			final int w = stack[top - 1];
+			if( next[w] < childOffsets[w + 1] ){
+				final int child = children[next[w]++];
+				preorder[vertex[child]] = counter++;
+				stack[top++] = child;
+			}else{
+				lastDescendant[vertex[w]] = counter - 1;
+				top--;
+			}
+		}
+	}
+
+	public int getRoot(){
+		return root;
+	}
+
+	public int getBlockCount(){
+		return idom.length;
+	}
+
+	/**
+	 * @return The immediate dominator of a block, -1 for the root
+	 * and for the blocks that cannot be reached
+	 */
+	public int getImmediateDominator( int block ){
+		return idom[block];
+	}
+
+	public boolean isReachable( int block ){
+		return depth[block] >= 0;
+	}
+
+	/**
+	 * @return The depth of a block in the tree (0 for the root),
+	 * -1 if the block cannot be reached
+	 */
+	public int getDepth( int block ){
+		return depth[block];
+	}
+
+	/**
+	 * @return The depth of the deepest block of the tree
+	 */
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * @return Whether every path from the root to block b goes through
+	 * block a; a block dominates itself
+	 */
+	public boolean dominates( int a, int b ){
+		return preorder[a] >= 0 && preorder[b] >= 0 &&
+				preorder[a] <= preorder[b] && preorder[b] <= lastDescendant[a];
+	}
+
+	/**
+	 * @return The number of reachable blocks
+	 */
+	public int getReachableCount(){
+		return reversePostorder.length;
+	}
+
+	/**
+	 * @return The i-th reachable block in reverse postorder
+	 */
+	public int getReversePostorder( int i ){
+		return reversePostorder[i];
+	}
+}
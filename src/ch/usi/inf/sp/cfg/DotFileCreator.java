@@ -1,13 +1,16 @@
 package ch.usi.inf.sp.cfg;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Iterator;
 import java.util.List;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
@@ -17,6 +20,7 @@ import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.MultiANewArrayInsnNode;
 import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
@@ -26,38 +30,149 @@ import org.objectweb.asm.util.Printer;
 /**
  * Make a graphical representation of a Control Flow Graph using
  * the graphviz dot file format.
+ * <p>
+ * A creator can also export many graphs (e.g. all the methods of a class
+ * or of a jar) to a single output, one digraph after the other: every
+ * graph is rendered into the same reusable StringBuilder, and then
+ * appended to the output at once.
  * 
  * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
  */
-public class DotFileCreator {
+public class DotFileCreator implements Closeable {
+	
+	private static final int BUFFER_SIZE = 1 << 16;
 	
 	ControlFlowGraph cfg;
 	InsnList instructions;
-	BufferedWriter out;
+	Appendable out;
+	private final StringBuilder sb;
 	
 	public DotFileCreator( ControlFlowGraph cfg, InsnList instructions,
 			String filename ) throws IOException{
+		this( cfg, instructions, new BufferedWriter(new FileWriter( filename + ".gv", false )) );
+	}
+	
+	/**
+	 * Creates a dot file creator that writes to the given writer,
+	 * which is closed by generate()
+	 */
+	public DotFileCreator( ControlFlowGraph cfg, InsnList instructions, Writer out ){
+		this( out );
 		this.cfg = cfg;
 		this.instructions = instructions;
-		FileWriter fstream = new FileWriter( filename + ".gv", false );
-		out = new BufferedWriter(fstream);
+	}
+	
+	/**
+	 * Creates a dot file creator that exports several graphs, added
+	 * with append(), to the same output; close() closes the output
+	 * if it is Closeable.
+	 */
+	public DotFileCreator( Appendable out ){
+		this.out = out;
+		sb = new StringBuilder( 1024 );
+	}
+	
+	/**
+	 * Creates a dot file creator that exports several graphs to a
+	 * single buffered file
+	 */
+	public static DotFileCreator open( String filename ) throws IOException{
+		return new DotFileCreator( new BufferedWriter(new FileWriter( filename, false ), BUFFER_SIZE) );
 	}
 	
 	public void generate() throws IOException{
+		append( cfg, instructions );
+		close();
+	}
+	
+	/**
+	 * Writes a graph as one more digraph of the output
+	 * 
+	 * @param cfg The graph
+	 * @param instructions The instructions of the method of the graph
+	 */
+	public void append( ControlFlowGraph cfg, InsnList instructions ) throws IOException{
+		this.cfg = cfg;
+		this.instructions = instructions;
+		sb.setLength( 0 );
 		printPrologue();
 		printBBNodes();
 		printEpilogue();
-		out.close();
+		out.append( sb );
+	}
+	
+	/**
+	 * Writes the graphs of all the methods of a class, in declaration order
+	 */
+	public void appendClass( ClassNode clazz ) throws IOException{
+		final ControlFlowGraphExtractor extractor = new ControlFlowGraphExtractor();
+		for( int m = 0; m < clazz.methods.size(); m++ ){
+			final MethodNode method = (MethodNode)clazz.methods.get(m);
+			append( extractor.createCFG(clazz.name, method), method.instructions );
+		}
+	}
+	
+	@Override
+	public void close() throws IOException{
+		if( out instanceof Closeable ){
+			((Closeable)out).close();
+		}
+	}
+	
+	/**
+	 * Writes the Dominance Tree of the graph instead of the graph itself:
+	 * one node per reachable block, one edge from every block to the
+	 * blocks it immediately dominates. Closes the writer like generate().
+	 */
+	public void generateDominatorTree( DominatorTree tree ) throws IOException{
+		sb.setLength( 0 );
+		sb.append( "digraph " ).append( cfg.getClassName() ).append( '_' ).append( cfg.getMethodName() ).append( "_dom" );
+		sb.append( " {\n" );
+		sb.append( "\tnode [shape=box]\n" );
+		for( int b = 0; b < cfg.getBasicBlockCount(); b++ ){
+			if( !tree.isReachable(b) ){
+				continue;
+			}
+			sb.append( '\t' );
+			appendNodeName( cfg.getBasicBlock(b) );
+			if( cfg.getBasicBlock(b).getBBAddress() < 0 ){
+				sb.append( " [shape=ellipse]" );
+			}
+			sb.append( '\n' );
+		}
+		for( int b = 0; b < cfg.getBasicBlockCount(); b++ ){
+			final int idom = tree.getImmediateDominator( b );
+			if( idom >= 0 ){
+				sb.append( '\t' );
+				appendNodeName( cfg.getBasicBlock(idom) );
+				sb.append( " -> " );
+				appendNodeName( cfg.getBasicBlock(b) );
+				sb.append( '\n' );
+			}
+		}
+		printEpilogue();
+		out.append( sb );
+		close();
 	}
 	
-	private void printPrologue() throws IOException{
-		out.write( "digraph " );
-		out.write( cfg.getClassName() + "_" + cfg.getMethodName() );
-		out.write( " {\n" );
-		out.write( "\tnode [shape=record]\n" );
+	private void appendNodeName( BasicBlock bb ){
+		if( bb.getBBAddress() == -1 ){
+			sb.append( 'S' );
+		}else if( bb.getBBAddress() == -2 ){
+			sb.append( 'E' );
+		}else{
+			sb.append( 'B' ).append( bb.getBBAddress() );
+		}
 	}
 	
-	private void printBBNodes() throws IOException{
+	private void printPrologue(){
+		sb.append( "digraph " );
+		sb.append( cfg.getClassName() ).append( '_' ).append( cfg.getMethodName() );
+		sb.append( " {\n" );
+		sb.append( "\tnode [shape=record]\n" );
+	}
+	
+	private void printBBNodes(){
 		Iterator<BasicBlock> bbIterator = cfg.getBasicBlocks();
 		while( bbIterator.hasNext() ){
 			BasicBlock bb = bbIterator.next();
@@ -69,17 +184,17 @@ public class DotFileCreator {
 		}
 	}
 	
-	private void printDotNode( BasicBlock bb ) throws IOException{
-		if( bb.getBBAddress() == -1 && bb.getEdges().hasNext() ){
+	private void printDotNode( BasicBlock bb ){
+		if( bb.getBBAddress() == -1 && bb.getEdgesLenght() > 0 ){
 			// "Start" dummy node
-			out.write( "\tS [label=\"S\", shape=ellipse]\n" );
-		}else if( bb.getBBAddress() == -2 && !bb.getEdges().hasNext() ){
+			sb.append( "\tS [label=\"S\", shape=ellipse]\n" );
+		}else if( bb.getBBAddress() == -2 && bb.getEdgesLenght() == 0 ){
 			// "End" dummy node
-			out.write( "\tE [label=\"E\", shape=ellipse]\n" );
+			sb.append( "\tE [label=\"E\", shape=ellipse]\n" );
 		}else{
 			// Inner node
-			out.write( "\tB" + bb.getBBAddress() + " [\n" );
-			out.write( "\t\tlabel=\"\\(B" + bb.getBBAddress() + "\\) | { <top> " );
+			sb.append( "\tB" ).append( bb.getBBAddress() ).append( " [\n" );
+			sb.append( "\t\tlabel=\"\\(B" ).append( bb.getBBAddress() ).append( "\\) | { <top> " );
 			int currentAddress = bb.getBBAddress();
 			boolean firstNode = true;
 			for( int i = 0 ; i < bb.getInstructionLenght() ; i++){
@@ -87,55 +202,70 @@ public class DotFileCreator {
 				int opcode = instruction.getOpcode();
 				if( opcode != -1){
 					if( !firstNode ){
-						out.write( " |" );
+						sb.append( " |" );
 						// Add
 						if( i ==  bb.getInstructionLenght() - 1 ){
-							out.write( " <bottom> " );
+							sb.append( " <bottom> " );
 						}
 					}
-					out.write( "" + currentAddress + ": ");
-					out.write( formatInstruction(instruction) );
+					sb.append( currentAddress ).append( ": " );
+					appendInstruction( instruction );
 					firstNode = false;
 				}
 				currentAddress++;
 			}
-			out.write( " }\"\n" );
-			out.write( "\t\t]\n" );
-			out.write( "\n" );
+			sb.append( " }\"\n" );
+			sb.append( "\t\t]\n" );
+			sb.append( "\n" );
 		}
 	}
 	
-	private void printEdges( BasicBlock bb ) throws IOException{
-		Iterator<BasicBlock> edges = bb.getEdges();
-		while( edges.hasNext() ){
-			BasicBlock targetBb = edges.next();
-			String label = bb.getEdge( targetBb );
-			String sourceName = bb.getBBAddress() == -1 ? "S" : "B" + bb.getBBAddress();
-			String targetName = targetBb.getBBAddress() == -2 ? "E" : "B" + targetBb.getBBAddress();
-			out.write( "\t" + sourceName + ":<bottom> -> ");
-			out.write( targetName + ":<top>");
-			if(label=="ex"){
-				out.write( " [style=dotted]\n\n");
+	private void printEdges( BasicBlock bb ){
+		final int end = cfg.getEdgeEnd( bb.getId() );
+		for( int edge = cfg.getEdgeStart( bb.getId() ); edge < end; edge++ ){
+			BasicBlock targetBb = cfg.getBasicBlock( cfg.getEdgeTarget(edge) );
+			sb.append( '\t' );
+			if( bb.getBBAddress() == -1 ){
+				sb.append( 'S' );
+			}else{
+				sb.append( 'B' ).append( bb.getBBAddress() );
+			}
+			sb.append( ":<bottom> -> " );
+			if( targetBb.getBBAddress() == -2 ){
+				sb.append( 'E' );
+			}else{
+				sb.append( 'B' ).append( targetBb.getBBAddress() );
+			}
+			sb.append( ":<top>" );
+			if( cfg.getEdgeKind(edge) == ControlFlowGraph.EDGE_EXCEPTION ){
+				sb.append( " [style=dotted]\n\n" );
 			}else{
-				out.write( " [label=\"" + label + "\"]\n\n");
+				sb.append( " [label=\"" ).append( cfg.getEdgeLabel(edge) ).append( "\"]\n\n" );
 			}
 		}
 	}
 
 	String formatInstruction( AbstractInsnNode instruction ){
-		String result = "";
+		final int start = sb.length();
+		appendInstruction( instruction );
+		final String result = sb.substring( start );
+		sb.setLength( start );
+		return result;
+	}
+	
+	private void appendInstruction( AbstractInsnNode instruction ){
 		final int opcode = instruction.getOpcode();
-		result += Printer.OPCODES[opcode] + " ";
+		sb.append( Printer.OPCODES[opcode] ).append( ' ' );
 		
 		switch (instruction.getType()) {
 		case AbstractInsnNode.INT_INSN:
 			// Opcodes: NEWARRAY, BIPUSH, SIPUSH.
 			if (instruction.getOpcode()==Opcodes.NEWARRAY) {
 				// NEWARRAY
-				result += Printer.TYPES[((IntInsnNode)instruction).operand];
+				sb.append( Printer.TYPES[((IntInsnNode)instruction).operand] );
 			} else {
 				// BIPUSH or SIPUSH
-				result += ((IntInsnNode)instruction).operand;
+				sb.append( ((IntInsnNode)instruction).operand );
 			}
 			break;
 		case AbstractInsnNode.JUMP_INSN:
@@ -144,50 +274,48 @@ public class DotFileCreator {
 		    // IF_ACMPNE, GOTO, JSR, IFNULL or IFNONNULL.
 		{
 			final LabelNode targetInstruction = ((JumpInsnNode)instruction).label;
-			result += "(B" + instructions.indexOf(targetInstruction) + ")";
+			sb.append( "(B" ).append( instructions.indexOf(targetInstruction) ).append( ')' );
 			break;
 		}
 		case AbstractInsnNode.LDC_INSN:
 			// Opcodes: LDC.
-			result += ((LdcInsnNode)instruction).cst;
+			sb.append( ((LdcInsnNode)instruction).cst );
 			break;
 		case AbstractInsnNode.IINC_INSN:
 			// Opcodes: IINC.
-			result += ((IincInsnNode)instruction).var;
-			result += " ";
-			result += ((IincInsnNode)instruction).incr;
+			sb.append( ((IincInsnNode)instruction).var );
+			sb.append( ' ' );
+			sb.append( ((IincInsnNode)instruction).incr );
 			break;
 		case AbstractInsnNode.TYPE_INSN:
 			// Opcodes: NEW, ANEWARRAY, CHECKCAST or INSTANCEOF.
-			result += ((TypeInsnNode)instruction).desc;
+			sb.append( ((TypeInsnNode)instruction).desc );
 			break;
 		case AbstractInsnNode.VAR_INSN:
 			// Opcodes: ILOAD, LLOAD, FLOAD, DLOAD, ALOAD, ISTORE,
 		    // LSTORE, FSTORE, DSTORE, ASTORE or RET.
-			result += ((VarInsnNode)instruction).var;
+			sb.append( ((VarInsnNode)instruction).var );
 			break;
 		case AbstractInsnNode.FIELD_INSN:
 			// Opcodes: GETSTATIC, PUTSTATIC, GETFIELD or PUTFIELD.
-			result += ((FieldInsnNode)instruction).owner;
-			result += ".";
-			result += ((FieldInsnNode)instruction).name;
-			result += " ";
-			result += ((FieldInsnNode)instruction).desc;
+		{
+			final FieldInsnNode field = (FieldInsnNode)instruction;
+			sb.append( field.owner ).append( '.' ).append( field.name ).append( ' ' ).append( field.desc );
 			break;
+		}
 		case AbstractInsnNode.METHOD_INSN:
 			// Opcodes: INVOKEVIRTUAL, INVOKESPECIAL, INVOKESTATIC,
 		    // INVOKEINTERFACE or INVOKEDYNAMIC.
-			result += ((MethodInsnNode)instruction).owner;
-			result += ".";
-			result += ((MethodInsnNode)instruction).name;
-			result += " ";
-			result += ((MethodInsnNode)instruction).desc;
+		{
+			final MethodInsnNode method = (MethodInsnNode)instruction;
+			sb.append( method.owner ).append( '.' ).append( method.name ).append( ' ' ).append( method.desc );
 			break;
+		}
 		case AbstractInsnNode.MULTIANEWARRAY_INSN:
 			// Opcodes: MULTIANEWARRAY.
-			result += ((MultiANewArrayInsnNode)instruction).desc;
-			result += " ";
-			result += ((MultiANewArrayInsnNode)instruction).dims;
+			sb.append( ((MultiANewArrayInsnNode)instruction).desc );
+			sb.append( ' ' );
+			sb.append( ((MultiANewArrayInsnNode)instruction).dims );
 			break;
 		case AbstractInsnNode.LOOKUPSWITCH_INSN:
 			// Opcodes: LOOKUPSWITCH.
@@ -198,11 +326,11 @@ public class DotFileCreator {
 				final int key = (Integer)keys.get(t);
 				final LabelNode targetInstruction = (LabelNode)labels.get(t);
 				final int targetId = instructions.indexOf(targetInstruction);
-				result += key + ": (B" + targetId + "), ";
+				sb.append( key ).append( ": (B" ).append( targetId ).append( "), " );
 			}
 			final LabelNode defaultTargetInstruction = ((LookupSwitchInsnNode)instruction).dflt;
 			final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-			result += "default: (B" + defaultTargetId + ")";
+			sb.append( "default: (B" ).append( defaultTargetId ).append( ')' );
 			break;
 		}
 		case AbstractInsnNode.TABLESWITCH_INSN:
@@ -214,19 +342,17 @@ public class DotFileCreator {
 				final int key = minKey+t;
 				final LabelNode targetInstruction = (LabelNode)labels.get(t);
 				final int targetId = instructions.indexOf(targetInstruction);
-				result += key + ": (B" + targetId + "), ";
+				sb.append( key ).append( ": (B" ).append( targetId ).append( "), " );
 			}
 			final LabelNode defaultTargetInstruction = ((TableSwitchInsnNode)instruction).dflt;
 			final int defaultTargetId = instructions.indexOf(defaultTargetInstruction);
-			result += "default: (B" + defaultTargetId + ")";
+			sb.append( "default: (B" ).append( defaultTargetId ).append( ')' );
 			break;
 		}
-		}		
-		
-		return result;
+		}
 	}
 	
-	private void printEpilogue() throws IOException{
-		out.write( "}\n" );
+	private void printEpilogue(){
+		sb.append( "}\n" );
 	}
 }
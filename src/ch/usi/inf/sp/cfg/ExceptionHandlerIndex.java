@@ -0,0 +1,217 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * An interval index over the try/catch blocks of a method.
+ * <p>
+ * The start and end instructions of all the try/catch blocks split the
+ * method into segments; every instruction of a segment is covered by the
+ * same handlers. For each segment the index keeps the covering handlers in
+ * declaration order, up to and including the first catch-all (finally)
+ * handler, since no handler after it can be reached.
+ * The segment of an instruction is found with a binary search.
+ * <p>
+ * Building the index takes O(h log h + n) time for h try/catch blocks
+ * and n covering handlers kept over all the segments: the segments
+ * closed by a catch-all handler are skipped with a union-find over the
+ * segments, so a handler only visits the segments it is kept for.
+ * <p>
+ * An index can be reset for another method: its arrays grow to the
+ * largest method seen and are reused, so that an extractor can keep
+ * one index for all the methods it analyzes.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class ExceptionHandlerIndex {
+
+	// Sorted, distinct start and end instructions of the try/catch blocks, boundCount of them
+	private int[] bounds = new int[0];
+	private int boundCount;
+	private int segments;
+	// Covering handlers of segment s: from handlerOffsets[s] to handlerOffsets[s+1]
+	private int[] handlerOffsets = new int[1];
+	private int[] handlers = new int[0];
+	private boolean[] catchAll = new boolean[0];
+	// Scratch arrays
+	private int[] nextOpen = new int[0]; // Union-find: the first segment at or after s without a catch-all
+	private int[] fill = new int[0];
+	private int[] starts = new int[0];
+	private int[] ends = new int[0];
+	private int[] handlerIds = new int[0];
+	private boolean[] catchAllFlags = new boolean[0];
+
+	/**
+	 * Creates an empty index, to be reset for every method
+	 */
+	public ExceptionHandlerIndex(){
+	}
+
+	public ExceptionHandlerIndex( InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks ){
+		reset( instructions, tryCatchBlocks );
+	}
+
+	/**
+	 * Builds the index out of the instruction indices of the try/catch blocks.
+	 * 
+	 * @param count The number of try/catch blocks
+	 * @param starts First covered instruction of each block
+	 * @param ends Instruction after the last covered one of each block
+	 * @param handlerIds First instruction of the handler of each block
+	 * @param catchAllFlags Whether each block catches any exception (finally)
+	 */
+	public ExceptionHandlerIndex( int count, int[] starts, int[] ends, int[] handlerIds, boolean[] catchAllFlags ){
+		reset( count, starts, ends, handlerIds, catchAllFlags );
+	}
+
+	/**
+	 * Indexes the try/catch blocks of another method
+	 */
+	public void reset( InsnList instructions, List<TryCatchBlockNode> tryCatchBlocks ){
+		final int count = tryCatchBlocks.size();
+		if( starts.length < count ){
+			starts = new int[count];
+			ends = new int[count];
+			handlerIds = new int[count];
+			catchAllFlags = new boolean[count];
+		}
+		for( int h = 0; h < count; h++ ){
+			final TryCatchBlockNode block = tryCatchBlocks.get(h);
+			starts[h] = instructions.indexOf( block.start );
+			ends[h] = instructions.indexOf( block.end );
+			handlerIds[h] = instructions.indexOf( block.handler );
+			catchAllFlags[h] = block.type == null;
+		}
+		reset( count, starts, ends, handlerIds, catchAllFlags );
+	}
+
+	/**
+	 * Indexes the try/catch blocks of another method, given like in
+	 * {@link #ExceptionHandlerIndex(int, int[], int[], int[], boolean[])}
+	 */
+	public void reset( int count, int[] starts, int[] ends, int[] handlerIds, boolean[] catchAllFlags ){
+		if( bounds.length < count * 2 ){
+			bounds = new int[count * 2];
+		}
+		for( int h = 0; h < count; h++ ){
+			bounds[2*h] = starts[h];
+			bounds[2*h + 1] = ends[h];
+		}
+		Arrays.sort( bounds, 0, count * 2 );
+		int distinct = 0;
+		for( int b = 0; b < count * 2; b++ ){
+			if( distinct == 0 || bounds[distinct - 1] != bounds[b] ){
+				bounds[distinct++] = bounds[b];
+			}
+		}
+		boundCount = distinct;
+		segments = Math.max( distinct - 1, 0 );
+
+		// Handlers are visited in declaration order, so every segment
+		// receives its handlers in that order. A segment is closed once
+		// it has received a catch-all handler, and is skipped from then on.
+		if( nextOpen.length < segments + 1 ){
+			nextOpen = new int[segments + 1];
+			fill = new int[segments];
+		}
+		if( handlerOffsets.length < segments + 1 ){
+			handlerOffsets = new int[segments + 1];
+		}
+		openAll();
+		Arrays.fill( handlerOffsets, 0, segments + 1, 0 );
+		for( int h = 0; h < count; h++ ){
+			final int last = segmentOf( ends[h] );
+			for( int s = findOpen( segmentOf(starts[h]) ); s < last; s = findOpen( s + 1 ) ){
+				handlerOffsets[s + 1]++;
+				if( catchAllFlags[h] ){
+					nextOpen[s] = s + 1;
+				}
+			}
+		}
+		for( int s = 0; s < segments; s++ ){
+			handlerOffsets[s + 1] += handlerOffsets[s];
+		}
+		if( handlers.length < handlerOffsets[segments] ){
+			handlers = new int[handlerOffsets[segments]];
+			catchAll = new boolean[handlers.length];
+		}
+		System.arraycopy( handlerOffsets, 0, fill, 0, segments );
+		openAll();
+		for( int h = 0; h < count; h++ ){
+			final boolean isCatchAll = catchAllFlags[h];
+			final int last = segmentOf( ends[h] );
+			for( int s = findOpen( segmentOf(starts[h]) ); s < last; s = findOpen( s + 1 ) ){
+				handlers[fill[s]] = handlerIds[h];
+				catchAll[fill[s]] = isCatchAll;
+				fill[s]++;
+				if( isCatchAll ){
+					nextOpen[s] = s + 1;
+				}
+			}
+		}
+	}
+
+	private void openAll(){
+		for( int s = 0; s <= segments; s++ ){
+			nextOpen[s] = s;
+		}
+	}
+
+	// The first open segment at or after s, segments if none; halves the paths it follows
+	private int findOpen( int s ){
+		while( nextOpen[s] != s ){
+			nextOpen[s] = nextOpen[nextOpen[s]];
+			s = nextOpen[s];
+		}
+		return s;
+	}
+
+	// Index of the segment starting at a bound
+	private int segmentOf( int bound ){
+		return Arrays.binarySearch( bounds, 0, boundCount, bound );
+	}
+
+	/**
+	 * @return The segment containing an instruction, -1 if the
+	 * instruction is not covered by any try/catch block
+	 */
+	public int findSegment( int instruction ){
+		int s = Arrays.binarySearch( bounds, 0, boundCount, instruction );
+		if( s < 0 ){
+			s = -s - 2; // The bound before the insertion point
+		}
+		if( s < 0 || s >= segments || handlerOffsets[s] == handlerOffsets[s + 1] ){
+			return -1;
+		}
+		return s;
+	}
+
+	/**
+	 * @return The index of the first covering handler of a segment
+	 */
+	public int getHandlerStart( int segment ){
+		return handlerOffsets[segment];
+	}
+
+	/**
+	 * @return The index after the last covering handler of a segment
+	 */
+	public int getHandlerEnd( int segment ){
+		return handlerOffsets[segment + 1];
+	}
+
+	/**
+	 * @return The first instruction of a handler
+	 */
+	public int getHandler( int index ){
+		return handlers[index];
+	}
+
+	public boolean isCatchAll( int index ){
+		return catchAll[index];
+	}
+}
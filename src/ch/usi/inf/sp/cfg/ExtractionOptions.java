@@ -0,0 +1,86 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.function.Consumer;
+
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * What the extraction of the statistics of a class does besides
+ * computing them: how the class is parsed, where the graphs and the
+ * instructions of its methods go, and where the time is measured.
+ * <p>
+ * The options are set by chained calls, e.g.
+ * new ExtractionOptions().parsingOptions( ClassReader.SKIP_DEBUG ).metrics( metrics );
+ * everything not set is off. The same options can be used for many
+ * classes, by one thread at a time if they have consumers.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class ExtractionOptions {
+
+	private int parsingOptions;
+	private Consumer<ControlFlowGraph> graphConsumer;
+	private Consumer<InsnList> instructionConsumer;
+	private AnalysisMetrics metrics;
+
+	/**
+	 * @param parsingOptions The options passed to ClassReader.accept,
+	 * possibly with ControlFlowGraphExtractor.PRECISE_PEI
+	 */
+	public ExtractionOptions parsingOptions( int parsingOptions ){
+		this.parsingOptions = parsingOptions;
+		return this;
+	}
+
+	/**
+	 * @param graphConsumer Receives the graph of every method, in
+	 * declaration order; only ControlFlowGraphExtractor builds graphs
+	 */
+	public ExtractionOptions graphConsumer( Consumer<ControlFlowGraph> graphConsumer ){
+		this.graphConsumer = graphConsumer;
+		return this;
+	}
+
+	/**
+	 * @param instructionConsumer Receives the instructions of every
+	 * method, in declaration order, e.g. to render the graphs; only
+	 * ControlFlowGraphExtractor builds them
+	 */
+	public ExtractionOptions instructionConsumer( Consumer<InsnList> instructionConsumer ){
+		this.instructionConsumer = instructionConsumer;
+		return this;
+	}
+
+	/**
+	 * @param metrics Where the time spent in every phase and the edges are added
+	 */
+	public ExtractionOptions metrics( AnalysisMetrics metrics ){
+		this.metrics = metrics;
+		return this;
+	}
+
+	public int getParsingOptions(){
+		return parsingOptions;
+	}
+
+	/**
+	 * @return The graph consumer, null if none
+	 */
+	public Consumer<ControlFlowGraph> getGraphConsumer(){
+		return graphConsumer;
+	}
+
+	/**
+	 * @return The instruction consumer, null if none
+	 */
+	public Consumer<InsnList> getInstructionConsumer(){
+		return instructionConsumer;
+	}
+
+	/**
+	 * @return The metrics, null if none
+	 */
+	public AnalysisMetrics getMetrics(){
+		return metrics;
+	}
+}
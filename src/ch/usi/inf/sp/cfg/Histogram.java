@@ -0,0 +1,176 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative int values, with fixed relative precision
+ * and bounded memory, from which percentiles can be estimated without
+ * keeping the values.
+ * <p>
+ * Values below 64 have a bucket each; above, every power of two is split
+ * into 32 buckets, so that a value is known within 1/32 (about 3%) of
+ * itself. All the ints fit in less than 900 buckets, and the array of the
+ * counts only grows as far as the largest value recorded. The count, sum,
+ * minimum and maximum are exact.
+ * <p>
+ * Histograms are merged by adding their counts, so histograms of parts
+ * of a run (e.g. filled by different threads) merge into exactly the
+ * histogram of the whole run; they can also be written and read back,
+ * to be merged in another process. A histogram is not thread safe.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class Histogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int LINEAR = 2 * SUB_BUCKETS; // Values with a bucket each
+
+	private long[] counts = new long[0];
+	private long count;
+	private long sum;
+	private int min = Integer.MAX_VALUE;
+	private int max = Integer.MIN_VALUE;
+
+	static int bucketOf( int value ){
+		if( value < LINEAR ){
+			return value;
+		}
+		final int shift = 31 - Integer.numberOfLeadingZeros(value) - SUB_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return The largest value in a bucket
+	 */
+	static int highestValueOf( int bucket ){
+		if( bucket < LINEAR ){
+			return bucket;
+		}
+		final int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+		final long lowest = (long)((bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return (int)Math.min( lowest + (1L << shift) - 1, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Records a value; negative values are recorded as 0
+	 */
+	public void record( int value ){
+		if( value < 0 ){
+			value = 0;
+		}
+		final int bucket = bucketOf( value );
+		if( bucket >= counts.length ){
+			counts = Arrays.copyOf( counts, Math.max(bucket + 1, Math.min(counts.length * 2, bucketOf(Integer.MAX_VALUE) + 1)) );
+		}
+		counts[bucket]++;
+		count++;
+		sum += value;
+		min = Math.min( min, value );
+		max = Math.max( max, value );
+	}
+
+	/**
+	 * Adds the values of another histogram to this one
+	 */
+	public void merge( Histogram other ){
+		if( other.counts.length > counts.length ){
+			counts = Arrays.copyOf( counts, other.counts.length );
+		}
+		for( int b = 0; b < other.counts.length; b++ ){
+			counts[b] += other.counts[b];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min( min, other.min );
+		max = Math.max( max, other.max );
+	}
+
+	/**
+	 * Writes the histogram, e.g. to merge it in another process
+	 */
+	public void write( DataOutput out ) throws IOException {
+		int buckets = counts.length;
+		while( buckets > 0 && counts[buckets - 1] == 0 ){
+			buckets--;
+		}
+		out.writeLong( count );
+		out.writeLong( sum );
+		out.writeInt( min );
+		out.writeInt( max );
+		out.writeInt( buckets );
+		for( int b = 0; b < buckets; b++ ){
+			out.writeLong( counts[b] );
+		}
+	}
+
+	/**
+	 * Reads a histogram written by write()
+	 */
+	public static Histogram read( DataInput in ) throws IOException {
+		final Histogram histogram = new Histogram();
+		histogram.count = in.readLong();
+		histogram.sum = in.readLong();
+		histogram.min = in.readInt();
+		histogram.max = in.readInt();
+		final int buckets = in.readInt();
+		if( buckets < 0 || buckets > bucketOf(Integer.MAX_VALUE) + 1 ){
+			throw new IOException( "Invalid histogram: " + buckets + " buckets" );
+		}
+		histogram.counts = new long[buckets];
+		for( int b = 0; b < buckets; b++ ){
+			histogram.counts[b] = in.readLong();
+		}
+		return histogram;
+	}
+
+	public long getCount(){
+		return count;
+	}
+
+	public long getSum(){
+		return sum;
+	}
+
+	/**
+	 * @return The smallest value recorded, 0 if there is none
+	 */
+	public int getMin(){
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return The largest value recorded, 0 if there is none
+	 */
+	public int getMax(){
+		return count == 0 ? 0 : max;
+	}
+
+	public double getMean(){
+		return count == 0 ? 0 : (double)sum / count;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100
+	 * @return A value such that the given percentage of the values is
+	 * not larger, within the precision of the histogram; 0 if there are
+	 * no values
+	 */
+	public int getPercentile( double percentile ){
+		if( count == 0 ){
+			return 0;
+		}
+		final long rank = Math.max( 1, (long)Math.ceil(percentile / 100 * count) );
+		long seen = 0;
+		for( int b = 0; b < counts.length; b++ ){
+			seen += counts[b];
+			if( seen >= rank ){
+				return Math.max( min, Math.min(max, highestValueOf(b)) );
+			}
+		}
+		return max;
+	}
+}
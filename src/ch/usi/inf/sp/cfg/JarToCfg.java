@@ -1,29 +1,357 @@
 package ch.usi.inf.sp.cfg;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-
-import org.objectweb.asm.ClassReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Extracts the Control Flow Graphs of all the classes of one or more
+ * jar files and writes their statistics to a csv file.
+ * <p>
+ * Usage: JarToCfg [-threads N] [-readers N] [-queue N] [-streaming] [-skipdebug] [-precisepei] [-nodedup]
+ *                 [-cache DIR [-cachesize MB]] [-cfgstore FILE] [-repository FILE] [-statsstore FILE] [-dot FILE]
+ *                 [-metrics FILE] [-histograms FILE] [-progress SECONDS]
+ *                 [-workers N [-shards N] [-retries N] [-workdir DIR] [-workerjvm OPTIONS]
+ *                  [-launcher COMMAND]...] jarfile|@classpathfile...
+ * <p>
+ * All the jars are analyzed in the given order, in the same run. A
+ * classpath file lists jars one per line, or separated like in a
+ * classpath; entries that are not jars (e.g. directories) are skipped.
+ * A class whose bytes are identical to a class already analyzed, in
+ * the same jar, in a nested jar or in another jar, is not analyzed
+ * again, but its rows are still written, with the statistics of the
+ * first copy; -nodedup analyzes every copy.
+ * <p>
+ * Jars nested in a jar, like the BOOT-INF/lib/*.jar of a fat jar, are
+ * analyzed as well, without extracting them; the benchmark column of
+ * their classes is the path of the nested jar, e.g.
+ * app.jar!/BOOT-INF/lib/lib.jar.
+ * <p>
+ * The classes are analyzed by N worker threads (by default one per
+ * available processor); the output does not depend on N.
+ * With -readers the classes are read and inflated by their own threads,
+ * ahead of the workers; -queue sets how many classes can be in flight
+ * between reading and writing (by default 8 per worker).
+ * With -streaming the statistics are computed by StreamingCfgExtractor,
+ * without building the ASM tree. With -skipdebug debug information and
+ * frames are not parsed, and not counted as instructions.
+ * With -precisepei returns can throw an exception only in synchronized
+ * methods, so the graphs of the other methods have fewer exception edges.
+ * With -cache the statistics of every class are kept in the given
+ * directory (by default up to 1024MB), and classes already found there
+ * are not analyzed again.
+ * With -cfgstore the graphs of all the methods are written to a binary
+ * file, that can be read back with CfgStoreReader.
+ * With -repository the graphs and statistics of all the methods are kept
+ * in memory, indexed, and saved at the end of the run to a snapshot that
+ * can be loaded and queried with CfgRepository.
+ * With -statsstore the statistics are also written to a binary columnar
+ * file, much smaller than the csv file, that can be read back with
+ * StatsStoreReader.
+ * With -dot the graphs of all the methods are written to a single
+ * graphviz file, one digraph per method.
+ * With -metrics the time spent in every phase, the counts of classes,
+ * methods, instructions, blocks and edges, and the largest methods are
+ * written to a JSON file at the end of the run. With -progress a line
+ * with the throughput and the estimated time to completion is printed
+ * every given number of seconds, instead of the name of every class.
+ * With -histograms the means and percentiles of instructions, blocks,
+ * instructions per block, dominator tree height and loops per method are
+ * written to a JSON file at the end of the run, for all the methods, and
+ * by jar, access category and package; see StatisticsAggregator.
+ * <p>
+ * With -workers the jars are analyzed by N worker processes at the same
+ * time, each analyzing a shard of the classes (by default N shards) in a
+ * directory of its own, in the given work directory (by default shards);
+ * their results are merged into the same files a single process would
+ * write. A shard whose worker fails is analyzed again, up to the given
+ * number of retries (by default 2). -workerjvm gives the options of the
+ * java command of the workers, e.g. "-Xmx2g"; with -launcher the workers
+ * are started through the given commands in turn, e.g. "ssh host1" and
+ * "ssh host2". The options -threads, -readers, -queue, -streaming,
+ * -skipdebug, -precisepei and -nodedup apply to every worker; -cache,
+ * -cfgstore, -repository, -dot, -metrics and -progress cannot be used
+ * with workers.
+ * See ShardCoordinator.
+ */
 public class JarToCfg {
     public static void main(final String[] args) throws IOException {
-        final String jarFileName = args[0];
-        System.out.println("Analyzing "+jarFileName);
-        final JarFile jar = new JarFile(jarFileName);
-        final Enumeration<JarEntry> entries = jar.entries();
-        while (entries.hasMoreElements()) {
-            final JarEntry entry = entries.nextElement();
-            if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
-                System.out.println(entry.getName());
-                final InputStream is = jar.getInputStream(entry);
-                ControlFlowGraphExtractor.analyzeClassReader(new ClassReader(is), 
-                		jarFileName.substring(jarFileName.lastIndexOf('/')+1));
+        int threads = Runtime.getRuntime().availableProcessors();
+        int readers = 0;
+        int queueCapacity = 0;
+        boolean streaming = false;
+        int parsingOptions = 0;
+        File cacheDirectory = null;
+        long cacheSize = 1024;
+        String cfgStoreFileName = null;
+        String repositoryFileName = null;
+        String statsStoreFileName = null;
+        String dotFileName = null;
+        String metricsFileName = null;
+        String histogramsFileName = null;
+        int progressSeconds = 0;
+        boolean deduplicate = true;
+        int workers = 0;
+        int shards = 0;
+        int retries = 2;
+        File workDirectory = new File("shards");
+        String workerJvmOptions = null;
+        final List<List<String>> launchers = new ArrayList<>();
+        // The options every worker is started with
+        final List<String> workerOptions = new ArrayList<>();
+        String shardDirectory = null;
+        long firstEntry = 0;
+        long endEntry = Long.MAX_VALUE;
+        int a = 0;
+        while (a < args.length - 1 && args[a].startsWith("-")) {
+            if (isWorkerOption(args[a])) {
+                final int length = args[a].equals("-threads") || args[a].equals("-readers")
+                        || args[a].equals("-queue") ? 2 : 1;
+                workerOptions.addAll(Arrays.asList(args).subList(a, a + length));
+            }
+            if (args[a].equals("-threads")) {
+                threads = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-readers")) {
+                readers = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-queue")) {
+                queueCapacity = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-streaming")) {
+                streaming = true;
+                a++;
+            } else if (args[a].equals("-cache")) {
+                cacheDirectory = new File(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-cachesize")) {
+                cacheSize = Long.parseLong(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-cfgstore")) {
+                cfgStoreFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-repository")) {
+                repositoryFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-statsstore")) {
+                statsStoreFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-dot")) {
+                dotFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-metrics")) {
+                metricsFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-histograms")) {
+                histogramsFileName = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-progress")) {
+                progressSeconds = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-nodedup")) {
+                deduplicate = false;
+                a++;
+            } else if (args[a].equals("-skipdebug")) {
+                parsingOptions |= StreamingCfgExtractor.STATISTICS_PARSING_OPTIONS;
+                a++;
+            } else if (args[a].equals("-precisepei")) {
+                parsingOptions |= ControlFlowGraphExtractor.PRECISE_PEI;
+                a++;
+            } else if (args[a].equals("-workers")) {
+                workers = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-shards")) {
+                shards = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-retries")) {
+                retries = Integer.parseInt(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-workdir")) {
+                workDirectory = new File(args[a+1]);
+                a += 2;
+            } else if (args[a].equals("-workerjvm")) {
+                workerJvmOptions = args[a+1];
+                a += 2;
+            } else if (args[a].equals("-launcher")) {
+                launchers.add(Arrays.asList(args[a+1].trim().split("\\s+")));
+                a += 2;
+            } else if (args[a].equals("-shard")) {
+                // Used by ShardCoordinator to start a worker
+                firstEntry = Long.parseLong(args[a+1]);
+                endEntry = Long.parseLong(args[a+2]);
+                shardDirectory = args[a+3];
+                a += 4;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[a]);
+            }
+        }
+        final List<String> jarFileNames = new ArrayList<>();
+        for (; a < args.length; a++) {
+            if (args[a].startsWith("@")) {
+                readClasspathFile(args[a].substring(1), jarFileNames);
+            } else {
+                jarFileNames.add(args[a]);
+            }
+        }
+        if (workers > 0) {
+            if (cacheDirectory != null || cfgStoreFileName != null || repositoryFileName != null
+                    || dotFileName != null || metricsFileName != null || progressSeconds > 0) {
+                throw new IllegalArgumentException(
+                        "-cache, -cfgstore, -repository, -dot, -metrics and -progress cannot be used with -workers");
+            }
+            final ShardCoordinator coordinator = new ShardCoordinator(jarFileNames, workDirectory);
+            coordinator.setWorkers(workers);
+            if (shards > 0) {
+                coordinator.setShards(shards);
+            }
+            coordinator.setRetries(retries);
+            if (workerJvmOptions != null && !workerJvmOptions.trim().isEmpty()) {
+                coordinator.setJvmOptions(Arrays.asList(workerJvmOptions.trim().split("\\s+")));
+            }
+            if (!launchers.isEmpty()) {
+                coordinator.setLauncher(ShardCoordinator.prefixLauncher(launchers));
+            }
+            coordinator.setWorkerOptions(workerOptions);
+            coordinate(coordinator, csvFileName(null), statsStoreFileName, histogramsFileName);
+            return;
+        }
+        try (CsvFileCreator csv = new CsvFileCreator(csvFileName(shardDirectory));
+                StatsStoreWriter statsStore = statsStoreFileName == null ? null
+                        : new StatsStoreWriter(statsStoreFileName);
+                ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(threads);
+                Writer dot = dotFileName == null ? null
+                        : new BufferedWriter(new FileWriter(dotFileName), 1 << 16)) {
+            analyzer.setDot(dot);
+            analyzer.setStatsStore(statsStore);
+            analyzer.setReaders(readers);
+            if (queueCapacity > 0) {
+                analyzer.setQueueCapacity(queueCapacity);
+            }
+            analyzer.setStreaming(streaming);
+            analyzer.setParsingOptions(parsingOptions);
+            final AnalysisCache cache = cacheDirectory == null ? null
+                    : new AnalysisCache(cacheDirectory, cacheSize << 20);
+            analyzer.setCache(cache);
+            analyzer.setDeduplicate(deduplicate);
+            analyzer.setEntryRange(firstEntry, endEntry);
+            final AnalysisMetrics metrics = metricsFileName == null && progressSeconds <= 0 ? null
+                    : new AnalysisMetrics();
+            analyzer.setMetrics(metrics);
+            final StatisticsAggregator aggregator = histogramsFileName == null ? null
+                    : new StatisticsAggregator();
+            analyzer.setAggregator(aggregator);
+            final CfgRepository repository = repositoryFileName == null ? null : new CfgRepository();
+            analyzer.setRepository(repository);
+            if (metrics != null) {
+                for (String jarFileName : jarFileNames) {
+                    metrics.addExpectedClasses(ParallelJarAnalyzer.countClasses(jarFileName));
+                }
+            }
+            if (progressSeconds > 0) {
+                analyzer.setVerbose(false);
+                metrics.startProgress(System.out, progressSeconds * 1000L);
+            }
+            if (cfgStoreFileName != null) {
+                try (CfgStoreWriter cfgStore = new CfgStoreWriter(cfgStoreFileName)) {
+                    analyzer.setCfgStore(cfgStore);
+                    analyzeAll(analyzer, jarFileNames, csv);
+                }
+            } else {
+                analyzeAll(analyzer, jarFileNames, csv);
+            }
+            if (metrics != null) {
+                metrics.stopProgress();
+                System.out.println(metrics.getProgressLine());
+            }
+            if (cache != null) {
+                System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+            }
+            if (metricsFileName != null) {
+                try (Writer out = new FileWriter(metricsFileName)) {
+                    metrics.writeSummary(out);
+                }
+            }
+            if (repository != null) {
+                repository.save(repositoryFileName);
+            }
+            if (histogramsFileName != null && shardDirectory != null) {
+                // Merged by the coordinator
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(histogramsFileName)))) {
+                    aggregator.write(out);
+                }
+            } else if (histogramsFileName != null) {
+                try (Writer out = new FileWriter(histogramsFileName)) {
+                    aggregator.writeSummary(out);
+                }
+            }
+        }
+    }
+
+    private static void coordinate(ShardCoordinator coordinator, String csvFileName,
+            String statsStoreFileName, String histogramsFileName) throws IOException {
+        try (CsvFileCreator csv = new CsvFileCreator(csvFileName);
+                StatsStoreWriter statsStore = statsStoreFileName == null ? null
+                        : new StatsStoreWriter(statsStoreFileName)) {
+            coordinator.setStatsStore(statsStore);
+            final StatisticsAggregator aggregator = histogramsFileName == null ? null
+                    : new StatisticsAggregator();
+            coordinator.setAggregator(aggregator);
+            coordinator.analyze(csv);
+            if (histogramsFileName != null) {
+                try (Writer out = new FileWriter(histogramsFileName)) {
+                    aggregator.writeSummary(out);
+                }
+            }
+        }
+    }
+
+    private static String csvFileName(String directory) {
+        return directory == null ? CsvFileCreator.outfname
+                : new File(directory, CsvFileCreator.outfname).getPath();
+    }
+
+    /**
+     * @return Whether an option applies to every worker, and is passed on to them
+     */
+    private static boolean isWorkerOption(String option) {
+        return Arrays.asList("-threads", "-readers", "-queue", "-streaming", "-skipdebug",
+                "-precisepei", "-nodedup").contains(option);
+    }
+
+    private static void analyzeAll(ParallelJarAnalyzer analyzer, List<String> jarFileNames,
+            CsvFileCreator csv) throws IOException {
+        for (String jarFileName : jarFileNames) {
+            System.out.println("Analyzing "+jarFileName);
+            analyzer.analyze(jarFileName, csv);
+        }
+    }
+
+    /**
+     * Adds the jars listed in a classpath file
+     */
+    private static void readClasspathFile(String fileName, List<String> jarFileNames) throws IOException {
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            for (String entry : line.split(File.pathSeparator)) {
+                entry = entry.trim();
+                if (entry.endsWith(".jar")) {
+                    jarFileNames.add(entry);
+                } else if (!entry.isEmpty()) {
+                    System.out.println("Skipping "+entry);
+                }
             }
         }
-        jar.close();
     }
 
-}
\ No newline at end of file
+}
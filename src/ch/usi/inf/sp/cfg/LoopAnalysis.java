@@ -0,0 +1,311 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.Arrays;
+
+/**
+ * The loop nesting forest of a Control Flow Graph: back edges, loops
+ * (with their header, parent loop and nesting depth) and irreducible
+ * regions.
+ * <p>
+ * Loops are found with Havlak's algorithm ("Nesting of Reducible and
+ * Irreducible Loops", with Ramalingam's correction): a depth first
+ * search numbers the blocks, and the loops are collapsed from the
+ * innermost one outwards with a union-find structure, in almost linear
+ * time. A back edge is an edge to an ancestor in the depth first search
+ * tree (a block included). A loop is irreducible when it can be entered
+ * without going through its header; the header chosen for it depends on
+ * the order of the edges. Blocks that cannot be reached from the root
+ * are not part of any loop.
+ * <p>
+ * Loops are numbered innermost first: a loop always has a smaller
+ * number than its parent.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class LoopAnalysis {
+
+	// Block -> innermost loop containing it, -1 if none
+	private final int[] loopOf;
+	// Loop -> header block, parent loop (-1 for outermost loops), depth (1 for outermost loops)
+	private int[] headers;
+	private int[] parents;
+	private int[] depths;
+	private boolean[] irreducible;
+	private int loopCount;
+	private int backEdgeCount;
+	private int maxDepth;
+
+	/**
+	 * Finds the loops of a graph, starting from its "start" block
+	 */
+	public LoopAnalysis( ControlFlowGraph cfg ){
+		this( cfg.getBasicBlockCount(), cfg.getEdgeOffsets(), cfg.getEdgeTargets(), 0 );
+	}
+
+	/**
+	 * Finds the loops of a graph given in compressed sparse row form,
+	 * like in {@link DominatorTree#DominatorTree(int, int[], int[], int)}.
+	 */
+	public LoopAnalysis( int blockCount, int[] edgeOffsets, int[] edgeTargets, int root ){
+		loopOf = new int[blockCount];
+		Arrays.fill( loopOf, -1 );
+		headers = new int[4];
+		parents = new int[4];
+		depths = new int[4];
+		irreducible = new boolean[4];
+
+		// Depth first search: number -> block, block -> number (-1 if unreachable),
+		// and the last number of the subtree of every number
+		final int[] vertex = new int[blockCount];
+		final int[] number = new int[blockCount];
+		final int[] last = new int[blockCount];
+		final int reachable = search( blockCount, edgeOffsets, edgeTargets, root, vertex, number, last );
+
+		// Predecessors of every reachable block, by number, split into back and other ones
+		final int[] backCounts = new int[reachable];
+		final int[] otherCounts = new int[reachable];
+		for( int v = 0; v < reachable; v++ ){
+			final int b = vertex[v];
+			for( int e = edgeOffsets[b]; e < edgeOffsets[b + 1]; e++ ){
+				final int w = number[edgeTargets[e]];
+				if( isAncestor(w, v, last) ){
+					backCounts[w]++;
+				}else{
+					otherCounts[w]++;
+				}
+			}
+		}
+		final int[][] backPreds = new int[reachable][];
+		final int[][] otherPreds = new int[reachable][];
+		for( int w = 0; w < reachable; w++ ){
+			backPreds[w] = new int[backCounts[w]];
+			otherPreds[w] = new int[otherCounts[w]];
+			backEdgeCount += backCounts[w];
+			backCounts[w] = 0;
+			otherCounts[w] = 0; // Counts again below, other predecessors can be added later
+		}
+		for( int v = 0; v < reachable; v++ ){
+			final int b = vertex[v];
+			for( int e = edgeOffsets[b]; e < edgeOffsets[b + 1]; e++ ){
+				final int w = number[edgeTargets[e]];
+				if( isAncestor(w, v, last) ){
+					backPreds[w][backCounts[w]++] = v;
+				}else{
+					otherPreds[w][otherCounts[w]++] = v;
+				}
+			}
+		}
+
+		// Collapse the loops, innermost first
+		final int[] header = new int[reachable];  // Number -> header of the loop it was collapsed into, -1 if none
+		final int[] loopAt = new int[reachable];  // Number -> loop it is the header of, -1 if none
+		final int[] set = new int[reachable];     // Union-find parent
+		final int[] inPool = new int[reachable];  // Number -> last w that added it to the pool
+		final int[] pool = new int[reachable];
+		final int[] work = new int[reachable];
+		final int[] path = new int[reachable];
+		for( int v = 0; v < reachable; v++ ){
+			set[v] = v;
+		}
+		Arrays.fill( header, -1 );
+		Arrays.fill( loopAt, -1 );
+		Arrays.fill( inPool, -1 );
+		for( int w = reachable - 1; w >= 0; w-- ){
+			int poolSize = 0;
+			boolean isLoop = false;
+			boolean isIrreducible = false;
+			for( int v : backPreds[w] ){
+				if( v == w ){
+					isLoop = true; // Self loop
+				}else{
+					final int x = find( v, set, path );
+					if( inPool[x] != w ){
+						inPool[x] = w;
+						pool[poolSize++] = x;
+					}
+				}
+			}
+			int workSize = 0;
+			for( int p = 0; p < poolSize; p++ ){
+				work[workSize++] = pool[p];
+			}
+			while( workSize > 0 ){
+				final int x = work[--workSize];
+				for( int p = 0; p < otherCounts[x]; p++ ){
+					final int ydash = find( otherPreds[x][p], set, path );
+					if( !isAncestor(w, ydash, last) ){
+						// Enters the loop without going through the header
+						isIrreducible = true;
+						if( otherCounts[w] == otherPreds[w].length ){
+							otherPreds[w] = Arrays.copyOf( otherPreds[w], otherCounts[w] * 2 + 1 );
+						}
+						otherPreds[w][otherCounts[w]++] = ydash;
+					}else if( ydash != w && inPool[ydash] != w ){
+						inPool[ydash] = w;
+						pool[poolSize++] = ydash;
+						work[workSize++] = ydash;
+					}
+				}
+			}
+			if( poolSize == 0 && !isLoop ){
+				continue;
+			}
+
+			final int loop = newLoop( vertex[w], isIrreducible );
+			loopAt[w] = loop;
+			for( int p = 0; p < poolSize; p++ ){
+				final int x = pool[p];
+				header[x] = w;
+				set[x] = w;
+				if( loopAt[x] >= 0 ){
+					parents[loopAt[x]] = loop;
+				}
+			}
+		}
+
+		// Innermost loop of every block: its own if it is a header, else the one of its header
+		for( int v = 0; v < reachable; v++ ){
+			if( loopAt[v] >= 0 ){
+				loopOf[vertex[v]] = loopAt[v];
+			}else if( header[v] >= 0 ){
+				loopOf[vertex[v]] = loopAt[header[v]];
+			}
+		}
+
+		// Parents have larger numbers than their children
+		for( int loop = loopCount - 1; loop >= 0; loop-- ){
+			depths[loop] = parents[loop] < 0 ? 1 : depths[parents[loop]] + 1;
+			maxDepth = Math.max( maxDepth, depths[loop] );
+		}
+	}
+
+	/**
+	 * Depth first search from the root, without recursion
+	 *
+	 * @return The number of reachable blocks
+	 */
+	private static int search( int blockCount, int[] edgeOffsets, int[] edgeTargets, int root,
+			int[] vertex, int[] number, int[] last ){
+		final int[] stack = new int[blockCount];
+		final int[] next = new int[blockCount]; // Next edge to follow, for the blocks on the stack
+		Arrays.fill( number, -1 );
+		int count = 0;
+		int top = 0;
+		stack[top++] = root;
+		next[root] = edgeOffsets[root];
+		number[root] = count;
+		vertex[count++] = root;
+		while( top > 0 ){
+			final int b = stack[top - 1];
+			if( next[b] < edgeOffsets[b + 1] ){
+				final int target = edgeTargets[next[b]++];
+				if( number[target] < 0 ){
+					number[target] = count;
+					vertex[count++] = target;
+					next[target] = edgeOffsets[target];
+					stack[top++] = target;
+				}
+			}else{
+				last[number[b]] = count - 1;
+				top--;
+			}
+		}
+		return count;
+	}
+
+	// Whether w is an ancestor of v (or v itself) in the depth first search tree
+	private static boolean isAncestor( int w, int v, int[] last ){
+		return w <= v && v <= last[w];
+	}
+
+	// Union-find lookup, with path compression
+	private static int find( int v, int[] set, int[] path ){
+		int length = 0;
+		while( set[v] != v ){
+			path[length++] = v;
+			v = set[v];
+		}
+		for( int i = 0; i < length; i++ ){
+			set[path[i]] = v;
+		}
+		return v;
+	}
+
+	private int newLoop( int headerBlock, boolean isIrreducible ){
+		if( loopCount == headers.length ){
+			headers = Arrays.copyOf( headers, loopCount * 2 );
+			parents = Arrays.copyOf( parents, loopCount * 2 );
+			depths = Arrays.copyOf( depths, loopCount * 2 );
+			irreducible = Arrays.copyOf( irreducible, loopCount * 2 );
+		}
+		headers[loopCount] = headerBlock;
+		parents[loopCount] = -1;
+		irreducible[loopCount] = isIrreducible;
+		return loopCount++;
+	}
+
+	public int getLoopCount(){
+		return loopCount;
+	}
+
+	/**
+	 * @return The number of edges that go back to an ancestor in the
+	 * depth first search tree, self loops included
+	 */
+	public int getBackEdgeCount(){
+		return backEdgeCount;
+	}
+
+	/**
+	 * @return The nesting depth of the most deeply nested loop, 0 if there are no loops
+	 */
+	public int getMaxDepth(){
+		return maxDepth;
+	}
+
+	public int getIrreducibleLoopCount(){
+		int count = 0;
+		for( int loop = 0; loop < loopCount; loop++ ){
+			if( irreducible[loop] ){
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public int getHeader( int loop ){
+		return headers[loop];
+	}
+
+	/**
+	 * @return The loop that immediately contains a loop, -1 for the outermost ones
+	 */
+	public int getParent( int loop ){
+		return parents[loop];
+	}
+
+	/**
+	 * @return The nesting depth of a loop, 1 for the outermost ones
+	 */
+	public int getDepth( int loop ){
+		return depths[loop];
+	}
+
+	public boolean isIrreducible( int loop ){
+		return irreducible[loop];
+	}
+
+	/**
+	 * @return The innermost loop a block belongs to, -1 if none
+	 */
+	public int getLoopOf( int block ){
+		return loopOf[block];
+	}
+
+	/**
+	 * @return The number of loops a block is nested in, 0 if none
+	 */
+	public int getBlockDepth( int block ){
+		return loopOf[block] < 0 ? 0 : depths[loopOf[block]];
+	}
+}
@@ -0,0 +1,388 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only jar (zip) file, memory-mapped and parsed without
+ * java.util.zip.ZipFile.
+ * <p>
+ * The central directory is read once, when the file is opened. The
+ * content of an entry is inflated into a byte array owned by the calling
+ * thread and reused for the next entry read by the same thread, so it can
+ * be given directly to ClassReader(byte[], int, int) without allocating a
+ * new array for every class. Different threads can read entries
+ * concurrently. The array of a thread is not grown beyond 1MB: larger
+ * entries are read into arrays of their own, so that a thread does not
+ * keep one after reading a large entry. The compressed data is given to
+ * the inflater a chunk at a time, out of the mapping.
+ * <p>
+ * A jar stored inside the jar (e.g. BOOT-INF/lib/*.jar in a fat jar)
+ * can be opened with openNested(): a stored nested jar is read in place,
+ * out of the mapping of the outer one, and a compressed one is inflated
+ * once, into memory if small, otherwise into a temporary file that is
+ * mapped and deleted at once, so that it is not kept on the heap.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class MappedJarFile implements Closeable {
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+	private static final int ZIP64_END_HEADER = 0x06064b50;
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final int INPUT_CHUNK = 1 << 16;
+	private static final int RETAINED_OUTPUT = 1 << 20;
+	// Compressed nested jars larger than this are inflated into a temporary file
+	private static final int NESTED_IN_MEMORY = 32 << 20;
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue(){
+			return new Buffers();
+		}
+	};
+
+	private final String name;
+	private final FileChannel channel; // null for nested jars
+	private final ByteBuffer map;
+
+	private final String[] names;
+	private final short[] methods;
+	private final int[] compressedSizes;
+	private final int[] sizes;
+	private final int[] headerOffsets;
+
+	public MappedJarFile( String fileName ) throws IOException {
+		this( fileName, FileChannel.open(Paths.get(fileName), StandardOpenOption.READ) );
+	}
+
+	private MappedJarFile( String fileName, FileChannel channel ) throws IOException {
+		this( fileName, channel, map(fileName, channel) );
+	}
+
+	private static ByteBuffer map( String fileName, FileChannel channel ) throws IOException {
+		try{
+			final long length = channel.size();
+			if( length > Integer.MAX_VALUE ){
+				throw new IOException( fileName + ": jar files larger than 2GB cannot be mapped" );
+			}
+			return channel.map( FileChannel.MapMode.READ_ONLY, 0, length );
+		}catch( IOException | RuntimeException e ){
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Parses the central directory of a jar held in a buffer
+	 *
+	 * @param channel The channel the buffer is mapped from, closed by close(); may be null
+	 */
+	private MappedJarFile( String fileName, FileChannel channel, ByteBuffer map ) throws IOException {
+		name = fileName;
+		this.channel = channel;
+		this.map = map;
+		map.order( ByteOrder.LITTLE_ENDIAN );
+		try{
+			// End of central directory record, followed by a comment of at most 64KB
+			int end = map.capacity() - 22;
+			final int lowest = Math.max( 0, end - 0xFFFF );
+			while( end >= lowest && map.getInt(end) != END_HEADER ){
+				end--;
+			}
+			if( end < lowest ){
+				throw new IOException( fileName + ": not a zip file" );
+			}
+			long count = map.getShort(end + 10) & 0xFFFF;
+			long offset = map.getInt(end + 16) & 0xFFFFFFFFL;
+			if( (count == 0xFFFF || offset == 0xFFFFFFFFL) && end >= 20 && map.getInt(end - 20) == ZIP64_LOCATOR ){
+				final int zip64End = checkedOffset( map.getLong(end - 12) );
+				if( map.getInt(zip64End) != ZIP64_END_HEADER ){
+					throw new IOException( fileName + ": invalid zip64 end of central directory" );
+				}
+				count = map.getLong(zip64End + 32);
+				offset = map.getLong(zip64End + 48);
+			}
+			if( count > Integer.MAX_VALUE ){
+				throw new IOException( fileName + ": too many entries" );
+			}
+
+			final int n = (int)count;
+			names = new String[n];
+			methods = new short[n];
+			compressedSizes = new int[n];
+			sizes = new int[n];
+			headerOffsets = new int[n];
+			int pos = checkedOffset( offset );
+			for( int e = 0; e < n; e++ ){
+				if( map.getInt(pos) != CENTRAL_HEADER ){
+					throw new IOException( fileName + ": invalid central directory" );
+				}
+				methods[e] = map.getShort(pos + 10);
+				long compressedSize = map.getInt(pos + 20) & 0xFFFFFFFFL;
+				long size = map.getInt(pos + 24) & 0xFFFFFFFFL;
+				final int nameLength = map.getShort(pos + 28) & 0xFFFF;
+				final int extraLength = map.getShort(pos + 30) & 0xFFFF;
+				final int commentLength = map.getShort(pos + 32) & 0xFFFF;
+				long headerOffset = map.getInt(pos + 42) & 0xFFFFFFFFL;
+				names[e] = readName( pos + 46, nameLength );
+
+				// Sizes and offset that do not fit in 32 bits are in the zip64 extra field
+				int extra = pos + 46 + nameLength;
+				final int extraEnd = extra + extraLength;
+				while( extra + 4 <= extraEnd ){
+					final int id = map.getShort(extra) & 0xFFFF;
+					final int dataLength = map.getShort(extra + 2) & 0xFFFF;
+					if( id == ZIP64_EXTRA ){
+						int field = extra + 4;
+						if( size == 0xFFFFFFFFL ){
+							size = map.getLong(field);
+							field += 8;
+						}
+						if( compressedSize == 0xFFFFFFFFL ){
+							compressedSize = map.getLong(field);
+							field += 8;
+						}
+						if( headerOffset == 0xFFFFFFFFL ){
+							headerOffset = map.getLong(field);
+						}
+					}
+					extra += 4 + dataLength;
+				}
+				compressedSizes[e] = checkedOffset( compressedSize );
+				sizes[e] = checkedOffset( size );
+				headerOffsets[e] = checkedOffset( headerOffset );
+				pos = extraEnd + commentLength;
+			}
+		}catch( IOException | RuntimeException e ){
+			if( channel != null ){
+				channel.close();
+			}
+			throw e;
+		}
+	}
+
+	private int checkedOffset( long value ) throws IOException {
+		if( value < 0 || value > Integer.MAX_VALUE ){
+			throw new IOException( name + ": invalid size or offset " + value );
+		}
+		return (int)value;
+	}
+
+	private String readName( int pos, int length ){
+		final byte[] bytes = new byte[length];
+		final ByteBuffer view = map.duplicate();
+		view.position( pos );
+		view.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * @return The number of entries, in central directory order
+	 */
+	public int size(){
+		return names.length;
+	}
+
+	public String getEntryName( int entry ){
+		return names[entry];
+	}
+
+	public boolean isDirectory( int entry ){
+		return names[entry].endsWith("/");
+	}
+
+	/**
+	 * @return The uncompressed size of an entry
+	 */
+	public int getEntrySize( int entry ){
+		return sizes[entry];
+	}
+
+	/**
+	 * Reads and inflates an entry into the buffer of the calling thread.
+	 * The content is in the first getEntrySize(entry) bytes of the returned
+	 * array, which is overwritten by the next read on the same thread.
+	 *
+	 * @return The buffer of the calling thread, or an array of its own
+	 * for an entry larger than 1MB
+	 */
+	public byte[] read( int entry ) throws IOException {
+		final Buffers local = buffers.get();
+		final byte[] out = local.output( sizes[entry] );
+		read( entry, out, local );
+		return out;
+	}
+
+	/**
+	 * Reads and inflates an entry into the given array, e.g. to keep it
+	 * after the next read on the same thread.
+	 *
+	 * @param out An array of at least getEntrySize(entry) bytes
+	 */
+	public void read( int entry, byte[] out ) throws IOException {
+		read( entry, out, buffers.get() );
+	}
+
+	/**
+	 * Opens a jar stored as an entry of this jar. The entries of the
+	 * nested jar are named after this jar and the entry, separated by
+	 * "!/". The nested jar does not need to be closed, and stays valid
+	 * after this jar is closed.
+	 */
+	public MappedJarFile openNested( int entry ) throws IOException {
+		final String nestedName = name + "!/" + names[entry];
+		if( methods[entry] == STORED ){
+			final ByteBuffer view = map.duplicate();
+			final int data = dataOffset( entry );
+			view.position( data );
+			view.limit( data + sizes[entry] );
+			return new MappedJarFile( nestedName, null, view.slice() );
+		}
+		if( methods[entry] == DEFLATED && sizes[entry] > NESTED_IN_MEMORY ){
+			return new MappedJarFile( nestedName, null, inflateToTemporaryFile(entry) );
+		}
+		final byte[] content = new byte[sizes[entry]];
+		read( entry, content, buffers.get() );
+		return new MappedJarFile( nestedName, null, ByteBuffer.wrap(content) );
+	}
+
+	// Offset of the data of an entry, after its local header
+	private int dataOffset( int entry ) throws IOException {
+		final int header = headerOffsets[entry];
+		if( map.getInt(header) != LOCAL_HEADER ){
+			throw new IOException( name + ": invalid local header for " + names[entry] );
+		}
+		return header + 30 + (map.getShort(header + 26) & 0xFFFF) + (map.getShort(header + 28) & 0xFFFF);
+	}
+
+	private void read( int entry, byte[] out, Buffers local ) throws IOException {
+		switch( methods[entry] ){
+		case STORED:
+		{
+			final ByteBuffer view = map.duplicate();
+			view.position( dataOffset(entry) );
+			view.get( out, 0, sizes[entry] );
+			break;
+		}
+		case DEFLATED:
+			inflate( entry, out, null, local );
+			break;
+		default:
+			throw new IOException( name + ": unsupported compression method " + methods[entry] + " for " + names[entry] );
+		}
+	}
+
+	/**
+	 * Inflates an entry into out, or, if sink is not null, into sink
+	 * through out, a chunk of out.length bytes at a time
+	 */
+	private void inflate( int entry, byte[] out, FileChannel sink, Buffers local ) throws IOException {
+		final int size = sizes[entry];
+		final ByteBuffer view = map.duplicate();
+		view.position( dataOffset(entry) );
+		final byte[] in = local.input;
+		int remaining = compressedSizes[entry];
+		boolean padded = false;
+		final Inflater inflater = local.inflater;
+		inflater.reset();
+		try{
+			int inflated = 0;
+			while( inflated < size ){
+				if( inflater.needsInput() ){
+					if( remaining > 0 ){
+						final int n = Math.min( remaining, in.length );
+						view.get( in, 0, n );
+						remaining -= n;
+						inflater.setInput( in, 0, n );
+					}else if( !padded ){
+						// Inflater in nowrap mode may need a dummy byte after the data
+						in[0] = 0;
+						inflater.setInput( in, 0, 1 );
+						padded = true;
+					}else{
+						break;
+					}
+				}
+				final int offset = sink == null ? inflated : 0;
+				final int n = inflater.inflate( out, offset, Math.min(size - inflated, out.length - offset) );
+				if( n == 0 && (inflater.finished() || inflater.needsDictionary()) ){
+					break;
+				}
+				if( sink != null ){
+					final ByteBuffer chunk = ByteBuffer.wrap( out, 0, n );
+					while( chunk.hasRemaining() ){
+						sink.write( chunk );
+					}
+				}
+				inflated += n;
+			}
+			if( inflated != size ){
+				throw new IOException( name + ": truncated entry " + names[entry] );
+			}
+		}catch( DataFormatException e ){
+			throw new IOException( name + ": corrupted entry " + names[entry], e );
+		}
+	}
+
+	// Inflates an entry into a temporary file, and maps it; the mapping stays valid after the file is deleted
+	private ByteBuffer inflateToTemporaryFile( int entry ) throws IOException {
+		final Path file = Files.createTempFile( "nested", ".jar" );
+		try( FileChannel out = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) ){
+			final Buffers local = buffers.get();
+			inflate( entry, local.output(INPUT_CHUNK), out, local );
+			return out.map( FileChannel.MapMode.READ_ONLY, 0, sizes[entry] );
+		}finally{
+			if( !file.toFile().delete() ){
+				file.toFile().deleteOnExit(); // Mapped files cannot be deleted on some systems
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( channel != null ){
+			channel.close();
+		}
+	}
+
+	/**
+	 * The buffers of a thread. The output one grows to the largest entry
+	 * read, up to RETAINED_OUTPUT bytes; larger entries get arrays of
+	 * their own, that the thread does not keep.
+	 */
+	private static final class Buffers {
+		final Inflater inflater = new Inflater( true );
+		final byte[] input = new byte[INPUT_CHUNK];
+		byte[] output = new byte[16384];
+
+		byte[] output( int size ){
+			if( size > RETAINED_OUTPUT ){
+				return new byte[size];
+			}
+			if( output.length < size ){
+				output = new byte[Math.min( Math.max(size, output.length * 2), RETAINED_OUTPUT )];
+			}
+			return output;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package ch.usi.inf.sp.cfg;
+
+/**
+ * The statistics of a single method, as they are written
+ * as one row of the csv file. The names are kept as ids of the shared
+ * {@link SymbolTable}, so the statistics of many classes share them.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class MethodStatistics {
+
+	private final int benchmarkId;
+	private final int packageId;
+	private final int classId;
+	private final int methodId;
+	private final int access;
+	private final int instructionsCount;
+	private final int basicBlocksCount;
+	private final int dominatorTreeHeight;
+	private final int loopCount;
+	private final int maxLoopDepth;
+
+	public MethodStatistics( String benchmark, String packageName, String className,
+			String methodName, int access, int instructionsCount, int basicBlocksCount,
+			int dominatorTreeHeight, int loopCount, int maxLoopDepth ){
+		this( SymbolTable.getShared().intern(benchmark), SymbolTable.getShared().intern(packageName),
+				SymbolTable.getShared().intern(className), SymbolTable.getShared().intern(methodName),
+				access, instructionsCount, basicBlocksCount, dominatorTreeHeight, loopCount, maxLoopDepth );
+	}
+
+	/**
+	 * Like the previous constructor, with the names already interned
+	 * in the shared SymbolTable
+	 */
+	MethodStatistics( int benchmarkId, int packageId, int classId, int methodId, int access,
+			int instructionsCount, int basicBlocksCount, int dominatorTreeHeight, int loopCount, int maxLoopDepth ){
+		this.benchmarkId = benchmarkId;
+		this.packageId = packageId;
+		this.classId = classId;
+		this.methodId = methodId;
+		this.access = access;
+		this.instructionsCount = instructionsCount;
+		this.basicBlocksCount = basicBlocksCount;
+		this.dominatorTreeHeight = dominatorTreeHeight;
+		this.loopCount = loopCount;
+		this.maxLoopDepth = maxLoopDepth;
+	}
+
+	public String getBenchmark(){
+		return SymbolTable.getShared().get( benchmarkId );
+	}
+
+	/**
+	 * @return The same statistics, for a method found in another benchmark
+	 */
+	public MethodStatistics withBenchmark( String benchmark ){
+		return new MethodStatistics( SymbolTable.getShared().intern(benchmark), packageId, classId, methodId, access,
+				instructionsCount, basicBlocksCount, dominatorTreeHeight, loopCount, maxLoopDepth );
+	}
+
+	public String getPackageName(){
+		return SymbolTable.getShared().get( packageId );
+	}
+
+	/**
+	 * @return The simple name of the class, without the package
+	 */
+	public String getClassName(){
+		return SymbolTable.getShared().get( classId );
+	}
+
+	public String getMethodName(){
+		return SymbolTable.getShared().get( methodId );
+	}
+
+	/**
+	 * @return The id of the benchmark in the shared SymbolTable
+	 */
+	public int getBenchmarkId(){
+		return benchmarkId;
+	}
+
+	public int getPackageId(){
+		return packageId;
+	}
+
+	public int getClassId(){
+		return classId;
+	}
+
+	public int getMethodId(){
+		return methodId;
+	}
+
+	public int getAccess(){
+		return access;
+	}
+
+	public int getInstructionsCount(){
+		return instructionsCount;
+	}
+
+	/**
+	 * @return The number of basic blocks, without the dummy "start" and "end" ones
+	 */
+	public int getBasicBlocksCount(){
+		return basicBlocksCount;
+	}
+
+	/**
+	 * @return The depth of the deepest block of the Dominance Tree,
+	 * rooted at the dummy "start" block (the "end" block included)
+	 */
+	public int getDominatorTreeHeight(){
+		return dominatorTreeHeight;
+	}
+
+	/**
+	 * @return The number of loops, irreducible ones included
+	 */
+	public int getLoopCount(){
+		return loopCount;
+	}
+
+	/**
+	 * @return The nesting depth of the most deeply nested loop, 0 if there are no loops
+	 */
+	public int getMaxLoopDepth(){
+		return maxLoopDepth;
+	}
+}
@@ -0,0 +1,149 @@
+package ch.usi.inf.sp.cfg;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The properties of the JVM opcodes the extractors need, precomputed in
+ * a table indexed by opcode, so that classifying an instruction is a
+ * single array lookup.
+ * <p>
+ * Returns can throw IllegalMonitorStateException only in synchronized
+ * methods, when the monitor of the method has been released; they have
+ * their own flag, {@link #PEI_IF_SYNCHRONIZED}, so that the precise model
+ * of {@link #isPEI(int, int)} can leave them out of the other methods,
+ * while {@link #isPEI(int)} keeps the original model, where they always
+ * are PEIs.
+ * <p>
+ * RET is not a branch here: its targets are not known without a data
+ * flow analysis, and the extractors do not follow them.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class OpcodeTable {
+
+	/** Potentially Exception-throwing Instruction, in any method */
+	public static final int PEI = 1;
+	/** Can throw an exception only in a synchronized method */
+	public static final int PEI_IF_SYNCHRONIZED = 2;
+	/** Conditional or unconditional jump, or switch */
+	public static final int BRANCH = 4;
+	/** Returns from the method */
+	public static final int RETURN = 8;
+	/** Never falls through to the next instruction */
+	public static final int TERMINATOR = 16;
+
+	private static final byte[] FLAGS = new byte[256];
+
+	static {
+		set( PEI, Opcodes.AALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.AASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException, ArrayStoreException
+		set( PEI, Opcodes.ANEWARRAY ); // NegativeArraySizeException, (linking)
+		set( PEI, Opcodes.ARRAYLENGTH ); // NullPointerException
+		set( PEI | TERMINATOR, Opcodes.ATHROW ); // NullPointerException, IllegalMonitorStateException (if synchronized)
+		set( PEI, Opcodes.BALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.BASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.CALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.CASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.CHECKCAST ); // ClassCastException, (linking)
+		set( PEI, Opcodes.DALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.DASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.FALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.FASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.GETFIELD ); // NullPointerException, (linking)
+		set( PEI, Opcodes.GETSTATIC ); // Error*, (linking)
+		set( PEI, Opcodes.IALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.IASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.IDIV ); // ArithmeticException
+		set( PEI, Opcodes.INSTANCEOF ); // (linking)
+		set( PEI, Opcodes.INVOKEDYNAMIC ); // BootstrapMethodError, (linking)
+		set( PEI, Opcodes.INVOKEINTERFACE ); // NullPointerException, IncompatibleClassChangeError, AbstractMethodError, IllegalAccessError, UnsatisfiedLinkError, (linking)
+		set( PEI, Opcodes.INVOKESPECIAL ); // NullPointerException, UnsatisfiedLinkError, (linking)
+		set( PEI, Opcodes.INVOKESTATIC ); // UnsatisfiedLinkError, Error*, (linking)
+		set( PEI, Opcodes.INVOKEVIRTUAL ); // NullPointerException, AbstractMethodError, UnsatisfiedLinkError, (linking)
+		set( PEI, Opcodes.IREM ); // ArithmeticException
+		set( PEI, Opcodes.LALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.LASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.LDIV ); // ArithmeticException
+		set( PEI, Opcodes.LREM ); // ArithmeticException
+		set( PEI, Opcodes.MONITORENTER ); // NullPointerException
+		set( PEI, Opcodes.MONITOREXIT ); // NullPointerException, IllegalMonitorStateException
+		set( PEI, Opcodes.MULTIANEWARRAY ); // NegativeArraySizeException, (linking)
+		set( PEI, Opcodes.NEW ); // Error*, (linking)
+		set( PEI, Opcodes.NEWARRAY ); // NegativeArraySizeException
+		set( PEI, Opcodes.PUTFIELD ); // NullPointerException, (linking)
+		set( PEI, Opcodes.PUTSTATIC ); // Error*, (linking)
+		set( PEI, Opcodes.SALOAD ); // NullPointerException, ArrayIndexOutOfBoundsException
+		set( PEI, Opcodes.SASTORE ); // NullPointerException, ArrayIndexOutOfBoundsException
+
+		// IllegalMonitorStateException (if synchronized)
+		for( int opcode = Opcodes.IRETURN; opcode <= Opcodes.RETURN; opcode++ ){
+			set( PEI_IF_SYNCHRONIZED | RETURN | TERMINATOR, opcode );
+		}
+
+		for( int opcode = Opcodes.IFEQ; opcode <= Opcodes.IF_ACMPNE; opcode++ ){
+			set( BRANCH, opcode );
+		}
+		set( BRANCH, Opcodes.IFNULL );
+		set( BRANCH, Opcodes.IFNONNULL );
+		set( BRANCH, Opcodes.JSR );
+		set( BRANCH | TERMINATOR, Opcodes.GOTO );
+		set( BRANCH | TERMINATOR, Opcodes.TABLESWITCH );
+		set( BRANCH | TERMINATOR, Opcodes.LOOKUPSWITCH );
+	}
+
+	private OpcodeTable(){
+	}
+
+	private static void set( int flags, int opcode ){
+		FLAGS[opcode] |= flags;
+	}
+
+	/**
+	 * @param opcode An opcode, or -1 for pseudo instructions
+	 * @return The flags of the opcode, 0 for pseudo instructions
+	 */
+	public static int getFlags( int opcode ){
+		return opcode < 0 ? 0 : FLAGS[opcode];
+	}
+
+	/**
+	 * The original model: returns are PEIs in every method.
+	 * @param opcode An opcode, or -1 for pseudo instructions
+	 * @return Whether an instruction with this opcode can throw an exception
+	 */
+	public static boolean isPEI( int opcode ){
+		return (getFlags(opcode) & (PEI | PEI_IF_SYNCHRONIZED)) != 0;
+	}
+
+	/**
+	 * The precise model: returns are PEIs only in synchronized methods.
+	 * @param opcode An opcode, or -1 for pseudo instructions
+	 * @param access The access flags of the method
+	 * @return Whether an instruction with this opcode can throw an
+	 * exception in the method
+	 */
+	public static boolean isPEI( int opcode, int access ){
+		return (getFlags(opcode) & getPEIMask(access)) != 0;
+	}
+
+	/**
+	 * @param access The access flags of a method
+	 * @return The flags that make an instruction a PEI in the method,
+	 * in the precise model
+	 */
+	public static int getPEIMask( int access ){
+		return (access & Opcodes.ACC_SYNCHRONIZED) != 0 ? PEI | PEI_IF_SYNCHRONIZED : PEI;
+	}
+
+	public static boolean isBranch( int opcode ){
+		return (getFlags(opcode) & BRANCH) != 0;
+	}
+
+	public static boolean isReturn( int opcode ){
+		return (getFlags(opcode) & RETURN) != 0;
+	}
+
+	public static boolean isTerminator( int opcode ){
+		return (getFlags(opcode) & TERMINATOR) != 0;
+	}
+}
@@ -0,0 +1,630 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * Analyzes all the classes of a jar file on a work-stealing pool.
+ * Every class is an independent task; the statistics are written
+ * in the order of the jar entries, regardless of which task
+ * finishes first.
+ * <p>
+ * The pool is kept for the whole life of the analyzer, so that several
+ * jars can be analyzed by the same threads; close() shuts it down.
+ * <p>
+ * With deduplication, a class whose bytes are identical to a class
+ * already analyzed (e.g. a shaded library found in several jars) is not
+ * analyzed again: its rows reuse the statistics of the first copy, with
+ * the benchmark of the jar it is found in. Its graphs are not written
+ * again to the store and dot files, nor added again to the repository.
+ * <p>
+ * Jars nested in a jar (e.g. the BOOT-INF/lib/*.jar of a fat jar) are
+ * analyzed too, recursively and in place, where they are found in the
+ * entry order; the benchmark of their classes is the path of the nested
+ * jar, as in "app.jar!/BOOT-INF/lib/lib.jar".
+ * <p>
+ * The run can also be split into a pipeline of three stages, each one
+ * with its own concurrency: reader threads inflate the classes into
+ * arrays of their own, the workers analyze them, and the calling thread
+ * writes the results. Without readers (the default) every worker reads
+ * the classes it analyzes. In both cases at most a fixed number of
+ * classes are in flight between the first and the last stage, so the
+ * memory used does not depend on the size of the jars.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class ParallelJarAnalyzer implements Closeable {
+
+	/** Tasks in flight per worker, bounds the results kept in memory */
+	private static final int TASKS_PER_WORKER = 8;
+
+	private final int workers;
+	private final ForkJoinPool pool;
+	private ExecutorService readers;
+	private int maxPending;
+	private boolean streaming;
+	private int parsingOptions;
+	private AnalysisCache cache;
+	private CfgStoreWriter cfgStore;
+	private CfgRepository repository;
+	private StatsStoreWriter statsStore;
+	private Writer dot;
+	private AnalysisMetrics metrics;
+	private StatisticsAggregator aggregator;
+	// The classes and nested jars analyzed, by their index among those of all the jars
+	private long firstEntry = 0;
+	private long endEntry = Long.MAX_VALUE;
+	private long entryIndex; // Index of the next class or nested jar of a jar
+	private boolean verbose = true;
+	// Key of every class analyzed so far -> its result, null without deduplication
+	private ConcurrentHashMap<String, CompletableFuture<ClassResult>> analyzed;
+
+	public ParallelJarAnalyzer( int workers ){
+		if( workers < 1 ){
+			throw new IllegalArgumentException( "Invalid number of workers: " + workers );
+		}
+		this.workers = workers;
+		pool = new ForkJoinPool( workers );
+		maxPending = workers * TASKS_PER_WORKER;
+	}
+
+	public int getWorkers(){
+		return workers;
+	}
+
+	/**
+	 * @param readers The number of threads that read and inflate the
+	 * classes before they are analyzed; 0 (the default) to let every
+	 * worker read the classes it analyzes
+	 */
+	public void setReaders( int readers ){
+		if( readers < 0 ){
+			throw new IllegalArgumentException( "Invalid number of readers: " + readers );
+		}
+		if( this.readers != null ){
+			this.readers.shutdown();
+		}
+		this.readers = readers == 0 ? null : Executors.newFixedThreadPool( readers, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread( Runnable r ){
+				final Thread thread = new Thread( r, "reader-" + count++ );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param maxPending The number of classes in flight, read or being
+	 * analyzed but not yet written; by default 8 per worker
+	 */
+	public void setQueueCapacity( int maxPending ){
+		if( maxPending < 1 ){
+			throw new IllegalArgumentException( "Invalid queue capacity: " + maxPending );
+		}
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Selects the extraction engine: StreamingCfgExtractor if true,
+	 * ControlFlowGraphExtractor (the default) otherwise.
+	 */
+	public void setStreaming( boolean streaming ){
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @param parsingOptions The options passed to ClassReader.accept,
+	 * possibly with ControlFlowGraphExtractor.PRECISE_PEI
+	 */
+	public void setParsingOptions( int parsingOptions ){
+		this.parsingOptions = parsingOptions;
+	}
+
+	/**
+	 * @param cache The cache of the statistics of already analyzed
+	 * classes, null to analyze every class
+	 */
+	public void setCache( AnalysisCache cache ){
+		this.cache = cache;
+	}
+
+	/**
+	 * @param cfgStore Where the graphs of all the methods are written,
+	 * in jar entry order, with the benchmark of the first copy of their
+	 * class; null not to keep the graphs. Graphs are built
+	 * only by ControlFlowGraphExtractor, and never found in the cache.
+	 */
+	public void setCfgStore( CfgStoreWriter cfgStore ){
+		this.cfgStore = cfgStore;
+	}
+
+	/**
+	 * @param repository Where the graphs and the statistics of all the
+	 * methods are kept, in jar entry order; null not to keep them. As
+	 * with setCfgStore, graphs are never found in the cache.
+	 */
+	public void setRepository( CfgRepository repository ){
+		this.repository = repository;
+	}
+
+	/**
+	 * @param statsStore Where the statistics are also written, in the
+	 * same order as in the csv file; null to write only the csv file
+	 */
+	public void setStatsStore( StatsStoreWriter statsStore ){
+		this.statsStore = statsStore;
+	}
+
+	/**
+	 * @param dot Where the graphs of all the methods are written in dot
+	 * format, in jar entry order; null not to render the graphs. Every
+	 * class is rendered by a worker, and written at once. Like for
+	 * setCfgStore, graphs are built only by ControlFlowGraphExtractor.
+	 */
+	public void setDot( Writer dot ){
+		this.dot = dot;
+	}
+
+	/**
+	 * @param metrics Where the time spent in every phase and the counts
+	 * of classes, methods, instructions, blocks and edges are added;
+	 * null not to measure them
+	 */
+	public void setMetrics( AnalysisMetrics metrics ){
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param aggregator Where the statistics of all the methods are
+	 * aggregated, by the workers; null not to aggregate them
+	 */
+	public void setAggregator( StatisticsAggregator aggregator ){
+		this.aggregator = aggregator;
+	}
+
+	/**
+	 * Restricts the analysis to a range of entries, e.g. to analyze a
+	 * shard of a run. The classes and nested jars directly in the jars
+	 * are numbered from 0, over all the jars analyzed by this analyzer,
+	 * in order; a nested jar is analyzed all by the shard it falls in.
+	 * See countEntries.
+	 *
+	 * @param firstEntry The first entry analyzed
+	 * @param endEntry The entry after the last one analyzed
+	 */
+	public void setEntryRange( long firstEntry, long endEntry ){
+		this.firstEntry = firstEntry;
+		this.endEntry = endEntry;
+	}
+
+	/**
+	 * @param deduplicate Whether classes identical to already analyzed
+	 * ones, in this jar or in the previous ones, are not analyzed again
+	 */
+	public void setDeduplicate( boolean deduplicate ){
+		analyzed = deduplicate ? new ConcurrentHashMap<String, CompletableFuture<ClassResult>>() : null;
+	}
+
+	/**
+	 * @param verbose Whether the name of every analyzed class is printed
+	 */
+	public void setVerbose( boolean verbose ){
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Analyzes all the classes of a jar, nested jars included.
+	 * @param jarFileName The jar to analyze
+	 * @param csv Where the statistics are written, in jar entry order
+	 */
+	public void analyze( String jarFileName, CsvFileCreator csv ) throws IOException {
+		final String benchmark = jarFileName.substring(jarFileName.lastIndexOf('/')+1);
+		if( (cfgStore != null || repository != null || dot != null) && streaming ){
+			throw new IllegalStateException( "The streaming engine does not build graphs" );
+		}
+		final MappedJarFile jar = new MappedJarFile(jarFileName);
+		try{
+			final Deque<ClassTask> pending = new ArrayDeque<>();
+			submit( jar, benchmark, pending, csv, true );
+			while( !pending.isEmpty() ){
+				writeResult( pending.removeFirst(), csv );
+			}
+		}finally{
+			jar.close();
+		}
+	}
+
+	// Submits the classes of a jar and of its nested jars, writing the oldest results to bound the pending ones
+	private void submit( MappedJarFile jar, String benchmark, Deque<ClassTask> pending, CsvFileCreator csv,
+			boolean topLevel ) throws IOException {
+		for( int entry = 0; entry < jar.size(); entry++ ){
+			if( topLevel && (isClass(jar, entry) || isJar(jar, entry)) && !inRange(entryIndex++) ){
+				continue;
+			}
+			if( isClass(jar, entry) ){
+				final ClassTask task = new ClassTask(this, jar, entry, benchmark);
+				pending.addLast( task );
+				if( readers != null ){
+					readers.execute( new Runnable() {
+						@Override
+						public void run(){
+							if( task.prefetch() ){
+								pool.execute( task );
+							}
+						}
+					});
+				}else{
+					pool.execute( task );
+				}
+				if( pending.size() >= maxPending ){
+					writeResult( pending.removeFirst(), csv );
+				}
+			}else if( isJar(jar, entry) ){
+				final MappedJarFile nested = jar.openNested( entry );
+				if( verbose ){
+					System.out.println("Analyzing "+nested.getName());
+				}
+				submit( nested, benchmark + "!/" + jar.getEntryName(entry), pending, csv, false );
+			}
+		}
+	}
+
+	private boolean inRange( long entry ){
+		return entry >= firstEntry && entry < endEntry;
+	}
+
+	/**
+	 * @return The number of classes and nested jars directly in a jar,
+	 * the entries numbered by setEntryRange
+	 */
+	public static int countEntries( String jarFileName ) throws IOException {
+		try( MappedJarFile jar = new MappedJarFile(jarFileName) ){
+			int entries = 0;
+			for( int entry = 0; entry < jar.size(); entry++ ){
+				if( isClass(jar, entry) || isJar(jar, entry) ){
+					entries++;
+				}
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * @return The number of classes of a jar, nested jars included, e.g.
+	 * for {@link AnalysisMetrics#addExpectedClasses(int)}
+	 */
+	public static int countClasses( String jarFileName ) throws IOException {
+		try( MappedJarFile jar = new MappedJarFile(jarFileName) ){
+			return countClasses( jar );
+		}
+	}
+
+	private static int countClasses( MappedJarFile jar ) throws IOException {
+		int classes = 0;
+		for( int entry = 0; entry < jar.size(); entry++ ){
+			if( isClass(jar, entry) ){
+				classes++;
+			}else if( isJar(jar, entry) ){
+				classes += countClasses( jar.openNested(entry) );
+			}
+		}
+		return classes;
+	}
+
+	private static boolean isClass( MappedJarFile jar, int entry ){
+		return !jar.isDirectory(entry) && jar.getEntryName(entry).endsWith(".class");
+	}
+
+	private static boolean isJar( MappedJarFile jar, int entry ){
+		return !jar.isDirectory(entry) && jar.getEntryName(entry).endsWith(".jar");
+	}
+
+	@Override
+	public void close(){
+		if( readers != null ){
+			readers.shutdownNow();
+		}
+		pool.shutdownNow();
+	}
+
+	private void writeResult( ClassTask task, CsvFileCreator csv ) throws IOException {
+		final ClassResult result;
+		try{
+			result = task.join();
+		}catch( UncheckedIOException e ){
+			throw e.getCause();
+		}
+		if( verbose ){
+			System.out.println(task.jar.getEntryName(task.entry));
+		}
+		final long time = metrics == null ? 0 : System.nanoTime();
+		// The copy that has been analyzed, this one if not a duplicate
+		final ClassResult analyzed = result.original != null ? joinOriginal( result ) : result;
+		final List<MethodStatistics> statistics = result.original != null
+				? withBenchmark( analyzed.statistics, task.benchmark ) : result.statistics;
+		csv.writeCsvStatistics( statistics );
+		if( statsStore != null ){
+			statsStore.write( statistics );
+		}
+		if( result.original != null ){
+			if( aggregator != null ){
+				aggregator.add( statistics );
+			}
+			if( metrics != null ){
+				metrics.addDuplicateClass( statistics );
+			}
+		}
+		// The graphs go with the first copy in entry order, whichever copy has been analyzed
+		if( !analyzed.graphsWritten ){
+			analyzed.graphsWritten = true;
+			if( cfgStore != null ){
+				for( int m = 0; m < analyzed.graphRecords.size(); m++ ){
+					cfgStore.write( statistics.get(m).getBenchmarkId(), analyzed.classId,
+							statistics.get(m).getMethodId(), analyzed.methodDescriptorIds[m], analyzed.graphRecords.get(m) );
+				}
+			}
+			if( repository != null ){
+				for( int m = 0; m < analyzed.graphRecords.size(); m++ ){
+					repository.add( statistics.get(m), analyzed.methodDescriptorIds[m],
+							analyzed.exceptionEdgeCounts[m], analyzed.graphRecords.get(m) );
+				}
+			}
+			if( dot != null ){
+				dot.write( analyzed.dot );
+			}
+			// Not needed by the other copies, which may be kept until the end of the run
+			analyzed.graphRecords.clear();
+			analyzed.dot = null;
+		}
+		if( metrics != null ){
+			metrics.addTime( AnalysisMetrics.Phase.OUTPUT, time );
+		}
+	}
+
+	private static ClassResult joinOriginal( ClassResult result ) throws IOException {
+		try{
+			return result.original.join();
+		}catch( CompletionException e ){
+			if( e.getCause() instanceof UncheckedIOException ){
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			}
+			throw e;
+		}
+	}
+
+	// The statistics of a class found in another benchmark
+	private static List<MethodStatistics> withBenchmark( List<MethodStatistics> statistics, String benchmark ){
+		if( statistics.isEmpty() || statistics.get(0).getBenchmark().equals(benchmark) ){
+			return statistics;
+		}
+		final List<MethodStatistics> result = new ArrayList<>( statistics.size() );
+		for( MethodStatistics stats : statistics ){
+			result.add( stats.withBenchmark(benchmark) );
+		}
+		return result;
+	}
+
+	/**
+	 * The outcome of the analysis of a class. The graphs are kept only
+	 * in encoded form, which is much smaller than the graphs themselves.
+	 */
+	private static final class ClassResult {
+		final List<MethodStatistics> statistics;
+		// The result of the copy of a duplicate class that has been analyzed, null if not a duplicate
+		final CompletableFuture<ClassResult> original;
+		// Whether the graphs have been written, with the first copy in entry order; used by the writer
+		boolean graphsWritten;
+		int classId; // Ids of the shared SymbolTable
+		int[] methodDescriptorIds;
+		int[] exceptionEdgeCounts;
+		final List<byte[]> graphRecords = new ArrayList<>();
+		String dot;
+
+		ClassResult( List<MethodStatistics> statistics ){
+			this.statistics = statistics;
+			this.original = null;
+		}
+
+		ClassResult( CompletableFuture<ClassResult> original ){
+			this.statistics = null;
+			this.original = original;
+		}
+	}
+
+	/**
+	 * Reads and analyzes a single class of the jar.
+	 * The class is read into the buffer of the worker thread, which
+	 * is not used again by the thread until the analysis is over.
+	 */
+	@SuppressWarnings("serial")
+	private static final class ClassTask extends RecursiveTask<ClassResult> {
+
+		// The dot rendering of a class, reused by all the classes of a worker
+		private static final ThreadLocal<DotBuffer> dotBuffers = new ThreadLocal<DotBuffer>() {
+			@Override
+			protected DotBuffer initialValue(){
+				return new DotBuffer();
+			}
+		};
+
+		private final ParallelJarAnalyzer analyzer;
+		private final MappedJarFile jar;
+		private final int entry;
+		private final String benchmark;
+		// The class, when read in advance by a reader thread
+		private byte[] bytes;
+
+		ClassTask( ParallelJarAnalyzer analyzer, MappedJarFile jar, int entry, String benchmark ){
+			this.analyzer = analyzer;
+			this.jar = jar;
+			this.entry = entry;
+			this.benchmark = benchmark;
+		}
+
+		/**
+		 * Reads the class into an array of its own, on a reader thread
+		 *
+		 * @return Whether the class can be analyzed; if not, the task is
+		 * completed with the exception
+		 */
+		boolean prefetch(){
+			try{
+				final AnalysisMetrics metrics = analyzer.metrics;
+				final long time = metrics == null ? 0 : System.nanoTime();
+				final byte[] content = new byte[jar.getEntrySize(entry)];
+				jar.read( entry, content );
+				if( metrics != null ){
+					metrics.addTime( AnalysisMetrics.Phase.READ, time );
+				}
+				bytes = content;
+				return true;
+			}catch( IOException e ){
+				completeExceptionally( new UncheckedIOException(jar.getEntryName(entry), e) );
+				return false;
+			}catch( RuntimeException | Error e ){
+				completeExceptionally( e );
+				return false;
+			}
+		}
+
+		@Override
+		protected ClassResult compute(){
+			CompletableFuture<ClassResult> first = null;
+			try{
+				final AnalysisMetrics metrics = analyzer.metrics;
+				long time = metrics == null ? 0 : System.nanoTime();
+				final byte[] bytes;
+				if( this.bytes != null ){
+					bytes = this.bytes;
+					this.bytes = null;
+				}else{
+					bytes = jar.read( entry );
+					if( metrics != null ){
+						metrics.addTime( AnalysisMetrics.Phase.READ, time );
+					}
+				}
+				final int length = jar.getEntrySize( entry );
+				final AnalysisCache cache = analyzer.cache;
+				final ConcurrentHashMap<String, CompletableFuture<ClassResult>> analyzed = analyzer.analyzed;
+				String key = null;
+				if( cache != null || analyzed != null ){
+					key = AnalysisCache.key( bytes, 0, length, analyzer.parsingOptions );
+				}
+				if( analyzed != null ){
+					final CompletableFuture<ClassResult> own = new CompletableFuture<>();
+					final CompletableFuture<ClassResult> original = analyzed.putIfAbsent( key, own );
+					if( original != null ){
+						return new ClassResult( original );
+					}
+					first = own;
+				}
+				final boolean keepGraphs = analyzer.cfgStore != null || analyzer.repository != null || analyzer.dot != null;
+				if( cache != null ){
+					final List<MethodStatistics> cached = keepGraphs ? null : cache.get( key, benchmark );
+					if( cached != null ){
+						if( metrics != null ){
+							metrics.addClass( cached, true );
+						}
+						if( analyzer.aggregator != null ){
+							analyzer.aggregator.add( cached );
+						}
+						final ClassResult result = new ClassResult( cached );
+						if( first != null ){
+							first.complete( result );
+						}
+						return result;
+					}
+				}
+				final ClassReader cr = new ClassReader( bytes, 0, length );
+				final ClassResult result;
+				final ExtractionOptions options = new ExtractionOptions().parsingOptions( analyzer.parsingOptions )
+						.metrics( metrics );
+				if( analyzer.streaming ){
+					result = new ClassResult( StreamingCfgExtractor.extractStatistics(cr, benchmark, options) );
+				}else{
+					final List<ControlFlowGraph> graphs = new ArrayList<>();
+					final List<InsnList> instructions = new ArrayList<>();
+					if( keepGraphs ){
+						options.graphConsumer( graphs::add );
+					}
+					if( analyzer.dot != null ){
+						options.instructionConsumer( instructions::add );
+					}
+					result = new ClassResult( ControlFlowGraphExtractor.extractStatistics(cr, benchmark, options) );
+					// Dot rendering and graph encoding, counted as output
+					time = metrics == null ? 0 : System.nanoTime();
+					if( analyzer.dot != null ){
+						final DotBuffer buffer = dotBuffers.get();
+						buffer.text.setLength( 0 );
+						for( int m = 0; m < graphs.size(); m++ ){
+							buffer.creator.append( graphs.get(m), instructions.get(m) );
+						}
+						result.dot = buffer.text.toString();
+					}
+					if( analyzer.cfgStore != null || analyzer.repository != null ){
+						result.classId = SymbolTable.getShared().intern( cr.getClassName() );
+						result.methodDescriptorIds = new int[graphs.size()];
+						result.exceptionEdgeCounts = new int[graphs.size()];
+						for( int m = 0; m < graphs.size(); m++ ){
+							result.methodDescriptorIds[m] = graphs.get(m).getMethodDescriptorId();
+							result.exceptionEdgeCounts[m] = graphs.get(m).getExceptionEdgeCount();
+							result.graphRecords.add( CfgStoreWriter.encode(graphs.get(m)) );
+						}
+					}
+					if( metrics != null && keepGraphs ){
+						metrics.addTime( AnalysisMetrics.Phase.OUTPUT, time );
+					}
+				}
+				if( cache != null ){
+					cache.put( key, result.statistics );
+				}
+				if( metrics != null ){
+					metrics.addClass( result.statistics, false );
+				}
+				if( analyzer.aggregator != null ){
+					analyzer.aggregator.add( result.statistics );
+				}
+				if( first != null ){
+					first.complete( result );
+				}
+				return result;
+			}catch( IOException e ){
+				final UncheckedIOException failure = new UncheckedIOException( jar.getEntryName(entry), e );
+				if( first != null ){
+					first.completeExceptionally( failure );
+				}
+				throw failure;
+			}catch( RuntimeException | Error e ){
+				if( first != null ){
+					first.completeExceptionally( e );
+				}
+				throw e;
+			}
+		}
+	}
+
+	private static final class DotBuffer {
+		final StringBuilder text = new StringBuilder();
+		final DotFileCreator creator = new DotFileCreator( text );
+	}
+}
@@ -0,0 +1,305 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyzes jars with several worker processes (JVMs), each analyzing a
+ * shard of the classes, and merges their results as if they had been
+ * analyzed by a single process.
+ * <p>
+ * The classes and nested jars directly in the jars are numbered in order
+ * over all the jars, as by ParallelJarAnalyzer.setEntryRange, and split
+ * into consecutive ranges of about the same size, one per shard. Every
+ * shard is analyzed by a JarToCfg worker, started with -shard, that writes
+ * its csv file (and its statistics store and histograms, if asked for)
+ * to a directory of its own, with its output in log.txt. Up to the given
+ * number of workers run at the same time.
+ * <p>
+ * When all the shards are done, their csv files (and statistics stores)
+ * are appended in shard order, so that the merged output is the one of a
+ * single process, whatever the order the shards finished in; histograms
+ * are merged exactly. A worker that fails (e.g. crashes, or runs out of
+ * memory) is started again for its shard only, up to the given number of
+ * retries.
+ * <p>
+ * Workers are started by a {@link Launcher}: by default on this machine,
+ * with the same java and classpath as this process; prefixLauncher runs
+ * them through commands like "ssh host", e.g. on other hosts that share
+ * the jars, the classpath and the shard directories with this one.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class ShardCoordinator {
+
+	static final String STATS_STORE_FILE = "stats.bin";
+	static final String HISTOGRAMS_FILE = "histograms.bin";
+	static final String LOG_FILE = "log.txt";
+
+	/**
+	 * Starts a worker process
+	 */
+	public interface Launcher {
+		/**
+		 * @param command The command of the worker: java, its options,
+		 * the class and its arguments
+		 * @param log Where the output of the worker goes
+		 */
+		Process launch( List<String> command, File log ) throws IOException;
+	}
+
+	/**
+	 * @return A launcher that starts the workers on this machine
+	 */
+	public static Launcher localLauncher(){
+		return new Launcher() {
+			@Override
+			public Process launch( List<String> command, File log ) throws IOException {
+				return new ProcessBuilder( command ).redirectErrorStream( true ).redirectOutput( log ).start();
+			}
+		};
+	}
+
+	/**
+	 * @param prefixes Commands that start a command elsewhere, like
+	 * "ssh host", split into words; workers are started through them in
+	 * turn, so that a shard that is retried likely runs elsewhere
+	 * @return A launcher that starts the workers through the prefixes
+	 */
+	public static Launcher prefixLauncher( final List<List<String>> prefixes ){
+		if( prefixes.isEmpty() ){
+			throw new IllegalArgumentException( "No launcher commands" );
+		}
+		final AtomicInteger next = new AtomicInteger();
+		return new Launcher() {
+			@Override
+			public Process launch( List<String> command, File log ) throws IOException {
+				final List<String> prefixed = new ArrayList<>( prefixes.get(Math.floorMod(next.getAndIncrement(), prefixes.size())) );
+				prefixed.addAll( command );
+				return new ProcessBuilder( prefixed ).redirectErrorStream( true ).redirectOutput( log ).start();
+			}
+		};
+	}
+
+	private final List<String> jarFileNames;
+	private final File workDirectory;
+	private int workers = 1;
+	private int shards;
+	private int retries = 2;
+	private Launcher launcher = localLauncher();
+	private List<String> jvmOptions = Collections.emptyList();
+	private List<String> workerOptions = Collections.emptyList();
+	private StatsStoreWriter statsStore;
+	private StatisticsAggregator aggregator;
+
+	/**
+	 * @param jarFileNames The jars to analyze, in order
+	 * @param workDirectory Where the directories of the shards are created
+	 */
+	public ShardCoordinator( List<String> jarFileNames, File workDirectory ){
+		this.jarFileNames = new ArrayList<>();
+		for( String jarFileName : jarFileNames ){
+			// The workers may run in another directory
+			this.jarFileNames.add( new File(jarFileName).getAbsolutePath() );
+		}
+		this.workDirectory = workDirectory.getAbsoluteFile();
+	}
+
+	/**
+	 * @param workers The number of workers running at the same time
+	 */
+	public void setWorkers( int workers ){
+		if( workers <= 0 ){
+			throw new IllegalArgumentException( "Invalid number of workers: " + workers );
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * @param shards The number of shards, by default the number of workers
+	 */
+	public void setShards( int shards ){
+		if( shards <= 0 ){
+			throw new IllegalArgumentException( "Invalid number of shards: " + shards );
+		}
+		this.shards = shards;
+	}
+
+	/**
+	 * @param retries How many times a failed shard is started again
+	 */
+	public void setRetries( int retries ){
+		this.retries = retries;
+	}
+
+	public void setLauncher( Launcher launcher ){
+		this.launcher = launcher;
+	}
+
+	/**
+	 * @param jvmOptions The options of the java command of the workers, e.g. -Xmx2g
+	 */
+	public void setJvmOptions( List<String> jvmOptions ){
+		this.jvmOptions = jvmOptions;
+	}
+
+	/**
+	 * @param workerOptions The JarToCfg options of the workers, e.g.
+	 * -threads 4 -streaming; they must not name output files
+	 */
+	public void setWorkerOptions( List<String> workerOptions ){
+		this.workerOptions = workerOptions;
+	}
+
+	/**
+	 * @param statsStore Where the statistics are also written; null to
+	 * write only the csv file
+	 */
+	public void setStatsStore( StatsStoreWriter statsStore ){
+		this.statsStore = statsStore;
+	}
+
+	/**
+	 * @param aggregator Where the histograms of the workers are merged;
+	 * null not to aggregate the statistics
+	 */
+	public void setAggregator( StatisticsAggregator aggregator ){
+		this.aggregator = aggregator;
+	}
+
+	/**
+	 * Analyzes all the jars with the workers, and merges their results
+	 *
+	 * @param csv Where the statistics are written, in jar entry order
+	 * @throws IOException If a shard still fails after the retries
+	 */
+	public void analyze( CsvFileCreator csv ) throws IOException {
+		long entries = 0;
+		for( String jarFileName : jarFileNames ){
+			entries += ParallelJarAnalyzer.countEntries( jarFileName );
+		}
+		final int count = shards > 0 ? shards : workers;
+		final ExecutorService pool = Executors.newFixedThreadPool( Math.min(workers, count) );
+		try{
+			final List<Future<File>> results = new ArrayList<>( count );
+			for( int s = 0; s < count; s++ ){
+				final int shard = s;
+				final long first = entries * s / count;
+				final long end = entries * (s + 1) / count;
+				results.add( pool.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException, InterruptedException {
+						return runShard( shard, first, end );
+					}
+				}) );
+			}
+			// Merged in shard order, as soon as every shard is done
+			for( int s = 0; s < count; s++ ){
+				merge( join(results.get(s)), csv );
+			}
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	private static File join( Future<File> result ) throws IOException {
+		try{
+			return result.get();
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted", e );
+		}catch( ExecutionException e ){
+			if( e.getCause() instanceof IOException ){
+				throw (IOException)e.getCause();
+			}
+			throw new IOException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Runs the worker of a shard until it succeeds, or the retries are over
+	 * @return The directory of the shard
+	 */
+	private File runShard( int shard, long first, long end ) throws IOException, InterruptedException {
+		final File directory = new File( workDirectory, String.format("shard-%04d", shard) );
+		if( !directory.isDirectory() && !directory.mkdirs() ){
+			throw new IOException( "Cannot create " + directory );
+		}
+		final List<String> command = command( directory, first, end );
+		for( int attempt = 0; ; attempt++ ){
+			for( String name : Arrays.asList(CsvFileCreator.outfname, STATS_STORE_FILE, HISTOGRAMS_FILE) ){
+				new File( directory, name ).delete();
+			}
+			final Process worker = launcher.launch( command, new File(directory, LOG_FILE) );
+			final int exitCode;
+			try{
+				exitCode = worker.waitFor();
+			}finally{
+				worker.destroy();
+			}
+			if( exitCode == 0 && new File(directory, CsvFileCreator.outfname).isFile() ){
+				System.out.println( "Shard " + shard + " done (entries " + first + " to " + end + ")" );
+				return directory;
+			}
+			if( attempt >= retries ){
+				throw new IOException( "Shard " + shard + " failed " + (attempt + 1) + " times, exit code " +
+						exitCode + "; see " + new File(directory, LOG_FILE) );
+			}
+			System.out.println( "Shard " + shard + " failed with exit code " + exitCode + ", retrying" );
+		}
+	}
+
+	private List<String> command( File directory, long first, long end ){
+		final List<String> command = new ArrayList<>();
+		command.add( new File(new File(System.getProperty("java.home"), "bin"), "java").getPath() );
+		command.addAll( jvmOptions );
+		command.add( "-cp" );
+		command.add( System.getProperty("java.class.path") );
+		command.add( JarToCfg.class.getName() );
+		command.addAll( workerOptions );
+		if( statsStore != null ){
+			command.add( "-statsstore" );
+			command.add( new File(directory, STATS_STORE_FILE).getPath() );
+		}
+		if( aggregator != null ){
+			command.add( "-histograms" );
+			command.add( new File(directory, HISTOGRAMS_FILE).getPath() );
+		}
+		command.add( "-shard" );
+		command.add( Long.toString(first) );
+		command.add( Long.toString(end) );
+		command.add( directory.getPath() );
+		command.addAll( jarFileNames );
+		return command;
+	}
+
+	private void merge( File directory, CsvFileCreator csv ) throws IOException {
+		csv.appendRows( new File(directory, CsvFileCreator.outfname).getPath() );
+		if( statsStore != null ){
+			try( StatsStoreReader reader = new StatsStoreReader(new File(directory, STATS_STORE_FILE).getPath()) ){
+				for( int g = 0; g < reader.getRowGroupCount(); g++ ){
+					statsStore.write( reader.readRowGroup(g) );
+				}
+			}
+		}
+		if( aggregator != null ){
+			try( DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(directory, HISTOGRAMS_FILE)))) ){
+				aggregator.read( in );
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates the statistics of the analyzed methods while the analysis
+ * runs, into the distributions the csv file is usually post-processed
+ * for: instructions, blocks, instructions per block, dominator tree
+ * height and loops per method, for all the methods, and by jar, by
+ * package and by access category (the categories of
+ * CsvFileCreator.accessTable, and "other").
+ * <p>
+ * Every distribution is a {@link Histogram}, so the memory does not grow
+ * with the number of methods, only with the number of jars and packages.
+ * Every thread adds to histograms of its own, without contending with the
+ * others; getTotal() and writeSummary() merge them. The histograms of
+ * another process can be added with read(), e.g. to merge the shards of
+ * a run. Methods without code (abstract and native ones) are counted,
+ * but not added to the histograms.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class StatisticsAggregator {
+
+	/** Instructions per block are recorded in hundredths */
+	public static final int INSTRUCTIONS_PER_BLOCK_SCALE = 100;
+
+	/** The distributions, in the order of the histograms of a Summary */
+	public static final String[] DISTRIBUTIONS = { "instructions", "blocks", "instructionsPerBlock",
+		"dominatorTreeHeight", "loops" };
+
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	/**
+	 * The distributions of a group of methods
+	 */
+	public static final class Summary {
+		private final Histogram[] histograms;
+		private long methodsWithoutCode;
+
+		public Summary(){
+			histograms = new Histogram[DISTRIBUTIONS.length];
+			for( int d = 0; d < histograms.length; d++ ){
+				histograms[d] = new Histogram();
+			}
+		}
+
+		void add( MethodStatistics method ){
+			if( method.getInstructionsCount() == 0 ){
+				methodsWithoutCode++;
+				return;
+			}
+			final int blocks = method.getBasicBlocksCount();
+			histograms[0].record( method.getInstructionsCount() );
+			histograms[1].record( blocks );
+			if( blocks > 0 ){
+				histograms[2].record( (int)Math.round((double)method.getInstructionsCount() *
+						INSTRUCTIONS_PER_BLOCK_SCALE / blocks) );
+			}
+			histograms[3].record( method.getDominatorTreeHeight() );
+			histograms[4].record( method.getLoopCount() );
+		}
+
+		public void merge( Summary other ){
+			for( int d = 0; d < histograms.length; d++ ){
+				histograms[d].merge( other.histograms[d] );
+			}
+			methodsWithoutCode += other.methodsWithoutCode;
+		}
+
+		/**
+		 * @param distribution An index of DISTRIBUTIONS
+		 */
+		public Histogram getHistogram( int distribution ){
+			return histograms[distribution];
+		}
+
+		/**
+		 * @return The number of methods, those without code included
+		 */
+		public long getMethodCount(){
+			return histograms[0].getCount() + methodsWithoutCode;
+		}
+
+		public long getMethodsWithoutCodeCount(){
+			return methodsWithoutCode;
+		}
+
+		void write( DataOutput out ) throws IOException {
+			out.writeLong( methodsWithoutCode );
+			for( int d = 0; d < histograms.length; d++ ){
+				histograms[d].write( out );
+			}
+		}
+
+		void read( DataInput in ) throws IOException {
+			methodsWithoutCode = in.readLong();
+			for( int d = 0; d < histograms.length; d++ ){
+				histograms[d] = Histogram.read( in );
+			}
+		}
+	}
+
+	/**
+	 * The histograms filled by one thread
+	 */
+	private static final class Shard {
+		final Summary total = new Summary();
+		final Map<String, Summary> jars = new TreeMap<>();
+		final Map<String, Summary> packages = new TreeMap<>();
+		final Map<String, Summary> access = new TreeMap<>();
+
+		synchronized void add( List<MethodStatistics> statistics ){
+			for( int m = 0; m < statistics.size(); m++ ){
+				final MethodStatistics method = statistics.get(m);
+				total.add( method );
+				summaryOf( jars, method.getBenchmark() ).add( method );
+				summaryOf( packages, method.getPackageName() ).add( method );
+				summaryOf( access, CsvFileCreator.accessTable.getOrDefault(method.getAccess(), "other") ).add( method );
+			}
+		}
+
+		synchronized void mergeInto( Shard merged ){
+			merged.total.merge( total );
+			mergeInto( jars, merged.jars );
+			mergeInto( packages, merged.packages );
+			mergeInto( access, merged.access );
+		}
+
+		void write( DataOutput out ) throws IOException {
+			total.write( out );
+			write( out, jars );
+			write( out, packages );
+			write( out, access );
+		}
+
+		private static void write( DataOutput out, Map<String, Summary> groups ) throws IOException {
+			out.writeInt( groups.size() );
+			for( Map.Entry<String, Summary> group : groups.entrySet() ){
+				out.writeUTF( group.getKey() );
+				group.getValue().write( out );
+			}
+		}
+
+		void read( DataInput in ) throws IOException {
+			total.read( in );
+			read( in, jars );
+			read( in, packages );
+			read( in, access );
+		}
+
+		private static void read( DataInput in, Map<String, Summary> groups ) throws IOException {
+			final int size = in.readInt();
+			for( int g = 0; g < size; g++ ){
+				final String name = in.readUTF();
+				final Summary summary = new Summary();
+				summary.read( in );
+				groups.put( name, summary );
+			}
+		}
+
+		private static void mergeInto( Map<String, Summary> from, Map<String, Summary> to ){
+			for( Map.Entry<String, Summary> group : from.entrySet() ){
+				summaryOf( to, group.getKey() ).merge( group.getValue() );
+			}
+		}
+
+		private static Summary summaryOf( Map<String, Summary> groups, String name ){
+			Summary summary = groups.get( name );
+			if( summary == null ){
+				summary = new Summary();
+				groups.put( name, summary );
+			}
+			return summary;
+		}
+	}
+
+	private final List<Shard> shards = new ArrayList<>();
+	private final ThreadLocal<Shard> shard = new ThreadLocal<Shard>() {
+		@Override
+		protected Shard initialValue(){
+			final Shard created = new Shard();
+			synchronized( shards ){
+				shards.add( created );
+			}
+			return created;
+		}
+	};
+
+	/**
+	 * Adds the statistics of some methods, e.g. of a class, to the
+	 * histograms of the calling thread
+	 */
+	public void add( List<MethodStatistics> statistics ){
+		shard.get().add( statistics );
+	}
+
+	private Shard merge(){
+		final Shard merged = new Shard();
+		synchronized( shards ){
+			for( Shard s : shards ){
+				s.mergeInto( merged );
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Writes the histograms of all the methods added so far, in a binary
+	 * form that read() can add to another aggregator
+	 */
+	public void write( DataOutput out ) throws IOException {
+		merge().write( out );
+	}
+
+	/**
+	 * Adds histograms written by write(), e.g. by another process
+	 */
+	public void read( DataInput in ) throws IOException {
+		final Shard read = new Shard();
+		read.read( in );
+		synchronized( shards ){
+			shards.add( read );
+		}
+	}
+
+	/**
+	 * @return The distributions of all the methods added so far
+	 */
+	public Summary getTotal(){
+		return merge().total;
+	}
+
+	/**
+	 * Writes the method counts, means and percentiles of all the
+	 * distributions as a JSON object: for all the methods, and by jar,
+	 * by package and by access category.
+	 */
+	public void writeSummary( Writer out ) throws IOException {
+		final Shard merged = merge();
+		final StringBuilder json = new StringBuilder( 4096 );
+		json.append( "{\n  \"all\": " );
+		appendSummary( json, merged.total, "  " );
+		appendGroups( json, "jars", merged.jars );
+		appendGroups( json, "access", merged.access );
+		appendGroups( json, "packages", merged.packages );
+		json.append( "\n}\n" );
+		out.append( json );
+	}
+
+	private static void appendGroups( StringBuilder json, String name, Map<String, Summary> groups ){
+		json.append( ",\n  \"" ).append( name ).append( "\": {" );
+		boolean first = true;
+		for( Map.Entry<String, Summary> group : groups.entrySet() ){
+			json.append( first ? "\n    " : ",\n    " );
+			AnalysisMetrics.appendString( json, group.getKey() );
+			json.append( ": " );
+			appendSummary( json, group.getValue(), "    " );
+			first = false;
+		}
+		json.append( first ? "}" : "\n  }" );
+	}
+
+	private static void appendSummary( StringBuilder json, Summary summary, String indent ){
+		json.append( "{ \"methods\": " ).append( summary.getMethodCount() )
+			.append( ", \"methodsWithoutCode\": " ).append( summary.getMethodsWithoutCodeCount() );
+		for( int d = 0; d < DISTRIBUTIONS.length; d++ ){
+			final Histogram histogram = summary.getHistogram( d );
+			final double scale = d == 2 ? INSTRUCTIONS_PER_BLOCK_SCALE : 1;
+			json.append( ",\n" ).append( indent ).append( "  \"" ).append( DISTRIBUTIONS[d] ).append( "\": {" )
+				.append( String.format(Locale.ROOT, " \"mean\": %.2f", histogram.getMean() / scale) );
+			for( double percentile : PERCENTILES ){
+				appendValue( json, String.format(Locale.ROOT, "p%.0f", percentile), histogram.getPercentile(percentile), scale );
+			}
+			appendValue( json, "max", histogram.getMax(), scale );
+			json.append( " }" );
+		}
+		json.append( " }" );
+	}
+
+	private static void appendValue( StringBuilder json, String name, int value, double scale ){
+		json.append( ", \"" ).append( name ).append( "\": " );
+		if( scale == 1 ){
+			json.append( value );
+		}else{
+			json.append( String.format(Locale.ROOT, "%.2f", value / scale) );
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the statistics written by a {@link StatsStoreWriter}.
+ * <p>
+ * Opening the file reads only its footer. A column of a row group is
+ * read with a single positional read of its own bytes, without reading
+ * or decoding the other columns; the dictionary is decoded the first
+ * time a string is asked for. The file is not memory-mapped, so it can
+ * be larger than 2GB. The reader can be used by several threads.
+ * <p>
+ * Usage: StatsStoreReader file [column]
+ * <br>
+ * Prints the file as a csv file, like CsvFileCreator, or the count, sum,
+ * minimum and maximum of one of its int columns, given its name in the
+ * csv header (e.g. instructions), reading only that column.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class StatsStoreReader implements Closeable {
+
+	private final String name;
+	private final FileChannel channel;
+
+	private final long[] groupOffsets;
+	private final int[] groupRows;
+	private final long rowCount;
+	private final long dictionaryOffset;
+	private String[] strings; // Decoded when first needed
+
+	public StatsStoreReader( String filename ) throws IOException {
+		name = filename;
+		channel = FileChannel.open( Paths.get(filename), StandardOpenOption.READ );
+		try{
+			final long length = channel.size();
+			if( length < StatsStoreWriter.HEADER_SIZE + StatsStoreWriter.TRAILER_SIZE ){
+				throw new IOException( filename + ": not a statistics store" );
+			}
+			final ByteBuffer header = read( 0, StatsStoreWriter.HEADER_SIZE );
+			final ByteBuffer trailer = read( length - StatsStoreWriter.TRAILER_SIZE, StatsStoreWriter.TRAILER_SIZE );
+			if( header.getInt(0) != StatsStoreWriter.MAGIC || trailer.getInt(8) != StatsStoreWriter.MAGIC ){
+				throw new IOException( filename + ": not a statistics store" );
+			}
+			if( header.getInt(4) != StatsStoreWriter.VERSION ){
+				throw new IOException( filename + ": unsupported version " + header.getInt(4) );
+			}
+
+			final long footerOffset = trailer.getLong( 0 );
+			final int groups = read( footerOffset, 4 ).getInt( 0 );
+			final ByteBuffer footer = read( footerOffset + 4, groups * 12 );
+			groupOffsets = new long[groups];
+			groupRows = new int[groups];
+			long rows = 0;
+			for( int g = 0; g < groups; g++ ){
+				groupOffsets[g] = footer.getLong();
+				groupRows[g] = footer.getInt();
+				rows += groupRows[g];
+			}
+			rowCount = rows;
+			dictionaryOffset = footerOffset + 4 + groups * 12L;
+		}catch( IOException | RuntimeException e ){
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read( long position, int length ) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate( length );
+		while( buffer.hasRemaining() ){
+			if( channel.read(buffer, position + buffer.position()) < 0 ){
+				throw new EOFException( name + ": truncated file" );
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public long getRowCount(){
+		return rowCount;
+	}
+
+	public int getRowGroupCount(){
+		return groupRows.length;
+	}
+
+	public int getRowCount( int group ){
+		return groupRows[group];
+	}
+
+	/**
+	 * Reads a column of a row group; string columns hold dictionary ids,
+	 * see getString.
+	 *
+	 * @param out Where the values are stored, if it is large enough;
+	 * may be null
+	 * @return The values, in out or in a new array
+	 */
+	public int[] readColumn( int group, int column, int[] out ) throws IOException {
+		if( column < 0 || column >= StatsStoreWriter.COLUMNS ){
+			throw new IllegalArgumentException( "Invalid column: " + column );
+		}
+		final int rows = groupRows[group];
+		if( out == null || out.length < rows ){
+			out = new int[rows];
+		}
+		read( groupOffsets[group] + (long)column * rows * 4, rows * 4 ).asIntBuffer().get( out, 0, rows );
+		return out;
+	}
+
+	/**
+	 * @return A string of the dictionary
+	 */
+	public String getString( int id ) throws IOException {
+		return getStrings()[id];
+	}
+
+	private synchronized String[] getStrings() throws IOException {
+		if( strings == null ){
+			final long end = channel.size() - StatsStoreWriter.TRAILER_SIZE;
+			final ByteBuffer dictionary = read( dictionaryOffset, (int)(end - dictionaryOffset) );
+			final String[] decoded = new String[dictionary.getInt()];
+			for( int s = 0; s < decoded.length; s++ ){
+				final int length = dictionary.getInt();
+				decoded[s] = new String( dictionary.array(), dictionary.position(), length, StandardCharsets.UTF_8 );
+				dictionary.position( dictionary.position() + length );
+			}
+			strings = decoded;
+		}
+		return strings;
+	}
+
+	/**
+	 * Reads all the rows of a row group
+	 */
+	public List<MethodStatistics> readRowGroup( int group ) throws IOException {
+		final int rows = groupRows[group];
+		final IntBuffer values = read( groupOffsets[group], StatsStoreWriter.COLUMNS * rows * 4 ).asIntBuffer();
+		final String[] dictionary = getStrings();
+		final List<MethodStatistics> result = new ArrayList<>( rows );
+		for( int r = 0; r < rows; r++ ){
+			result.add( new MethodStatistics(
+					dictionary[values.get(StatsStoreWriter.BENCHMARK * rows + r)],
+					dictionary[values.get(StatsStoreWriter.PACKAGE * rows + r)],
+					dictionary[values.get(StatsStoreWriter.CLASS * rows + r)],
+					dictionary[values.get(StatsStoreWriter.METHOD * rows + r)],
+					values.get(StatsStoreWriter.ACCESS * rows + r),
+					values.get(StatsStoreWriter.INSTRUCTIONS * rows + r),
+					values.get(StatsStoreWriter.BLOCKS * rows + r),
+					values.get(StatsStoreWriter.DOMINATOR_TREE_HEIGHT * rows + r),
+					values.get(StatsStoreWriter.LOOPS * rows + r),
+					values.get(StatsStoreWriter.MAX_LOOP_DEPTH * rows + r)) );
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public static void main( String[] args ) throws IOException {
+		try( StatsStoreReader reader = new StatsStoreReader(args[0]) ){
+			if( args.length == 1 ){
+				try( CsvFileCreator csv = new CsvFileCreator(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16)) ){
+					for( int g = 0; g < reader.getRowGroupCount(); g++ ){
+						csv.writeCsvStatistics( reader.readRowGroup(g) );
+					}
+				}
+				return;
+			}
+			final int column = StatsStoreWriter.findColumn( args[1] );
+			if( column < 0 || StatsStoreWriter.isStringColumn(column) ){
+				throw new IllegalArgumentException( "Not an int column: " + args[1] );
+			}
+			long sum = 0;
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			int[] values = null;
+			for( int g = 0; g < reader.getRowGroupCount(); g++ ){
+				values = reader.readColumn( g, column, values );
+				for( int r = 0; r < reader.getRowCount(g); r++ ){
+					sum += values[r];
+					min = Math.min( min, values[r] );
+					max = Math.max( max, values[r] );
+				}
+			}
+			System.out.println( args[1] + ": " + reader.getRowCount() + " rows, sum " + sum +
+					", min " + min + ", max " + max );
+		}
+	}
+}
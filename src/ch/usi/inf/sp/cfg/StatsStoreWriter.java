@@ -0,0 +1,216 @@
+package ch.usi.inf.sp.cfg;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the statistics of the analyzed methods to a binary columnar
+ * file, the compact alternative to the csv file of {@link CsvFileCreator},
+ * that can be read back by a {@link StatsStoreReader}.
+ * <p>
+ * The rows are split into row groups; in a group every column is stored
+ * on its own, as an array of ints. Strings (benchmark, package, class and
+ * method names) are stored once, in a dictionary, and their columns hold
+ * dictionary ids; the dictionary holds only the strings of the file, in
+ * the order they are first written. All numbers are big endian.
+ * <pre>
+ * header:    int MAGIC, int VERSION
+ * row group: COLUMNS x (rows x int)
+ * footer:    int groups, groups x (long offset, int rows),
+ *            int strings, strings x string
+ * trailer:   long footer offset, int MAGIC
+ * </pre>
+ * Strings are an int length followed by the UTF-8 bytes. Since the
+ * columns of a group have a fixed size, a reader can read one of them
+ * without reading the others.
+ * <p>
+ * Like CsvFileCreator, the writing methods are synchronized, so the same
+ * writer can be shared by several threads.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class StatsStoreWriter implements Closeable {
+
+	static final int MAGIC = 0x43464754; // "CFGT"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int TRAILER_SIZE = 12;
+
+	public static final int BENCHMARK = 0;
+	public static final int PACKAGE = 1;
+	public static final int CLASS = 2;
+	public static final int METHOD = 3;
+	public static final int ACCESS = 4;
+	public static final int INSTRUCTIONS = 5;
+	public static final int BLOCKS = 6;
+	public static final int DOMINATOR_TREE_HEIGHT = 7;
+	public static final int LOOPS = 8;
+	public static final int MAX_LOOP_DEPTH = 9;
+	public static final int COLUMNS = 10;
+
+	/** The names of the columns, as in the csv header */
+	public static final String[] COLUMN_NAMES = { "benckmark", "package", "class", "methodName", "access",
+		"instructions", "bblocks", "domheight", "loops", "maxloopdepth" };
+
+	/** Default number of rows of a row group */
+	public static final int ROW_GROUP_SIZE = 1 << 16;
+
+	private final DataOutputStream out;
+	private final int rowGroupSize;
+	// The rows of the current group, column by column
+	private final int[][] columns;
+	private final byte[] buffer;
+	private int rows;
+	private final List<Long> groupOffsets;
+	private final List<Integer> groupRows;
+	// Shared SymbolTable id -> dictionary id + 1, 0 if not in the dictionary yet
+	private int[] dictionary;
+	private final List<String> strings;
+	private long position;
+
+	public StatsStoreWriter( String filename ) throws IOException {
+		this( filename, ROW_GROUP_SIZE );
+	}
+
+	/**
+	 * @param rowGroupSize The number of rows of a row group, but the last
+	 */
+	public StatsStoreWriter( String filename, int rowGroupSize ) throws IOException {
+		if( rowGroupSize <= 0 ){
+			throw new IllegalArgumentException( "Invalid row group size: " + rowGroupSize );
+		}
+		this.rowGroupSize = rowGroupSize;
+		columns = new int[COLUMNS][rowGroupSize];
+		buffer = new byte[rowGroupSize * 4];
+		groupOffsets = new ArrayList<>();
+		groupRows = new ArrayList<>();
+		dictionary = new int[1024];
+		strings = new ArrayList<>();
+		out = new DataOutputStream( new BufferedOutputStream(new FileOutputStream(filename), 1 << 16) );
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		position = HEADER_SIZE;
+	}
+
+	/**
+	 * @return Whether a column holds dictionary ids
+	 */
+	public static boolean isStringColumn( int column ){
+		return column <= METHOD;
+	}
+
+	/**
+	 * @return The number of a column, given its name in the csv header; -1 if there is none
+	 */
+	public static int findColumn( String name ){
+		for( int c = 0; c < COLUMNS; c++ ){
+			if( COLUMN_NAMES[c].equals(name) ){
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	public synchronized void write( MethodStatistics stats ) throws IOException {
+		append( stats );
+	}
+
+	/**
+	 * Writes the statistics of several methods (e.g. all the methods
+	 * of a class) as a single batch, so that rows written concurrently
+	 * by other threads are not interleaved with them.
+	 */
+	public synchronized void write( List<MethodStatistics> batch ) throws IOException {
+		for( int i = 0; i < batch.size(); i++ ){
+			append( batch.get(i) );
+		}
+	}
+
+	private void append( MethodStatistics stats ) throws IOException {
+		columns[BENCHMARK][rows] = idOf( stats.getBenchmarkId() );
+		columns[PACKAGE][rows] = idOf( stats.getPackageId() );
+		columns[CLASS][rows] = idOf( stats.getClassId() );
+		columns[METHOD][rows] = idOf( stats.getMethodId() );
+		columns[ACCESS][rows] = stats.getAccess();
+		columns[INSTRUCTIONS][rows] = stats.getInstructionsCount();
+		columns[BLOCKS][rows] = stats.getBasicBlocksCount();
+		columns[DOMINATOR_TREE_HEIGHT][rows] = stats.getDominatorTreeHeight();
+		columns[LOOPS][rows] = stats.getLoopCount();
+		columns[MAX_LOOP_DEPTH][rows] = stats.getMaxLoopDepth();
+		rows++;
+		if( rows == rowGroupSize ){
+			writeRowGroup();
+		}
+	}
+
+	private int idOf( int symbol ){
+		if( symbol >= dictionary.length ){
+			dictionary = Arrays.copyOf( dictionary, Math.max(symbol + 1, dictionary.length * 2) );
+		}
+		if( dictionary[symbol] == 0 ){
+			strings.add( SymbolTable.getShared().get(symbol) );
+			dictionary[symbol] = strings.size();
+		}
+		return dictionary[symbol] - 1;
+	}
+
+	private void writeRowGroup() throws IOException {
+		groupOffsets.add( position );
+		groupRows.add( rows );
+		for( int c = 0; c < COLUMNS; c++ ){
+			final int[] column = columns[c];
+			for( int r = 0, b = 0; r < rows; r++, b += 4 ){
+				buffer[b] = (byte)(column[r] >>> 24);
+				buffer[b + 1] = (byte)(column[r] >>> 16);
+				buffer[b + 2] = (byte)(column[r] >>> 8);
+				buffer[b + 3] = (byte)column[r];
+			}
+			out.write( buffer, 0, rows * 4 );
+		}
+		position += (long)COLUMNS * rows * 4;
+		rows = 0;
+	}
+
+	public synchronized long getRowCount(){
+		long count = rows;
+		for( int g = 0; g < groupRows.size(); g++ ){
+			count += groupRows.get(g);
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the last row group and the footer, and closes the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try{
+			if( rows > 0 ){
+				writeRowGroup();
+			}
+			final long footerOffset = position;
+			out.writeInt( groupOffsets.size() );
+			for( int g = 0; g < groupOffsets.size(); g++ ){
+				out.writeLong( groupOffsets.get(g) );
+				out.writeInt( groupRows.get(g) );
+			}
+			out.writeInt( strings.size() );
+			for( int s = 0; s < strings.size(); s++ ){
+				final byte[] bytes = strings.get(s).getBytes( StandardCharsets.UTF_8 );
+				out.writeInt( bytes.length );
+				out.write( bytes );
+			}
+			out.writeLong( footerOffset );
+			out.writeInt( MAGIC );
+		}finally{
+			out.close();
+		}
+	}
+}
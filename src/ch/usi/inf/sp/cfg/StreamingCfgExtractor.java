@@ -0,0 +1,528 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+/**
+ * A second extraction engine, that computes the basic blocks, the edges
+ * and the statistics of every method directly from the events of a
+ * ClassReader, without building the ASM tree.
+ * <p>
+ * Instructions are numbered exactly like in the InsnList of a MethodNode
+ * (labels, line numbers and frames included), and the blocks and edges
+ * are the ones ControlFlowGraphExtractor creates for the same class
+ * parsed with the same options. The output of ControlFlowGraphExtractor
+ * is the reference, that StreamingCfgExtractorTest checks this engine
+ * against.
+ * <p>
+ * Parsing with {@link #STATISTICS_PARSING_OPTIONS} skips debug information
+ * and frames, which makes the parsing faster, but also removes them from
+ * the instruction count.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class StreamingCfgExtractor extends ClassVisitor {
+
+	/** Parsing options for statistics only runs */
+	public static final int STATISTICS_PARSING_OPTIONS = ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	private final int benchmarkId; // Names are ids of the shared SymbolTable
+	private final List<MethodStatistics> statistics;
+	private final List<Integer> edgeCounts;
+	private final List<Integer> exceptionEdgeCounts;
+	private final AnalysisMetrics metrics;
+	private long methodNanos; // Time spent in endMethod, not parsing
+	private int classEdgeCount;
+	private AnalysisEvents.MethodAnalysis methodEvent;
+	private int packageId;
+	private int classId;
+	private String internalName;
+	private boolean precisePEI;
+
+	// Per method state, reused by all the methods of the class
+	private int peiMask;      // OpcodeTable flags that make an instruction a PEI
+	private int blockEndMask; // OpcodeTable flags that end a block
+	private int size;
+	private int[] opcodes;
+	private byte[] types;
+	private Label[][] targets;   // Jump and switch targets, the default target last
+	private final BitSet leaders;
+	private int[] blockIds;      // Leader -> id of its block, as in ControlFlowGraph
+	private int[] edgeOffsets;
+	private int[] edgeTargets;
+	private int[] edgeSources;   // Block id -> last block with an edge to it
+	private int[] exceptionSources; // Block id -> last block with an exception edge to it
+	private int edgeCount;
+	private int exceptionEdgeCount;
+	private final List<Label> handlerLabels; // start, end, handler of each try/catch block
+	private final List<Boolean> handlerCatchAll;
+	// Bounds of the try/catch blocks as instruction indices, for the handler index
+	private int[] handlerStarts;
+	private int[] handlerEnds;
+	private int[] handlerIds;
+	private boolean[] catchAll;
+	private final ExceptionHandlerIndex handlerIndex;
+	// The leaders and the edges of every method, null not to keep them
+	private List<int[][]> graphs;
+
+	public StreamingCfgExtractor( String benchmark ){
+		this( benchmark, null );
+	}
+
+	/**
+	 * @param metrics Where the time spent in every phase and the edges
+	 * are added; may be null
+	 */
+	public StreamingCfgExtractor( String benchmark, AnalysisMetrics metrics ){
+		super( Opcodes.ASM5 );
+		this.benchmarkId = SymbolTable.getShared().intern( benchmark );
+		this.metrics = metrics;
+		statistics = new ArrayList<>();
+		edgeCounts = new ArrayList<>();
+		exceptionEdgeCounts = new ArrayList<>();
+		opcodes = new int[64];
+		types = new byte[64];
+		targets = new Label[64][];
+		leaders = new BitSet();
+		blockIds = new int[64];
+		edgeOffsets = new int[64];
+		edgeTargets = new int[64];
+		edgeSources = new int[64];
+		exceptionSources = new int[64];
+		handlerLabels = new ArrayList<>();
+		handlerCatchAll = new ArrayList<>();
+		handlerStarts = new int[8];
+		handlerEnds = new int[8];
+		handlerIds = new int[8];
+		catchAll = new boolean[8];
+		handlerIndex = new ExceptionHandlerIndex();
+	}
+
+	/**
+	 * Extracts the statistics of all the methods of a class
+	 *
+	 * @param cr The class to analyze
+	 * @param jarfile The name of the jar the class belongs to
+	 * @return The statistics of the methods, in declaration order
+	 */
+	public static List<MethodStatistics> extractStatistics( ClassReader cr, String jarfile ){
+		return extractStatistics( cr, jarfile, new ExtractionOptions() );
+	}
+
+	/**
+	 * Same as {@link #extractStatistics(ClassReader, String)}, with the
+	 * given parsing options and metrics. Parsing and the leaders found
+	 * while visiting the instructions are counted as parsing.
+	 *
+	 * @param options Without graph and instruction consumers, since no
+	 * graph is built
+	 */
+	public static List<MethodStatistics> extractStatistics( ClassReader cr, String jarfile, ExtractionOptions options ){
+		if( options.getGraphConsumer() != null || options.getInstructionConsumer() != null ){
+			throw new IllegalArgumentException( "The streaming engine does not build graphs" );
+		}
+		final int parsingOptions = options.getParsingOptions();
+		final AnalysisMetrics metrics = options.getMetrics();
+		final AnalysisEvents.ClassAnalysis event = AnalysisEvents.beginClass();
+		final StreamingCfgExtractor extractor = new StreamingCfgExtractor( jarfile, metrics );
+		extractor.setPrecisePEI( (parsingOptions & ControlFlowGraphExtractor.PRECISE_PEI) != 0 );
+		final long time = metrics == null ? 0 : System.nanoTime();
+		cr.accept( extractor, parsingOptions & ~ControlFlowGraphExtractor.PRECISE_PEI );
+		if( metrics != null ){
+			metrics.addTime( AnalysisMetrics.Phase.PARSE, time + extractor.methodNanos );
+		}
+		if( event != null ){
+			event.end();
+			if( event.shouldCommit() ){
+				ControlFlowGraphExtractor.commitClassEvent( event, cr.getClassName(),
+						extractor.getStatistics(), extractor.classEdgeCount );
+			}
+		}
+		return extractor.getStatistics();
+	}
+
+	/**
+	 * Selects the PEI model, as ControlFlowGraphExtractor.setPrecisePEI
+	 */
+	public void setPrecisePEI( boolean precisePEI ){
+		this.precisePEI = precisePEI;
+	}
+
+	/**
+	 * Keeps the leaders and the edges of every method, e.g. to compare
+	 * them with the graphs of ControlFlowGraphExtractor
+	 */
+	void keepGraphs(){
+		graphs = new ArrayList<>();
+	}
+
+	/**
+	 * @return The instructions that start the blocks of a method, then
+	 * its edges in compressed sparse row form as in ControlFlowGraph:
+	 * { leaders, edgeOffsets, edgeTargets }
+	 */
+	int[][] getGraph( int method ){
+		return graphs.get( method );
+	}
+
+	public List<MethodStatistics> getStatistics(){
+		return statistics;
+	}
+
+	/**
+	 * @return The number of edges of a method, including the ones
+	 * of the dummy "start" block
+	 */
+	public int getEdgeCount( int method ){
+		return edgeCounts.get( method );
+	}
+
+	/**
+	 * @return The number of exception edges of a method
+	 */
+	public int getExceptionEdgeCount( int method ){
+		return exceptionEdgeCounts.get( method );
+	}
+
+	@Override
+	public void visit( int version, int access, String name, String signature,
+			String superName, String[] interfaces ){
+		internalName = name;
+		final int slash = name.lastIndexOf('/');
+		packageId = SymbolTable.getShared().intern( slash < 0 ? "" : name.substring(0, slash) );
+		classId = SymbolTable.getShared().intern( name.substring(slash + 1) );
+	}
+
+	@Override
+	public MethodVisitor visitMethod( final int access, final String name, final String desc,
+			String signature, String[] exceptions ){
+		methodEvent = AnalysisEvents.beginMethod();
+		if( precisePEI ){
+			peiMask = OpcodeTable.getPEIMask( access );
+			blockEndMask = peiMask | OpcodeTable.TERMINATOR;
+		}else{
+			peiMask = OpcodeTable.PEI | OpcodeTable.PEI_IF_SYNCHRONIZED;
+			blockEndMask = peiMask;
+		}
+		size = 0;
+		leaders.clear();
+		handlerLabels.clear();
+		handlerCatchAll.clear();
+		return new MethodVisitor( Opcodes.ASM5 ) {
+
+			@Override
+			public void visitFrame( int type, int nLocal, Object[] local, int nStack, Object[] stack ){
+				add( -1, AbstractInsnNode.FRAME, null );
+			}
+
+			@Override
+			public void visitInsn( int opcode ){
+				add( opcode, AbstractInsnNode.INSN, null );
+			}
+
+			@Override
+			public void visitIntInsn( int opcode, int operand ){
+				add( opcode, AbstractInsnNode.INT_INSN, null );
+			}
+
+			@Override
+			public void visitVarInsn( int opcode, int var ){
+				add( opcode, AbstractInsnNode.VAR_INSN, null );
+			}
+
+			@Override
+			public void visitTypeInsn( int opcode, String type ){
+				add( opcode, AbstractInsnNode.TYPE_INSN, null );
+			}
+
+			@Override
+			public void visitFieldInsn( int opcode, String owner, String name, String desc ){
+				add( opcode, AbstractInsnNode.FIELD_INSN, null );
+			}
+
+			@Override
+			public void visitMethodInsn( int opcode, String owner, String name, String desc, boolean itf ){
+				add( opcode, AbstractInsnNode.METHOD_INSN, null );
+			}
+
+			@Override
+			public void visitInvokeDynamicInsn( String name, String desc, Handle bsm, Object... bsmArgs ){
+				add( Opcodes.INVOKEDYNAMIC, AbstractInsnNode.INVOKE_DYNAMIC_INSN, null );
+			}
+
+			@Override
+			public void visitJumpInsn( int opcode, Label label ){
+				add( opcode, AbstractInsnNode.JUMP_INSN, new Label[]{ label } );
+			}
+
+			@Override
+			public void visitLabel( Label label ){
+				label.info = size;
+				add( -1, AbstractInsnNode.LABEL, null );
+			}
+
+			@Override
+			public void visitLdcInsn( Object cst ){
+				add( Opcodes.LDC, AbstractInsnNode.LDC_INSN, null );
+			}
+
+			@Override
+			public void visitIincInsn( int var, int increment ){
+				add( Opcodes.IINC, AbstractInsnNode.IINC_INSN, null );
+			}
+
+			@Override
+			public void visitTableSwitchInsn( int min, int max, Label dflt, Label... labels ){
+				final Label[] all = Arrays.copyOf( labels, labels.length + 1 );
+				all[labels.length] = dflt;
+				add( Opcodes.TABLESWITCH, AbstractInsnNode.TABLESWITCH_INSN, all );
+			}
+
+			@Override
+			public void visitLookupSwitchInsn( Label dflt, int[] keys, Label[] labels ){
+				final Label[] all = Arrays.copyOf( labels, labels.length + 1 );
+				all[labels.length] = dflt;
+				add( Opcodes.LOOKUPSWITCH, AbstractInsnNode.LOOKUPSWITCH_INSN, all );
+			}
+
+			@Override
+			public void visitMultiANewArrayInsn( String desc, int dims ){
+				add( Opcodes.MULTIANEWARRAY, AbstractInsnNode.MULTIANEWARRAY_INSN, null );
+			}
+
+			@Override
+			public void visitTryCatchBlock( Label start, Label end, Label handler, String type ){
+				handlerLabels.add( start );
+				handlerLabels.add( end );
+				handlerLabels.add( handler );
+				handlerCatchAll.add( type == null );
+			}
+
+			@Override
+			public void visitLineNumber( int line, Label start ){
+				add( -1, AbstractInsnNode.LINE, null );
+			}
+
+			@Override
+			public void visitEnd(){
+				endMethod( name, desc, access );
+			}
+		};
+	}
+
+	private void add( int opcode, int type, Label[] insnTargets ){
+		if( size == opcodes.length ){
+			opcodes = Arrays.copyOf( opcodes, size * 2 );
+			types = Arrays.copyOf( types, size * 2 );
+			targets = Arrays.copyOf( targets, size * 2 );
+		}
+		opcodes[size] = opcode;
+		types[size] = (byte)type;
+		targets[size] = insnTargets;
+		// Same leaders as ControlFlowGraphExtractor.extractAdrresses
+		if( (OpcodeTable.getFlags(opcode) & blockEndMask) != 0 || type == AbstractInsnNode.JUMP_INSN ){
+			leaders.set( size + 1 );
+		}
+		size++;
+	}
+
+	private static int indexOf( Label label ){
+		return (Integer)label.info;
+	}
+
+	private void endMethod( String methodName, String methodDescriptor, int access ){
+		final long start = metrics == null ? 0 : System.nanoTime();
+		long time = start;
+		leaders.set( 0 );
+		leaders.set( size );
+		for( int i = 0; i < size; i++ ){
+			if( targets[i] != null ){
+				for( Label target : targets[i] ){
+					leaders.set( indexOf(target) );
+				}
+			}
+		}
+		for( int h = 2; h < handlerLabels.size(); h += 3 ){
+			leaders.set( indexOf(handlerLabels.get(h)) ); // A handler starts a block
+		}
+		final int blockCount = leaders.cardinality() - 1;
+		if( metrics != null ){
+			time = metrics.addTime( AnalysisMetrics.Phase.LEADERS, time );
+		}
+
+		final int handlers = handlerCatchAll.size();
+		if( handlerStarts.length < handlers ){
+			final int length = Math.max( handlers, handlerStarts.length * 2 );
+			handlerStarts = new int[length];
+			handlerEnds = new int[length];
+			handlerIds = new int[length];
+			catchAll = new boolean[length];
+		}
+		for( int h = 0; h < handlers; h++ ){
+			handlerStarts[h] = indexOf( handlerLabels.get(3*h) );
+			handlerEnds[h] = indexOf( handlerLabels.get(3*h + 1) );
+			handlerIds[h] = indexOf( handlerLabels.get(3*h + 2) );
+			catchAll[h] = handlerCatchAll.get(h);
+		}
+		handlerIndex.reset( handlers, handlerStarts, handlerEnds, handlerIds, catchAll );
+
+		// Ids as in ControlFlowGraph: "start" 0, the blocks in address order, then "end"
+		if( blockIds.length <= size ){
+			blockIds = new int[size + 1];
+		}
+		int id = 1;
+		for( int l = leaders.nextSetBit(0); l >= 0; l = leaders.nextSetBit(l + 1) ){
+			blockIds[l] = id++;
+		}
+		final int graphSize = blockCount + 2;
+		if( edgeOffsets.length <= graphSize ){
+			edgeOffsets = new int[graphSize + 1];
+		}
+
+		// The edges, in compressed sparse row form and in the same order as
+		// in ControlFlowGraph, so that depth first searches visit the same tree
+		if( edgeSources.length < graphSize ){
+			edgeSources = new int[graphSize];
+			exceptionSources = new int[graphSize];
+		}
+		Arrays.fill( edgeSources, 0, graphSize, -1 );
+		Arrays.fill( exceptionSources, 0, graphSize, -1 );
+		edgeCount = 0;
+		exceptionEdgeCount = 0;
+		edgeOffsets[0] = 0;
+		addEdge( 0, 0, false ); // "start" -> first block
+		edgeOffsets[1] = edgeCount;
+		for( int l = leaders.nextSetBit(0); l < size; ){
+			final int next = leaders.nextSetBit(l + 1);
+			collectEdges( blockIds[l], l, next - 1 );
+			edgeOffsets[blockIds[l] + 1] = edgeCount;
+			l = next;
+		}
+		edgeOffsets[graphSize] = edgeCount; // "end"
+		if( metrics != null ){
+			time = metrics.addTime( AnalysisMetrics.Phase.BLOCKS, time );
+		}
+		final DominatorTree dominators = new DominatorTree( graphSize, edgeOffsets, edgeTargets, 0 );
+		final LoopAnalysis loops = new LoopAnalysis( graphSize, edgeOffsets, edgeTargets, 0 );
+		if( metrics != null ){
+			time = metrics.addTime( AnalysisMetrics.Phase.ANALYSIS, time );
+			metrics.addEdges( edgeCount, exceptionEdgeCount );
+			methodNanos += time - start;
+		}
+
+		statistics.add( new MethodStatistics(benchmarkId, packageId, classId, SymbolTable.getShared().intern(methodName),
+				access, size, blockCount, dominators.getHeight(), loops.getLoopCount(), loops.getMaxDepth()) );
+		edgeCounts.add( edgeCount );
+		exceptionEdgeCounts.add( exceptionEdgeCount );
+		if( graphs != null ){
+			final int[] blockLeaders = new int[blockCount];
+			for( int l = leaders.nextSetBit(0), b = 0; l < size; l = leaders.nextSetBit(l + 1), b++ ){
+				blockLeaders[b] = l;
+			}
+			graphs.add( new int[][]{ blockLeaders, Arrays.copyOf(edgeOffsets, graphSize + 1),
+					Arrays.copyOf(edgeTargets, edgeCount) } );
+		}
+		classEdgeCount += edgeCount;
+		if( methodEvent != null ){
+			methodEvent.end();
+			if( methodEvent.shouldCommit() ){
+				methodEvent.commit( internalName, methodName, methodDescriptor, size, blockCount, edgeCount );
+			}
+			methodEvent = null;
+		}
+		Arrays.fill( targets, 0, size, null );
+	}
+
+	/**
+	 * Adds an edge to the block starting at an instruction, unless the
+	 * source already has one; the "end" block is at size. As in
+	 * ControlFlowGraph, the kind of the edge is the last one added.
+	 */
+	private void addEdge( int source, int leader, boolean exception ){
+		final int target = blockIds[leader];
+		if( edgeSources[target] == source ){
+			if( !exception && exceptionSources[target] == source ){
+				exceptionSources[target] = -1;
+				exceptionEdgeCount--;
+			}
+			return;
+		}
+		edgeSources[target] = source;
+		if( edgeCount == edgeTargets.length ){
+			edgeTargets = Arrays.copyOf( edgeTargets, edgeCount * 2 );
+		}
+		edgeTargets[edgeCount++] = target;
+		if( exception ){
+			exceptionSources[target] = source;
+			exceptionEdgeCount++;
+		}
+	}
+
+	/**
+	 * Adds the edges of a block, following
+	 * ControlFlowGraphExtractor.populateBasicBlock.
+	 */
+	private void collectEdges( int source, int startOfBlock, int endOfBlock ){
+		int last = -1;
+		for( int i = endOfBlock; i >= startOfBlock; i-- ){
+			if( opcodes[i] != -1 ){
+				last = i;
+				break;
+			}
+		}
+		if( last < 0 ){
+			return;
+		}
+		final int opcode = opcodes[last];
+
+		if( (OpcodeTable.getFlags(opcode) & peiMask) != 0 ){
+			boolean isFinally = false;
+			final int segment = handlerIndex.findSegment( last );
+			if( segment >= 0 ){
+				for( int h = handlerIndex.getHandlerStart(segment); h < handlerIndex.getHandlerEnd(segment); h++ ){
+					addEdge( source, handlerIndex.getHandler(h), true );
+					isFinally = handlerIndex.isCatchAll(h);
+				}
+			}
+			if( !isFinally ){
+				addEdge( source, size, true );
+			}
+		}
+
+		switch( types[last] ){
+		case AbstractInsnNode.JUMP_INSN:
+			addEdge( source, indexOf(targets[last][0]), false );
+			if( !OpcodeTable.isTerminator(opcode) ){
+				addEdge( source, endOfBlock + 1, false );
+			}
+			break;
+		case AbstractInsnNode.LOOKUPSWITCH_INSN:
+		case AbstractInsnNode.TABLESWITCH_INSN:
+			for( Label target : targets[last] ){
+				addEdge( source, indexOf(target), false );
+			}
+			break;
+		case AbstractInsnNode.INSN:
+			if( OpcodeTable.isReturn(opcode) ){
+				addEdge( source, size, false );
+			}else if( endOfBlock != size - 1 && !OpcodeTable.isTerminator(opcode) ){
+				addEdge( source, endOfBlock + 1, false );
+			}
+			break;
+		default:
+			if( endOfBlock != size - 1 ){
+				addEdge( source, endOfBlock + 1, false );
+			}
+		}
+	}
+}
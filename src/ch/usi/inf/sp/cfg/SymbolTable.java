@@ -0,0 +1,87 @@
+package ch.usi.inf.sp.cfg;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the names and descriptors of classes, methods and packages (and
+ * the names of the benchmarks) to int ids, so that graphs and statistics
+ * hold an id per name instead of a copy of the string: the names found
+ * in many classes, like "&lt;init&gt;" or "()V", or the package of every
+ * class, are kept once for all the run.
+ * <p>
+ * Ids are given in the order strings are first interned, from 0; null
+ * is always -1. Looking up a string is a single concurrent map read, and
+ * the string of an id is an array read, so the table can be shared by
+ * all the threads without contention; only interning a new string locks.
+ * The table never forgets a string, which suits a run over a fixed set
+ * of jars; the shared table is used by the extractors and the writers.
+ * Graphs read back from a CFG store or a repository do not intern their
+ * names, so a process that only reads graphs does not grow it.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public final class SymbolTable {
+
+	private static final SymbolTable SHARED = new SymbolTable();
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	// Written under the lock before the id is published through ids
+	private volatile String[] symbols = new String[1024];
+	private int size;
+
+	/**
+	 * @return The table shared by the whole process
+	 */
+	public static SymbolTable getShared(){
+		return SHARED;
+	}
+
+	/**
+	 * @return The id of a string, -1 for null
+	 */
+	public int intern( String s ){
+		if( s == null ){
+			return -1;
+		}
+		final Integer id = ids.get( s );
+		return id != null ? id : add( s );
+	}
+
+	/**
+	 * @return The id of a string, -1 if it has never been interned
+	 */
+	public int find( String s ){
+		final Integer id = s == null ? null : ids.get( s );
+		return id == null ? -1 : id;
+	}
+
+	private synchronized int add( String s ){
+		final Integer id = ids.get( s );
+		if( id != null ){
+			return id;
+		}
+		String[] current = symbols;
+		if( size == current.length ){
+			current = Arrays.copyOf( current, size * 2 );
+		}
+		current[size] = s;
+		symbols = current;
+		ids.put( s, size );
+		return size++;
+	}
+
+	/**
+	 * @return The string of an id, null for -1
+	 */
+	public String get( int id ){
+		return id < 0 ? null : symbols[id];
+	}
+
+	/**
+	 * @return The number of strings interned so far, also the next id
+	 */
+	public synchronized int size(){
+		return size;
+	}
+}
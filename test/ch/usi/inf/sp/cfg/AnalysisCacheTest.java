@@ -0,0 +1,190 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Tests the hits and misses of an AnalysisCache, that entries of another
+ * analyzer version are not used, the eviction of the least recently used
+ * entries under the size limit, also after the cache is opened again, and
+ * the deletion of the temporary files of interrupted writes.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class AnalysisCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<byte[]> classes = new ArrayList<>();
+	private final List<List<MethodStatistics>> statistics = new ArrayList<>();
+	private final List<String> keys = new ArrayList<>();
+
+	@Before
+	public void analyze() throws IOException {
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					final byte[] bytes = Arrays.copyOf( jar.read(e), jar.getEntrySize(e) );
+					classes.add( bytes );
+					statistics.add( ControlFlowGraphExtractor.extractStatistics(new ClassReader(bytes), "asm.jar") );
+					keys.add( AnalysisCache.key(bytes, 0, bytes.length, 0) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void hitsAndMisses() throws IOException {
+		final AnalysisCache cache = new AnalysisCache( folder.newFolder(), Long.MAX_VALUE );
+		for( int c = 0; c < classes.size(); c++ ){
+			assertNull( cache.get(keys.get(c), "asm.jar") );
+			cache.put( keys.get(c), statistics.get(c) );
+		}
+		assertEquals( 0, cache.getHits() );
+		assertEquals( classes.size(), cache.getMisses() );
+		for( int c = 0; c < classes.size(); c++ ){
+			// Another benchmark finds it too
+			assertSameStatistics( statistics.get(c), cache.get(keys.get(c), "other.jar"), "other.jar" );
+		}
+		assertEquals( classes.size(), cache.getHits() );
+		assertEquals( classes.size(), cache.getMisses() );
+		assertNull( cache.get("0123456789012345678901234567890123456789", "asm.jar") );
+		assertEquals( classes.size() + 1, cache.getMisses() );
+	}
+
+	@Test
+	public void keys(){
+		final byte[] bytes = classes.get( 0 );
+		final String key = AnalysisCache.key( bytes, 0, bytes.length, 0 );
+		assertEquals( key, AnalysisCache.key(Arrays.copyOf(bytes, bytes.length + 3), 0, bytes.length, 0) );
+		assertNotEquals( key, AnalysisCache.key(bytes, 0, bytes.length, ClassReader.SKIP_DEBUG) );
+		assertNotEquals( key, AnalysisCache.key(bytes, 0, bytes.length, ControlFlowGraphExtractor.PRECISE_PEI) );
+		assertNotEquals( key, AnalysisCache.key(bytes, 0, bytes.length - 1, 0) );
+	}
+
+	/**
+	 * An entry written by another version of the analyzer is a miss, and
+	 * is deleted
+	 */
+	@Test
+	public void otherVersion() throws IOException {
+		final File directory = folder.newFolder();
+		final AnalysisCache cache = new AnalysisCache( directory, Long.MAX_VALUE );
+		cache.put( keys.get(0), statistics.get(0) );
+		cache.put( keys.get(1), statistics.get(1) );
+		final long size = cache.getSize();
+		final File entry = new File( directory, keys.get(0) + ".rows" );
+		try( RandomAccessFile file = new RandomAccessFile(entry, "rw") ){
+			file.seek( 4 );
+			file.writeInt( AnalysisCache.ANALYZER_VERSION - 1 );
+		}
+		assertNull( cache.get(keys.get(0), "asm.jar") );
+		assertFalse( entry.exists() );
+		assertTrue( cache.getSize() < size );
+		assertNotNull( cache.get(keys.get(1), "asm.jar") );
+
+		// And again after opening the cache
+		final File other = new File( directory, keys.get(1) + ".rows" );
+		try( RandomAccessFile file = new RandomAccessFile(other, "rw") ){
+			file.seek( 4 );
+			file.writeInt( AnalysisCache.ANALYZER_VERSION + 1 );
+		}
+		assertNull( new AnalysisCache(directory, Long.MAX_VALUE).get(keys.get(1), "asm.jar") );
+		assertFalse( other.exists() );
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws IOException {
+		final File directory = folder.newFolder();
+		final AnalysisCache unbounded = new AnalysisCache( folder.newFolder(), Long.MAX_VALUE );
+		final long[] sizes = new long[4];
+		for( int c = 0; c < sizes.length; c++ ){
+			final long before = unbounded.getSize();
+			unbounded.put( keys.get(c), statistics.get(c) );
+			sizes[c] = unbounded.getSize() - before;
+		}
+
+		// Room for 0, 2 and the larger of 1 and 3
+		final long limit = sizes[0] + sizes[2] + Math.max( sizes[1], sizes[3] );
+		final AnalysisCache cache = new AnalysisCache( directory, limit );
+		for( int c = 0; c < 3; c++ ){
+			cache.put( keys.get(c), statistics.get(c) );
+		}
+		assertEquals( sizes[0] + sizes[1] + sizes[2], cache.getSize() );
+		// 0 is used, so 1 is the least recently used
+		assertNotNull( cache.get(keys.get(0), "asm.jar") );
+		cache.put( keys.get(3), statistics.get(3) );
+		assertNull( cache.get(keys.get(1), "asm.jar") );
+		assertEquals( sizes[0] + sizes[2] + sizes[3], cache.getSize() );
+		assertNotNull( cache.get(keys.get(3), "asm.jar") );
+		assertNotNull( cache.get(keys.get(0), "asm.jar") );
+
+		// Opened again with a smaller limit, the least recently modified go first
+		final long now = System.currentTimeMillis();
+		setLastModified( directory, keys.get(0), now - 1000 );
+		setLastModified( directory, keys.get(2), now - 2000 );
+		setLastModified( directory, keys.get(3), now - 3000 );
+		final AnalysisCache smaller = new AnalysisCache( directory, sizes[0] + sizes[2] );
+		assertEquals( sizes[0] + sizes[2], smaller.getSize() );
+		assertNull( smaller.get(keys.get(3), "asm.jar") );
+		assertNotNull( smaller.get(keys.get(2), "asm.jar") );
+		assertNotNull( smaller.get(keys.get(0), "asm.jar") );
+		assertEquals( 2, directory.list().length );
+	}
+
+	@Test
+	public void staleTemporaryFilesDeleted() throws IOException {
+		final File directory = folder.newFolder();
+		new AnalysisCache( directory, Long.MAX_VALUE ).put( keys.get(0), statistics.get(0) );
+		final File stale = File.createTempFile( keys.get(1), ".tmp", directory );
+		assertTrue( stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000) );
+		// Maybe written by another process right now
+		final File recent = File.createTempFile( keys.get(2), ".tmp", directory );
+
+		final AnalysisCache cache = new AnalysisCache( directory, Long.MAX_VALUE );
+		assertFalse( stale.exists() );
+		assertTrue( recent.exists() );
+		assertNotNull( cache.get(keys.get(0), "asm.jar") );
+		assertEquals( new File(directory, keys.get(0) + ".rows").length(), cache.getSize() );
+	}
+
+	private static void setLastModified( File directory, String key, long time ){
+		assertTrue( new File(directory, key + ".rows").setLastModified(time) );
+	}
+
+	private static void assertSameStatistics( List<MethodStatistics> expected, List<MethodStatistics> actual, String benchmark ){
+		assertEquals( expected.size(), actual.size() );
+		for( int m = 0; m < expected.size(); m++ ){
+			final MethodStatistics e = expected.get( m );
+			final MethodStatistics a = actual.get( m );
+			assertEquals( benchmark, a.getBenchmark() );
+			assertEquals( e.getPackageName(), a.getPackageName() );
+			assertEquals( e.getClassName(), a.getClassName() );
+			assertEquals( e.getMethodName(), a.getMethodName() );
+			assertEquals( e.getAccess(), a.getAccess() );
+			assertEquals( e.getInstructionsCount(), a.getInstructionsCount() );
+			assertEquals( e.getBasicBlocksCount(), a.getBasicBlocksCount() );
+			assertEquals( e.getDominatorTreeHeight(), a.getDominatorTreeHeight() );
+			assertEquals( e.getLoopCount(), a.getLoopCount() );
+			assertEquals( e.getMaxLoopDepth(), a.getMaxLoopDepth() );
+		}
+	}
+}
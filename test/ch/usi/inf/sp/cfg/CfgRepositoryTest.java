@@ -0,0 +1,264 @@
+package ch.usi.inf.sp.cfg;
+
+import static ch.usi.inf.sp.cfg.ExampleGraphs.assertSameGraph;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Fills a CfgRepository with the methods of lib/asm-5.0.4.jar, and checks
+ * its queries against a scan of all the methods, that its snapshots
+ * load back unchanged, also when empty, and that loading graphs does not
+ * grow the shared SymbolTable.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class CfgRepositoryTest {
+
+	private static final int[] RANGE_COLUMNS = { StatsStoreWriter.INSTRUCTIONS, StatsStoreWriter.BLOCKS,
+		CfgRepository.EXCEPTION_EDGES, StatsStoreWriter.LOOPS, StatsStoreWriter.MAX_LOOP_DEPTH };
+	private static final String[] PACKAGES = { "org/objectweb/asm", "org/objectweb/asm/signature", "", "no/such/package" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<ControlFlowGraph> graphs = new ArrayList<>();
+	private final List<MethodStatistics> statistics = new ArrayList<>();
+
+	// The graphs and the statistics of all the methods of the jar
+	private void analyze( String jarFileName ) throws IOException {
+		final ExtractionOptions options = new ExtractionOptions().graphConsumer( graphs::add );
+		try( MappedJarFile jar = new MappedJarFile(jarFileName) ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					statistics.addAll( ControlFlowGraphExtractor.extractStatistics(
+							new ClassReader(jar.read(e), 0, jar.getEntrySize(e)), new File(jarFileName).getName(), options) );
+				}
+			}
+		}
+		assertEquals( graphs.size(), statistics.size() );
+	}
+
+	private CfgRepository fill( CfgRepository repository, int from, int to ){
+		for( int m = from; m < to; m++ ){
+			repository.add( graphs.get(m), statistics.get(m) );
+		}
+		return repository;
+	}
+
+	@Test
+	public void methods() throws IOException {
+		analyze( "lib/asm-5.0.4.jar" );
+		final CfgRepository repository = fill( new CfgRepository(), 0, graphs.size() );
+		assertSameMethods( repository );
+	}
+
+	@Test
+	public void queries() throws IOException {
+		analyze( "lib/asm-5.0.4.jar" );
+		final int half = graphs.size() / 2;
+		final CfgRepository repository = fill( new CfgRepository(), 0, half );
+		final Random random = new Random( 1 );
+		assertQueries( repository, random, 500 );
+		// The indexes are built again after more methods are added
+		fill( repository, half, graphs.size() );
+		assertQueries( repository, random, 1000 );
+
+		final int[] largest = repository.query().range( StatsStoreWriter.BLOCKS, 200, Integer.MAX_VALUE )
+				.withoutAccess( Opcodes.ACC_STATIC ).run();
+		for( int m : largest ){
+			assertEquals( 0, repository.get(m, StatsStoreWriter.ACCESS) & Opcodes.ACC_STATIC );
+		}
+		assertEquals( 0, repository.query().inPackage("no/such/package").run().length );
+		assertEquals( graphs.size(), repository.query().run().length );
+	}
+
+	@Test
+	public void snapshot() throws IOException {
+		analyze( "lib/asm-5.0.4.jar" );
+		final CfgRepository repository = fill( new CfgRepository(), 0, graphs.size() );
+		final File snapshot = folder.newFile( "repository.bin" );
+		repository.save( snapshot.getPath() );
+		final CfgRepository loaded = CfgRepository.load( snapshot.getPath() );
+		assertSameMethods( loaded );
+		for( int m = 0; m < graphs.size(); m++ ){
+			for( int c = 0; c < CfgRepository.COLUMNS; c++ ){
+				assertEquals( repository.get(m, c), loaded.get(m, c) );
+			}
+		}
+		final Random random = new Random( 2 );
+		for( int q = 0; q < 200; q++ ){
+			final Conditions conditions = new Conditions( random );
+			assertArrayEquals( conditions.query(repository).run(), conditions.query(loaded).run() );
+		}
+
+		// A loaded snapshot grows as any repository
+		final CfgRepository more = CfgRepository.load( snapshot.getPath() );
+		fill( more, 0, 10 );
+		assertEquals( graphs.size() + 10, more.getMethodCount() );
+		for( int m = 0; m < 10; m++ ){
+			assertSameGraph( graphs.get(m), more.load(graphs.size() + m) );
+		}
+	}
+
+	@Test
+	public void emptySnapshot() throws IOException {
+		analyze( "lib/asm-5.0.4.jar" );
+		final File snapshot = folder.newFile( "repository.bin" );
+		new CfgRepository().save( snapshot.getPath() );
+		final CfgRepository repository = CfgRepository.load( snapshot.getPath() );
+		assertEquals( 0, repository.getMethodCount() );
+		assertEquals( 0, repository.query().run().length );
+		fill( repository, 0, graphs.size() );
+		assertSameMethods( repository );
+		assertQueries( repository, new Random(3), 200 );
+	}
+
+	/**
+	 * Loading graphs does not intern their names, e.g. the full names of
+	 * the classes, which the repository does not hold
+	 */
+	@Test
+	public void loadDoesNotIntern() throws IOException {
+		analyze( "lib/asm-5.0.4.jar" );
+		final CfgRepository repository = fill( new CfgRepository(), 0, graphs.size() );
+		final SymbolTable symbols = SymbolTable.getShared();
+		final String unknown = "never/Interned" + System.nanoTime();
+		final int size = symbols.size();
+		for( int m = 0; m < graphs.size(); m++ ){
+			final ControlFlowGraph loaded = repository.load( m );
+			assertEquals( graphs.get(m).getClassName(), loaded.getClassName() );
+			assertEquals( graphs.get(m).getMethodDescriptor(), loaded.getMethodDescriptor() );
+		}
+		final ControlFlowGraph loaded = CfgStoreReader.decode( ByteBuffer.wrap(CfgStoreWriter.encode(graphs.get(0))), 0,
+				unknown, "m", "()V" );
+		assertEquals( unknown, loaded.getClassName() );
+		assertEquals( size, symbols.size() );
+		assertEquals( -1, symbols.find(unknown) );
+
+		// Until their ids are asked for
+		final int id = loaded.getClassId();
+		assertEquals( id, symbols.find(unknown) );
+		assertEquals( unknown, loaded.getClassName() );
+		assertEquals( id, loaded.getClassId() );
+		assertEquals( symbols.find("()V"), loaded.getMethodDescriptorId() );
+	}
+
+	private void assertSameMethods( CfgRepository repository ){
+		assertEquals( graphs.size(), repository.getMethodCount() );
+		for( int m = 0; m < graphs.size(); m++ ){
+			final ControlFlowGraph graph = graphs.get( m );
+			final MethodStatistics expected = statistics.get( m );
+			final MethodStatistics actual = repository.getStatistics( m );
+			assertEquals( expected.getBenchmark(), actual.getBenchmark() );
+			assertEquals( expected.getPackageName(), actual.getPackageName() );
+			assertEquals( expected.getClassName(), actual.getClassName() );
+			assertEquals( expected.getMethodName(), actual.getMethodName() );
+			assertEquals( expected.getAccess(), actual.getAccess() );
+			assertEquals( expected.getInstructionsCount(), actual.getInstructionsCount() );
+			assertEquals( expected.getBasicBlocksCount(), actual.getBasicBlocksCount() );
+			assertEquals( expected.getDominatorTreeHeight(), actual.getDominatorTreeHeight() );
+			assertEquals( expected.getLoopCount(), actual.getLoopCount() );
+			assertEquals( expected.getMaxLoopDepth(), actual.getMaxLoopDepth() );
+			assertEquals( graph.getExceptionEdgeCount(), repository.get(m, CfgRepository.EXCEPTION_EDGES) );
+			assertEquals( graph.getClassName(), repository.getClassName(m) );
+			assertEquals( graph.getMethodName(), repository.getMethodName(m) );
+			assertEquals( graph.getMethodDescriptor(), repository.getMethodDescriptor(m) );
+			assertSameGraph( graph, repository.load(m) );
+		}
+	}
+
+	/**
+	 * Runs random queries, and checks them against all the methods
+	 */
+	private static void assertQueries( CfgRepository repository, Random random, int queries ){
+		for( int q = 0; q < queries; q++ ){
+			final Conditions conditions = new Conditions( random );
+			final List<Integer> expected = new ArrayList<>();
+			for( int m = 0; m < repository.getMethodCount(); m++ ){
+				if( conditions.matches(repository, m) ){
+					expected.add( m );
+				}
+			}
+			final int[] found = conditions.query( repository ).run();
+			assertEquals( "query " + q, expected.toString(), Arrays.toString(found) );
+		}
+	}
+
+	/**
+	 * Random conditions on the methods, checked one method at a time
+	 */
+	private static final class Conditions {
+		private final int[] min = new int[RANGE_COLUMNS.length];
+		private final int[] max = new int[RANGE_COLUMNS.length];
+		private final String packageName;
+		private final int requiredAccess;
+		private final int excludedAccess;
+
+		Conditions( Random random ){
+			for( int c = 0; c < RANGE_COLUMNS.length; c++ ){
+				switch( random.nextInt(6) ){
+				case 0:
+					min[c] = random.nextInt( 30 );
+					max[c] = min[c] + random.nextInt( 300 );
+					break;
+				case 1:
+					min[c] = random.nextInt( 10 );
+					max[c] = Integer.MAX_VALUE;
+					break;
+				case 2:
+					min[c] = max[c] = random.nextInt( 5 );
+					break;
+				default:
+					min[c] = Integer.MIN_VALUE;
+					max[c] = Integer.MAX_VALUE;
+				}
+			}
+			packageName = random.nextInt( 3 ) == 0 ? PACKAGES[random.nextInt(PACKAGES.length)] : null;
+			requiredAccess = random.nextInt( 3 ) == 0 ? 1 << random.nextInt( 12 ) : 0;
+			excludedAccess = random.nextInt( 3 ) == 0 ? 1 << random.nextInt( 12 ) : 0;
+		}
+
+		CfgRepository.Query query( CfgRepository repository ){
+			final CfgRepository.Query query = repository.query();
+			for( int c = 0; c < RANGE_COLUMNS.length; c++ ){
+				if( min[c] == max[c] ){
+					query.equal( RANGE_COLUMNS[c], min[c] );
+				}else if( min[c] != Integer.MIN_VALUE || max[c] != Integer.MAX_VALUE ){
+					query.range( RANGE_COLUMNS[c], min[c], max[c] );
+				}
+			}
+			if( packageName != null ){
+				query.inPackage( packageName );
+			}
+			return query.withAccess( requiredAccess ).withoutAccess( excludedAccess );
+		}
+
+		boolean matches( CfgRepository repository, int method ){
+			for( int c = 0; c < RANGE_COLUMNS.length; c++ ){
+				final int value = repository.get( method, RANGE_COLUMNS[c] );
+				if( value < min[c] || value > max[c] ){
+					return false;
+				}
+			}
+			if( packageName != null && !packageName.equals(repository.getStatistics(method).getPackageName()) ){
+				return false;
+			}
+			final int access = repository.get( method, StatsStoreWriter.ACCESS );
+			return (access & requiredAccess) == requiredAccess && (access & excludedAccess) == 0;
+		}
+	}
+}
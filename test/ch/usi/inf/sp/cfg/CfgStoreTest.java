@@ -0,0 +1,127 @@
+package ch.usi.inf.sp.cfg;
+
+import static ch.usi.inf.sp.cfg.ExampleGraphs.assertSameGraph;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Writes the graphs of ExampleClass and lib/asm-5.0.4.jar with a
+ * CfgStoreWriter, and checks that a CfgStoreReader loads them back
+ * unchanged, by number and by name.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class CfgStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		final List<ClassNode> classes = new ArrayList<>( ExampleGraphs.classes("lib/asm-5.0.4.jar") );
+		classes.add( ExampleGraphs.exampleClass() );
+		final List<String> benchmarks = new ArrayList<>();
+		final List<ControlFlowGraph> graphs = new ArrayList<>();
+		final ControlFlowGraphExtractor extractor = new ControlFlowGraphExtractor();
+		final File store = folder.newFile( "cfg.bin" );
+		try( CfgStoreWriter writer = new CfgStoreWriter(store.getPath()) ){
+			for( ClassNode clazz : classes ){
+				for( Object method : clazz.methods ){
+					final ControlFlowGraph graph = extractor.createCFG( clazz.name, (MethodNode)method );
+					graphs.add( graph );
+					benchmarks.add( clazz == ExampleGraphs.exampleClass() ? "test" : "asm-5.0.4.jar" );
+					writer.write( benchmarks.get(benchmarks.size() - 1), graph );
+				}
+			}
+			assertEquals( graphs.size(), writer.getMethodCount() );
+		}
+
+		try( CfgStoreReader reader = new CfgStoreReader(store.getPath()) ){
+			assertEquals( graphs.size(), reader.getMethodCount() );
+			for( int m = 0; m < graphs.size(); m++ ){
+				final ControlFlowGraph graph = graphs.get( m );
+				final String benchmark = benchmarks.get( m );
+				assertEquals( benchmark, reader.getBenchmark(m) );
+				assertEquals( graph.getClassName(), reader.getClassName(m) );
+				assertEquals( graph.getMethodName(), reader.getMethodName(m) );
+				assertEquals( graph.getMethodDescriptor(), reader.getMethodDescriptor(m) );
+				assertEquals( m, reader.find(benchmark, graph.getClassName(), graph.getMethodName(), graph.getMethodDescriptor()) );
+				final ControlFlowGraph loaded = reader.load( m );
+				assertSameGraph( graph, loaded );
+				assertSameGraph( graph, reader.load(benchmark, graph.getClassName(), graph.getMethodName(), graph.getMethodDescriptor()) );
+				// The statistics do not need the instructions
+				assertEquals( new DominatorTree(graph).getHeight(), new DominatorTree(loaded).getHeight() );
+				assertEquals( new LoopAnalysis(graph).getMaxDepth(), new LoopAnalysis(loaded).getMaxDepth() );
+			}
+			assertEquals( -1, reader.find("test", "ExampleClass", "noSuchMethod", "()V") );
+			assertNull( reader.load("test", "ExampleClass", "noSuchMethod", "()V") );
+			assertEquals( -1, reader.find("asm-5.0.4.jar", "ExampleClass", "division", "(II)I") );
+		}
+	}
+
+	@Test
+	public void namesAndNullDescriptor() throws IOException {
+		final ControlFlowGraph graph = ExampleGraphs.graph( ExampleGraphs.method("catchOne") );
+		final File store = folder.newFile( "cfg.bin" );
+		try( CfgStoreWriter writer = new CfgStoreWriter(store.getPath()) ){
+			writer.write( "test", "p/Renamed", "first", null, CfgStoreWriter.encode(graph) );
+			writer.write( "test", "p/Renamed", "second", "(II)V", CfgStoreWriter.encode(graph) );
+		}
+		try( CfgStoreReader reader = new CfgStoreReader(store.getPath()) ){
+			assertEquals( 2, reader.getMethodCount() );
+			assertNull( reader.getMethodDescriptor(0) );
+			assertEquals( 0, reader.find("test", "p/Renamed", "first", null) );
+			assertEquals( 1, reader.find("test", "p/Renamed", "second", "(II)V") );
+			assertEquals( -1, reader.find("test", "p/Renamed", "second", null) );
+			final ControlFlowGraph loaded = reader.load( 1 );
+			assertEquals( "p/Renamed", loaded.getClassName() );
+			assertEquals( graph.getEdgeCount(), loaded.getEdgeCount() );
+			assertEquals( graph.getExceptionEdgeCount(), loaded.getExceptionEdgeCount() );
+		}
+	}
+
+	/**
+	 * The same class name with different contents in two jars, e.g. two
+	 * versions of a library, and twice in the same jar
+	 */
+	@Test
+	public void sameClassInTwoBenchmarks() throws IOException {
+		final ControlFlowGraph catchOne = ExampleGraphs.graph( ExampleGraphs.method("catchOne") );
+		final ControlFlowGraph division = ExampleGraphs.graph( ExampleGraphs.method("division") );
+		final File store = folder.newFile( "cfg.bin" );
+		try( CfgStoreWriter writer = new CfgStoreWriter(store.getPath()) ){
+			writer.write( "lib-1.0.jar", "p/C", "m", "()V", CfgStoreWriter.encode(catchOne) );
+			writer.write( "lib-2.0.jar", "p/C", "m", "()V", CfgStoreWriter.encode(division) );
+			writer.write( "lib-2.0.jar", "p/C", "m", "()V", CfgStoreWriter.encode(catchOne) );
+		}
+		try( CfgStoreReader reader = new CfgStoreReader(store.getPath()) ){
+			assertEquals( 0, reader.find("lib-1.0.jar", "p/C", "m", "()V") );
+			assertEquals( 1, reader.find("lib-2.0.jar", "p/C", "m", "()V") );
+			assertEquals( "lib-2.0.jar", reader.getBenchmark(2) );
+			assertArrayEquals( CfgStoreWriter.encode(catchOne), CfgStoreWriter.encode(reader.load("lib-1.0.jar", "p/C", "m", "()V")) );
+			assertArrayEquals( CfgStoreWriter.encode(division), CfgStoreWriter.encode(reader.load("lib-2.0.jar", "p/C", "m", "()V")) );
+		}
+	}
+
+	@Test
+	public void empty() throws IOException {
+		final File store = folder.newFile( "cfg.bin" );
+		new CfgStoreWriter( store.getPath() ).close();
+		try( CfgStoreReader reader = new CfgStoreReader(store.getPath()) ){
+			assertEquals( 0, reader.getMethodCount() );
+			assertEquals( -1, reader.find("test", "ExampleClass", "division", "(II)I") );
+		}
+	}
+}
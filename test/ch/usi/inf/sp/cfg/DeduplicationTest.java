@@ -0,0 +1,259 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Checks that a run with deduplication writes the same csv rows as a
+ * run without it, and the same graphs (to the CFG store, the repository
+ * and the dot file) as the first copy of every class in entry order.
+ * The jars hold the same classes in two jars, twice in one jar and in
+ * two nested jars of a fat jar, and a class with the same name but
+ * different contents in two jars.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class DeduplicationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> jars = new ArrayList<>();
+
+	/**
+	 * The outputs of a run
+	 */
+	private static final class Run {
+		String csv;
+		List<String> dot;
+		File cfgStore;
+		CfgRepository repository;
+	}
+
+	@Before
+	public void writeJars() throws IOException {
+		final List<byte[]> asm = new ArrayList<>();
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					asm.add( Arrays.copyOf(jar.read(e), jar.getEntrySize(e)) );
+				}
+			}
+		}
+		final byte[] example = exampleClass( null );
+		final byte[] changedExample = exampleClass( "tryFinally" );
+
+		final List<Object[]> lib1 = entries( asm, 0, 12, false );
+		lib1.add( new Object[]{ "ExampleClass.class", example, false } );
+		jars.add( write("lib1.jar", lib1) );
+
+		// Stored, overlaps lib1, holds a class twice, and another ExampleClass
+		final List<Object[]> lib2 = entries( asm, 8, 18, true );
+		lib2.add( new Object[]{ "copy/First.class", asm.get(0), true } );
+		lib2.add( new Object[]{ "copy/Fifteen.class", asm.get(15), true } );
+		lib2.add( new Object[]{ "ExampleClass.class", changedExample, true } );
+		jars.add( write("lib2.jar", lib2) );
+
+		final byte[] nested = bytes( entries(asm, 14, asm.size(), false) );
+		final List<Object[]> fat = new ArrayList<>();
+		fat.add( new Object[]{ "BOOT-INF/classes/App.class", asm.get(20), false } );
+		fat.add( new Object[]{ "BOOT-INF/lib/stored.jar", nested, true } );
+		fat.add( new Object[]{ "BOOT-INF/lib/deflated.jar", nested, false } );
+		jars.add( write("fat.jar", fat) );
+	}
+
+	@Test
+	public void sameAsWithoutDeduplication() throws IOException {
+		assertSameOutput( 1, 0 );
+	}
+
+	/**
+	 * With several workers and readers the copy of a duplicate that is
+	 * analyzed changes from run to run, the output must not
+	 */
+	@Test
+	public void sameAsWithoutDeduplicationInParallel() throws IOException {
+		for( int run = 0; run < 5; run++ ){
+			assertSameOutput( 4, 2 );
+		}
+	}
+
+	private void assertSameOutput( int workers, int readers ) throws IOException {
+		final Run all = run( false, workers, readers );
+		final Run deduplicated = run( true, workers, readers );
+		assertEquals( all.csv, deduplicated.csv );
+
+		// The methods of the first copy of every class, in entry order
+		final List<Boolean> first = new ArrayList<>();
+		final Set<ByteBuffer> seen = new HashSet<>();
+		for( String jar : jars ){
+			try( MappedJarFile mapped = new MappedJarFile(jar) ){
+				firstCopies( mapped, seen, first );
+			}
+		}
+		assertEquals( first.size(), all.dot.size() );
+		assertEquals( first.size(), all.repository.getMethodCount() );
+		assertTrue( first.contains(false) );
+
+		final List<String> expectedDot = new ArrayList<>();
+		final List<Integer> expectedMethods = new ArrayList<>();
+		for( int m = 0; m < first.size(); m++ ){
+			if( first.get(m) ){
+				expectedDot.add( all.dot.get(m) );
+				expectedMethods.add( m );
+			}
+		}
+		assertEquals( expectedDot, deduplicated.dot );
+
+		try( CfgStoreReader expected = new CfgStoreReader(all.cfgStore.getPath());
+				CfgStoreReader actual = new CfgStoreReader(deduplicated.cfgStore.getPath()) ){
+			assertEquals( first.size(), expected.getMethodCount() );
+			assertEquals( expectedMethods.size(), actual.getMethodCount() );
+			for( int m = 0; m < expectedMethods.size(); m++ ){
+				final int e = expectedMethods.get( m );
+				assertEquals( expected.getBenchmark(e), actual.getBenchmark(m) );
+				assertEquals( expected.getClassName(e), actual.getClassName(m) );
+				assertEquals( expected.getMethodName(e), actual.getMethodName(m) );
+				assertEquals( expected.getMethodDescriptor(e), actual.getMethodDescriptor(m) );
+				assertArrayEquals( CfgStoreWriter.encode(expected.load(e)), CfgStoreWriter.encode(actual.load(m)) );
+			}
+		}
+
+		assertEquals( expectedMethods.size(), deduplicated.repository.getMethodCount() );
+		for( int m = 0; m < expectedMethods.size(); m++ ){
+			final int e = expectedMethods.get( m );
+			for( int c = 0; c < CfgRepository.COLUMNS; c++ ){
+				assertEquals( all.repository.get(e, c), deduplicated.repository.get(m, c) );
+			}
+			assertArrayEquals( CfgStoreWriter.encode(all.repository.load(e)),
+					CfgStoreWriter.encode(deduplicated.repository.load(m)) );
+		}
+	}
+
+	private Run run( boolean deduplicate, int workers, int readers ) throws IOException {
+		final Run run = new Run();
+		final StringWriter csv = new StringWriter();
+		final StringWriter dot = new StringWriter();
+		run.cfgStore = folder.newFile();
+		run.repository = new CfgRepository();
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(workers);
+				CsvFileCreator csvCreator = new CsvFileCreator(csv);
+				CfgStoreWriter cfgStore = new CfgStoreWriter(run.cfgStore.getPath()) ){
+			analyzer.setVerbose( false );
+			analyzer.setDeduplicate( deduplicate );
+			analyzer.setReaders( readers );
+			analyzer.setCfgStore( cfgStore );
+			analyzer.setRepository( run.repository );
+			analyzer.setDot( dot );
+			for( String jar : jars ){
+				analyzer.analyze( jar, csvCreator );
+			}
+		}
+		run.csv = csv.toString();
+		run.dot = Arrays.asList( dot.toString().split("(?m)^(?=digraph )") );
+		return run;
+	}
+
+	// Whether every method of the classes of a jar is in the first copy of its class
+	private static void firstCopies( MappedJarFile jar, Set<ByteBuffer> seen, List<Boolean> first ) throws IOException {
+		for( int e = 0; e < jar.size(); e++ ){
+			if( jar.isDirectory(e) ){
+				continue;
+			}
+			if( jar.getEntryName(e).endsWith(".class") ){
+				final byte[] bytes = Arrays.copyOf( jar.read(e), jar.getEntrySize(e) );
+				final ClassNode clazz = new ClassNode();
+				new ClassReader( bytes ).accept( clazz, 0 );
+				final boolean isFirst = seen.add( ByteBuffer.wrap(bytes) );
+				for( int m = 0; m < clazz.methods.size(); m++ ){
+					first.add( isFirst );
+				}
+			}else if( jar.getEntryName(e).endsWith(".jar") ){
+				firstCopies( jar.openNested(e), seen, first );
+			}
+		}
+	}
+
+	/**
+	 * @return ExampleClass, without a method if not null
+	 */
+	private static byte[] exampleClass( final String removedMethod ) throws IOException {
+		final ClassWriter writer = new ClassWriter( 0 );
+		try( InputStream is = DeduplicationTest.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+			new ClassReader( is ).accept( new ClassVisitor(Opcodes.ASM5, writer) {
+				@Override
+				public MethodVisitor visitMethod( int access, String name, String desc, String signature, String[] exceptions ){
+					return name.equals( removedMethod ) ? null : super.visitMethod( access, name, desc, signature, exceptions );
+				}
+			}, 0 );
+		}
+		return writer.toByteArray();
+	}
+
+	// Name, content and whether it is stored, for the classes from first to end
+	private static List<Object[]> entries( List<byte[]> classes, int first, int end, boolean stored ){
+		final List<Object[]> entries = new ArrayList<>();
+		for( int c = first; c < end; c++ ){
+			entries.add( new Object[]{ "p/C" + c + ".class", classes.get(c), stored } );
+		}
+		return entries;
+	}
+
+	private String write( String name, List<Object[]> entries ) throws IOException {
+		final File jar = folder.newFile( name );
+		try( FileOutputStream out = new FileOutputStream(jar) ){
+			out.write( bytes(entries) );
+		}
+		return jar.getPath();
+	}
+
+	private static byte[] bytes( List<Object[]> entries ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try( ZipOutputStream out = new ZipOutputStream(bytes) ){
+			for( Object[] e : entries ){
+				final ZipEntry entry = new ZipEntry( (String)e[0] );
+				final byte[] content = (byte[])e[1];
+				if( (Boolean)e[2] ){
+					final CRC32 crc = new CRC32();
+					crc.update( content );
+					entry.setMethod( ZipEntry.STORED );
+					entry.setSize( content.length );
+					entry.setCompressedSize( content.length );
+					entry.setCrc( crc.getValue() );
+				}
+				out.putNextEntry( entry );
+				out.write( content );
+				out.closeEntry();
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
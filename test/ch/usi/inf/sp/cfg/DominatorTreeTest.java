@@ -0,0 +1,249 @@
+package ch.usi.inf.sp.cfg;
+
+import static ch.usi.inf.sp.cfg.ExampleGraphs.block;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.csr;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.endBlock;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.graph;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.method;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Tests DominatorTree against immediate dominators computed by hand on
+ * methods of ExampleClass and on the example graph of Lengauer and
+ * Tarjan, and against the iterative data flow definition on random
+ * graphs.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class DominatorTreeTest {
+
+	@Test
+	public void ifElseMethod() throws IOException {
+		final MethodNode method = method( "ifElseMethod" );
+		final ControlFlowGraph graph = graph( method );
+		final DominatorTree tree = new DominatorTree( graph );
+		// j = 0; if (i>0) j = 0; else j = i; return j;
+		final int entry = test( graph, method, 1 );
+		final int join = block( graph, method, Opcodes.IRETURN );
+		assertEquals( -1, graph.getBasicBlock(0).getBBAddress() );
+		assertEquals( 0, tree.getRoot() );
+		assertEquals( -1, tree.getImmediateDominator(0) );
+		assertEquals( 0, tree.getImmediateDominator(entry) );
+		assertEquals( entry, tree.getImmediateDominator(join) );
+		assertEquals( join, tree.getImmediateDominator(endBlock(graph)) );
+		for( int b = 1; b < graph.getBasicBlockCount(); b++ ){
+			if( b != entry && b != join && b != endBlock(graph) && tree.isReachable(b) ){
+				// The two branches
+				assertEquals( entry, tree.getImmediateDominator(b) );
+				assertEquals( 2, tree.getDepth(b) );
+			}
+		}
+		assertEquals( 3, tree.getHeight() );
+	}
+
+	@Test
+	public void whileMethod() throws IOException {
+		final MethodNode method = method( "whileMethod" );
+		final ControlFlowGraph graph = graph( method );
+		final DominatorTree tree = new DominatorTree( graph );
+		// sum = 0; while (i>0) { sum += i; i--; } return sum;
+		final int entry = block( graph, method, Opcodes.ISTORE, 2 );
+		final int condition = test( graph, method, 1 );
+		final int body = block( graph, method, Opcodes.IINC, 1 );
+		final int exit = block( graph, method, Opcodes.IRETURN );
+		assertEquals( 0, tree.getImmediateDominator(entry) );
+		assertEquals( entry, tree.getImmediateDominator(condition) );
+		assertEquals( condition, tree.getImmediateDominator(body) );
+		assertEquals( condition, tree.getImmediateDominator(exit) );
+		assertEquals( exit, tree.getImmediateDominator(endBlock(graph)) );
+		assertTrue( tree.dominates(condition, body) );
+		assertFalse( tree.dominates(body, condition) );
+		assertFalse( tree.dominates(body, exit) );
+		assertEquals( 4, tree.getHeight() );
+	}
+
+	@Test
+	public void nestedFor() throws IOException {
+		final MethodNode method = method( "nestedFor" );
+		final ControlFlowGraph graph = graph( method );
+		final DominatorTree tree = new DominatorTree( graph );
+		// Locals: n 1, sum 2, i 3, j 4
+		final int entry = block( graph, method, Opcodes.ISTORE, 2 );
+		final int outerCondition = test( graph, method, 3, 1 );
+		final int outerBody = block( graph, method, Opcodes.ISTORE, 4 );
+		final int innerCondition = test( graph, method, 4, 3 );
+		final int innerBody = block( graph, method, Opcodes.IINC, 4 );
+		final int outerIncrement = block( graph, method, Opcodes.IINC, 3 );
+		final int exit = block( graph, method, Opcodes.IRETURN );
+		assertEquals( 0, tree.getImmediateDominator(entry) );
+		assertEquals( entry, tree.getImmediateDominator(outerCondition) );
+		assertEquals( outerCondition, tree.getImmediateDominator(outerBody) );
+		assertEquals( outerBody, tree.getImmediateDominator(innerCondition) );
+		assertEquals( innerCondition, tree.getImmediateDominator(innerBody) );
+		assertEquals( innerCondition, tree.getImmediateDominator(outerIncrement) );
+		assertEquals( outerCondition, tree.getImmediateDominator(exit) );
+		assertEquals( exit, tree.getImmediateDominator(endBlock(graph)) );
+		assertEquals( 5, tree.getDepth(innerBody) );
+		assertEquals( 5, tree.getHeight() );
+	}
+
+	@Test
+	public void unreachableEnd() throws IOException {
+		final MethodNode method = method( "whileTrueMethod" );
+		final ControlFlowGraph graph = graph( method );
+		final DominatorTree tree = new DominatorTree( graph );
+		final int loop = block( graph, method, Opcodes.IINC, 1 );
+		assertEquals( 0, tree.getImmediateDominator(loop) );
+		assertFalse( tree.isReachable(endBlock(graph)) );
+		assertEquals( -1, tree.getImmediateDominator(endBlock(graph)) );
+		assertEquals( -1, tree.getDepth(endBlock(graph)) );
+		assertEquals( 1, tree.getHeight() );
+	}
+
+	/**
+	 * The graph of figure 1 in "A Fast Algorithm for Finding Dominators
+	 * in a Flowgraph", with the immediate dominators of figure 2
+	 */
+	@Test
+	public void lengauerTarjanExample(){
+		final int R = 0, A = 1, B = 2, C = 3, D = 4, E = 5, F = 6, G = 7, H = 8, I = 9, J = 10, K = 11, L = 12;
+		final int[][] graph = csr( new int[][]{
+			/* R */ { A, B, C },
+			/* A */ { D },
+			/* B */ { A, D, E },
+			/* C */ { F, G },
+			/* D */ { L },
+			/* E */ { H },
+			/* F */ { I },
+			/* G */ { I, J },
+			/* H */ { E, K },
+			/* I */ { K },
+			/* J */ { I },
+			/* K */ { I, R },
+			/* L */ { H },
+		} );
+		final DominatorTree tree = new DominatorTree( 13, graph[0], graph[1], R );
+		final int[] expected = { -1, R, R, R, R, R, C, C, R, R, G, R, D };
+		for( int b = 0; b < expected.length; b++ ){
+			assertEquals( "idom of " + b, expected[b], tree.getImmediateDominator(b) );
+		}
+		assertEquals( 13, tree.getReachableCount() );
+		assertEquals( 3, tree.getHeight() );
+		assertTrue( tree.dominates(C, J) );
+		assertFalse( tree.dominates(G, I) );
+	}
+
+	/**
+	 * An irreducible loop: blocks 1 and 2 can both be entered from 0,
+	 * so neither dominates the other
+	 */
+	@Test
+	public void irreducible(){
+		final int[][] graph = csr( new int[][]{ { 1, 2 }, { 2, 3 }, { 1 }, {}, { 3 } } );
+		final DominatorTree tree = new DominatorTree( 5, graph[0], graph[1], 0 );
+		assertEquals( 0, tree.getImmediateDominator(1) );
+		assertEquals( 0, tree.getImmediateDominator(2) );
+		assertEquals( 1, tree.getImmediateDominator(3) );
+		assertFalse( tree.isReachable(4) );
+		assertEquals( 4, tree.getReachableCount() );
+		assertEquals( 2, tree.getHeight() );
+	}
+
+	@Test
+	public void randomGraphs(){
+		final Random random = new Random( 42 );
+		for( int g = 0; g < 500; g++ ){
+			final int blockCount = 1 + random.nextInt( 40 );
+			final int[][] successors = new int[blockCount][];
+			for( int b = 0; b < blockCount; b++ ){
+				successors[b] = new int[random.nextInt(4)];
+				for( int s = 0; s < successors[b].length; s++ ){
+					successors[b][s] = random.nextInt( blockCount );
+				}
+			}
+			final int[][] graph = csr( successors );
+			final DominatorTree tree = new DominatorTree( blockCount, graph[0], graph[1], 0 );
+			final int[] expected = immediateDominators( successors );
+			for( int b = 0; b < blockCount; b++ ){
+				assertEquals( "graph " + g + ", idom of " + b, expected[b], tree.getImmediateDominator(b) );
+				assertEquals( expected[b] >= 0 || b == 0, tree.isReachable(b) );
+			}
+		}
+	}
+
+	/**
+	 * The immediate dominators by the iterative definition: the dominators
+	 * of a block are itself and the common dominators of its predecessors.
+	 * The immediate dominator is the strict dominator with most dominators.
+	 */
+	private static int[] immediateDominators( int[][] successors ){
+		final int blockCount = successors.length;
+		final BitSet reachable = new BitSet();
+		reachable.set( 0 );
+		for( boolean changed = true; changed; ){
+			changed = false;
+			for( int b = reachable.nextSetBit(0); b >= 0; b = reachable.nextSetBit(b + 1) ){
+				for( int s : successors[b] ){
+					if( !reachable.get(s) ){
+						reachable.set( s );
+						changed = true;
+					}
+				}
+			}
+		}
+		final BitSet[] dominators = new BitSet[blockCount];
+		for( int b = 0; b < blockCount; b++ ){
+			dominators[b] = new BitSet();
+			if( b == 0 ){
+				dominators[b].set( 0 );
+			}else{
+				dominators[b].or( reachable );
+			}
+		}
+		for( boolean changed = true; changed; ){
+			changed = false;
+			for( int b = 1; b < blockCount; b++ ){
+				if( !reachable.get(b) ){
+					continue;
+				}
+				final BitSet common = (BitSet)reachable.clone();
+				for( int p = reachable.nextSetBit(0); p >= 0; p = reachable.nextSetBit(p + 1) ){
+					for( int s : successors[p] ){
+						if( s == b ){
+							common.and( dominators[p] );
+						}
+					}
+				}
+				common.set( b );
+				if( !common.equals(dominators[b]) ){
+					dominators[b] = common;
+					changed = true;
+				}
+			}
+		}
+		final int[] idoms = new int[blockCount];
+		for( int b = 0; b < blockCount; b++ ){
+			idoms[b] = -1;
+			if( b == 0 || !reachable.get(b) ){
+				continue;
+			}
+			for( int d = dominators[b].nextSetBit(0); d >= 0; d = dominators[b].nextSetBit(d + 1) ){
+				if( d != b && (idoms[b] < 0 || dominators[d].cardinality() > dominators[idoms[b]].cardinality()) ){
+					idoms[b] = d;
+				}
+			}
+		}
+		return idoms;
+	}
+}
@@ -0,0 +1,205 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * The graphs of the methods of ExampleClass, and the blocks in them,
+ * for the tests. Blocks are found by the instructions they hold (e.g.
+ * "the block that tests local 1"), not by their position, so that the
+ * tests hold whether ExampleClass is compiled by javac or by Eclipse,
+ * which lay loops out differently. Also reads the classes of the jars
+ * in lib, and compares graphs.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+final class ExampleGraphs {
+
+	private static ClassNode exampleClass;
+
+	private ExampleGraphs(){
+	}
+
+	static synchronized ClassNode exampleClass() throws IOException {
+		if( exampleClass == null ){
+			try( InputStream is = ExampleGraphs.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+				if( is == null ){
+					throw new IOException( "ExampleClass.class is not in the classpath" );
+				}
+				exampleClass = new ClassNode();
+				new ClassReader( is ).accept( exampleClass, 0 );
+			}
+		}
+		return exampleClass;
+	}
+
+	static MethodNode method( String name ) throws IOException {
+		@SuppressWarnings("unchecked")
+		final MethodNode method = ControlFlowGraphExtractor.findMethod( (List<MethodNode>)exampleClass().methods, name );
+		if( method == null ){
+			throw new IllegalArgumentException( "No method " + name + " in ExampleClass" );
+		}
+		return method;
+	}
+
+	static ControlFlowGraph graph( MethodNode method ) throws IOException {
+		return new ControlFlowGraphExtractor().createCFG( exampleClass().name, method );
+	}
+
+	/**
+	 * @return The dummy "end" block of a graph
+	 */
+	static int endBlock( ControlFlowGraph graph ){
+		for( int b = 0; b < graph.getBasicBlockCount(); b++ ){
+			if( graph.getBasicBlock(b).getBBAddress() == -2 ){
+				return b;
+			}
+		}
+		throw new IllegalArgumentException( "No end block" );
+	}
+
+	/**
+	 * @return The block holding an instruction of the method
+	 */
+	static int blockOf( ControlFlowGraph graph, int instruction ){
+		for( int b = 0; b < graph.getBasicBlockCount(); b++ ){
+			final BasicBlock block = graph.getBasicBlock( b );
+			if( block.getBBAddress() >= 0 && block.getBBAddress() <= instruction &&
+					instruction < block.getBBAddress() + block.getInstructionLenght() ){
+				return b;
+			}
+		}
+		throw new IllegalArgumentException( "No block holds instruction " + instruction );
+	}
+
+	/**
+	 * @return The block of the first instruction with an opcode (and a
+	 * local variable, for loads, stores and IINC; any for the others)
+	 */
+	static int block( ControlFlowGraph graph, MethodNode method, int opcode, int var ){
+		for( int i = 0; i < method.instructions.size(); i++ ){
+			final AbstractInsnNode instruction = method.instructions.get( i );
+			if( instruction.getOpcode() == opcode && (var < 0 || var(instruction) == var) ){
+				return blockOf( graph, i );
+			}
+		}
+		throw new IllegalArgumentException( "No " + opcode + " " + var + " in " + method.name );
+	}
+
+	/**
+	 * @return The block of the first instruction with an opcode
+	 */
+	static int block( ControlFlowGraph graph, MethodNode method, int opcode ){
+		return block( graph, method, opcode, -1 );
+	}
+
+	/**
+	 * @return The block of the conditional jump that compares the given
+	 * int locals, loaded in this order right before it
+	 */
+	static int test( ControlFlowGraph graph, MethodNode method, int... vars ){
+		for( int i = 0; i < method.instructions.size(); i++ ){
+			final AbstractInsnNode instruction = method.instructions.get( i );
+			if( instruction instanceof JumpInsnNode && instruction.getOpcode() != Opcodes.GOTO &&
+					loads(instruction, vars) ){
+				return blockOf( graph, i );
+			}
+		}
+		throw new IllegalArgumentException( "No test of the locals in " + method.name );
+	}
+
+	private static boolean loads( AbstractInsnNode jump, int[] vars ){
+		AbstractInsnNode instruction = jump.getPrevious();
+		for( int v = vars.length - 1; v >= 0; v-- ){
+			while( instruction != null && instruction.getOpcode() < 0 ){
+				instruction = instruction.getPrevious();
+			}
+			if( instruction == null || instruction.getOpcode() != Opcodes.ILOAD || var(instruction) != vars[v] ){
+				return false;
+			}
+			instruction = instruction.getPrevious();
+		}
+		return true;
+	}
+
+	private static int var( AbstractInsnNode instruction ){
+		if( instruction instanceof VarInsnNode ){
+			return ((VarInsnNode)instruction).var;
+		}
+		if( instruction instanceof IincInsnNode ){
+			return ((IincInsnNode)instruction).var;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The classes of a jar, e.g. lib/asm-5.0.4.jar, in entry order
+	 */
+	static List<ClassNode> classes( String jarFileName ) throws IOException {
+		final List<ClassNode> classes = new ArrayList<>();
+		try( MappedJarFile jar = new MappedJarFile(jarFileName) ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					final ClassNode clazz = new ClassNode();
+					new ClassReader( jar.read(e), 0, jar.getEntrySize(e) ).accept( clazz, 0 );
+					classes.add( clazz );
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Asserts that two graphs have the same names, blocks and edges
+	 */
+	static void assertSameGraph( ControlFlowGraph expected, ControlFlowGraph actual ){
+		final String method = expected.getClassName() + "." + expected.getMethodName() + expected.getMethodDescriptor();
+		assertEquals( method, expected.getClassName(), actual.getClassName() );
+		assertEquals( method, expected.getMethodName(), actual.getMethodName() );
+		assertEquals( method, expected.getMethodDescriptor(), actual.getMethodDescriptor() );
+		assertEquals( method, expected.getBasicBlockCount(), actual.getBasicBlockCount() );
+		assertEquals( method, expected.getEdgeCount(), actual.getEdgeCount() );
+		assertEquals( method, expected.getExceptionEdgeCount(), actual.getExceptionEdgeCount() );
+		for( int b = 0; b < expected.getBasicBlockCount(); b++ ){
+			assertEquals( method, expected.getBasicBlock(b).getBBAddress(), actual.getBasicBlock(b).getBBAddress() );
+			assertEquals( method, expected.getBasicBlock(b).getInstructionLenght(), actual.getBasicBlock(b).getInstructionLenght() );
+			assertEquals( method, expected.getEdgeStart(b), actual.getEdgeStart(b) );
+			assertEquals( method, expected.getEdgeEnd(b), actual.getEdgeEnd(b) );
+		}
+		for( int e = 0; e < expected.getEdgeCount(); e++ ){
+			assertEquals( method, expected.getEdgeTarget(e), actual.getEdgeTarget(e) );
+			assertEquals( method, expected.getEdgeKind(e), actual.getEdgeKind(e) );
+			assertEquals( method, expected.getEdgeKey(e), actual.getEdgeKey(e) );
+		}
+	}
+
+	/**
+	 * @return A graph in compressed sparse row form, as taken by
+	 * DominatorTree and LoopAnalysis: { edgeOffsets, edgeTargets }
+	 * @param successors The successors of every block, in order
+	 */
+	static int[][] csr( int[][] successors ){
+		final int[] offsets = new int[successors.length + 1];
+		for( int b = 0; b < successors.length; b++ ){
+			offsets[b + 1] = offsets[b] + successors[b].length;
+		}
+		final int[] targets = new int[offsets[successors.length]];
+		for( int b = 0; b < successors.length; b++ ){
+			System.arraycopy( successors[b], 0, targets, offsets[b], successors[b].length );
+		}
+		return new int[][]{ offsets, targets };
+	}
+}
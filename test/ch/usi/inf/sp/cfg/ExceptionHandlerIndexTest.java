@@ -0,0 +1,143 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * Tests ExceptionHandlerIndex against a scan of the try/catch blocks in
+ * declaration order, stopping at the first catch-all one.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class ExceptionHandlerIndexTest {
+
+	@Test
+	public void nestedAndFinally(){
+		// try{ 2..8 try{ 4..6 } catch 20 } catch 30; finally 40 over 0..10
+		final int[] starts = { 4, 2, 0 };
+		final int[] ends = { 6, 8, 10 };
+		final int[] handlers = { 20, 30, 40 };
+		final boolean[] catchAll = { false, false, true };
+		final ExceptionHandlerIndex index = new ExceptionHandlerIndex( 3, starts, ends, handlers, catchAll );
+		assertHandlers( index, 0, 40 );
+		assertHandlers( index, 3, 30, 40 );
+		assertHandlers( index, 4, 20, 30, 40 );
+		assertHandlers( index, 5, 20, 30, 40 );
+		assertHandlers( index, 6, 30, 40 );
+		assertHandlers( index, 9, 40 );
+		assertHandlers( index, 10 );
+		assertHandlers( index, -1 );
+		assertTrue( index.isCatchAll(index.getHandlerEnd(index.findSegment(0)) - 1) );
+		assertFalse( index.isCatchAll(index.getHandlerStart(index.findSegment(4))) );
+	}
+
+	@Test
+	public void nothingAfterCatchAll(){
+		// A finally declared first hides the handlers declared after it
+		final ExceptionHandlerIndex index = new ExceptionHandlerIndex( 2, new int[]{ 0, 0 }, new int[]{ 5, 10 },
+				new int[]{ 20, 30 }, new boolean[]{ true, false } );
+		assertHandlers( index, 2, 20 );
+		assertHandlers( index, 7, 30 );
+	}
+
+	@Test
+	public void gap(){
+		final ExceptionHandlerIndex index = new ExceptionHandlerIndex( 2, new int[]{ 0, 6 }, new int[]{ 3, 9 },
+				new int[]{ 20, 30 }, new boolean[]{ false, false } );
+		assertHandlers( index, 2, 20 );
+		assertHandlers( index, 4 );
+		assertHandlers( index, 6, 30 );
+	}
+
+	@Test
+	public void exampleClass() throws IOException {
+		for( Object m : ExampleGraphs.exampleClass().methods ){
+			final MethodNode method = (MethodNode)m;
+			@SuppressWarnings("unchecked")
+			final List<TryCatchBlockNode> blocks = method.tryCatchBlocks;
+			final int count = blocks.size();
+			final int[] starts = new int[count];
+			final int[] ends = new int[count];
+			final int[] handlers = new int[count];
+			final boolean[] catchAll = new boolean[count];
+			for( int h = 0; h < count; h++ ){
+				starts[h] = method.instructions.indexOf( blocks.get(h).start );
+				ends[h] = method.instructions.indexOf( blocks.get(h).end );
+				handlers[h] = method.instructions.indexOf( blocks.get(h).handler );
+				catchAll[h] = blocks.get(h).type == null;
+			}
+			final ExceptionHandlerIndex index = new ExceptionHandlerIndex( method.instructions, blocks );
+			for( int i = 0; i < method.instructions.size(); i++ ){
+				assertHandlers( index, i, scan(i, count, starts, ends, handlers, catchAll) );
+			}
+		}
+	}
+
+	/**
+	 * Random blocks, with one index reset for every method, as the
+	 * extractors do, so that arrays left from larger methods are reused
+	 */
+	@Test
+	public void randomBlocks(){
+		final Random random = new Random( 5 );
+		final ExceptionHandlerIndex index = new ExceptionHandlerIndex();
+		for( int m = 0; m < 2000; m++ ){
+			final int size = 1 + random.nextInt( 60 );
+			final int count = random.nextInt( 8 );
+			final int[] starts = new int[count];
+			final int[] ends = new int[count];
+			final int[] handlers = new int[count];
+			final boolean[] catchAll = new boolean[count];
+			for( int h = 0; h < count; h++ ){
+				starts[h] = random.nextInt( size );
+				ends[h] = starts[h] + 1 + random.nextInt( size - starts[h] );
+				handlers[h] = random.nextInt( size );
+				catchAll[h] = random.nextInt( 4 ) == 0;
+			}
+			index.reset( count, starts, ends, handlers, catchAll );
+			for( int i = 0; i <= size; i++ ){
+				assertHandlers( index, i, scan(i, count, starts, ends, handlers, catchAll) );
+			}
+		}
+	}
+
+	private static int[] scan( int instruction, int count, int[] starts, int[] ends, int[] handlers, boolean[] catchAll ){
+		final List<Integer> covering = new ArrayList<>();
+		for( int h = 0; h < count; h++ ){
+			if( starts[h] <= instruction && instruction < ends[h] ){
+				covering.add( handlers[h] );
+				if( catchAll[h] ){
+					break;
+				}
+			}
+		}
+		final int[] result = new int[covering.size()];
+		for( int h = 0; h < result.length; h++ ){
+			result[h] = covering.get( h );
+		}
+		return result;
+	}
+
+	private static void assertHandlers( ExceptionHandlerIndex index, int instruction, int... expected ){
+		final int segment = index.findSegment( instruction );
+		if( expected.length == 0 ){
+			assertEquals( "segment of " + instruction, -1, segment );
+			return;
+		}
+		assertTrue( "segment of " + instruction, segment >= 0 );
+		assertEquals( "handlers of " + instruction, expected.length, index.getHandlerEnd(segment) - index.getHandlerStart(segment) );
+		for( int h = 0; h < expected.length; h++ ){
+			assertEquals( "handler " + h + " of " + instruction, expected[h], index.getHandler(index.getHandlerStart(segment) + h) );
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Tests that merging Histograms (and StatisticsAggregators) gives exactly
+ * the histogram of all the values recorded in one, that histograms
+ * survive write and read, and the precision of the percentiles.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class HistogramTest {
+
+	@Test
+	public void mergeEqualsSingle() throws IOException {
+		final Random random = new Random( 3 );
+		for( int run = 0; run < 200; run++ ){
+			final int[] values = values( random, random.nextInt(2000) );
+			final Histogram single = new Histogram();
+			for( int value : values ){
+				single.record( value );
+			}
+			// Recorded in parts (some of them empty), merged in any order
+			final List<Histogram> parts = new ArrayList<>();
+			for( int p = 1 + random.nextInt(8); p > 0; p-- ){
+				parts.add( new Histogram() );
+			}
+			for( int value : values ){
+				parts.get( random.nextInt(parts.size()) ).record( value );
+			}
+			Collections.shuffle( parts, random );
+			final Histogram merged = new Histogram();
+			for( Histogram part : parts ){
+				merged.merge( part );
+			}
+			assertSame( single, merged );
+		}
+	}
+
+	@Test
+	public void writeAndRead() throws IOException {
+		final Random random = new Random( 4 );
+		for( int run = 0; run < 50; run++ ){
+			final Histogram histogram = new Histogram();
+			for( int value : values(random, random.nextInt(1000)) ){
+				histogram.record( value );
+			}
+			final byte[] bytes = bytes( histogram );
+			assertSame( histogram, Histogram.read(new DataInputStream(new ByteArrayInputStream(bytes))) );
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidBucketCount() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		out.writeLong( 1 );
+		out.writeLong( 1 );
+		out.writeInt( 1 );
+		out.writeInt( 1 );
+		out.writeInt( -5 );
+		Histogram.read( new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())) );
+	}
+
+	@Test
+	public void empty(){
+		final Histogram histogram = new Histogram();
+		histogram.merge( new Histogram() );
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getMin() );
+		assertEquals( 0, histogram.getMax() );
+		assertEquals( 0, histogram.getPercentile(50) );
+		assertEquals( 0, histogram.getMean(), 0 );
+	}
+
+	@Test
+	public void percentiles(){
+		final Random random = new Random( 6 );
+		for( int run = 0; run < 100; run++ ){
+			final int[] values = values( random, 1 + random.nextInt(3000) );
+			final Histogram histogram = new Histogram();
+			long sum = 0;
+			for( int value : values ){
+				histogram.record( value );
+				sum += value;
+			}
+			final int[] sorted = values.clone();
+			Arrays.sort( sorted );
+			assertEquals( sorted.length, histogram.getCount() );
+			assertEquals( sum, histogram.getSum() );
+			assertEquals( sorted[0], histogram.getMin() );
+			assertEquals( sorted[sorted.length - 1], histogram.getMax() );
+			for( double p = 0; p <= 100; p += 2.5 ){
+				final int exact = sorted[(int)Math.max(0, Math.ceil(p / 100 * sorted.length) - 1)];
+				final int estimate = histogram.getPercentile( p );
+				// Never below, and within 1/32 above; exact below 64
+				assertTrue( p + ": " + estimate + " for " + exact, estimate >= exact && estimate - exact <= exact / 32 );
+			}
+		}
+	}
+
+	@Test
+	public void buckets(){
+		final Random random = new Random( 8 );
+		for( int i = 0; i < 100000; i++ ){
+			final int value = i < 1000 ? i : i < 1100 ? Integer.MAX_VALUE - (i - 1000) : random.nextInt() >>> (1 + random.nextInt(31));
+			final int bucket = Histogram.bucketOf( value );
+			assertTrue( value + "", Histogram.highestValueOf(bucket) >= value );
+			assertTrue( value + "", bucket == 0 || Histogram.highestValueOf(bucket - 1) < value );
+		}
+		final Histogram histogram = new Histogram();
+		histogram.record( -3 );
+		assertEquals( 0, histogram.getMin() );
+	}
+
+	/**
+	 * Statistics aggregated by two aggregators and read into a third one
+	 * are the statistics aggregated by a single one
+	 */
+	@Test
+	public void aggregators() throws IOException {
+		final StatisticsAggregator single = new StatisticsAggregator();
+		final StatisticsAggregator[] parts = { new StatisticsAggregator(), new StatisticsAggregator() };
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					final List<MethodStatistics> statistics = ControlFlowGraphExtractor.extractStatistics(
+							new ClassReader(jar.read(e), 0, jar.getEntrySize(e)), "asm-5.0.4.jar" );
+					single.add( statistics );
+					parts[e % 2].add( statistics );
+				}
+			}
+		}
+		final StatisticsAggregator merged = new StatisticsAggregator();
+		for( StatisticsAggregator part : parts ){
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			part.write( new DataOutputStream(bytes) );
+			merged.read( new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())) );
+		}
+		for( int d = 0; d < StatisticsAggregator.DISTRIBUTIONS.length; d++ ){
+			assertSame( single.getTotal().getHistogram(d), merged.getTotal().getHistogram(d) );
+		}
+		assertEquals( single.getTotal().getMethodCount(), merged.getTotal().getMethodCount() );
+		assertEquals( summary(single), summary(merged) );
+	}
+
+	// Mostly small values, as the statistics, with a few large ones
+	private static int[] values( Random random, int count ){
+		final int[] values = new int[count];
+		for( int i = 0; i < count; i++ ){
+			values[i] = random.nextInt( 10 ) == 0 ? random.nextInt() >>> (1 + random.nextInt(31)) : random.nextInt( 200 );
+		}
+		return values;
+	}
+
+	private static void assertSame( Histogram expected, Histogram actual ) throws IOException {
+		assertEquals( expected.getCount(), actual.getCount() );
+		assertEquals( expected.getSum(), actual.getSum() );
+		assertEquals( expected.getMin(), actual.getMin() );
+		assertEquals( expected.getMax(), actual.getMax() );
+		assertEquals( expected.getMean(), actual.getMean(), 0 );
+		for( double p = 0; p <= 100; p += 0.5 ){
+			assertEquals( "percentile " + p, expected.getPercentile(p), actual.getPercentile(p) );
+		}
+		// Same buckets
+		assertArrayEquals( bytes(expected), bytes(actual) );
+	}
+
+	private static byte[] bytes( Histogram histogram ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		histogram.write( new DataOutputStream(bytes) );
+		return bytes.toByteArray();
+	}
+
+	private static String summary( StatisticsAggregator aggregator ) throws IOException {
+		final StringWriter out = new StringWriter();
+		aggregator.writeSummary( out );
+		return out.toString();
+	}
+}
@@ -0,0 +1,257 @@
+package ch.usi.inf.sp.cfg;
+
+import static ch.usi.inf.sp.cfg.ExampleGraphs.block;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.csr;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.endBlock;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.graph;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.method;
+import static ch.usi.inf.sp.cfg.ExampleGraphs.test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Tests LoopAnalysis against loop headers and nesting depths computed by
+ * hand on methods of ExampleClass and on irreducible graphs, and against
+ * the natural loops of the back edges on random reducible graphs.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class LoopAnalysisTest {
+
+	@Test
+	public void noLoops() throws IOException {
+		final LoopAnalysis loops = new LoopAnalysis( graph(method("ifElseMethod")) );
+		assertEquals( 0, loops.getLoopCount() );
+		assertEquals( 0, loops.getBackEdgeCount() );
+		assertEquals( 0, loops.getMaxDepth() );
+	}
+
+	@Test
+	public void whileMethod() throws IOException {
+		final MethodNode method = method( "whileMethod" );
+		final ControlFlowGraph graph = graph( method );
+		final LoopAnalysis loops = new LoopAnalysis( graph );
+		final int condition = test( graph, method, 1 );
+		final int body = block( graph, method, Opcodes.IINC, 1 );
+		assertEquals( 1, loops.getLoopCount() );
+		assertEquals( 1, loops.getBackEdgeCount() );
+		assertEquals( 1, loops.getMaxDepth() );
+		assertEquals( condition, loops.getHeader(0) );
+		assertEquals( -1, loops.getParent(0) );
+		assertFalse( loops.isIrreducible(0) );
+		assertEquals( 0, loops.getLoopOf(condition) );
+		assertEquals( 0, loops.getLoopOf(body) );
+		assertEquals( 1, loops.getBlockDepth(body) );
+		assertEquals( 0, loops.getBlockDepth(block(graph, method, Opcodes.ISTORE, 2)) );
+		assertEquals( 0, loops.getBlockDepth(block(graph, method, Opcodes.IRETURN)) );
+		assertEquals( 0, loops.getBlockDepth(endBlock(graph)) );
+	}
+
+	@Test
+	public void nestedFor() throws IOException {
+		final MethodNode method = method( "nestedFor" );
+		final ControlFlowGraph graph = graph( method );
+		final LoopAnalysis loops = new LoopAnalysis( graph );
+		// Locals: n 1, sum 2, i 3, j 4
+		final int outerCondition = test( graph, method, 3, 1 );
+		final int outerBody = block( graph, method, Opcodes.ISTORE, 4 );
+		final int innerCondition = test( graph, method, 4, 3 );
+		final int innerBody = block( graph, method, Opcodes.IINC, 4 );
+		final int outerIncrement = block( graph, method, Opcodes.IINC, 3 );
+		assertEquals( 2, loops.getLoopCount() );
+		assertEquals( 2, loops.getBackEdgeCount() );
+		assertEquals( 2, loops.getMaxDepth() );
+		assertEquals( 0, loops.getIrreducibleLoopCount() );
+		// Innermost first
+		assertEquals( innerCondition, loops.getHeader(0) );
+		assertEquals( 2, loops.getDepth(0) );
+		assertEquals( 1, loops.getParent(0) );
+		assertEquals( outerCondition, loops.getHeader(1) );
+		assertEquals( 1, loops.getDepth(1) );
+		assertEquals( -1, loops.getParent(1) );
+		assertEquals( 0, loops.getLoopOf(innerBody) );
+		assertEquals( 2, loops.getBlockDepth(innerBody) );
+		assertEquals( 2, loops.getBlockDepth(innerCondition) );
+		assertEquals( 1, loops.getLoopOf(outerBody) );
+		assertEquals( 1, loops.getBlockDepth(outerIncrement) );
+		assertEquals( 1, loops.getBlockDepth(outerCondition) );
+		assertEquals( 0, loops.getBlockDepth(block(graph, method, Opcodes.ISTORE, 2)) );
+		assertEquals( 0, loops.getBlockDepth(block(graph, method, Opcodes.IRETURN)) );
+	}
+
+	@Test
+	public void selfLoop() throws IOException {
+		final MethodNode method = method( "whileTrueMethod" );
+		final ControlFlowGraph graph = graph( method );
+		final LoopAnalysis loops = new LoopAnalysis( graph );
+		final int loop = block( graph, method, Opcodes.IINC, 1 );
+		assertEquals( 1, loops.getLoopCount() );
+		assertEquals( 1, loops.getBackEdgeCount() );
+		assertEquals( loop, loops.getHeader(0) );
+		assertEquals( 1, loops.getBlockDepth(loop) );
+		// Cannot be reached
+		assertEquals( -1, loops.getLoopOf(endBlock(graph)) );
+	}
+
+	/**
+	 * Blocks 1 and 2 form a loop that can be entered at both
+	 */
+	@Test
+	public void irreducible(){
+		final int[][] graph = csr( new int[][]{ { 1, 2 }, { 2, 3 }, { 1 }, {} } );
+		final LoopAnalysis loops = new LoopAnalysis( 4, graph[0], graph[1], 0 );
+		assertEquals( 1, loops.getLoopCount() );
+		assertEquals( 1, loops.getIrreducibleLoopCount() );
+		assertTrue( loops.isIrreducible(0) );
+		// The first one the search reaches
+		assertEquals( 1, loops.getHeader(0) );
+		assertEquals( 0, loops.getBlockDepth(0) );
+		assertEquals( 1, loops.getBlockDepth(1) );
+		assertEquals( 1, loops.getBlockDepth(2) );
+		assertEquals( 0, loops.getBlockDepth(3) );
+	}
+
+	/**
+	 * An irreducible loop (2, 3) nested in a reducible one headed by 1
+	 */
+	@Test
+	public void irreducibleInReducible(){
+		final int[][] graph = csr( new int[][]{ { 1 }, { 2, 3 }, { 3, 4 }, { 2, 4 }, { 1, 5 }, {} } );
+		final LoopAnalysis loops = new LoopAnalysis( 6, graph[0], graph[1], 0 );
+		assertEquals( 2, loops.getLoopCount() );
+		assertEquals( 1, loops.getIrreducibleLoopCount() );
+		assertEquals( 2, loops.getMaxDepth() );
+		assertTrue( loops.isIrreducible(0) );
+		assertEquals( 2, loops.getDepth(0) );
+		assertEquals( 1, loops.getParent(0) );
+		assertFalse( loops.isIrreducible(1) );
+		assertEquals( 1, loops.getHeader(1) );
+		assertEquals( 1, loops.getDepth(1) );
+		final int[] depths = { 0, 1, 2, 2, 1, 0 };
+		for( int b = 0; b < depths.length; b++ ){
+			assertEquals( "depth of " + b, depths[b], loops.getBlockDepth(b) );
+		}
+	}
+
+	@Test
+	public void randomGraphs(){
+		final Random random = new Random( 7 );
+		int reducible = 0;
+		for( int g = 0; g < 1000; g++ ){
+			final int blockCount = 1 + random.nextInt( 30 );
+			final int[][] successors = new int[blockCount][];
+			for( int b = 0; b < blockCount; b++ ){
+				successors[b] = new int[random.nextInt(3)];
+				for( int s = 0; s < successors[b].length; s++ ){
+					// Mostly forward, as in code
+					successors[b][s] = random.nextInt(4) == 0 ? random.nextInt(blockCount) :
+						Math.min( blockCount - 1, b + 1 + random.nextInt(3) );
+				}
+			}
+			final int[][] graph = csr( successors );
+			final DominatorTree dominators = new DominatorTree( blockCount, graph[0], graph[1], 0 );
+			final LoopAnalysis loops = new LoopAnalysis( blockCount, graph[0], graph[1], 0 );
+			final int[] depths = naturalLoopDepths( successors, dominators );
+			if( depths == null ){
+				assertTrue( "graph " + g, loops.getIrreducibleLoopCount() > 0 );
+				continue;
+			}
+			reducible++;
+			assertEquals( "graph " + g, 0, loops.getIrreducibleLoopCount() );
+			int maxDepth = 0;
+			for( int b = 0; b < blockCount; b++ ){
+				assertEquals( "graph " + g + ", depth of " + b, depths[b], loops.getBlockDepth(b) );
+				maxDepth = Math.max( maxDepth, depths[b] );
+			}
+			assertEquals( "graph " + g, maxDepth, loops.getMaxDepth() );
+		}
+		assertTrue( reducible > 100 );
+	}
+
+	/**
+	 * The nesting depth of every block in the natural loops of the back
+	 * edges (edges to a dominator), one loop per header
+	 * @return null if the graph is irreducible: an edge goes back to an
+	 * ancestor in a depth first search that does not dominate its source
+	 */
+	private static int[] naturalLoopDepths( int[][] successors, DominatorTree dominators ){
+		final int blockCount = successors.length;
+		// Depth first search, to find the edges back to an ancestor
+		final int[] state = new int[blockCount]; // 0 not visited, 1 on the stack, 2 done
+		final int[] next = new int[blockCount];
+		final ArrayDeque<Integer> stack = new ArrayDeque<>();
+		stack.push( 0 );
+		state[0] = 1;
+		while( !stack.isEmpty() ){
+			final int b = stack.peek();
+			if( next[b] == successors[b].length ){
+				state[b] = 2;
+				stack.pop();
+				continue;
+			}
+			final int s = successors[b][next[b]++];
+			if( state[s] == 0 ){
+				state[s] = 1;
+				stack.push( s );
+			}else if( state[s] == 1 && !dominators.dominates(s, b) ){
+				return null;
+			}
+		}
+		// The body of the loop of every header: the blocks that reach one of
+		// its back edges without going through it
+		final BitSet[] bodies = new BitSet[blockCount];
+		for( int b = 0; b < blockCount; b++ ){
+			if( !dominators.isReachable(b) ){
+				continue;
+			}
+			for( int h : successors[b] ){
+				if( !dominators.dominates(h, b) ){
+					continue;
+				}
+				if( bodies[h] == null ){
+					bodies[h] = new BitSet();
+					bodies[h].set( h );
+				}
+				final ArrayDeque<Integer> work = new ArrayDeque<>();
+				if( !bodies[h].get(b) ){
+					bodies[h].set( b );
+					work.push( b );
+				}
+				while( !work.isEmpty() ){
+					final int x = work.pop();
+					for( int p = 0; p < blockCount; p++ ){
+						if( !dominators.isReachable(p) || bodies[h].get(p) ){
+							continue;
+						}
+						for( int s : successors[p] ){
+							if( s == x ){
+								bodies[h].set( p );
+								work.push( p );
+								break;
+							}
+						}
+					}
+				}
+			}
+		}
+		final int[] depths = new int[blockCount];
+		for( int h = 0; h < blockCount; h++ ){
+			if( bodies[h] != null ){
+				for( int b = bodies[h].nextSetBit(0); b >= 0; b = bodies[h].nextSetBit(b + 1) ){
+					depths[b]++;
+				}
+			}
+		}
+		return depths;
+	}
+}
@@ -0,0 +1,257 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests MappedJarFile against java.util.zip.ZipFile, on lib/asm-5.0.4.jar
+ * and on jars written by the test: stored and deflated entries,
+ * directories, empty and large entries, and nested jars, also larger
+ * than what is inflated on the heap.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class MappedJarFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void asmJar() throws IOException {
+		assertSameAsZipFile( new File("lib/asm-5.0.4.jar") );
+	}
+
+	@Test
+	public void storedAndDeflated() throws IOException {
+		final File jar = folder.newFile( "test.jar" );
+		writeJar( jar, content(1) );
+		assertSameAsZipFile( jar );
+		try( MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			assertEquals( 6, mapped.size() );
+			assertTrue( mapped.isDirectory(0) );
+			assertFalse( mapped.isDirectory(1) );
+			assertEquals( "a/Empty.class", mapped.getEntryName(3) );
+			assertEquals( 0, mapped.getEntrySize(3) );
+		}
+	}
+
+	@Test
+	public void nested() throws IOException {
+		final ByteArrayOutputStream inner = new ByteArrayOutputStream();
+		final List<Object[]> innerEntries = content( 2 );
+		try( ZipOutputStream out = new ZipOutputStream(inner) ){
+			write( out, innerEntries );
+		}
+		final File jar = folder.newFile( "fat.jar" );
+		try( ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar)) ){
+			write( out, Arrays.asList(new Object[]{ "lib/stored.jar", inner.toByteArray(), true },
+					new Object[]{ "lib/deflated.jar", inner.toByteArray(), false }) );
+		}
+		try( MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			for( int entry = 0; entry < 2; entry++ ){
+				final MappedJarFile nested = mapped.openNested( entry );
+				assertEquals( jar.getPath() + "!/" + mapped.getEntryName(entry), nested.getName() );
+				assertEquals( innerEntries.size(), nested.size() );
+				for( int e = 0; e < nested.size(); e++ ){
+					assertEquals( innerEntries.get(e)[0], nested.getEntryName(e) );
+					final byte[] expected = (byte[])innerEntries.get( e )[1];
+					assertEquals( expected.length, nested.getEntrySize(e) );
+					assertArrayEquals( expected, Arrays.copyOf(nested.read(e), expected.length) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Entries larger than 1MB are read into arrays of their own, and the
+	 * buffer of the thread is not replaced by a larger one
+	 */
+	@Test
+	public void largeEntries() throws IOException {
+		final byte[] large = new byte[3 << 20];
+		for( int i = 0; i < large.length; i++ ){
+			large[i] = (byte)(i % 251);
+		}
+		final File jar = folder.newFile( "large.jar" );
+		writeJar( jar, Arrays.asList(new Object[]{ "Small.class", new byte[100], false },
+				new Object[]{ "Deflated.class", large, false },
+				new Object[]{ "Stored.class", large, true }) );
+		assertSameAsZipFile( jar );
+		try( MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			final byte[] buffer = mapped.read( 0 );
+			for( int e = 1; e <= 2; e++ ){
+				final byte[] content = mapped.read( e );
+				assertTrue( content != buffer );
+				assertArrayEquals( large, content );
+				assertTrue( mapped.read(0) == buffer );
+			}
+		}
+	}
+
+	/**
+	 * A compressed nested jar larger than 32MB is inflated into a
+	 * temporary file instead of the heap
+	 */
+	@Test
+	public void largeNested() throws IOException {
+		final byte[] large = new byte[33 << 20];
+		for( int i = 0; i < large.length; i += 4096 ){
+			large[i] = (byte)(i >>> 12);
+		}
+		final ByteArrayOutputStream inner = new ByteArrayOutputStream();
+		try( ZipOutputStream out = new ZipOutputStream(inner) ){
+			write( out, Arrays.asList(new Object[]{ "a/Large.class", large, true },
+					new Object[]{ "a/Small.class", new byte[]{ 1, 2, 3 }, false }) );
+		}
+		final File jar = folder.newFile( "fat.jar" );
+		writeJar( jar, Collections.singletonList(new Object[]{ "lib/large.jar", inner.toByteArray(), false }) );
+		try( MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			assertTrue( mapped.getEntrySize(0) > 32 << 20 );
+			final MappedJarFile nested = mapped.openNested( 0 );
+			assertEquals( 2, nested.size() );
+			assertArrayEquals( large, nested.read(0) );
+			assertArrayEquals( new byte[]{ 1, 2, 3 }, Arrays.copyOf(nested.read(1), 3) );
+		}
+	}
+
+	/**
+	 * Every thread reads into a buffer of its own
+	 */
+	@Test
+	public void concurrentReads() throws Exception {
+		final File jar = new File( "lib/asm-5.0.4.jar" );
+		final List<byte[]> expected = zipFileContents( jar );
+		final ExecutorService pool = Executors.newFixedThreadPool( 4 );
+		try( MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			final List<Future<Boolean>> results = new ArrayList<>();
+			for( int t = 0; t < 4; t++ ){
+				final int seed = t;
+				results.add( pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						final Random random = new Random( seed );
+						for( int r = 0; r < 500; r++ ){
+							final int entry = random.nextInt( mapped.size() );
+							final byte[] content = mapped.read( entry );
+							if( !Arrays.equals(expected.get(entry), Arrays.copyOf(content, mapped.getEntrySize(entry))) ){
+								return false;
+							}
+						}
+						return true;
+					}
+				}) );
+			}
+			for( Future<Boolean> result : results ){
+				assertTrue( result.get() );
+			}
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	private static void assertSameAsZipFile( File jar ) throws IOException {
+		final List<byte[]> expected = zipFileContents( jar );
+		try( ZipFile zip = new ZipFile(jar); MappedJarFile mapped = new MappedJarFile(jar.getPath()) ){
+			final List<? extends ZipEntry> entries = Collections.list( zip.entries() );
+			assertEquals( entries.size(), mapped.size() );
+			for( int e = 0; e < entries.size(); e++ ){
+				assertEquals( entries.get(e).getName(), mapped.getEntryName(e) );
+				assertEquals( entries.get(e).isDirectory(), mapped.isDirectory(e) );
+				assertEquals( expected.get(e).length, mapped.getEntrySize(e) );
+				assertArrayEquals( entries.get(e).getName(), expected.get(e),
+						Arrays.copyOf(mapped.read(e), mapped.getEntrySize(e)) );
+				final byte[] own = new byte[mapped.getEntrySize(e)];
+				mapped.read( e, own );
+				assertArrayEquals( expected.get(e), own );
+			}
+		}
+	}
+
+	private static List<byte[]> zipFileContents( File jar ) throws IOException {
+		final List<byte[]> contents = new ArrayList<>();
+		try( ZipFile zip = new ZipFile(jar) ){
+			final Enumeration<? extends ZipEntry> entries = zip.entries();
+			while( entries.hasMoreElements() ){
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try( InputStream in = zip.getInputStream(entries.nextElement()) ){
+					final byte[] buffer = new byte[8192];
+					int n;
+					while( (n = in.read(buffer)) > 0 ){
+						bytes.write( buffer, 0, n );
+					}
+				}
+				contents.add( bytes.toByteArray() );
+			}
+		}
+		return contents;
+	}
+
+	// Name, content and whether it is stored, for every entry
+	private static List<Object[]> content( int seed ){
+		final Random random = new Random( seed );
+		final byte[] noise = new byte[10000];
+		random.nextBytes( noise );
+		final byte[] text = new byte[200000];
+		for( int i = 0; i < text.length; i++ ){
+			text[i] = (byte)('a' + i % 7);
+		}
+		return Arrays.asList(
+			new Object[]{ "a/", new byte[0], false },
+			new Object[]{ "a/Stored.class", noise, true },
+			new Object[]{ "a/Deflated.class", text, false },
+			new Object[]{ "a/Empty.class", new byte[0], false },
+			new Object[]{ "a/EmptyStored.class", new byte[0], true },
+			new Object[]{ "b/Noise.class", Arrays.copyOf(noise, 777), false }
+		);
+	}
+
+	private static void writeJar( File jar, List<Object[]> entries ) throws IOException {
+		try( ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar)) ){
+			write( out, entries );
+		}
+	}
+
+	private static void write( ZipOutputStream out, List<Object[]> entries ) throws IOException {
+		for( Object[] e : entries ){
+			final ZipEntry entry = new ZipEntry( (String)e[0] );
+			final byte[] content = (byte[])e[1];
+			if( (Boolean)e[2] ){
+				final CRC32 crc = new CRC32();
+				crc.update( content );
+				entry.setMethod( ZipEntry.STORED );
+				entry.setSize( content.length );
+				entry.setCompressedSize( content.length );
+				entry.setCrc( crc.getValue() );
+			}
+			out.putNextEntry( entry );
+			out.write( content );
+			out.closeEntry();
+		}
+	}
+}
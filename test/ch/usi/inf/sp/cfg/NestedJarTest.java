@@ -0,0 +1,176 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Analyzes a fat jar holding stored and deflated nested jars, whose
+ * classes are stored or deflated, and a jar nested two levels deep, and
+ * checks that the rows of every nested jar are those of the same jar
+ * analyzed on its own, with the path of the nested jar as benchmark,
+ * in entry order, with any number of workers and readers and with both
+ * engines.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class NestedJarTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] asmJar; // Deflated classes
+	private byte[] storedAsmJar; // The same classes, stored
+	private byte[] appJar; // ExampleClass
+	private byte[] outerJar; // Holds storedAsmJar, stored
+	private File fat;
+
+	@Before
+	public void writeJars() throws IOException {
+		asmJar = Files.readAllBytes( new File("lib/asm-5.0.4.jar").toPath() );
+		final List<Object[]> classes = new ArrayList<>();
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				classes.add( new Object[]{ jar.getEntryName(e), Arrays.copyOf(jar.read(e), jar.getEntrySize(e)), true } );
+			}
+		}
+		storedAsmJar = bytes( classes );
+		try( InputStream is = NestedJarTest.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+			final ByteArrayOutputStream example = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int n;
+			while( (n = is.read(buffer)) > 0 ){
+				example.write( buffer, 0, n );
+			}
+			appJar = bytes( Collections.singletonList(new Object[]{ "ExampleClass.class", example.toByteArray(), false }) );
+		}
+		outerJar = bytes( Arrays.asList(new Object[]{ "META-INF/", new byte[0], false },
+				new Object[]{ "lib/inner.jar", storedAsmJar, true }) );
+
+		fat = folder.newFile( "fat.jar" );
+		try( FileOutputStream out = new FileOutputStream(fat) ){
+			out.write( bytes(Arrays.asList(
+				new Object[]{ "BOOT-INF/classes/", new byte[0], false },
+				new Object[]{ "BOOT-INF/lib/app.jar", appJar, false },
+				new Object[]{ "BOOT-INF/lib/stored.jar", asmJar, true },
+				new Object[]{ "BOOT-INF/lib/deflated.jar", asmJar, false },
+				new Object[]{ "BOOT-INF/lib/stored-classes.jar", storedAsmJar, false },
+				new Object[]{ "BOOT-INF/lib/outer.jar", outerJar, false },
+				new Object[]{ "BOOT-INF/lib/readme.txt", new byte[100], false }
+			)) );
+		}
+	}
+
+	@Test
+	public void sameAsNestedJarsAlone() throws IOException {
+		final StringWriter expected = new StringWriter();
+		expected.write( CsvFileCreator.header );
+		expected.write( rowsOf(appJar, "fat.jar!/BOOT-INF/lib/app.jar") );
+		expected.write( rowsOf(asmJar, "fat.jar!/BOOT-INF/lib/stored.jar") );
+		expected.write( rowsOf(asmJar, "fat.jar!/BOOT-INF/lib/deflated.jar") );
+		expected.write( rowsOf(storedAsmJar, "fat.jar!/BOOT-INF/lib/stored-classes.jar") );
+		expected.write( rowsOf(storedAsmJar, "fat.jar!/BOOT-INF/lib/outer.jar!/lib/inner.jar") );
+		assertTrue( expected.toString().split("\n").length > 4 * 385 );
+
+		for( boolean streaming : new boolean[]{ false, true } ){
+			assertEquals( expected.toString(), analyze(fat, 1, 0, streaming) );
+			assertEquals( expected.toString(), analyze(fat, 3, 2, streaming) );
+		}
+	}
+
+	@Test
+	public void counts() throws IOException {
+		assertEquals( 5, ParallelJarAnalyzer.countEntries(fat.getPath()) );
+		assertEquals( 1 + 4 * ParallelJarAnalyzer.countClasses("lib/asm-5.0.4.jar"),
+				ParallelJarAnalyzer.countClasses(fat.getPath()) );
+	}
+
+	/**
+	 * A nested jar is analyzed all by the shard its entry falls in
+	 */
+	@Test
+	public void shards() throws IOException {
+		final String all = analyze( fat, 2, 0, false );
+		final StringBuilder sharded = new StringBuilder( CsvFileCreator.header );
+		for( int entry = 0; entry < 5; entry++ ){
+			final StringWriter csv = new StringWriter();
+			try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(2);
+					CsvFileCreator csvCreator = new CsvFileCreator(csv) ){
+				analyzer.setVerbose( false );
+				analyzer.setEntryRange( entry, entry + 1 );
+				analyzer.analyze( fat.getPath(), csvCreator );
+			}
+			final String rows = csv.toString().substring( CsvFileCreator.header.length() );
+			assertTrue( rows.length() > 0 );
+			sharded.append( rows );
+		}
+		assertEquals( all, sharded.toString() );
+	}
+
+	// The rows of a jar analyzed alone, with another benchmark
+	private String rowsOf( byte[] jar, String benchmark ) throws IOException {
+		final File file = folder.newFile();
+		Files.write( file.toPath(), jar );
+		final StringBuilder rows = new StringBuilder();
+		final String csv = analyze( file, 1, 0, false );
+		for( String row : csv.substring(CsvFileCreator.header.length()).split("\n") ){
+			assertTrue( row.startsWith(file.getName() + ",") );
+			rows.append( benchmark ).append( row.substring(file.getName().length()) ).append( '\n' );
+		}
+		return rows.toString();
+	}
+
+	private static String analyze( File jar, int workers, int readers, boolean streaming ) throws IOException {
+		final StringWriter csv = new StringWriter();
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(workers);
+				CsvFileCreator csvCreator = new CsvFileCreator(csv) ){
+			analyzer.setVerbose( false );
+			analyzer.setReaders( readers );
+			analyzer.setStreaming( streaming );
+			analyzer.analyze( jar.getPath(), csvCreator );
+		}
+		return csv.toString();
+	}
+
+	// A jar of entries with name, content and whether it is stored
+	private static byte[] bytes( List<Object[]> entries ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try( ZipOutputStream out = new ZipOutputStream(bytes) ){
+			for( Object[] e : entries ){
+				final ZipEntry entry = new ZipEntry( (String)e[0] );
+				final byte[] content = (byte[])e[1];
+				if( (Boolean)e[2] ){
+					final CRC32 crc = new CRC32();
+					crc.update( content );
+					entry.setMethod( ZipEntry.STORED );
+					entry.setSize( content.length );
+					entry.setCompressedSize( content.length );
+					entry.setCrc( crc.getValue() );
+				}
+				out.putNextEntry( entry );
+				out.write( content );
+				out.closeEntry();
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
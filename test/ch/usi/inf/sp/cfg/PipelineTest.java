@@ -0,0 +1,163 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the reader/worker/writer pipeline of ParallelJarAnalyzer
+ * writes the same csv rows, statistics store, graphs and histograms as
+ * a single worker without readers, for any number of readers and
+ * workers and any queue capacity, down to a single class in flight.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class PipelineTest {
+
+	private static final int[] READERS = { 0, 1, 2, 5 };
+	private static final int[] QUEUE_CAPACITIES = { 1, 2, 3, 17, 1000 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String[] jars;
+
+	/**
+	 * The outputs of a run
+	 */
+	private static final class Run {
+		String csv;
+		String dot;
+		byte[] statsStore;
+		byte[] cfgStore;
+		String summary;
+	}
+
+	@Before
+	public void writeJars() throws IOException {
+		// The classes of a nested jar are read by the readers as well
+		final File fat = folder.newFile( "fat.jar" );
+		try( ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(fat)) ){
+			zip.putNextEntry( new ZipEntry("lib/asm.jar") );
+			zip.write( Files.readAllBytes(new File("lib/asm-5.0.4.jar").toPath()) );
+			zip.closeEntry();
+		}
+		jars = new String[]{ "lib/asm-5.0.4.jar", fat.getPath() };
+	}
+
+	@Test
+	public void sameAsSingleStage() throws IOException {
+		final Run single = run( 1, 0, 0 );
+		for( int workers : new int[]{ 1, 3 } ){
+			for( int readers : READERS ){
+				for( int capacity : QUEUE_CAPACITIES ){
+					final String name = workers + " workers, " + readers + " readers, queue " + capacity;
+					final Run run = run( workers, readers, capacity );
+					assertEquals( name, single.csv, run.csv );
+					assertEquals( name, single.dot, run.dot );
+					assertArrayEquals( name, single.statsStore, run.statsStore );
+					assertArrayEquals( name, single.cfgStore, run.cfgStore );
+					assertEquals( name, single.summary, run.summary );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void streamingSameAsSingleStage() throws IOException {
+		final Run single = streamingRun( 1, 0, 0 );
+		for( int readers : READERS ){
+			for( int capacity : QUEUE_CAPACITIES ){
+				final Run run = streamingRun( 3, readers, capacity );
+				assertEquals( readers + " readers, queue " + capacity, single.csv, run.csv );
+				assertArrayEquals( readers + " readers, queue " + capacity, single.statsStore, run.statsStore );
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeReaders(){
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(1) ){
+			analyzer.setReaders( -1 );
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyQueue(){
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(1) ){
+			analyzer.setQueueCapacity( 0 );
+		}
+	}
+
+	/**
+	 * @param capacity The queue capacity, 0 for the default
+	 */
+	private Run run( int workers, int readers, int capacity ) throws IOException {
+		final Run run = new Run();
+		final File statsStore = folder.newFile();
+		final File cfgStore = folder.newFile();
+		final StringWriter csv = new StringWriter();
+		final StringWriter dot = new StringWriter();
+		final StatisticsAggregator aggregator = new StatisticsAggregator();
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(workers);
+				CsvFileCreator csvCreator = new CsvFileCreator(csv);
+				StatsStoreWriter statsStoreWriter = new StatsStoreWriter(statsStore.getPath());
+				CfgStoreWriter cfgStoreWriter = new CfgStoreWriter(cfgStore.getPath()) ){
+			configure( analyzer, readers, capacity );
+			analyzer.setStatsStore( statsStoreWriter );
+			analyzer.setCfgStore( cfgStoreWriter );
+			analyzer.setDot( dot );
+			analyzer.setAggregator( aggregator );
+			for( String jar : jars ){
+				analyzer.analyze( jar, csvCreator );
+			}
+		}
+		run.csv = csv.toString();
+		run.dot = dot.toString();
+		run.statsStore = Files.readAllBytes( statsStore.toPath() );
+		run.cfgStore = Files.readAllBytes( cfgStore.toPath() );
+		final StringWriter summary = new StringWriter();
+		aggregator.writeSummary( summary );
+		run.summary = summary.toString();
+		return run;
+	}
+
+	private Run streamingRun( int workers, int readers, int capacity ) throws IOException {
+		final Run run = new Run();
+		final File statsStore = folder.newFile();
+		final StringWriter csv = new StringWriter();
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(workers);
+				CsvFileCreator csvCreator = new CsvFileCreator(csv);
+				StatsStoreWriter statsStoreWriter = new StatsStoreWriter(statsStore.getPath()) ){
+			configure( analyzer, readers, capacity );
+			analyzer.setStreaming( true );
+			analyzer.setStatsStore( statsStoreWriter );
+			for( String jar : jars ){
+				analyzer.analyze( jar, csvCreator );
+			}
+		}
+		run.csv = csv.toString();
+		run.statsStore = Files.readAllBytes( statsStore.toPath() );
+		return run;
+	}
+
+	private static void configure( ParallelJarAnalyzer analyzer, int readers, int capacity ){
+		analyzer.setVerbose( false );
+		analyzer.setReaders( readers );
+		if( capacity > 0 ){
+			analyzer.setQueueCapacity( capacity );
+		}
+	}
+}
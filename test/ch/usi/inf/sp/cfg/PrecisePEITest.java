@@ -0,0 +1,228 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Checks the exception edges of the precise PEI model: only a block
+ * whose last instruction is a PEI has them, returns being PEIs only in
+ * synchronized methods. MONITORENTER and MONITOREXIT throw
+ * NullPointerException in any method, so they are PEIs in all of them.
+ * The original model, where every return is a PEI, is checked as well.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class PrecisePEITest {
+
+	@Test
+	public void asmJar() throws IOException {
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					assertExceptionEdges( Arrays.copyOf(jar.read(e), jar.getEntrySize(e)) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void exampleClass() throws IOException {
+		try( InputStream is = PrecisePEITest.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+			assertExceptionEdges( new ClassReader(is).b );
+		}
+	}
+
+	@Test
+	public void randomMethods(){
+		final Random random = new Random( 7 );
+		for( int c = 0; c < 300; c++ ){
+			final MethodNode[] methods = new MethodNode[4];
+			for( int m = 0; m < methods.length; m++ ){
+				methods[m] = StreamingCfgExtractorTest.randomMethod( random, "m" + m );
+			}
+			assertExceptionEdges( StreamingCfgExtractorTest.classWith(methods) );
+		}
+	}
+
+	/**
+	 * A return inside a try range reaches the handler only if the method
+	 * is synchronized, a monitor instruction in any case
+	 */
+	@Test
+	public void returnsAndMonitors(){
+		for( boolean synchronizedMethod : new boolean[]{ false, true } ){
+			final byte[] bytes = StreamingCfgExtractorTest.classWith( guardedMethod(synchronizedMethod) );
+			final ClassNode clazz = new ClassNode();
+			new ClassReader( bytes ).accept( clazz, 0 );
+			final MethodNode method = (MethodNode)clazz.methods.get( 0 );
+			final ControlFlowGraph graph = createCFG( clazz, method, true );
+			final int handler = handlerBlock( graph, method );
+			int checked = 0;
+			for( int b = 1; b < graph.getBasicBlockCount() - 1; b++ ){
+				final AbstractInsnNode last = lastInstruction( graph.getBasicBlock(b) );
+				if( last == null ){
+					continue;
+				}
+				final boolean toHandler = graph.findEdge( b, handler ) >= 0 &&
+						graph.getEdgeKind( graph.findEdge(b, handler) ) == ControlFlowGraph.EDGE_EXCEPTION;
+				if( last.getOpcode() == Opcodes.MONITORENTER || last.getOpcode() == Opcodes.MONITOREXIT ){
+					assertTrue( toHandler );
+					checked++;
+				}else if( last.getOpcode() == Opcodes.IRETURN && b < handler ){
+					assertEquals( "synchronized " + synchronizedMethod, synchronizedMethod, toHandler );
+					checked++;
+				}
+			}
+			assertEquals( 4, checked );
+			// The original model does not look at the access flags
+			final ControlFlowGraph original = createCFG( clazz, method, false );
+			assertTrue( original.getExceptionEdgeCount() > graph.getExceptionEdgeCount() || synchronizedMethod );
+		}
+	}
+
+	/**
+	 * The option of extractStatistics selects the same model as
+	 * setPrecisePEI
+	 */
+	@Test
+	public void extractionOption() throws IOException {
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( !jar.getEntryName(e).endsWith(".class") ){
+					continue;
+				}
+				final ClassReader cr = new ClassReader( Arrays.copyOf(jar.read(e), jar.getEntrySize(e)) );
+				final ClassNode clazz = new ClassNode();
+				cr.accept( clazz, 0 );
+				for( boolean precise : new boolean[]{ false, true } ){
+					final List<ControlFlowGraph> graphs = new ArrayList<>();
+					ControlFlowGraphExtractor.extractStatistics( cr, "asm.jar", new ExtractionOptions()
+							.parsingOptions(precise ? ControlFlowGraphExtractor.PRECISE_PEI : 0).graphConsumer(graphs::add) );
+					for( int m = 0; m < graphs.size(); m++ ){
+						final ControlFlowGraph expected = createCFG( clazz, (MethodNode)clazz.methods.get(m), precise );
+						assertEquals( expected.getExceptionEdgeCount(), graphs.get(m).getExceptionEdgeCount() );
+						assertEquals( expected.getBasicBlockCount(), graphs.get(m).getBasicBlockCount() );
+					}
+				}
+			}
+		}
+	}
+
+	// In both models, a block has exception edges only if its last instruction is a PEI
+	private static void assertExceptionEdges( byte[] bytes ){
+		final ClassNode clazz = new ClassNode();
+		new ClassReader( bytes ).accept( clazz, 0 );
+		for( Object m : clazz.methods ){
+			final MethodNode method = (MethodNode)m;
+			final ControlFlowGraph original = createCFG( clazz, method, false );
+			for( boolean precise : new boolean[]{ false, true } ){
+				final ControlFlowGraph graph = precise ? createCFG( clazz, method, true ) : original;
+				for( int b = 1; b < graph.getBasicBlockCount() - 1; b++ ){
+					final AbstractInsnNode last = lastInstruction( graph.getBasicBlock(b) );
+					final String name = clazz.name + "." + method.name + method.desc + " B" + b +
+							(precise ? " precise" : "");
+					if( !hasExceptionEdge(graph, b) ){
+						// A PEI has none if its handlers are also its successors, e.g. a return without handlers
+						assertTrue( name, last == null || last.getOpcode() != Opcodes.ATHROW );
+						continue;
+					}
+					assertTrue( name, precise ? OpcodeTable.isPEI(last.getOpcode(), method.access)
+							: OpcodeTable.isPEI(last.getOpcode()) );
+					if( precise && OpcodeTable.isReturn(last.getOpcode()) ){
+						assertTrue( name, (method.access & Opcodes.ACC_SYNCHRONIZED) != 0 );
+					}
+				}
+				assertTrue( graph.getExceptionEdgeCount() <= original.getExceptionEdgeCount() );
+			}
+		}
+	}
+
+	private static ControlFlowGraph createCFG( ClassNode clazz, MethodNode method, boolean precise ){
+		final ControlFlowGraphExtractor extractor = new ControlFlowGraphExtractor();
+		extractor.setPrecisePEI( precise );
+		return extractor.createCFG( clazz.name, method );
+	}
+
+	private static boolean hasExceptionEdge( ControlFlowGraph graph, int block ){
+		for( int e = graph.getEdgeStart(block); e < graph.getEdgeEnd(block); e++ ){
+			if( graph.getEdgeKind(e) == ControlFlowGraph.EDGE_EXCEPTION ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The last instruction of a block that is not a label, line number or frame
+	private static AbstractInsnNode lastInstruction( BasicBlock block ){
+		for( int i = block.getInstructionLenght() - 1; i >= 0; i-- ){
+			if( block.getInstruction(i).getOpcode() != -1 ){
+				return block.getInstruction( i );
+			}
+		}
+		return null;
+	}
+
+	private static int handlerBlock( ControlFlowGraph graph, MethodNode method ){
+		final int address = method.instructions.indexOf( ((TryCatchBlockNode)method.tryCatchBlocks.get(0)).handler );
+		for( int b = 1; b < graph.getBasicBlockCount() - 1; b++ ){
+			if( graph.getBasicBlock(b).getBBAddress() == address ){
+				return b;
+			}
+		}
+		throw new AssertionError( "No handler block" );
+	}
+
+	/**
+	 * if( x == 0 ) return 1; monitorenter; monitorexit; return 2, all in a
+	 * try range; the handler returns 3
+	 */
+	@SuppressWarnings("unchecked")
+	private static MethodNode guardedMethod( boolean synchronizedMethod ){
+		final int access = Opcodes.ACC_STATIC | (synchronizedMethod ? Opcodes.ACC_SYNCHRONIZED : 0);
+		final MethodNode method = new MethodNode( access, "guarded", "(ILjava/lang/Object;)I", null, null );
+		final LabelNode start = new LabelNode();
+		final LabelNode nonZero = new LabelNode();
+		final LabelNode end = new LabelNode();
+		final LabelNode handler = new LabelNode();
+		method.instructions.add( start );
+		method.instructions.add( new VarInsnNode(Opcodes.ILOAD, 0) );
+		method.instructions.add( new JumpInsnNode(Opcodes.IFNE, nonZero) );
+		method.instructions.add( new InsnNode(Opcodes.ICONST_1) );
+		method.instructions.add( new InsnNode(Opcodes.IRETURN) );
+		method.instructions.add( nonZero );
+		method.instructions.add( new VarInsnNode(Opcodes.ALOAD, 1) );
+		method.instructions.add( new InsnNode(Opcodes.MONITORENTER) );
+		method.instructions.add( new VarInsnNode(Opcodes.ALOAD, 1) );
+		method.instructions.add( new InsnNode(Opcodes.MONITOREXIT) );
+		method.instructions.add( new InsnNode(Opcodes.ICONST_2) );
+		method.instructions.add( new InsnNode(Opcodes.IRETURN) );
+		method.instructions.add( end );
+		method.instructions.add( handler );
+		method.instructions.add( new InsnNode(Opcodes.POP) );
+		method.instructions.add( new InsnNode(Opcodes.ICONST_3) );
+		method.instructions.add( new InsnNode(Opcodes.IRETURN) );
+		method.tryCatchBlocks.add( new TryCatchBlockNode(start, end, handler, null) );
+		method.maxStack = 2;
+		method.maxLocals = 2;
+		return method;
+	}
+}
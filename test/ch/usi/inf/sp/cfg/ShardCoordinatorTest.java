@@ -0,0 +1,307 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a ShardCoordinator with a stub Launcher, that runs the JarToCfg
+ * workers in this process, fails some of them and makes them finish
+ * in any order; the merged csv file, statistics store and histograms
+ * must be those of a single process.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class ShardCoordinatorTest {
+
+	private static final int SHARDS = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> jars = new ArrayList<>();
+	private PrintStream out;
+
+	@Before
+	public void writeJars() throws IOException {
+		jars.add( "lib/asm-5.0.4.jar" );
+		// A second jar, with a nested jar
+		final File fat = folder.newFile( "fat.jar" );
+		try( ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(fat)) ){
+			zip.putNextEntry( new ZipEntry("BOOT-INF/lib/asm.jar") );
+			zip.write( Files.readAllBytes(new File("lib/asm-5.0.4.jar").toPath()) );
+			zip.closeEntry();
+		}
+		jars.add( fat.getPath() );
+		// The workers print every class
+		out = System.out;
+		System.setOut( new PrintStream(new ByteArrayOutputStream()) );
+	}
+
+	@After
+	public void restoreOut(){
+		System.setOut( out );
+	}
+
+	/**
+	 * Shard 1 fails once, shard 0 finishes last
+	 */
+	@Test
+	public void sameAsSingleProcess() throws IOException {
+		final Results single = singleProcess();
+
+		final List<Integer> finished = Collections.synchronizedList( new ArrayList<Integer>() );
+		final ConcurrentHashMap<Integer, AtomicInteger> launches = new ConcurrentHashMap<>();
+		final CountDownLatch othersDone = new CountDownLatch( SHARDS - 1 );
+		final Results sharded = sharded( 2, new StubLauncher() {
+			@Override
+			int run( int shard, int attempt, String[] args ) throws Exception {
+				launches.computeIfAbsent( shard, s -> new AtomicInteger() ).incrementAndGet();
+				if( shard == 0 ){
+					othersDone.await();
+				}
+				JarToCfg.main( args );
+				if( shard == 1 && attempt == 0 ){
+					return 1; // After writing its output, which must not be merged
+				}
+				finished.add( shard );
+				if( shard != 0 ){
+					othersDone.countDown();
+				}
+				return 0;
+			}
+		});
+
+		assertTrue( single.csv.split("\n").length > 700 );
+		assertEquals( SHARDS, finished.size() );
+		assertEquals( Integer.valueOf(0), finished.get(SHARDS - 1) );
+		assertEquals( 2, launches.get(1).get() );
+		assertEquals( 1, launches.get(0).get() );
+		assertEquals( single.csv, sharded.csv );
+		assertArrayEquals( single.statsStore, sharded.statsStore );
+		assertArrayEquals( single.histograms, sharded.histograms );
+		assertEquals( single.summary, sharded.summary );
+	}
+
+	@Test
+	public void givesUpAfterRetries() throws IOException {
+		final AtomicInteger launches = new AtomicInteger();
+		try{
+			sharded( 2, new StubLauncher() {
+				@Override
+				int run( int shard, int attempt, String[] args ) throws Exception {
+					if( shard == 2 ){
+						assertEquals( launches.getAndIncrement(), attempt );
+						return 3;
+					}
+					JarToCfg.main( args );
+					return 0;
+				}
+			});
+			fail( "Shard 2 never succeeds" );
+		}catch( IOException e ){
+			assertTrue( e.getMessage(), e.getMessage().startsWith("Shard 2 failed 3 times, exit code 3") );
+		}
+		assertEquals( 3, launches.get() );
+	}
+
+	/**
+	 * A worker that crashes before writing anything is retried as well
+	 */
+	@Test
+	public void crashBeforeOutput() throws IOException {
+		final Results single = singleProcess();
+		final Results sharded = sharded( 1, new StubLauncher() {
+			@Override
+			int run( int shard, int attempt, String[] args ) throws Exception {
+				if( attempt == 0 ){
+					throw new OutOfMemoryError( "Simulated" );
+				}
+				JarToCfg.main( args );
+				return 0;
+			}
+		});
+		assertEquals( single.csv, sharded.csv );
+		assertArrayEquals( single.statsStore, sharded.statsStore );
+	}
+
+	/**
+	 * The outputs of a run
+	 */
+	private static final class Results {
+		String csv;
+		byte[] statsStore;
+		byte[] histograms;
+		String summary;
+	}
+
+	private Results singleProcess() throws IOException {
+		final Results results = new Results();
+		final File statsStore = folder.newFile();
+		final StringWriter csv = new StringWriter();
+		final StatisticsAggregator aggregator = new StatisticsAggregator();
+		try( ParallelJarAnalyzer analyzer = new ParallelJarAnalyzer(2);
+				CsvFileCreator csvCreator = new CsvFileCreator(csv);
+				StatsStoreWriter statsStoreWriter = new StatsStoreWriter(statsStore.getPath()) ){
+			analyzer.setVerbose( false );
+			analyzer.setDeduplicate( true );
+			analyzer.setStatsStore( statsStoreWriter );
+			analyzer.setAggregator( aggregator );
+			for( String jar : jars ){
+				analyzer.analyze( new File(jar).getAbsolutePath(), csvCreator );
+			}
+		}
+		results.csv = csv.toString();
+		results.statsStore = Files.readAllBytes( statsStore.toPath() );
+		results.histograms = histograms( aggregator );
+		results.summary = summary( aggregator );
+		return results;
+	}
+
+	private Results sharded( int retries, ShardCoordinator.Launcher launcher ) throws IOException {
+		final Results results = new Results();
+		final File statsStore = folder.newFile();
+		final StringWriter csv = new StringWriter();
+		final StatisticsAggregator aggregator = new StatisticsAggregator();
+		final ShardCoordinator coordinator = new ShardCoordinator( jars, folder.newFolder() );
+		coordinator.setWorkers( SHARDS );
+		coordinator.setShards( SHARDS );
+		coordinator.setRetries( retries );
+		coordinator.setLauncher( launcher );
+		coordinator.setWorkerOptions( Arrays.asList("-threads", "2") );
+		coordinator.setAggregator( aggregator );
+		try( CsvFileCreator csvCreator = new CsvFileCreator(csv);
+				StatsStoreWriter statsStoreWriter = new StatsStoreWriter(statsStore.getPath()) ){
+			coordinator.setStatsStore( statsStoreWriter );
+			coordinator.analyze( csvCreator );
+		}
+		results.csv = csv.toString();
+		results.statsStore = Files.readAllBytes( statsStore.toPath() );
+		results.histograms = histograms( aggregator );
+		results.summary = summary( aggregator );
+		return results;
+	}
+
+	private static byte[] histograms( StatisticsAggregator aggregator ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		aggregator.write( new DataOutputStream(bytes) );
+		return bytes.toByteArray();
+	}
+
+	private static String summary( StatisticsAggregator aggregator ) throws IOException {
+		final StringWriter summary = new StringWriter();
+		aggregator.writeSummary( summary );
+		return summary.toString();
+	}
+
+	/**
+	 * Runs the workers on threads of this process, instead of starting JVMs
+	 */
+	private abstract static class StubLauncher implements ShardCoordinator.Launcher {
+		private final ConcurrentHashMap<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+		/**
+		 * @return The exit code of the worker of a shard
+		 * @param attempt 0 the first time the shard is launched
+		 * @param args The arguments of JarToCfg
+		 */
+		abstract int run( int shard, int attempt, String[] args ) throws Exception;
+
+		@Override
+		public Process launch( List<String> command, File log ) throws IOException {
+			final int main = command.indexOf( JarToCfg.class.getName() );
+			final String[] args = command.subList( main + 1, command.size() ).toArray( new String[0] );
+			final String directory = args[Arrays.asList(args).indexOf("-shard") + 3];
+			final int shard = Integer.parseInt( directory.substring(directory.lastIndexOf("shard-") + 6) );
+			final int attempt = attempts.computeIfAbsent( shard, s -> new AtomicInteger() ).getAndIncrement();
+			// The output of a failed attempt has been deleted
+			assertFalse( new File(directory, CsvFileCreator.outfname).exists() );
+			final CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+			final Thread worker = new Thread( () -> {
+				try{
+					exitCode.complete( run(shard, attempt, args) );
+				}catch( Throwable e ){
+					exitCode.completeExceptionally( e );
+				}
+			}, "worker-" + shard );
+			worker.setDaemon( true );
+			worker.start();
+			return new StubProcess( exitCode );
+		}
+	}
+
+	private static final class StubProcess extends Process {
+		private final CompletableFuture<Integer> exitCode;
+
+		StubProcess( CompletableFuture<Integer> exitCode ){
+			this.exitCode = exitCode;
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			try{
+				return exitCode.get();
+			}catch( ExecutionException e ){
+				return 1; // Crashed
+			}
+		}
+
+		@Override
+		public int exitValue(){
+			if( !exitCode.isDone() ){
+				throw new IllegalThreadStateException();
+			}
+			return exitCode.isCompletedExceptionally() ? 1 : exitCode.join();
+		}
+
+		@Override
+		public void destroy(){
+		}
+
+		@Override
+		public OutputStream getOutputStream(){
+			return new ByteArrayOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream(){
+			return new ByteArrayInputStream( new byte[0] );
+		}
+
+		@Override
+		public InputStream getErrorStream(){
+			return new ByteArrayInputStream( new byte[0] );
+		}
+	}
+}
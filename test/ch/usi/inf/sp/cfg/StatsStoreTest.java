@@ -0,0 +1,133 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Writes the statistics of lib/asm-5.0.4.jar with a StatsStoreWriter,
+ * and checks that a StatsStoreReader reads them back unchanged, by row
+ * group and by column.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class StatsStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<MethodStatistics> asmStatistics() throws IOException {
+		final List<MethodStatistics> statistics = new ArrayList<>();
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					statistics.addAll( ControlFlowGraphExtractor.extractStatistics(
+							new ClassReader(jar.read(e), 0, jar.getEntrySize(e)), "asm-5.0.4.jar") );
+				}
+			}
+		}
+		return statistics;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		final List<MethodStatistics> statistics = asmStatistics();
+		final File store = folder.newFile( "stats.bin" );
+		// Small groups, the last one partial
+		final int groupSize = 100;
+		try( StatsStoreWriter writer = new StatsStoreWriter(store.getPath(), groupSize) ){
+			writer.write( statistics.get(0) );
+			writer.write( statistics.subList(1, statistics.size()) );
+			assertEquals( statistics.size(), writer.getRowCount() );
+		}
+
+		try( StatsStoreReader reader = new StatsStoreReader(store.getPath()) ){
+			assertEquals( statistics.size(), reader.getRowCount() );
+			assertEquals( (statistics.size() + groupSize - 1) / groupSize, reader.getRowGroupCount() );
+			final List<MethodStatistics> read = new ArrayList<>();
+			int[] values = null;
+			for( int g = 0; g < reader.getRowGroupCount(); g++ ){
+				final int first = read.size();
+				read.addAll( reader.readRowGroup(g) );
+				assertEquals( reader.getRowCount(g), read.size() - first );
+				for( int c = 0; c < StatsStoreWriter.COLUMNS; c++ ){
+					values = reader.readColumn( g, c, values );
+					for( int r = 0; r < reader.getRowCount(g); r++ ){
+						final MethodStatistics row = statistics.get( first + r );
+						if( StatsStoreWriter.isStringColumn(c) ){
+							assertEquals( stringValue(row, c), reader.getString(values[r]) );
+						}else{
+							assertEquals( intValue(row, c), values[r] );
+						}
+					}
+				}
+			}
+			assertEquals( statistics.size(), read.size() );
+			for( int r = 0; r < statistics.size(); r++ ){
+				for( int c = 0; c < StatsStoreWriter.COLUMNS; c++ ){
+					if( StatsStoreWriter.isStringColumn(c) ){
+						assertEquals( "row " + r, stringValue(statistics.get(r), c), stringValue(read.get(r), c) );
+					}else{
+						assertEquals( "row " + r, intValue(statistics.get(r), c), intValue(read.get(r), c) );
+					}
+				}
+			}
+			assertEquals( csv(statistics), csv(read) );
+		}
+	}
+
+	@Test
+	public void empty() throws IOException {
+		final File store = folder.newFile( "stats.bin" );
+		new StatsStoreWriter( store.getPath() ).close();
+		try( StatsStoreReader reader = new StatsStoreReader(store.getPath()) ){
+			assertEquals( 0, reader.getRowCount() );
+			assertEquals( 0, reader.getRowGroupCount() );
+		}
+	}
+
+	@Test
+	public void columnNames(){
+		for( int c = 0; c < StatsStoreWriter.COLUMNS; c++ ){
+			assertEquals( c, StatsStoreWriter.findColumn(StatsStoreWriter.COLUMN_NAMES[c]) );
+		}
+		assertEquals( -1, StatsStoreWriter.findColumn("noSuchColumn") );
+	}
+
+	private static String stringValue( MethodStatistics row, int column ){
+		switch( column ){
+		case StatsStoreWriter.BENCHMARK: return row.getBenchmark();
+		case StatsStoreWriter.PACKAGE: return row.getPackageName();
+		case StatsStoreWriter.CLASS: return row.getClassName();
+		default: return row.getMethodName();
+		}
+	}
+
+	private static int intValue( MethodStatistics row, int column ){
+		switch( column ){
+		case StatsStoreWriter.ACCESS: return row.getAccess();
+		case StatsStoreWriter.INSTRUCTIONS: return row.getInstructionsCount();
+		case StatsStoreWriter.BLOCKS: return row.getBasicBlocksCount();
+		case StatsStoreWriter.DOMINATOR_TREE_HEIGHT: return row.getDominatorTreeHeight();
+		case StatsStoreWriter.LOOPS: return row.getLoopCount();
+		default: return row.getMaxLoopDepth();
+		}
+	}
+
+	private static String csv( List<MethodStatistics> statistics ) throws IOException {
+		final StringWriter out = new StringWriter();
+		try( CsvFileCreator csv = new CsvFileCreator(out) ){
+			csv.writeCsvStatistics( statistics );
+		}
+		return out.toString();
+	}
+}
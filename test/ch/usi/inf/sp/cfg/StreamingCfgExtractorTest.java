@@ -0,0 +1,267 @@
+package ch.usi.inf.sp.cfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Checks StreamingCfgExtractor against ControlFlowGraphExtractor, the
+ * reference: same blocks, same edges in the same order, and same
+ * statistics, for every method of lib/asm-5.0.4.jar and ExampleClass,
+ * with and without debug information and in both PEI models. Also on
+ * methods written by the test, with exception handlers that start in
+ * the middle of straight-line code, as other compilers emit.
+ *
+ * @author Eric Botter, Lorenzo Ferretti, Giacomo Del Rio
+ */
+public class StreamingCfgExtractorTest {
+
+	private static final int[] PARSING_OPTIONS = { 0, StreamingCfgExtractor.STATISTICS_PARSING_OPTIONS };
+
+	@Test
+	public void asmJar() throws IOException {
+		int methods = 0;
+		try( MappedJarFile jar = new MappedJarFile("lib/asm-5.0.4.jar") ){
+			for( int e = 0; e < jar.size(); e++ ){
+				if( jar.getEntryName(e).endsWith(".class") ){
+					methods += assertSameInAllModes( Arrays.copyOf(jar.read(e), jar.getEntrySize(e)) );
+				}
+			}
+		}
+		assertTrue( methods > 300 );
+	}
+
+	@Test
+	public void exampleClass() throws IOException {
+		try( InputStream is = StreamingCfgExtractorTest.class.getClassLoader().getResourceAsStream("ExampleClass.class") ){
+			final ClassWriter writer = new ClassWriter( 0 );
+			new ClassReader( is ).accept( writer, 0 );
+			assertSameInAllModes( writer.toByteArray() );
+		}
+	}
+
+	/**
+	 * A handler that is also reached by falling through, so that nothing
+	 * but the handler makes it start a block
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void handlerInsideBlock(){
+		final MethodNode method = new MethodNode( Opcodes.ACC_STATIC, "handlerInsideBlock", "(II)I", null, null );
+		final LabelNode start = new LabelNode();
+		final LabelNode end = new LabelNode();
+		final LabelNode handler = new LabelNode();
+		method.instructions.add( start );
+		method.instructions.add( new VarInsnNode(Opcodes.ILOAD, 0) );
+		method.instructions.add( new VarInsnNode(Opcodes.ILOAD, 1) );
+		method.instructions.add( new InsnNode(Opcodes.IDIV) );
+		method.instructions.add( new VarInsnNode(Opcodes.ISTORE, 2) );
+		method.instructions.add( end );
+		method.instructions.add( new IincInsnNode(2, 1) );
+		method.instructions.add( handler );
+		method.instructions.add( new VarInsnNode(Opcodes.ILOAD, 2) );
+		method.instructions.add( new InsnNode(Opcodes.IRETURN) );
+		method.tryCatchBlocks.add( new TryCatchBlockNode(start, end, handler, "java/lang/ArithmeticException") );
+		method.maxStack = 2;
+		method.maxLocals = 3;
+		final byte[] bytes = classWith( method );
+		assertSameInAllModes( bytes );
+
+		// The handler starts a block in both engines
+		final int handlerIndex = method.instructions.indexOf( handler );
+		for( int[] leaders : new int[][]{ streamingGraph(bytes, 0, false)[0], treeLeaders(bytes) } ){
+			assertTrue( Arrays.toString(leaders), Arrays.binarySearch(leaders, handlerIndex) >= 0 );
+		}
+	}
+
+	/**
+	 * Random methods with jumps, switches, PEIs and try ranges whose
+	 * handlers start anywhere
+	 */
+	@Test
+	public void randomMethods(){
+		final Random random = new Random( 5 );
+		for( int c = 0; c < 300; c++ ){
+			final MethodNode[] methods = new MethodNode[4];
+			for( int m = 0; m < methods.length; m++ ){
+				methods[m] = randomMethod( random, "m" + m );
+			}
+			assertSameInAllModes( classWith(methods) );
+		}
+	}
+
+	/**
+	 * @return The number of methods checked
+	 */
+	private static int assertSameInAllModes( byte[] bytes ){
+		int methods = 0;
+		for( int parsingOptions : PARSING_OPTIONS ){
+			for( boolean precisePEI : new boolean[]{ false, true } ){
+				methods += assertSame( bytes, parsingOptions, precisePEI );
+			}
+		}
+		return methods / 4;
+	}
+
+	private static int assertSame( byte[] bytes, int parsingOptions, boolean precisePEI ){
+		final ClassReader cr = new ClassReader( bytes );
+		final ClassNode clazz = new ClassNode();
+		cr.accept( clazz, parsingOptions );
+		final StreamingCfgExtractor streaming = new StreamingCfgExtractor( "test" );
+		streaming.setPrecisePEI( precisePEI );
+		streaming.keepGraphs();
+		cr.accept( streaming, parsingOptions );
+		final ControlFlowGraphExtractor extractor = new ControlFlowGraphExtractor();
+		extractor.setPrecisePEI( precisePEI );
+
+		@SuppressWarnings("unchecked")
+		final List<MethodNode> methods = clazz.methods;
+		assertEquals( methods.size(), streaming.getStatistics().size() );
+		for( int m = 0; m < methods.size(); m++ ){
+			final MethodNode method = methods.get( m );
+			final String name = clazz.name + "." + method.name + method.desc + " options " + parsingOptions +
+					(precisePEI ? " precise" : "");
+			final ControlFlowGraph graph = extractor.createCFG( clazz.name, method );
+			final int[][] streamed = streaming.getGraph( m );
+			final int blocks = graph.getBasicBlockCount();
+
+			assertEquals( name, blocks - 2, streamed[0].length );
+			for( int b = 1; b < blocks - 1; b++ ){
+				assertEquals( name, graph.getBasicBlock(b).getBBAddress(), streamed[0][b - 1] );
+			}
+			for( int b = 0; b < blocks; b++ ){
+				assertEquals( name, graph.getEdgeStart(b), streamed[1][b] );
+				assertEquals( name, graph.getEdgeEnd(b), streamed[1][b + 1] );
+			}
+			final int[] targets = new int[graph.getEdgeCount()];
+			for( int e = 0; e < targets.length; e++ ){
+				targets[e] = graph.getEdgeTarget( e );
+			}
+			assertArrayEquals( name, targets, streamed[2] );
+			assertEquals( name, graph.getEdgeCount(), streaming.getEdgeCount(m) );
+			assertEquals( name, graph.getExceptionEdgeCount(), streaming.getExceptionEdgeCount(m) );
+
+			final MethodStatistics statistics = streaming.getStatistics().get( m );
+			final LoopAnalysis loops = new LoopAnalysis( graph );
+			assertEquals( name, method.name, statistics.getMethodName() );
+			assertEquals( name, method.access, statistics.getAccess() );
+			assertEquals( name, method.instructions.size(), statistics.getInstructionsCount() );
+			assertEquals( name, blocks - 2, statistics.getBasicBlocksCount() );
+			assertEquals( name, new DominatorTree(graph).getHeight(), statistics.getDominatorTreeHeight() );
+			assertEquals( name, loops.getLoopCount(), statistics.getLoopCount() );
+			assertEquals( name, loops.getMaxDepth(), statistics.getMaxLoopDepth() );
+		}
+		return methods.size();
+	}
+
+	private static int[][] streamingGraph( byte[] bytes, int parsingOptions, boolean precisePEI ){
+		final StreamingCfgExtractor streaming = new StreamingCfgExtractor( "test" );
+		streaming.setPrecisePEI( precisePEI );
+		streaming.keepGraphs();
+		new ClassReader( bytes ).accept( streaming, parsingOptions );
+		return streaming.getGraph( 0 );
+	}
+
+	// The addresses of the blocks of the first method, by ControlFlowGraphExtractor
+	private static int[] treeLeaders( byte[] bytes ){
+		final ClassNode clazz = new ClassNode();
+		new ClassReader( bytes ).accept( clazz, 0 );
+		final ControlFlowGraph graph = new ControlFlowGraphExtractor().createCFG( clazz.name, (MethodNode)clazz.methods.get(0) );
+		final int[] leaders = new int[graph.getBasicBlockCount() - 2];
+		for( int b = 0; b < leaders.length; b++ ){
+			leaders[b] = graph.getBasicBlock( b + 1 ).getBBAddress();
+		}
+		return leaders;
+	}
+
+	/**
+	 * @return A static method, synchronized or not, with jumps, switches,
+	 * PEIs and try ranges whose handlers start anywhere
+	 */
+	@SuppressWarnings("unchecked")
+	static MethodNode randomMethod( Random random, String name ){
+		final int access = Opcodes.ACC_STATIC | (random.nextBoolean() ? Opcodes.ACC_SYNCHRONIZED : 0);
+		final MethodNode method = new MethodNode( access, name, "(I)I", null, null );
+		final int size = 2 + random.nextInt( 30 );
+		// A label before every instruction, and one at the end
+		final LabelNode[] labels = new LabelNode[size + 1];
+		for( int l = 0; l <= size; l++ ){
+			labels[l] = new LabelNode();
+		}
+		for( int i = 0; i < size; i++ ){
+			method.instructions.add( labels[i] );
+			method.instructions.add( i == size - 1 ? new InsnNode(Opcodes.IRETURN) : randomInstruction(random, labels, size) );
+		}
+		method.instructions.add( labels[size] );
+		for( int t = random.nextInt( 4 ); t > 0; t-- ){
+			final int start = random.nextInt( size );
+			final int end = start + 1 + random.nextInt( size - start );
+			method.tryCatchBlocks.add( new TryCatchBlockNode(labels[start], labels[end], labels[random.nextInt(size)],
+					random.nextBoolean() ? null : "java/lang/RuntimeException") );
+		}
+		method.maxStack = 10;
+		method.maxLocals = 2;
+		return method;
+	}
+
+	private static AbstractInsnNode randomInstruction( Random random, LabelNode[] labels, int size ){
+		switch( random.nextInt(12) ){
+		case 0: return new InsnNode( Opcodes.NOP );
+		case 1: return new VarInsnNode( Opcodes.ILOAD, 0 );
+		case 2: return new IincInsnNode( 1, 1 );
+		case 3: return new InsnNode( Opcodes.IDIV );
+		case 4: return new FieldInsnNode( Opcodes.GETFIELD, "Synthetic", "f", "I" );
+		case 5: return new MethodInsnNode( Opcodes.INVOKESTATIC, "Synthetic", "m0", "(I)I", false );
+		case 6: return new JumpInsnNode( Opcodes.IFEQ, labels[random.nextInt(size)] );
+		case 7: return new JumpInsnNode( Opcodes.GOTO, labels[random.nextInt(size)] );
+		case 8:
+			final LabelNode[] targets = new LabelNode[1 + random.nextInt(3)];
+			for( int t = 0; t < targets.length; t++ ){
+				targets[t] = labels[random.nextInt(size)];
+			}
+			return new TableSwitchInsnNode( 0, targets.length - 1, labels[random.nextInt(size)], targets );
+		case 9: return new InsnNode( Opcodes.IRETURN );
+		case 10: return new InsnNode( Opcodes.ATHROW );
+		default: return new InsnNode( random.nextBoolean() ? Opcodes.MONITORENTER : Opcodes.MONITOREXIT );
+		}
+	}
+
+	/**
+	 * @return A class without frames named Synthetic, with the methods
+	 */
+	@SuppressWarnings("unchecked")
+	static byte[] classWith( MethodNode... methods ){
+		final ClassNode clazz = new ClassNode();
+		clazz.version = Opcodes.V1_5; // No frames
+		clazz.access = Opcodes.ACC_PUBLIC;
+		clazz.name = "Synthetic";
+		clazz.superName = "java/lang/Object";
+		clazz.methods.addAll( Arrays.asList(methods) );
+		final ClassWriter writer = new ClassWriter( 0 );
+		clazz.accept( writer );
+		return writer.toByteArray();
+	}
+}